@@ -0,0 +1,51 @@
+package edu.jhu.hlt.fnparse;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.Log;
+
+/**
+ * Runs the JMH benchmarks in src/jmh/java and writes the results to a file
+ * (JSON by default) so that runs can be compared across commits, e.g.
+ *   java -cp target/fnparse-*-jar-with-dependencies.jar edu.jhu.hlt.fnparse.Benchmarks \
+ *     include '.*Agenda.*' result target/jmh-agenda.json
+ *
+ * Keys:
+ *   include: regex of benchmarks to run (default is all of them)
+ *   result: where to write results
+ *   resultFormat: one of {@link ResultFormatType}
+ *   forks: overrides the number of forks in the annotations if >= 0
+ *
+ * @author travis
+ */
+public class Benchmarks {
+
+  public static void main(String[] args) throws RunnerException {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    String include = config.getString("include", ".*Benchmark.*");
+    File result = config.getFile("result", new File("target/jmh-result.json"));
+    ResultFormatType fmt = ResultFormatType.valueOf(config.getString("resultFormat", "JSON"));
+    int forks = config.getInt("forks", -1);
+    Log.info("[main] include=" + include);
+    Log.info("[main] result=" + result.getPath());
+    Log.info("[main] resultFormat=" + fmt);
+    Log.info("[main] forks=" + forks);
+
+    OptionsBuilder ob = new OptionsBuilder();
+    ob.include(include);
+    ob.resultFormat(fmt);
+    ob.result(result.getPath());
+    if (forks >= 0)
+      ob.forks(forks);
+    Options opt = ob.build();
+    new Runner(opt).run();
+    Log.info("wrote " + result.getPath());
+  }
+}
@@ -0,0 +1,424 @@
+package edu.jhu.hlt.fnparse;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import edu.jhu.hlt.fnparse.data.FrameIndex;
+import edu.jhu.hlt.fnparse.datatypes.DependencyParse;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.datatypes.Frame;
+import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
+import edu.jhu.hlt.fnparse.datatypes.Sentence;
+import edu.jhu.hlt.fnparse.features.BasicFeatureTemplates;
+import edu.jhu.hlt.fnparse.features.IntFeatureSink;
+import edu.jhu.hlt.fnparse.features.TemplateContext;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.TemplateJoin;
+import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures;
+import edu.jhu.hlt.fnparse.features.precompute.FeatureFile;
+import edu.jhu.hlt.fnparse.inference.heads.DependencyHeadFinder;
+import edu.jhu.hlt.fnparse.inference.heads.HeadFinder;
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.tutils.Span;
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+import edu.jhu.hlt.uberts.HypEdge;
+import edu.jhu.hlt.uberts.HypNode;
+import edu.jhu.hlt.uberts.Relation;
+import edu.jhu.hlt.uberts.Uberts;
+
+/**
+ * Fixtures for the JMH benchmarks, built from the FrameNet full text
+ * annotations in toydata/fulltext (frames and roles are looked up in the
+ * toydata frame index). Tokens and POS tags come from the PENN layer, lemmas
+ * are lowercased words, and since there are no parses each sentence gets a
+ * right-branching dependency chain (every token is governed by the next one),
+ * which is enough for head finding and the Basic dependency templates.
+ *
+ * @author travis
+ */
+public class ToyData {
+
+  /** Longest span considered as an argument in {@link #argCandidates(FrameInstance)} */
+  public static final int MAX_ARG_WIDTH = 3;
+
+  /**
+   * Feature set used for feature extraction benchmarks (products of templates
+   * taken from data/feature-sets/by-hand), restricted to templates which only
+   * need words, POS tags, lemmas, and Basic dependencies.
+   */
+  public static final String[] FEATURE_SET = new String[] {
+      "Span1-First-Word",
+      "Span1-Last-Word",
+      "Span1-Width-Div2",
+      "Span2-First-Word",
+      "Span2-Last-Word",
+      "Span1-PosPat-FULL_POS-3-1",
+      "Head1-Child-Basic-Word",
+      "Head1-Parent-Basic-Word",
+      "Head1-RootPath-Basic-POS-DEP-t",
+      "Head1Head2-Path-Basic-LEMMA-DEP-t",
+      "Span1-Last-Word3*Pos2-2-grams-between-Span1.First-and-Span2.First",
+      "Lemma-2-grams-between-Head1-and-Head2*Dist-Direction-Head1-Head2",
+      "Head1-Word*role",
+      "Span1-Last-WordLC*frameMaybe*role",
+  };
+
+  private static boolean configured = false;
+  private static List<FNParse> parses;
+  private static File featureSetFile;
+
+  /**
+   * Sets up {@link ExperimentProperties} (once per JVM, the first caller
+   * wins), adding the given key/value pairs. Call this before touching any
+   * classes which read the config in static initializers.
+   */
+  public static synchronized ExperimentProperties config(String... keyValues) {
+    if (keyValues.length % 2 != 0)
+      throw new IllegalArgumentException("need key/value pairs: " + Arrays.toString(keyValues));
+    if (!configured) {
+      ExperimentProperties config = ExperimentProperties.init(new String[0]);
+      for (int i = 0; i < keyValues.length; i += 2)
+        config.put(keyValues[i], keyValues[i + 1]);
+      config.putIfAbsent("propbank", "false");
+      configured = true;
+    }
+    return ExperimentProperties.getInstance();
+  }
+
+  public static File getFullTextDir() {
+    return config().getExistingDir("toydata.fulltext", new File("toydata/fulltext"));
+  }
+
+  /** Every sentence in toydata/fulltext with its FrameNet annotations */
+  public static synchronized List<FNParse> parses() {
+    if (parses == null) {
+      FrameIndex fi = FrameIndex.getFrameNet();
+      File[] xmls = getFullTextDir().listFiles(f -> f.getName().endsWith(".xml"));
+      Arrays.sort(xmls);
+      List<FNParse> ps = new ArrayList<>();
+      try {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        for (File f : xmls) {
+          Document doc = db.parse(f);
+          NodeList sents = doc.getElementsByTagName("sentence");
+          for (int i = 0; i < sents.getLength(); i++) {
+            FNParse y = readSentence((Element) sents.item(i), f.getName(), fi);
+            if (y != null)
+              ps.add(y);
+          }
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      int n = 0;
+      for (FNParse y : ps)
+        n += y.numFrameInstances();
+      Log.info("[main] read " + ps.size() + " sentences with " + n + " frames from " + getFullTextDir().getPath());
+      parses = Collections.unmodifiableList(ps);
+    }
+    return parses;
+  }
+
+  private static FNParse readSentence(Element sentence, String docName, FrameIndex fi) {
+    String text = sentence.getElementsByTagName("text").item(0).getTextContent();
+
+    // Tokens come from the PENN layer, given as inclusive character offsets
+    List<int[]> toks = new ArrayList<>();
+    List<String> pos = new ArrayList<>();
+    NodeList layers = sentence.getElementsByTagName("layer");
+    for (int i = 0; i < layers.getLength() && toks.isEmpty(); i++) {
+      Element layer = (Element) layers.item(i);
+      if (!"PENN".equals(layer.getAttribute("name")))
+        continue;
+      NodeList labels = layer.getElementsByTagName("label");
+      for (int j = 0; j < labels.getLength(); j++) {
+        Element l = (Element) labels.item(j);
+        int start = Integer.parseInt(l.getAttribute("start"));
+        int end = Integer.parseInt(l.getAttribute("end"));
+        toks.add(new int[] {start, end});
+        String p = l.getAttribute("name");
+        pos.add("sent".equals(p) ? "." : p.toUpperCase());
+      }
+    }
+    int n = toks.size();
+    if (n == 0)
+      return null;
+    int[] char2tok = new int[text.length()];
+    Arrays.fill(char2tok, -1);
+    String[] words = new String[n];
+    String[] lemmas = new String[n];
+    for (int i = 0; i < n; i++) {
+      int[] se = toks.get(i);
+      words[i] = text.substring(se[0], se[1] + 1);
+      lemmas[i] = words[i].toLowerCase();
+      for (int c = se[0]; c <= se[1]; c++)
+        char2tok[c] = i;
+    }
+    String id = docName + "/" + sentence.getAttribute("ID");
+    Sentence sent = new Sentence("toydata", id, words, pos.toArray(new String[n]), lemmas);
+    int[] gov = new int[n];
+    String[] lab = new String[n];
+    for (int i = 0; i < n; i++) {
+      gov[i] = i + 1 < n ? i + 1 : -1;
+      lab[i] = i + 1 < n ? "dep" : "root";
+    }
+    sent.setBasicDeps(new DependencyParse(gov, lab));
+    sent.setParseyDeps(new DependencyParse(gov, lab));
+    sent.computeShapes();
+
+    // Frames: one per target, skipping anything we can't line up with tokens
+    Map<Frame, Map<String, Integer>> roleIdx = new HashMap<>();
+    Set<Span> targets = new LinkedHashSet<>();
+    List<FrameInstance> fis = new ArrayList<>();
+    NodeList annos = sentence.getElementsByTagName("annotationSet");
+    for (int i = 0; i < annos.getLength(); i++) {
+      Element anno = (Element) annos.item(i);
+      String frameName = anno.getAttribute("frameName");
+      if (frameName.isEmpty())
+        continue;
+      Frame frame = fi.nameToFrameMap().get("framenet/" + frameName);
+      if (frame == null)
+        continue;
+      Span t = null;
+      Span[] args = new Span[frame.numRoles()];
+      Arrays.fill(args, Span.nullSpan);
+      NodeList al = anno.getElementsByTagName("layer");
+      for (int j = 0; j < al.getLength(); j++) {
+        Element layer = (Element) al.item(j);
+        String ln = layer.getAttribute("name");
+        if (!"Target".equals(ln) && !"FE".equals(ln))
+          continue;
+        NodeList labels = layer.getElementsByTagName("label");
+        for (int k = 0; k < labels.getLength(); k++) {
+          Element l = (Element) labels.item(k);
+          if (!l.hasAttribute("start"))
+            continue;   // null instantiation
+          Span s = charsToTokens(l, char2tok);
+          if (s == null)
+            continue;
+          if ("Target".equals(ln)) {
+            if (t == null)
+              t = s;
+          } else {
+            Integer r = roleIdx.computeIfAbsent(frame, ToyData::roleIndex).get(l.getAttribute("name"));
+            if (r != null && args[r] == Span.nullSpan)
+              args[r] = s;
+          }
+        }
+      }
+      if (t != null && targets.add(t))
+        fis.add(FrameInstance.newFrameInstance(frame, t, args, sent));
+    }
+    if (fis.isEmpty())
+      return null;
+    return new FNParse(sent, fis);
+  }
+
+  private static Map<String, Integer> roleIndex(Frame f) {
+    Map<String, Integer> m = new HashMap<>();
+    for (int k = 0; k < f.numRoles(); k++)
+      m.put(f.getRole(k), k);
+    return m;
+  }
+
+  private static Span charsToTokens(Element label, int[] char2tok) {
+    int start = Integer.parseInt(label.getAttribute("start"));
+    int end = Integer.parseInt(label.getAttribute("end"));
+    if (start < 0 || end >= char2tok.length)
+      return null;
+    // Labels may start/end on whitespace, move inwards to the nearest token
+    while (start <= end && char2tok[start] < 0)
+      start++;
+    while (end >= start && char2tok[end] < 0)
+      end--;
+    if (start > end)
+      return null;
+    return Span.getSpan(char2tok[start], char2tok[end] + 1);
+  }
+
+  /**
+   * Every span of width at most {@link #MAX_ARG_WIDTH}, plus any realized
+   * arguments of fi which are longer, in a fixed order.
+   */
+  public static List<Span> argCandidates(FrameInstance fi) {
+    int n = fi.getSentence().size();
+    Set<Span> args = new LinkedHashSet<>();
+    for (int i = 0; i < n; i++)
+      for (int j = i + 1; j <= n && j - i <= MAX_ARG_WIDTH; j++)
+        args.add(Span.getSpan(i, j));
+    for (int k = 0; k < fi.numArguments(); k++)
+      if (fi.getArgument(k) != Span.nullSpan)
+        args.add(fi.getArgument(k));
+    return new ArrayList<>(args);
+  }
+
+  /** Which role to pair with the i-th candidate arg of fi, cycles through all of them */
+  public static String role(FrameInstance fi, int i) {
+    Frame f = fi.getFrame();
+    return f.getRole(i % f.numRoles());
+  }
+
+  /** {@link #FEATURE_SET} as a file in the format read by FeatureSet.getFeatureSet3 */
+  public static synchronized File featureSetFile() {
+    if (featureSetFile == null) {
+      try {
+        File f = File.createTempFile("toydata-", ".fs");
+        f.deleteOnExit();
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(f))) {
+          for (String feat : FEATURE_SET) {
+            // score, ig, hx, selectivity, arity, intTemplates, stringTemplates
+            int arity = feat.split("\\*").length;
+            w.write("0\t0\t0\t0\t" + arity + "\t0\t0\t" + feat);
+            w.newLine();
+          }
+        }
+        featureSetFile = f;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return featureSetFile;
+  }
+
+  /** {@link #FEATURE_SET}, built the same way as OldFeaturesWrapper does */
+  public static Template[] templates(BasicFeatureTemplates bft) {
+    Template[] t = new Template[FEATURE_SET.length];
+    for (int i = 0; i < t.length; i++)
+      t[i] = TemplateJoin.prod(bft.getBasicTemplates(FEATURE_SET[i].split("\\*")), null);
+    return t;
+  }
+
+  /**
+   * Sets up ctx for a (target, arg, role) item, the same as OldFeaturesWrapper
+   * does for argument4 facts.
+   */
+  public static void setArgContext(TemplateContext ctx, FrameInstance fi, Span s, String role, HeadFinder hf) {
+    Sentence sent = fi.getSentence();
+    Span t = fi.getTarget();
+    ctx.clear();
+    ctx.setSentence(sent);
+    ctx.setArg(s);
+    ctx.setSpan1(s);
+    ctx.setArgHead(hf.head(s, sent));
+    ctx.setHead1(ctx.getArgHead());
+    ctx.setTarget(t);
+    ctx.setSpan2(t);
+    ctx.setTargetHead(hf.head(t, sent));
+    ctx.setHead2(ctx.getTargetHead());
+    ctx.setFrameStr(fi.getFrame().getName());
+    ctx.setRoleS(role);
+  }
+
+  /** Every template in {@link #FEATURE_SET} and every pair of adjacent ones */
+  public static int[][] featureSet() {
+    int T = FEATURE_SET.length;
+    int[][] fs = new int[2 * T - 1][];
+    for (int t = 0; t < T; t++)
+      fs[t] = new int[] {t};
+    for (int t = 0; t < T - 1; t++)
+      fs[T + t] = new int[] {t, t + 1};
+    return fs;
+  }
+
+  public static int[] template2cardinality(int cardinality) {
+    int[] c = new int[FEATURE_SET.length];
+    Arrays.fill(c, cardinality);
+    return c;
+  }
+
+  /**
+   * Features for every target in y and every one of its
+   * {@link #argCandidates(FrameInstance)}, in the format read from disk:
+   * template values are hashes of templates (see {@link #templates(BasicFeatureTemplates)})
+   * mod cardinality.
+   */
+  public static CachedFeatures.Item cachedFeatures(FNParse y, Template[] templates, int cardinality) {
+    HeadFinder hf = new DependencyHeadFinder();
+    TemplateContext ctx = new TemplateContext();
+    IntFeatureSink sink = new IntFeatureSink();
+    CachedFeatures.Item item = new CachedFeatures.Item(y);
+    for (FrameInstance fi : y.getFrameInstances()) {
+      Span t = fi.getTarget();
+      List<Span> args = argCandidates(fi);
+      for (int i = 0; i < args.size(); i++) {
+        Span s = args.get(i);
+        setArgContext(ctx, fi, s, role(fi, i), hf);
+        // docId, sentId, target, arg, roles, then template:value
+        StringBuilder line = new StringBuilder();
+        line.append("toydata\t").append(y.getSentence().getId())
+          .append('\t').append(t.shortString())
+          .append('\t').append(s.shortString())
+          .append("\t-1");
+        for (int k = 0; k < templates.length; k++) {
+          sink.clear();
+          templates[k].extractHashes(ctx, sink);
+          for (int j = 0; j < sink.size(); j++)
+            line.append('\t').append(k).append(':').append(Math.floorMod(sink.get(j), cardinality));
+        }
+        item.setFeatures(t, s, new FeatureFile.Line(line.toString(), true));
+      }
+    }
+    return item;
+  }
+
+  /**
+   * An {@link Uberts} whose state holds the facts for y's sentence, with the
+   * same relations as FNParseToRelations: word2, pos2, lemma2, and
+   * dsyn3-basic. predicate2 and argument4 are defined but there are no facts
+   * for them. Also sets {@link Uberts#dbgSentenceCache}.
+   */
+  public static Uberts uberts(FNParse y) {
+    Uberts u = new Uberts(new Random(9001));
+    u.readRelData("def startDoc <docid>");
+    u.readRelData("def word2 <tokenIndex> <word>");
+    u.readRelData("def pos2 <tokenIndex> <pos>");
+    u.readRelData("def lemma2 <tokenIndex> <lemma>");
+    u.readRelData("def dsyn3-basic <tokenIndex> <tokenIndex> <edgeLabel>");
+    u.readRelData("def predicate2 <span> <frame>");
+    u.readRelData("def argument4 <span> <frame> <span> <role>");
+    Sentence sent = y.getSentence();
+    u.addEdgeToState(fact(u, "startDoc", sent.getId()), Adjoints.Constant.ZERO);
+    DependencyParse deps = sent.getBasicDeps();
+    for (int i = 0; i < sent.size(); i++) {
+      String ii = String.valueOf(i);
+      u.addEdgeToState(fact(u, "word2", ii, sent.getWord(i)), Adjoints.Constant.ZERO);
+      u.addEdgeToState(fact(u, "pos2", ii, sent.getPos(i)), Adjoints.Constant.ZERO);
+      u.addEdgeToState(fact(u, "lemma2", ii, sent.getLemma(i)), Adjoints.Constant.ZERO);
+      u.addEdgeToState(fact(u, "dsyn3-basic",
+          String.valueOf(deps.getHead(i)), ii, deps.getLabel(i)), Adjoints.Constant.ZERO);
+    }
+    u.dbgSentenceCache = sent;
+    return u;
+  }
+
+  /**
+   * Like {@link Uberts#dbgMakeEdge(String, boolean)}, but args may contain
+   * commas and parens (e.g. punctuation tokens).
+   */
+  public static HypEdge fact(Uberts u, String relation, String... args) {
+    Relation r = u.getEdgeType(relation);
+    HypNode[] tail = new HypNode[args.length];
+    for (int i = 0; i < args.length; i++)
+      tail[i] = u.lookupNode(r.getTypeForArg(i), args[i], true, false);
+    return u.makeEdge(false, r, tail);
+  }
+}
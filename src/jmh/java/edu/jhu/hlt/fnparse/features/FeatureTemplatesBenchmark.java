@@ -0,0 +1,122 @@
+package edu.jhu.hlt.fnparse.features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.jhu.hlt.fnparse.ToyData;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
+import edu.jhu.hlt.fnparse.inference.heads.DependencyHeadFinder;
+import edu.jhu.hlt.fnparse.inference.heads.HeadFinder;
+import edu.jhu.hlt.tutils.Span;
+
+/**
+ * Extracting {@link ToyData#FEATURE_SET} with {@link BasicFeatureTemplates}
+ * for every (target, candidate arg) in one toydata sentence, as Strings
+ * ({@link Template#extract(TemplateContext)}) vs hashes
+ * ({@link Template#extractHashes(TemplateContext, IntFeatureSink)}).
+ * Each invocation does the next sentence.
+ *
+ * @author travis
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureTemplatesBenchmark {
+
+  /** Everything to extract features for in one sentence */
+  static class Item {
+    final FrameInstance[] fi;
+    final Span[] args;
+    final String[] roles;
+    Item(List<FrameInstance> fi, List<Span> args, List<String> roles) {
+      this.fi = fi.toArray(new FrameInstance[fi.size()]);
+      this.args = args.toArray(new Span[args.size()]);
+      this.roles = roles.toArray(new String[roles.size()]);
+    }
+  }
+
+  private Item[] items;
+  private Template[] templates;
+  private HeadFinder hf;
+  private TemplateContext ctx;
+  private IntFeatureSink sink;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    ToyData.config();
+    List<FNParse> ys = ToyData.parses();
+    items = new Item[ys.size()];
+    for (int i = 0; i < items.length; i++) {
+      List<FrameInstance> fis = new ArrayList<>();
+      List<Span> args = new ArrayList<>();
+      List<String> roles = new ArrayList<>();
+      for (FrameInstance fi : ys.get(i).getFrameInstances()) {
+        List<Span> ss = ToyData.argCandidates(fi);
+        for (int j = 0; j < ss.size(); j++) {
+          fis.add(fi);
+          args.add(ss.get(j));
+          roles.add(ToyData.role(fi, j));
+        }
+      }
+      items[i] = new Item(fis, args, roles);
+    }
+    templates = ToyData.templates(new BasicFeatureTemplates());
+    hf = new DependencyHeadFinder();
+    ctx = new TemplateContext();
+    sink = new IntFeatureSink();
+    next = 0;
+  }
+
+  private Item nextItem() {
+    Item it = items[next];
+    next = (next + 1) % items.length;
+    return it;
+  }
+
+  @Benchmark
+  public void strings(Blackhole bh) {
+    Item it = nextItem();
+    for (int i = 0; i < it.args.length; i++) {
+      ToyData.setArgContext(ctx, it.fi[i], it.args[i], it.roles[i], hf);
+      for (Template t : templates) {
+        // Products are lazy, iterate like OldFeaturesWrapper.features does
+        Iterable<String> fs = t.extract(ctx);
+        if (fs != null)
+          for (String f : fs)
+            bh.consume(f);
+      }
+    }
+  }
+
+  @Benchmark
+  public void hashes(Blackhole bh) {
+    Item it = nextItem();
+    for (int i = 0; i < it.args.length; i++) {
+      ToyData.setArgContext(ctx, it.fi[i], it.args[i], it.roles[i], hf);
+      sink.clear();
+      for (Template t : templates)
+        bh.consume(t.extractHashes(ctx, sink));
+      bh.consume(sink.size());
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package edu.jhu.hlt.fnparse.features.precompute;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.jhu.hlt.fnparse.ToyData;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
+import edu.jhu.hlt.fnparse.features.BasicFeatureTemplates;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
+import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures.Item;
+import edu.jhu.hlt.tutils.ProductIndex;
+import edu.jhu.hlt.tutils.Span;
+
+/**
+ * Looking up the (product) features for every (target, arg) in one toydata
+ * sentence, as done by FModel.SimpleCFLike:
+ * <ul>
+ * <li>flatten: from the template values on each {@link FeatureFile.Line}
+ *     (what happens if {@link Item#convertToFlattenedRepresentation(int[][], int[])} isn't called)</li>
+ * <li>flattenedList: cached flattened features, as a List of {@link ProductIndex}</li>
+ * <li>flattenedView: cached flattened features, through a {@link ColumnarFeatureStore.FeatureView}</li>
+ * <li>columnarView: the same features read from a {@link ColumnarFeatureStore}</li>
+ * <li>productCache: from the template values, as longs, through a warm {@link ProductCache}</li>
+ * </ul>
+ * Features come from {@link ToyData#cachedFeatures(FNParse, Template[], int)}
+ * and {@link ToyData#featureSet()}.
+ *
+ * @author travis
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CachedFeaturesBenchmark {
+
+  @Param({"1024"})
+  public int templateCardinality;
+
+  private int[][] featureSet;
+  private int[] template2cardinality;
+
+  // Indexed by sentence
+  private Item[] raw;       // features as FeatureFile.Lines
+  private Item[] flat;      // after convertToFlattenedRepresentation
+  private Item[] columnar;  // backed by store
+  private Span[][] targets, args;
+
+  private File storeFile;
+  private ColumnarFeatureStore store;
+  private ColumnarFeatureStore.FeatureView view;
+  private ProductCache products;
+  private ProductCache.Plan plan;
+  private ProductCache.Buffer buf;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    ToyData.config();
+    Template[] templates = ToyData.templates(new BasicFeatureTemplates());
+    featureSet = ToyData.featureSet();
+    template2cardinality = ToyData.template2cardinality(templateCardinality);
+
+    List<FNParse> ys = ToyData.parses();
+    int n = ys.size();
+    raw = new Item[n];
+    flat = new Item[n];
+    columnar = new Item[n];
+    targets = new Span[n][];
+    args = new Span[n][];
+    for (int i = 0; i < n; i++) {
+      FNParse y = ys.get(i);
+      raw[i] = ToyData.cachedFeatures(y, templates, templateCardinality);
+      flat[i] = ToyData.cachedFeatures(y, templates, templateCardinality);
+      flat[i].convertToFlattenedRepresentation(featureSet, template2cardinality);
+      List<Span> ts = new ArrayList<>();
+      List<Span> ss = new ArrayList<>();
+      for (FrameInstance fi : y.getFrameInstances()) {
+        for (Span s : ToyData.argCandidates(fi)) {
+          ts.add(fi.getTarget());
+          ss.add(s);
+        }
+      }
+      targets[i] = ts.toArray(new Span[ts.size()]);
+      args[i] = ss.toArray(new Span[ss.size()]);
+    }
+
+    storeFile = File.createTempFile("toydata-", ".cfs");
+    storeFile.deleteOnExit();
+    long fsHash = ColumnarFeatureStore.featureSetHash(featureSet, template2cardinality);
+    try (ColumnarFeatureStore.Writer w = new ColumnarFeatureStore.Writer(storeFile, fsHash)) {
+      for (int i = 0; i < n; i++)
+        w.write(ys.get(i).getSentence().getId(), flat[i].getFlattenedFeatures());
+    }
+    store = new ColumnarFeatureStore(storeFile);
+    for (int i = 0; i < n; i++)
+      columnar[i] = new Item(ys.get(i), store.getBlock(i));
+
+    view = new ColumnarFeatureStore.FeatureView();
+    products = new ProductCache(template2cardinality, 1 << 24);
+    plan = products.compile(featureSet);
+    buf = new ProductCache.Buffer();
+    next = 0;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    store.close();
+    storeFile.delete();
+  }
+
+  private int nextSentence() {
+    int i = next;
+    next = (next + 1) % raw.length;
+    return i;
+  }
+
+  @Benchmark
+  public void flatten(Blackhole bh) {
+    int i = nextSentence();
+    Span[] ts = targets[i], ss = args[i];
+    for (int j = 0; j < ts.length; j++) {
+      List<ProductIndex> fs = CachedFeatures.statelessGetFeaturesNoModulo(
+          ts[j], ss[j], raw[i], featureSet, template2cardinality);
+      for (ProductIndex f : fs)
+        bh.consume(f.getProdFeature());
+    }
+  }
+
+  @Benchmark
+  public void flattenedList(Blackhole bh) {
+    int i = nextSentence();
+    Span[] ts = targets[i], ss = args[i];
+    for (int j = 0; j < ts.length; j++)
+      for (ProductIndex f : flat[i].getFlattenedCachedFeatures(ts[j], ss[j]))
+        bh.consume(f.getProdFeature());
+  }
+
+  @Benchmark
+  public void flattenedView(Blackhole bh) {
+    lookupViews(flat, bh);
+  }
+
+  @Benchmark
+  public void columnarView(Blackhole bh) {
+    lookupViews(columnar, bh);
+  }
+
+  @Benchmark
+  public void productCache(Blackhole bh) {
+    int i = nextSentence();
+    Span[] ts = targets[i], ss = args[i];
+    for (int j = 0; j < ts.length; j++) {
+      CachedFeatures.statelessGetFeaturesNoModulo(ts[j], ss[j], raw[i], products, plan, buf);
+      int n = buf.size();
+      for (int k = 0; k < n; k++)
+        bh.consume(buf.get(k));
+    }
+  }
+
+  private void lookupViews(Item[] items, Blackhole bh) {
+    int i = nextSentence();
+    Span[] ts = targets[i], ss = args[i];
+    for (int j = 0; j < ts.length; j++) {
+      if (!items[i].getFlattenedCachedFeatures(ts[j], ss[j], view))
+        throw new IllegalStateException();
+      int n = view.size();
+      for (int k = 0; k < n; k++)
+        bh.consume(view.get(k));
+    }
+  }
+}
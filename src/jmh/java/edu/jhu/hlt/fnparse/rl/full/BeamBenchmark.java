@@ -0,0 +1,125 @@
+package edu.jhu.hlt.fnparse.rl.full;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.jhu.hlt.fnparse.rl.full.Beam.ArrayBeam;
+import edu.jhu.hlt.fnparse.rl.full.Beam.DoubleBeam;
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+
+/**
+ * One step of beam search: offer successorsPerItem * beamSize states (some of
+ * which are equal and should collapse) and then pop everything, for
+ * {@link DoubleBeam} vs {@link ArrayBeam}.
+ *
+ * @author travis
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeamBenchmark {
+
+  /**
+   * A state with a fixed score and a signature, states with the same id are
+   * equal (a copy of FixedScoreState in src/test/java).
+   */
+  static final class OfferState implements StateLike {
+    static final HowToSearch BY_SCORE = new HowToSearch() {
+      @Override public GeneralizedCoef coefLoss() { return null; }
+      @Override public GeneralizedCoef coefModel() { return null; }
+      @Override public GeneralizedCoef coefRand() { return null; }
+      @Override public int beamSize() { throw new UnsupportedOperationException(); }
+      @Override public double forwards(StepScores<?> scores) { return scores.getRand(); }
+    };
+
+    private final StepScores<?> scores;
+    private final Sig sig;
+
+    OfferState(int id, double score) {
+      this.scores = new StepScores<>(null, new Adjoints.Constant(0), MaxLoss.ZERO, score);
+      this.sig = Sig.item(Sig.Mode.ZOBRIST, 0, 1, id, 0, 0, 0, 0);
+    }
+
+    @Override
+    public StepScores<?> getStepScores() {
+      return scores;
+    }
+
+    @Override
+    public Sig getSignature() {
+      return sig;
+    }
+
+    @Override
+    public int hashCode() {
+      return sig.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof OfferState && sig.equals(((OfferState) other).sig);
+    }
+  }
+
+  @Param({"1", "2", "4", "8", "16", "32", "64", "128"})
+  public int beamSize;
+
+  @Param({"20"})
+  public int successorsPerItem;
+
+  /** Fraction of offers which are equal to an earlier offer */
+  @Param({"0.1"})
+  public double dupRate;
+
+  private OfferState[] offers;
+  private DoubleBeam<OfferState> doubleBeam;
+  private ArrayBeam<OfferState> arrayBeam;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random rand = new Random(9001);
+    int n = beamSize * successorsPerItem;
+    offers = new OfferState[n];
+    for (int i = 0; i < n; i++) {
+      int id = i > 0 && rand.nextDouble() < dupRate ? rand.nextInt(i) : i;
+      offers[i] = new OfferState(id, rand.nextGaussian());
+    }
+    doubleBeam = new DoubleBeam<>(beamSize, OfferState.BY_SCORE);
+    arrayBeam = new ArrayBeam<>(beamSize, OfferState.BY_SCORE);
+  }
+
+  @Benchmark
+  public void doubleBeam(Blackhole bh) {
+    doubleBeam.clear();
+    for (OfferState s : offers)
+      bh.consume(doubleBeam.offer(s));
+    while (doubleBeam.size() > 0)
+      bh.consume(doubleBeam.pop());
+  }
+
+  @Benchmark
+  public void arrayBeam(Blackhole bh) {
+    arrayBeam.clear();
+    for (OfferState s : offers)
+      bh.consume(arrayBeam.offer(s));
+    while (arrayBeam.size() > 0)
+      bh.consume(arrayBeam.pop());
+  }
+}
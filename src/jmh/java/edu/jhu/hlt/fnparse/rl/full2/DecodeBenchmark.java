@@ -0,0 +1,90 @@
+package edu.jhu.hlt.fnparse.rl.full2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.jhu.hlt.fnparse.ToyData;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.features.BasicFeatureTemplates;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
+import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures;
+import edu.jhu.hlt.fnparse.rl.full.FModel;
+import edu.jhu.hlt.fnparse.rl.full.FModel.SimpleCFLike;
+import edu.jhu.hlt.fnparse.rl.rerank.RerankerTrainer.RTConfig;
+
+/**
+ * {@link FNParseTransitionScheme} decoding one toydata sentence (via
+ * {@link FModel#predict(FNParse)}), given gold targets and frames, with the
+ * arguments pruned to {@link ToyData#argCandidates} and static features from
+ * {@link ToyData#cachedFeatures}. Weights are random so that search isn't
+ * breaking ties everywhere.
+ *
+ * @author travis
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+  @Param({"1", "4", "16"})
+  public int beamSize;
+
+  private FModel model;
+  private List<FNParse> ys;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    ToyData.config("hashingTrickDim", String.valueOf(1 << 20));
+    Template[] templates = ToyData.templates(new BasicFeatureTemplates());
+    int card = 1024;
+    int[][] featureSet = ToyData.featureSet();
+    int[] t2c = ToyData.template2cardinality(card);
+    List<CachedFeatures.Item> items = new ArrayList<>();
+    for (FNParse y : ToyData.parses()) {
+      CachedFeatures.Item i = ToyData.cachedFeatures(y, templates, card);
+      i.convertToFlattenedRepresentation(featureSet, t2c);
+      items.add(i);
+    }
+    SimpleCFLike cf = new SimpleCFLike();
+    cf.addItems(items);   // sets FNParse.featuresAndSpans, used for arg pruning
+    ys = cf.getParses();
+
+    File wd = Files.createTempDirectory("decode-bench").toFile();
+    wd.deleteOnExit();
+    RTConfig conf = new RTConfig("bench", wd, new Random(9001));
+    conf.setBeamSize(beamSize);
+    model = new FModel(conf, null, 1);
+    model.setCachedFeatures(cf);
+    model.getAverageWeights().gaussianFill(new Random(9001));
+    next = 0;
+  }
+
+  @Benchmark
+  public FNParse decode() {
+    FNParse y = ys.get(next);
+    next = (next + 1) % ys.size();
+    return model.predict(y);
+  }
+}
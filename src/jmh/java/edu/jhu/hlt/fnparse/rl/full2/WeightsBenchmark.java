@@ -0,0 +1,167 @@
+package edu.jhu.hlt.fnparse.rl.full2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.jhu.hlt.fnparse.ToyData;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
+import edu.jhu.hlt.fnparse.features.BasicFeatureTemplates;
+import edu.jhu.hlt.fnparse.features.IntFeatureSink;
+import edu.jhu.hlt.fnparse.features.TemplateContext;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
+import edu.jhu.hlt.fnparse.inference.heads.DependencyHeadFinder;
+import edu.jhu.hlt.fnparse.inference.heads.HeadFinder;
+import edu.jhu.hlt.tutils.Span;
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+
+/**
+ * {@link AveragedPerceptronWeights} score/forwards and backwards on batch
+ * feature vectors extracted from toydata (hashes of {@link ToyData#FEATURE_SET},
+ * indexed like OldFeaturesWrapper.Ints3), for each weight storage.
+ *
+ * @author travis
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeightsBenchmark {
+
+  @Param({"DOUBLE", "FLOAT", "CONCURRENT"})
+  public String storage;
+
+  @Param({"18", "22"})
+  public int dimensionBits;
+
+  /** Number of feature vectors scored per invocation */
+  @Param({"256"})
+  public int batch;
+
+  private int[][] features;     // all toydata (target, arg, role) items
+  private int[] flat, offsets;  // next batch, for scoreBatch
+  private AveragedPerceptronWeights w;
+  private AveragedPerceptronWeights avg;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    ToyData.config();
+    BasicFeatureTemplates bft = new BasicFeatureTemplates();
+    Template[] templates = ToyData.templates(bft);
+    HeadFinder hf = new DependencyHeadFinder();
+    TemplateContext ctx = new TemplateContext();
+    IntFeatureSink sink = new IntFeatureSink();
+    int T = templates.length;
+    List<int[]> fs = new ArrayList<>();
+    for (FNParse y : ToyData.parses()) {
+      for (FrameInstance fi : y.getFrameInstances()) {
+        List<Span> args = ToyData.argCandidates(fi);
+        for (int i = 0; i < args.size(); i++) {
+          ToyData.setArgContext(ctx, fi, args.get(i), ToyData.role(fi, i), hf);
+          sink.clear();
+          for (int t = 0; t < T; t++) {
+            int start = sink.size();
+            templates[t].extractHashes(ctx, sink);
+            for (int j = start; j < sink.size(); j++)
+              sink.set(j, sink.get(j) * T + t);
+          }
+          if (sink.size() > 0)
+            fs.add(sink.toArray());
+        }
+      }
+    }
+    features = fs.toArray(new int[fs.size()][]);
+
+    int dim = 1 << dimensionBits;
+    switch (storage) {
+    case "DOUBLE":
+      w = new AveragedPerceptronWeights(dim, 0);
+      break;
+    case "FLOAT":
+      w = new AveragedPerceptronWeights.FloatStorage(dim);
+      break;
+    case "CONCURRENT":
+      w = new AveragedPerceptronWeights.ConcurrentStorage(dim);
+      break;
+    default:
+      throw new IllegalArgumentException("storage=" + storage);
+    }
+
+    // Some non-zero weights and averages to read
+    Random rand = new Random(9001);
+    for (int i = 0; i < features.length; i++) {
+      w.score(features[i], true).backwards(rand.nextBoolean() ? +1 : -1);
+      w.completedObservation();
+    }
+    avg = w.averageView();
+    offsets = new int[batch + 1];
+    flat = new int[64];
+    next = 0;
+  }
+
+  private int[] nextFeatures() {
+    int[] f = features[next];
+    next = (next + 1) % features.length;
+    return f;
+  }
+
+  @Benchmark
+  public void forwards(Blackhole bh) {
+    for (int i = 0; i < batch; i++)
+      bh.consume(w.score(nextFeatures(), true).forwards());
+  }
+
+  @Benchmark
+  public void forwardsAverage(Blackhole bh) {
+    for (int i = 0; i < batch; i++)
+      bh.consume(avg.score(nextFeatures(), true).forwards());
+  }
+
+  @Benchmark
+  public void forwardsBackwards(Blackhole bh) {
+    for (int i = 0; i < batch; i++) {
+      Adjoints a = w.score(nextFeatures(), true);
+      double f = a.forwards();
+      bh.consume(f);
+      a.backwards(f > 0 ? +1 : -1);
+    }
+    w.completedObservation();
+  }
+
+  @Benchmark
+  public void scoreBatch(Blackhole bh) {
+    // Building the concatenated input is part of the cost, as in Ints3.score(List, ...)
+    int n = 0;
+    for (int i = 0; i < batch; i++) {
+      int[] f = nextFeatures();
+      if (n + f.length > flat.length)
+        flat = Arrays.copyOf(flat, 2 * (n + f.length));
+      System.arraycopy(f, 0, flat, n, f.length);
+      offsets[i] = n;
+      n += f.length;
+    }
+    offsets[batch] = n;
+    for (Adjoints a : w.scoreBatch(flat, offsets, batch, true))
+      bh.consume(a.forwards());
+  }
+}
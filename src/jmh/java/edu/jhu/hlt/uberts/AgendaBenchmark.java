@@ -0,0 +1,105 @@
+package edu.jhu.hlt.uberts;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.jhu.hlt.fnparse.ToyData;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
+import edu.jhu.hlt.tutils.Span;
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+import edu.jhu.hlt.uberts.HypEdge.HashableHypEdge;
+
+/**
+ * Filling an {@link Agenda} with argument4 facts built from toydata (every
+ * target with its {@link ToyData#argCandidates}) and then popping everything,
+ * for each implementation (see {@link Agenda#build(String, java.util.function.BiFunction, java.util.Comparator)}).
+ *
+ * @author travis
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgendaBenchmark {
+
+  @Param({"hash", "indexed"})
+  public String impl;
+
+  @Param({"100", "1000", "10000"})
+  public int size;
+
+  private List<HashableHypEdge> edges;
+  private List<Adjoints> scores;
+  private Agenda agenda;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    ToyData.config();
+    Uberts u = new Uberts(new Random(9001));
+    u.readRelData("def argument4 <span> <frame> <span> <role>");
+
+    Random rand = new Random(9001);
+    Set<HashableHypEdge> uniq = new HashSet<>();
+    edges = new ArrayList<>();
+    scores = new ArrayList<>();
+    outer:
+    for (FNParse y : ToyData.parses()) {
+      for (FrameInstance fi : y.getFrameInstances()) {
+        List<Span> args = ToyData.argCandidates(fi);
+        for (int i = 0; i < args.size(); i++) {
+          HypEdge e = ToyData.fact(u, "argument4", fi.getTarget().shortString(),
+              fi.getFrame().getName(), args.get(i).shortString(), ToyData.role(fi, i));
+          HashableHypEdge he = new HashableHypEdge(e);
+          if (!uniq.add(he))
+            continue;
+          edges.add(he);
+          scores.add(new Adjoints.Constant(rand.nextGaussian()));
+          if (edges.size() == size)
+            break outer;
+        }
+      }
+    }
+    if (edges.size() < size)
+      throw new RuntimeException("only " + edges.size() + " unique edges in toydata, size=" + size);
+
+    agenda = Agenda.build(impl, (e, s) -> s.forwards(), null);
+  }
+
+  @Benchmark
+  public void addPop(Blackhole bh) {
+    agenda.clear();
+    for (int i = 0; i < size; i++)
+      agenda.add(edges.get(i), scores.get(i));
+    while (agenda.size() > 0)
+      bh.consume(agenda.popBoth());
+  }
+
+  @Benchmark
+  public void addAllPop(Blackhole bh) {
+    agenda.clear();
+    agenda.addAll(edges, scores);
+    while (agenda.size() > 0)
+      bh.consume(agenda.popBoth());
+  }
+}
@@ -0,0 +1,111 @@
+package edu.jhu.hlt.uberts.features;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.jhu.hlt.fnparse.ToyData;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
+import edu.jhu.hlt.fnparse.features.BasicFeatureTemplates;
+import edu.jhu.hlt.tutils.Span;
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+import edu.jhu.hlt.uberts.HypEdge;
+import edu.jhu.hlt.uberts.Uberts;
+import edu.jhu.hlt.uberts.features.OldFeaturesWrapper.Ints3;
+
+/**
+ * Scoring every argument4(t,f,s,k) for one toydata sentence (every target with
+ * its {@link ToyData#argCandidates}) with {@link Ints3}, one edge at a time vs
+ * in one batch. Features are extracted every time (no feature cache), as
+ * strings or as int hashes (intFeatures).
+ *
+ * @author travis
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Ints3Benchmark {
+
+  @Param({"false", "true"})
+  public boolean intFeatures;
+
+  @Param({"22"})
+  public int dimensionBits;
+
+  private Uberts[] us;
+  private List<List<HypEdge>> edges;
+  private Ints3 factor;
+  private Adjoints[] out;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    ToyData.config("intFeatures", String.valueOf(intFeatures));
+    Ints3.AUTO_LEARN_DEBUG = false;
+    List<FNParse> ys = ToyData.parses();
+    us = new Uberts[ys.size()];
+    edges = new ArrayList<>();
+    int maxEdges = 0;
+    for (int i = 0; i < us.length; i++) {
+      FNParse y = ys.get(i);
+      us[i] = ToyData.uberts(y);
+      List<HypEdge> es = new ArrayList<>();
+      for (FrameInstance fi : y.getFrameInstances()) {
+        List<Span> args = ToyData.argCandidates(fi);
+        for (int j = 0; j < args.size(); j++) {
+          // argument4 is us[0]'s Relation (what factor expects), us[i] only provides the sentence
+          es.add(ToyData.fact(us[0], "argument4", fi.getTarget().shortString(),
+              fi.getFrame().getName(), args.get(j).shortString(), ToyData.role(fi, j)));
+        }
+      }
+      edges.add(es);
+      maxEdges = Math.max(maxEdges, es.size());
+    }
+
+    File fs = ToyData.featureSetFile();
+    boolean fixed = false, cacheFeatures = false, learnDebug = false;
+    factor = new Ints3("bench", new BasicFeatureTemplates(),
+        us[0].getEdgeType("argument4"), fs, 1 << dimensionBits,
+        fixed, cacheFeatures, learnDebug);
+    out = new Adjoints[maxEdges];
+    next = 0;
+  }
+
+  @Benchmark
+  public void score(Blackhole bh) {
+    int i = next;
+    next = (next + 1) % us.length;
+    for (HypEdge e : edges.get(i))
+      bh.consume(factor.score(e, us[i]).forwards());
+  }
+
+  @Benchmark
+  public void scoreBatch(Blackhole bh) {
+    int i = next;
+    next = (next + 1) % us.length;
+    List<HypEdge> es = edges.get(i);
+    factor.score(es, us[i], out);
+    for (int j = 0; j < es.size(); j++)
+      bh.consume(out[j].forwards());
+  }
+}
@@ -0,0 +1,113 @@
+package edu.jhu.hlt.uberts.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.jhu.hlt.fnparse.ToyData;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.tutils.LL;
+import edu.jhu.hlt.uberts.HypEdge;
+import edu.jhu.hlt.uberts.Relation;
+import edu.jhu.hlt.uberts.Uberts;
+import edu.jhu.hlt.uberts.auto.Rule;
+import edu.jhu.hlt.uberts.auto.Trigger;
+import edu.jhu.hlt.uberts.rules.Env.Trie3;
+
+/**
+ * Matching rule left hand sides against the state for one toydata sentence
+ * (see {@link ToyData#uberts(FNParse)}), once for every fact in the state as
+ * the last fact added, with {@link Trie3} vs {@link JoinPlan} in each mode.
+ * The rules join the token facts on the token index and across dependency
+ * edges.
+ *
+ * @author travis
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Trie3Benchmark {
+
+  public static final String[] RULES = new String[] {
+      "word2(i,w) & pos2(i,p) & lemma2(i,l) => tokenInfo3(i,p,l)",
+      "dsyn3-basic(g,d,e) & pos2(g,pg) & pos2(d,pd) => depPos4(g,d,pg,pd)",
+      "dsyn3-basic(g,d,e) & lemma2(g,lg) & dsyn3-basic(d,c,e2) & lemma2(c,lc) => grandparent3(g,c,lc)",
+  };
+
+  /** One sentence, and what matches against it */
+  static class Sent {
+    final edu.jhu.hlt.uberts.State state;
+    final HypEdge[] facts;
+    final Trie3 trie;
+    final JoinPlan.Index plans;
+    Sent(Uberts u, JoinPlan.Mode mode) {
+      u.readRelData("def tokenInfo3 <tokenIndex> <pos> <lemma>");
+      u.readRelData("def depPos4 <tokenIndex> <tokenIndex> <pos> <pos>");
+      u.readRelData("def grandparent3 <tokenIndex> <tokenIndex> <lemma>");
+      trie = Trie3.makeRoot();
+      plans = new JoinPlan.Index(mode);
+      for (String rs : RULES) {
+        Rule r = Rule.parseRule(rs, null, u);
+        Trigger t = new Trigger(r.lhs, 0);
+        trie.add(t);
+        plans.add(t);
+      }
+      state = u.getState();
+      List<HypEdge> fs = new ArrayList<>();
+      for (String rn : new String[] {"word2", "pos2", "lemma2", "dsyn3-basic"}) {
+        Relation rel = u.getEdgeType(rn);
+        for (LL<HypEdge> cur = state.match2(rel); cur != null; cur = cur.next)
+          fs.add(cur.item);
+      }
+      facts = fs.toArray(new HypEdge[fs.size()]);
+    }
+  }
+
+  /** TRIE3 or one of {@link JoinPlan.Mode} */
+  @Param({"TRIE3", "COMPILED", "INTERPRETED"})
+  public String matcher;
+
+  private Sent[] sents;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    ToyData.config();
+    JoinPlan.Mode mode = "TRIE3".equals(matcher) ? JoinPlan.Mode.COMPILED : JoinPlan.Mode.valueOf(matcher);
+    List<FNParse> ys = ToyData.parses();
+    sents = new Sent[ys.size()];
+    for (int i = 0; i < sents.length; i++)
+      sents[i] = new Sent(ToyData.uberts(ys.get(i)), mode);
+    next = 0;
+  }
+
+  @Benchmark
+  public void match(Blackhole bh) {
+    Sent s = sents[next];
+    next = (next + 1) % sents.length;
+    if ("TRIE3".equals(matcher)) {
+      for (HypEdge f : s.facts)
+        s.trie.match(s.state, f, bh::consume);
+    } else {
+      for (HypEdge f : s.facts)
+        s.plans.match(s.state, f, (trig, values) -> bh.consume(values));
+    }
+  }
+}
@@ -0,0 +1,422 @@
+package edu.jhu.hlt.entsum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import edu.jhu.hlt.entsum.GillickFavre09Summarization.ConceptMention;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.prim.list.DoubleArrayList;
+import edu.jhu.prim.list.IntArrayList;
+
+/**
+ * Approximately solves the concept coverage problem in
+ * {@link GillickFavre09Summarization#solve(int)} (pick sentences with total
+ * length at most L which maximize the utility of the concepts they cover) in
+ * pure Java, without Gurobi.
+ *
+ * Coverage is monotone submodular, so this uses the budgeted greedy algorithm
+ * with lazy evaluation of marginal gains (CELF, Leskovec et al. 2007): run
+ * greedy once picking the sentence with the best gain/length and once with the
+ * best gain, and keep the better one. This is within a constant factor of the
+ * optimum (1/2 (1 - 1/e)).
+ *
+ * If the problem has sentence costs ({@link GillickFavre09Summarization#getSentenceCosts()},
+ * which must be non-negative) they are subtracted from the objective, as in
+ * {@link GillickFavre09Summarization#solveSoft(int)}: a sentence's gain is the
+ * utility of the new concepts it covers minus its cost, and sentences with
+ * gain <= 0 are never added. Gains still only go down as more is covered, so
+ * lazy evaluation is still exact, but the objective is no longer monotone and
+ * the constant factor above no longer holds.
+ *
+ * Optionally (lagrangianIters > 0) this then relaxes the length constraint
+ * and the coverage constraints (c_i <= sum_j Occ_ij s_j) with multipliers
+ * lambda and mu_i, giving an upper bound on the optimum:
+ *   UB = lambda L + sum_i max(0, u_i - mu_i) + sum_j max(0, sum_{i in j} mu_i - lambda l_j - cost_j)
+ * which is minimized by subgradient descent. At each step the sentences with
+ * positive reduced profit are used to seed greedy, which sometimes finds a
+ * better summary than plain greedy. The bound gives an optimality gap without
+ * needing to know the optimum.
+ *
+ * If compareWithGurobi is set, this also solves the ILP with Gurobi (if it is
+ * available) and logs the true gap. {@link GillickFavre09Summarization#solve(int)}
+ * doesn't know about sentence costs, so the gap is only exact without them.
+ *
+ * Not thread safe (keeps the last solve's stats).
+ *
+ * @author travis
+ */
+public class CelfSummarizationSolver implements GillickFavre09Summarization.Solver {
+  public static int DEBUG = 0;
+
+  public int lagrangianIters;
+  public boolean compareWithGurobi;
+
+  // Stats from the last call to solve
+  private double lastValue;
+  private double lastUpperBound;
+
+  public CelfSummarizationSolver() {
+    this(0, false);
+  }
+
+  public CelfSummarizationSolver(int lagrangianIters, boolean compareWithGurobi) {
+    this.lagrangianIters = lagrangianIters;
+    this.compareWithGurobi = compareWithGurobi;
+  }
+
+  /** Objective value (total utility of covered concepts) of the last solution */
+  public double getLastValue() {
+    return lastValue;
+  }
+
+  /**
+   * Upper bound on the optimum from the last solve (sum of all utilities if
+   * lagrangianIters=0).
+   */
+  public double getLastUpperBound() {
+    return lastUpperBound;
+  }
+
+  /** The problem in a form which is cheap to compute gains for */
+  static class Problem {
+    final double[] u;         // concept utilities
+    final int[][] concepts;   // concepts[j] are the (unique) concepts in sentence j
+    final int[] len;          // sentence lengths
+    final double[] cost;      // sentence costs, all 0 if there are none
+    final int budget;
+
+    Problem(List<? extends ConceptMention> occ, IntArrayList sentenceLengths, DoubleArrayList sentenceCosts, double[] conceptUtilities, int budget) {
+      this.u = conceptUtilities;
+      this.budget = budget;
+      int n = sentenceLengths.size();
+      this.len = new int[n];
+      for (int j = 0; j < n; j++)
+        len[j] = sentenceLengths.get(j);
+      this.cost = new double[n];
+      if (sentenceCosts != null) {
+        if (sentenceCosts.size() != n)
+          throw new IllegalArgumentException("nSentence=" + n + " nCosts=" + sentenceCosts.size());
+        for (int j = 0; j < n; j++) {
+          cost[j] = sentenceCosts.get(j);
+          if (!(cost[j] >= 0) || Double.isInfinite(cost[j]))
+            throw new IllegalArgumentException("sentence costs must be finite and non-negative: cost[" + j + "]=" + cost[j]);
+        }
+      }
+
+      // Bucket occurrences by sentence, then dedup
+      int[] cnt = new int[n];
+      for (ConceptMention m : occ)
+        cnt[m.j]++;
+      concepts = new int[n][];
+      for (int j = 0; j < n; j++)
+        concepts[j] = new int[cnt[j]];
+      Arrays.fill(cnt, 0);
+      for (ConceptMention m : occ)
+        concepts[m.j][cnt[m.j]++] = m.i;
+      for (int j = 0; j < n; j++) {
+        int[] c = concepts[j];
+        Arrays.sort(c);
+        int k = 0;
+        for (int i = 0; i < c.length; i++)
+          if (k == 0 || c[i] != c[k - 1])
+            c[k++] = c[i];
+        if (k < c.length)
+          concepts[j] = Arrays.copyOf(c, k);
+      }
+    }
+
+    int numSentences() {
+      return len.length;
+    }
+
+    /** Utility of the concepts j would add to covered, minus j's cost */
+    double gain(int j, boolean[] covered) {
+      double g = -cost[j];
+      for (int i : concepts[j])
+        if (!covered[i])
+          g += u[i];
+      return g;
+    }
+  }
+
+  /** A set of sentences and what they cover, value is net of sentence costs */
+  static class Summary {
+    final IntArrayList sentences = new IntArrayList();
+    final boolean[] selected;
+    final boolean[] covered;
+    double value;
+    int length;
+
+    Summary(Problem p) {
+      selected = new boolean[p.numSentences()];
+      covered = new boolean[p.u.length];
+    }
+
+    void add(Problem p, int j) {
+      assert !selected[j];
+      selected[j] = true;
+      sentences.add(j);
+      length += p.len[j];
+      value -= p.cost[j];
+      for (int i : p.concepts[j]) {
+        if (!covered[i]) {
+          covered[i] = true;
+          value += p.u[i];
+        }
+      }
+    }
+  }
+
+  /** Max-heap of sentences by key */
+  static class Heap {
+    final int[] items;
+    final double[] keys;
+    int size;
+
+    Heap(int capacity) {
+      items = new int[capacity];
+      keys = new double[capacity];
+    }
+
+    void push(int item, double key) {
+      int k = size++;
+      while (k > 0) {
+        int parent = (k - 1) >>> 1;
+        if (keys[parent] >= key)
+          break;
+        items[k] = items[parent];
+        keys[k] = keys[parent];
+        k = parent;
+      }
+      items[k] = item;
+      keys[k] = key;
+    }
+
+    double topKey() {
+      return keys[0];
+    }
+
+    int pop() {
+      int top = items[0];
+      size--;
+      if (size > 0) {
+        int item = items[size];
+        double key = keys[size];
+        int k = 0;
+        while (true) {
+          int c = 2 * k + 1;
+          if (c >= size)
+            break;
+          if (c + 1 < size && keys[c + 1] > keys[c])
+            c++;
+          if (keys[c] <= key)
+            break;
+          items[k] = items[c];
+          keys[k] = keys[c];
+          k = c;
+        }
+        items[k] = item;
+        keys[k] = key;
+      }
+      return top;
+    }
+  }
+
+  /**
+   * Adds sentences to s greedily (by gain/length if ratio, otherwise gain)
+   * until nothing else fits or helps, only re-computing gains for sentences
+   * which might be the best (gains only go down as more is covered).
+   */
+  static void lazyGreedy(Problem p, Summary s, boolean ratio) {
+    int n = p.numSentences();
+    Heap h = new Heap(n);
+    int[] stamp = new int[n];   // number of sentences selected when key was computed
+    for (int j = 0; j < n; j++) {
+      if (s.selected[j] || s.length + p.len[j] > p.budget)
+        continue;
+      double g = p.gain(j, s.covered);
+      if (g > 0)
+        h.push(j, key(g, p.len[j], ratio));
+    }
+    int round = s.sentences.size();
+    Arrays.fill(stamp, round);
+    int evals = 0;
+    while (h.size > 0 && h.topKey() > 0) {
+      int j = h.pop();
+      if (s.length + p.len[j] > p.budget)
+        continue;   // doesn't fit any more, never will
+      if (stamp[j] == s.sentences.size()) {
+        s.add(p, j);
+        continue;
+      }
+      double g = p.gain(j, s.covered);
+      evals++;
+      stamp[j] = s.sentences.size();
+      if (g > 0)
+        h.push(j, key(g, p.len[j], ratio));
+    }
+    if (DEBUG > 1)
+      Log.info("ratio=" + ratio + " nSent=" + s.sentences.size() + " value=" + s.value + " lazyEvals=" + evals);
+  }
+
+  private static double key(double gain, int length, boolean ratio) {
+    return ratio ? gain / Math.max(1, length) : gain;
+  }
+
+  /** CELF: the better of the ratio and plain greedy solutions */
+  static Summary celf(Problem p) {
+    Summary a = new Summary(p);
+    lazyGreedy(p, a, true);
+    Summary b = new Summary(p);
+    lazyGreedy(p, b, false);
+    return a.value >= b.value ? a : b;
+  }
+
+  /**
+   * Subgradient descent on the Lagrangian upper bound (see class comment),
+   * using the relaxed solutions to seed greedy. Updates best if a better
+   * summary is found, returns the best upper bound.
+   */
+  static double lagrangian(Problem p, Summary[] best, int iters) {
+    int nS = p.numSentences();
+    int nC = p.u.length;
+    double[] mu = new double[nC];
+    double lambda = 0;
+    double bestUB = Double.POSITIVE_INFINITY;
+    double theta = 2;
+    int sinceImproved = 0;
+
+    double[] profit = new double[nS];
+    boolean[] s = new boolean[nS];
+    int[] cover = new int[nC];    // sum_j Occ_ij s_j
+    for (int iter = 0; iter < iters; iter++) {
+      // Solve the relaxed problem
+      double ub = lambda * p.budget;
+      for (int i = 0; i < nC; i++)
+        if (p.u[i] > mu[i])
+          ub += p.u[i] - mu[i];
+      Arrays.fill(cover, 0);
+      int relaxedLen = 0;
+      for (int j = 0; j < nS; j++) {
+        double m = 0;
+        for (int i : p.concepts[j])
+          m += mu[i];
+        profit[j] = m - lambda * p.len[j] - p.cost[j];
+        s[j] = profit[j] > 0;
+        if (s[j]) {
+          ub += profit[j];
+          relaxedLen += p.len[j];
+          for (int i : p.concepts[j])
+            cover[i]++;
+        }
+      }
+      if (ub < bestUB - 1e-9) {
+        bestUB = ub;
+        sinceImproved = 0;
+      } else if (++sinceImproved >= 5) {
+        theta /= 2;
+        sinceImproved = 0;
+      }
+
+      // Primal heuristic: sentences with positive reduced profit (most profit per length first), then greedy
+      Summary seeded = new Summary(p);
+      List<Integer> order = new ArrayList<>();
+      for (int j = 0; j < nS; j++)
+        if (s[j])
+          order.add(j);
+      Collections.sort(order, (x, y) -> Double.compare(
+          profit[y] / Math.max(1, p.len[y]), profit[x] / Math.max(1, p.len[x])));
+      for (int j : order)
+        if (seeded.length + p.len[j] <= p.budget && p.gain(j, seeded.covered) > 0)
+          seeded.add(p, j);
+      lazyGreedy(p, seeded, true);
+      if (seeded.value > best[0].value)
+        best[0] = seeded;
+
+      double lb = best[0].value;
+      if (bestUB - lb <= 1e-9)
+        break;
+
+      // Subgradient step (Polyak)
+      double gLambda = p.budget - relaxedLen;
+      double norm = gLambda * gLambda;
+      for (int i = 0; i < nC; i++) {
+        double gi = cover[i] - (p.u[i] > mu[i] ? 1 : 0);
+        norm += gi * gi;
+      }
+      if (norm == 0)
+        break;
+      double step = theta * (ub - lb) / norm;
+      lambda = Math.max(0, lambda - step * gLambda);
+      for (int i = 0; i < nC; i++) {
+        double gi = cover[i] - (p.u[i] > mu[i] ? 1 : 0);
+        mu[i] = Math.min(p.u[i], Math.max(0, mu[i] - step * gi));
+      }
+      if (DEBUG > 1)
+        Log.info("iter=" + iter + " ub=" + ub + " bestUB=" + bestUB + " lb=" + lb + " lambda=" + lambda + " theta=" + theta);
+    }
+    return bestUB;
+  }
+
+  @Override
+  public IntArrayList solve(GillickFavre09Summarization problem, int summaryLength) throws Exception {
+    Problem p = new Problem(problem.getOcc(), problem.getSentenceLengths(),
+        problem.getSentenceCosts(), problem.getConceptUtilities(), summaryLength);
+    Summary[] best = new Summary[] {celf(p)};
+    double ub = 0;
+    for (double u : p.u)
+      ub += u;
+    if (lagrangianIters > 0) {
+      double greedy = best[0].value;
+      ub = Math.min(ub, lagrangian(p, best, lagrangianIters));
+      if (DEBUG > 0)
+        Log.info("lagrangian improved greedy from " + greedy + " to " + best[0].value);
+    }
+    lastValue = best[0].value;
+    lastUpperBound = ub;
+    Log.info("summaryLength=" + summaryLength
+        + " nSent=" + best[0].sentences.size()
+        + " length=" + best[0].length
+        + " value=" + lastValue
+        + " upperBound=" + ub
+        + " gap<=" + gap(lastValue, ub));
+
+    if (compareWithGurobi) {
+      IntArrayList opt;
+      try {
+        opt = problem.solve(summaryLength);
+      } catch (Exception | UnsatisfiedLinkError | NoClassDefFoundError e) {
+        Log.info("gurobi not available, not comparing: " + e.getMessage());
+        opt = null;
+      }
+      if (opt != null) {
+        Summary o = new Summary(p);
+        for (int k = 0; k < opt.size(); k++)
+          o.add(p, opt.get(k));
+        Log.info("gurobi value=" + o.value + " celf value=" + lastValue + " gap=" + gap(lastValue, o.value));
+      }
+    }
+
+    // Same order as the gurobi solution
+    int[] keep = best[0].sentences.toNativeArray();
+    Arrays.sort(keep);
+    IntArrayList out = new IntArrayList(keep.length);
+    for (int j : keep)
+      out.add(j);
+    return out;
+  }
+
+  /** Relative gap, (upper - value) / upper */
+  static double gap(double value, double upper) {
+    if (upper <= 0)
+      return 0;
+    return Math.max(0, upper - value) / upper;
+  }
+
+  @Override
+  public String toString() {
+    return "(CELF lagrangianIters=" + lagrangianIters + " compareWithGurobi=" + compareWithGurobi + ")";
+  }
+}
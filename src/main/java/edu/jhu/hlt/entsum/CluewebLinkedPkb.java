@@ -167,12 +167,14 @@ public class CluewebLinkedPkb {
     ComputeIdf df = new ComputeIdf(new File("data/idf/cms/df-cms-simpleaccumulo-twolfe-cag1-nhash12-logb20.jser"));
     double cosineThresh = 0.5;
     
+    GillickFavre09Summarization.Solver solver = GillickFavre09Summarization.Solver.fromConfig(config);
     CluewebLinkedPkb pkb = new CluewebLinkedPkb("/m/" + mid, sent);
     for (Entity related : pkb.getMostRelatedEntities(k)) {
 //      List<ScoredPassage> mentions = parses.getAllParses(related.mentions);
       List<ScoredPassage> mentions = parses.getAllParses(related.getMentionsDedupped(df, cosineThresh));
       Alphabet<String> conceptAlph = new Alphabet<>();
       GillickFavre09Summarization.Adapter a = new GillickFavre09Summarization.Adapter(mentions, conceptAlph);
+      a.solver = solver;
       List<ScoredPassage> summary = a.rerank(d);
       
       Map<String, String> mid2tag = new HashMap<>();
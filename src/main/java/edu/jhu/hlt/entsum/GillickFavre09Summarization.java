@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Map;
 
 import edu.jhu.hlt.entsum.CluewebLinkedPreprocess.EntityMentionRanker.ScoredPassage;
+import edu.jhu.hlt.tutils.ExperimentProperties;
 import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.tutils.MultiAlphabet;
 import edu.jhu.hlt.tutils.hash.Hash;
@@ -81,6 +82,44 @@ public class GillickFavre09Summarization {
 //    }
 //  }
   
+  /**
+   * Picks sentences which maximize the utility of the concepts they cover,
+   * subject to a length limit, see {@link GillickFavre09Summarization#solve(int)}.
+   */
+  public interface Solver {
+    /**
+     * @return the list of sentence indices in the summary
+     */
+    IntArrayList solve(GillickFavre09Summarization problem, int summaryLength) throws Exception;
+
+    /** Solves the ILP exactly, needs the Gurobi native library and a license */
+    Solver GUROBI = (problem, summaryLength) -> problem.solve(summaryLength);
+
+    /**
+     * summarization.solver is either "gurobi" (default) or "celf" (see
+     * {@link CelfSummarizationSolver}, which also reads
+     * summarization.celf.lagrangianIters and summarization.celf.compareWithGurobi).
+     */
+    static Solver fromConfig(ExperimentProperties config) {
+      String name = config.getString("summarization.solver", "gurobi");
+      Solver s;
+      switch (name.toLowerCase()) {
+      case "gurobi":
+        s = GUROBI;
+        break;
+      case "celf":
+        s = new CelfSummarizationSolver(
+            config.getInt("summarization.celf.lagrangianIters", 0),
+            config.getBoolean("summarization.celf.compareWithGurobi", false));
+        break;
+      default:
+        throw new IllegalArgumentException("unknown summarization.solver: " + name);
+      }
+      Log.info("summarization.solver=" + (s == GUROBI ? "gurobi" : s));
+      return s;
+    }
+  }
+
   /**
    * Given sentences, do the work of building the Occ_{ij} matrix of concept mentions.
    */
@@ -91,6 +130,7 @@ public class GillickFavre09Summarization {
     public boolean cCopula = false;
     public boolean cInfobox = false;
     public boolean cRelated = true;
+    public Solver solver = Solver.GUROBI;   // see Solver.fromConfig and CelfSummarizationSolver
     
     public Adapter(List<ScoredPassage> mentions, Alphabet<String> conceptAlph) {
       this.mentions = mentions;
@@ -143,15 +183,15 @@ public class GillickFavre09Summarization {
       Log.info("nOcc=" + occ.size() + " nSent=" + sentenceLengths.size() + " nConcept=" + conceptAlph.size());
       try {
         DoubleArrayList sentenceCosts = null;
-        GillickFavre09Summarization solver = new GillickFavre09Summarization(occ, sentenceLengths, sentenceCosts, conceptUtilities);
-        IntArrayList keep = solver.solve(summaryLength);
+        GillickFavre09Summarization problem = new GillickFavre09Summarization(occ, sentenceLengths, sentenceCosts, conceptUtilities);
+        IntArrayList keep = solver.solve(problem, summaryLength);
         
         List<ScoredPassage> out = new ArrayList<>(keep.size());
         for (int i = 0; i < keep.size(); i++)
           out.add(mentions.get(keep.get(i)));
         return out;
         
-      } catch (GRBException e) {
+      } catch (Exception e) {
         throw new RuntimeException(e);
       }
     }
@@ -262,6 +302,23 @@ public class GillickFavre09Summarization {
     }
   }
   
+  public List<? extends ConceptMention> getOcc() {
+    return occ;
+  }
+
+  public IntArrayList getSentenceLengths() {
+    return sentenceLengths;
+  }
+
+  /** May be null */
+  public DoubleArrayList getSentenceCosts() {
+    return sentenceCosts;
+  }
+
+  public double[] getConceptUtilities() {
+    return conceptUtilities;
+  }
+  
   /* NOTE: This doesn't seem to work...
    * 
    * Returns a mapping from the new sentence indices (used by the pruned problem) to the original indices.
@@ -559,7 +616,7 @@ public class GillickFavre09Summarization {
     return keep;
   }
   
-  public static void buildPkbSummary() throws Exception {
+  public static void buildPkbSummary(Solver solver) throws Exception {
     File p = new File("../data/clueweb09-freebase-annotation/gen-for-entsum/");
     File f = new File(p, "sentences-rare4/sentences-containing-m.0gly1.txt.gz");
     int maxSentenceLength = 80;
@@ -572,6 +629,7 @@ public class GillickFavre09Summarization {
     Alphabet<String> conceptAlph = new Alphabet<>();
 //    Adapter a = new Adapter("/m/0gly1", mentions, conceptAlph);
     Adapter a = new Adapter(mentions, conceptAlph);
+    a.solver = solver;
     int maxWordsInSummary = 200;
     int words = 0;
     List<ScoredPassage> summary = a.rerank(maxWordsInSummary);
@@ -613,6 +671,7 @@ public class GillickFavre09Summarization {
   }
   
   public static void main(String[] args) throws Exception {
+    ExperimentProperties config = ExperimentProperties.init(args);
     Log.info("starting...");
     
 //    System.out.println(System.getProperty("java.library.path"));
@@ -628,8 +687,10 @@ public class GillickFavre09Summarization {
 //    m.dispose();
 //    e.dispose();
     
-//    buildPkbSummary();
-    softTest0();
+    if (config.getBoolean("buildPkbSummary", false))
+      buildPkbSummary(Solver.fromConfig(config));
+    else
+      softTest0();
 
     Log.info("done");
   }
@@ -40,6 +40,8 @@ public class DependencyParse implements Serializable {
   private transient int[] depths;
   private transient int[][] children;
   private transient int hashCode = 0;
+  private transient TokenVocab labelVocab;
+  private transient int[] labelIds;
 
   // TODO Replace with custom Java serialization (e.g. see Span)
   public static final BiConsumer<DependencyParse, DataOutputStream> SERIALIZATION_FUNC = (deps, dos) -> {
@@ -232,6 +234,7 @@ public class DependencyParse implements Serializable {
       else
         labels[i] = "R";
     }
+    labelIds = null;
   }
 
   public int hashCode() {
@@ -280,6 +283,27 @@ public class DependencyParse implements Serializable {
     return labels[i];
   }
 
+  /**
+   * Ids of every label in vocab ({@link TokenVocab.Type#DEPREL}), computed
+   * once (the ids for the last vocab asked about are cached), don't modify.
+   */
+  public int[] getLabelIds(TokenVocab vocab) {
+    if (labelIds == null || labelVocab != vocab) {
+      labelIds = vocab.lookup(TokenVocab.Type.DEPREL, labels, labels.length);
+      labelVocab = vocab;
+    }
+    return labelIds;
+  }
+
+  public int[] getLabelIds() {
+    return getLabelIds(TokenVocab.getGlobal());
+  }
+
+  /** Hash of {@link #getLabel(int)} without touching the String, see {@link TokenVocab#hash} */
+  public int getLabelHash(TokenVocab vocab, int i) {
+    return vocab.hash(TokenVocab.Type.DEPREL, getLabelIds(vocab)[i]);
+  }
+
   public int getDepth(int i) {
     if (depths == null) {
       depths = new int[size()];
@@ -70,6 +70,10 @@ public class Sentence implements HasId, Serializable {
   private StringLabeledDirectedGraph colDeps2;
   private StringLabeledDirectedGraph colCCDeps2;
 
+  // Parallel int view of tokens/pos/lemmas/..., see internTokens
+  private transient TokenVocab vocab;
+  private transient int[][] tokenIds;   // indexed by TokenVocab.Type.ordinal(), then token
+
   /**
    * Helps map back into concrete.Communications.
    *
@@ -308,6 +312,7 @@ public class Sentence implements HasId, Serializable {
     boolean lowercase = true;
     for (int i = 0; i < lemmas.length; i++)
       lemmas[i] = Morphology.lemmaStatic(tokens[i], pos[i], lowercase);
+    tokenIds = null;
   }
 
   public static boolean isPunc(String pos) {
@@ -473,6 +478,66 @@ public class Sentence implements HasId, Serializable {
     return l;
   }
 
+  /**
+   * Builds the int view of this sentence's tokens against vocab (everything
+   * but {@link TokenVocab.Type#DEPREL}, see {@link DependencyParse#getLabelIds}).
+   * Computes shapes if they haven't been computed yet. Call this once when a
+   * sentence is loaded, otherwise it happens (against the global vocab) the
+   * first time an id is asked for.
+   */
+  public void internTokens(TokenVocab vocab) {
+    int n = tokens.length;
+    if (shapes == null)
+      computeShapes();
+    String[] coarse = new String[n];
+    for (int i = 0; i < n; i++)
+      coarse[i] = pos[i].substring(0, 1);
+    int[][] ids = new int[TokenVocab.Type.values().length][];
+    ids[TokenVocab.Type.WORD.ordinal()] = vocab.lookup(TokenVocab.Type.WORD, tokens, n);
+    ids[TokenVocab.Type.LEMMA.ordinal()] = vocab.lookup(TokenVocab.Type.LEMMA, lemmas, n);
+    ids[TokenVocab.Type.POS.ordinal()] = vocab.lookup(TokenVocab.Type.POS, pos, n);
+    ids[TokenVocab.Type.COARSE_POS.ordinal()] = vocab.lookup(TokenVocab.Type.COARSE_POS, coarse, n);
+    ids[TokenVocab.Type.SHAPE.ordinal()] = vocab.lookup(TokenVocab.Type.SHAPE, shapes, n);
+    ids[TokenVocab.Type.NER.ordinal()] = vocab.lookup(TokenVocab.Type.NER, ner, n);
+    this.vocab = vocab;
+    this.tokenIds = ids;
+  }
+
+  public void internTokens() {
+    internTokens(TokenVocab.getGlobal());
+  }
+
+  /** The vocab that {@link #getTokenIds(TokenVocab.Type)} are ids in */
+  public TokenVocab getVocab() {
+    if (tokenIds == null)
+      internTokens();
+    return vocab;
+  }
+
+  /**
+   * Ids of every token's word/pos/... in {@link #getVocab()}, don't modify.
+   * Use {@link DependencyParse#getLabelIds} for deprels.
+   */
+  public int[] getTokenIds(TokenVocab.Type t) {
+    if (tokenIds == null)
+      internTokens();
+    int[] ids = tokenIds[t.ordinal()];
+    if (ids == null)
+      throw new IllegalArgumentException("not a token type: " + t);
+    return ids;
+  }
+
+  public int getTokenId(TokenVocab.Type t, int i) {
+    return getTokenIds(t)[i];
+  }
+
+  /** Same as {@link #getTokenId} hashed by {@link TokenVocab#hash}, no Strings involved */
+  public int getTokenHash(TokenVocab.Type t, int i) {
+    if (tokenIds == null)
+      internTokens();
+    return vocab.hash(t, getTokenIds(t)[i]);
+  }
+
   public void computeShapes() {
     assert shapes == null;
     shapes = new String[tokens.length];
@@ -490,6 +555,8 @@ public class Sentence implements HasId, Serializable {
     if (shapes == null)
       shapes = new String[this.size()];
     shapes[i] = shape;
+    if (tokenIds != null)
+      tokenIds[TokenVocab.Type.SHAPE.ordinal()][i] = vocab.lookup(TokenVocab.Type.SHAPE, shape);
   }
 
   public List<String> posIn(Span s) {
@@ -0,0 +1,204 @@
+package edu.jhu.hlt.fnparse.datatypes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import edu.jhu.hlt.fnparse.features.IntFeatureSink;
+import edu.jhu.hlt.tutils.FileUtil;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.util.Alphabet;
+
+/**
+ * Interns the strings on a {@link Sentence} (words, lemmas, POS, ...) and
+ * {@link DependencyParse} (edge labels) so that each sentence can carry a
+ * parallel int view of itself (see {@link Sentence#getTokenIds(Type)}). There
+ * is one global vocabulary shared by every sentence ({@link #getGlobal()}),
+ * which can be saved and loaded so that ids are stable across runs.
+ *
+ * For every id this also stores the String's hashCode (or
+ * {@link IntFeatureSink#NULL_HASH} for null), which is what feature hashers use
+ * (see {@link #hash(Type, int)}). This means the int hashes of a feature don't
+ * depend on the order that things were interned in (or which vocab file was
+ * loaded), and match what hashing the String would have given.
+ *
+ * Ids only grow, there is no unknown id: anything not seen before is added.
+ * Id 0 is null in every type.
+ *
+ * @author travis
+ */
+public class TokenVocab implements Serializable {
+  private static final long serialVersionUID = -1929438706235133409L;
+
+  public enum Type {
+    WORD,
+    LEMMA,
+    POS,
+    COARSE_POS,
+    SHAPE,
+    NER,
+    DEPREL,
+  }
+
+  /** Id of a null String (e.g. no NER tags or no lemmas) */
+  public static final int NULL = 0;
+
+  private static TokenVocab global;
+
+  /** The vocabulary which sentences intern against by default */
+  public static synchronized TokenVocab getGlobal() {
+    if (global == null)
+      global = new TokenVocab();
+    return global;
+  }
+
+  /**
+   * Replace the global vocab, e.g. with one read by {@link #fromFile(File)}.
+   * Only do this before any sentences have been interned.
+   */
+  public static synchronized void setGlobal(TokenVocab vocab) {
+    Log.info("[main] setting global vocab to " + vocab);
+    global = vocab;
+  }
+
+  private final Alphabet<String>[] alphs;
+  // hashes[type][id], replaced (not modified in place) as ids are added
+  private volatile int[][] hashes;
+
+  @SuppressWarnings("unchecked")
+  public TokenVocab() {
+    Type[] ts = Type.values();
+    alphs = new Alphabet[ts.length];
+    int[][] hs = new int[ts.length][];
+    for (int i = 0; i < ts.length; i++) {
+      alphs[i] = new Alphabet<>();
+      alphs[i].lookupIndex(null);
+      hs[i] = new int[16];
+      hs[i][NULL] = IntFeatureSink.NULL_HASH;
+    }
+    hashes = hs;
+  }
+
+  /** Returns the id of s, adding it if it hasn't been seen before */
+  public synchronized int lookup(Type t, String s) {
+    if (s == null)
+      return NULL;
+    Alphabet<String> a = alphs[t.ordinal()];
+    int n = a.size();
+    int id = a.lookupIndex(s);
+    if (id == n) {
+      int[][] hs = hashes;
+      int[] h = hs[t.ordinal()];
+      if (id >= h.length) {
+        hs = Arrays.copyOf(hs, hs.length);
+        h = hs[t.ordinal()] = Arrays.copyOf(h, h.length * 2);
+      }
+      h[id] = s.hashCode();
+      hashes = hs;
+    }
+    return id;
+  }
+
+  /** Interns every String in ss, where null ss is treated as all nulls */
+  public synchronized int[] lookup(Type t, String[] ss, int n) {
+    int[] ids = new int[n];
+    if (ss != null)
+      for (int i = 0; i < n; i++)
+        ids[i] = lookup(t, ss[i]);
+    return ids;
+  }
+
+  public synchronized String getString(Type t, int id) {
+    return alphs[t.ordinal()].lookupObject(id);
+  }
+
+  /**
+   * Returns the hashCode of the String with this id (no lookups). Only valid
+   * for ids returned by {@link #lookup(Type, String)}.
+   */
+  public int hash(Type t, int id) {
+    return hashes[t.ordinal()][id];
+  }
+
+  public synchronized int size(Type t) {
+    return alphs[t.ordinal()].size();
+  }
+
+  /**
+   * Writes a tab separated file with lines like "WORD 42 dog". Tabs, newlines,
+   * and backslashes are escaped.
+   */
+  public synchronized void toFile(File f) throws IOException {
+    Log.info("writing " + this + " to " + f.getPath());
+    try (BufferedWriter w = FileUtil.getWriter(f)) {
+      w.write("# type id string\n");
+      for (Type t : Type.values()) {
+        Alphabet<String> a = alphs[t.ordinal()];
+        for (int i = NULL + 1; i < a.size(); i++) {
+          w.write(t.name());
+          w.write('\t');
+          w.write(String.valueOf(i));
+          w.write('\t');
+          w.write(escape(a.lookupObject(i)));
+          w.write('\n');
+        }
+      }
+    }
+  }
+
+  /** Reads a file written by {@link #toFile(File)} */
+  public static TokenVocab fromFile(File f) throws IOException {
+    Log.info("reading vocab from " + f.getPath());
+    TokenVocab v = new TokenVocab();
+    try (BufferedReader r = FileUtil.getReader(f)) {
+      for (String line = r.readLine(); line != null; line = r.readLine()) {
+        if (line.startsWith("#"))
+          continue;
+        String[] ar = line.split("\t", 3);
+        if (ar.length != 3)
+          throw new IOException("bad line: " + line);
+        Type t = Type.valueOf(ar[0]);
+        int id = Integer.parseInt(ar[1]);
+        int got = v.lookup(t, unescape(ar[2]));
+        if (got != id)
+          throw new IOException("ids out of order, expected " + id + " but got " + got + ": " + line);
+      }
+    }
+    Log.info("read " + v);
+    return v;
+  }
+
+  private static String escape(String s) {
+    if (s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\\') < 0)
+      return s;
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  private static String unescape(String s) {
+    if (s.indexOf('\\') < 0)
+      return s;
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        char e = s.charAt(++i);
+        sb.append(e == 't' ? '\t' : e == 'n' ? '\n' : e);
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder("(TokenVocab");
+    for (Type t : Type.values())
+      sb.append(" " + t + "=" + alphs[t.ordinal()].size());
+    sb.append(')');
+    return sb.toString();
+  }
+}
@@ -86,6 +86,10 @@ public class BasicEvaluation {
       return sb.toString();
     }
 
+    public FPR.Mode getMode() {
+      return mode;
+    }
+
     public double evaluate(List<SentenceEval> instances) {
       return evaluateAll(instances).get(mode);
     }
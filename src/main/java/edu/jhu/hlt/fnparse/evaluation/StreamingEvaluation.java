@@ -0,0 +1,271 @@
+package edu.jhu.hlt.fnparse.evaluation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.evaluation.BasicEvaluation.StdEvalFunc;
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.FPR;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.prim.tuple.Pair;
+
+/**
+ * Evaluates predictions as they finish rather than after all of them are done.
+ * Each {@link SentenceEval} is folded into running micro/macro P/R/F1 for
+ * every {@link StdEvalFunc} (see
+ * {@link BasicEvaluation#updateEvals(SentenceEval, Map, boolean)}). At most
+ * window predictions are in flight at once, partial results are logged every
+ * reportInterval seconds, and if maxSeconds pass then evaluation stops and
+ * returns what it has so far (see {@link Result#stoppedEarly()}). When there
+ * is a time limit instances are visited in a random (but fixed by seed) order,
+ * so that a partial result is a sample of all the instances rather than a
+ * prefix. Predictions which were started before the time limit are allowed to
+ * finish (and are not counted) before evaluate returns, so callers can safely
+ * change the model afterwards. Unlike collecting Futures and calling
+ * {@link BasicEvaluation#evaluate(List)}, an exception thrown by a prediction
+ * is re-thrown rather than printed and dropped.
+ *
+ * @author travis
+ */
+public class StreamingEvaluation {
+
+  private final int threads;
+  private final int window;
+  private final double reportInterval;  // seconds, <= 0 means never
+  private final double maxSeconds;      // <= 0 means no time limit
+  private final long seed;              // for the order of instances if maxSeconds > 0
+
+  public StreamingEvaluation(int threads, int window, double reportInterval, double maxSeconds) {
+    this(threads, window, reportInterval, maxSeconds, 9001);
+  }
+
+  public StreamingEvaluation(int threads, int window, double reportInterval, double maxSeconds, long seed) {
+    if (threads < 1 || window < 1)
+      throw new IllegalArgumentException("threads=" + threads + " window=" + window);
+    this.threads = threads;
+    this.window = window;
+    this.reportInterval = reportInterval;
+    this.maxSeconds = maxSeconds;
+    this.seed = seed;
+  }
+
+  /**
+   * Reads "threads", "streamingEval.window" (default 4 * threads),
+   * "streamingEval.reportInterval" (seconds, default 60),
+   * "streamingEval.maxSeconds" (default 0, no limit), and
+   * "streamingEval.seed" (default 9001).
+   */
+  public static StreamingEvaluation fromConfig(ExperimentProperties config) {
+    return fromConfig(config, config.getInt("threads", 1));
+  }
+
+  public static StreamingEvaluation fromConfig(ExperimentProperties config, int t) {
+    return new StreamingEvaluation(t,
+        config.getInt("streamingEval.window", 4 * t),
+        config.getDouble("streamingEval.reportInterval", 60),
+        config.getDouble("streamingEval.maxSeconds", 0),
+        config.getInt("streamingEval.seed", 9001));
+  }
+
+  /**
+   * Running totals for some subset of the instances (all of them unless
+   * {@link #stoppedEarly()}).
+   */
+  public static class Result {
+    private final SentenceEval[] evals;   // indexed by instance, null if not done
+    private final Map<String, FPR> perf;  // keys are EvalFunc names
+    private int done;
+    private boolean stoppedEarly;
+
+    public Result(int n) {
+      evals = new SentenceEval[n];
+      perf = new HashMap<>();
+    }
+
+    public void add(int i, SentenceEval se) {
+      if (evals[i] != null)
+        throw new IllegalStateException("already evaluated: " + i);
+      evals[i] = se;
+      BasicEvaluation.updateEvals(se, perf, true);
+      done++;
+    }
+
+    public int numEvaluated() {
+      return done;
+    }
+
+    public int numInstances() {
+      return evals.length;
+    }
+
+    /**
+     * True if evaluation was cut short by the time limit, in which case the
+     * scores are over a random subset of the instances, and are biased towards
+     * instances which are quick to predict.
+     */
+    public boolean stoppedEarly() {
+      return stoppedEarly;
+    }
+
+    /** The running counts for the {@link StdEvalFunc} with this name, or null */
+    public FPR get(String evalFuncName) {
+      return perf.get(evalFuncName);
+    }
+
+    /** Same as f.evaluate on the evaluated instances (0 if there are none) */
+    public double getScore(StdEvalFunc f) {
+      FPR fpr = perf.get(f.getName());
+      return fpr == null ? 0 : fpr.get(f.getMode());
+    }
+
+    /** The evaluated instances, in the order they were given */
+    public List<SentenceEval> getSentenceEvals() {
+      List<SentenceEval> se = new ArrayList<>(done);
+      for (SentenceEval e : evals)
+        if (e != null)
+          se.add(e);
+      return se;
+    }
+
+    @Override
+    public String toString() {
+      return " f1=" + getScore(BasicEvaluation.argOnlyMicroF1)
+          + " p=" + getScore(BasicEvaluation.argOnlyMicroPrecision)
+          + " r=" + getScore(BasicEvaluation.argOnlyMicroRecall)
+          + " n=" + done
+          + (done < evals.length ? "/" + evals.length : "")
+          + (stoppedEarly ? " PARTIAL(time limit)" : "");
+    }
+  }
+
+  /**
+   * @param n is the number of instances.
+   * @param gold returns the i-th label, called from worker threads.
+   * @param predict is called from worker threads.
+   * @param label is used when logging.
+   */
+  public Result evaluate(int n, IntFunction<FNParse> gold, Function<FNParse, FNParse> predict, String label) {
+    Result r = new Result(n);
+    int[] order = order(n);
+    long start = System.currentTimeMillis();
+    long lastReport = start;
+    if (threads == 1) {
+      for (int j = 0; j < n; j++) {
+        int i = order[j];
+        if (outOfTime(start)) {
+          r.stoppedEarly = true;
+          break;
+        }
+        FNParse y = gold.apply(i);
+        r.add(i, new SentenceEval(y, predict.apply(y)));
+        lastReport = maybeReport(r, label, lastReport);
+      }
+      if (r.stoppedEarly())
+        warnOutOfTime(r, label);
+      return r;
+    }
+
+    ExecutorService es = Executors.newWorkStealingPool(threads);
+    CompletionService<Pair<Integer, SentenceEval>> cs = new ExecutorCompletionService<>(es);
+    AtomicBoolean cancelled = new AtomicBoolean(false);
+    int submitted = 0, inFlight = 0;
+    try {
+      while (true) {
+        while (inFlight < window && submitted < n) {
+          final int i = order[submitted++];
+          cs.submit(() -> {
+            if (cancelled.get())
+              return null;
+            FNParse y = gold.apply(i);
+            return new Pair<>(i, new SentenceEval(y, predict.apply(y)));
+          });
+          inFlight++;
+        }
+        if (inFlight == 0)
+          break;
+        Future<Pair<Integer, SentenceEval>> f = cs.poll(1, TimeUnit.SECONDS);
+        if (f != null) {
+          inFlight--;
+          Pair<Integer, SentenceEval> p = f.get();
+          r.add(p.get1(), p.get2());
+        }
+        if (outOfTime(start)) {
+          r.stoppedEarly = r.numEvaluated() < n;
+          break;
+        }
+        lastReport = maybeReport(r, label, lastReport);
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException(label + " prediction failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      // Skip anything which hasn't started if we ran out of time or failed,
+      // and wait for anything which has (predict may not be interruptible).
+      cancelled.set(true);
+      es.shutdownNow();
+      awaitTermination(es, label);
+    }
+    if (r.stoppedEarly())
+      warnOutOfTime(r, label);
+    return r;
+  }
+
+  private int[] order(int n) {
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++)
+      order[i] = i;
+    if (maxSeconds > 0) {
+      Random rand = new Random(seed);
+      for (int i = n - 1; i > 0; i--) {
+        int j = rand.nextInt(i + 1);
+        int t = order[i];
+        order[i] = order[j];
+        order[j] = t;
+      }
+    }
+    return order;
+  }
+
+  private static void awaitTermination(ExecutorService es, String label) {
+    try {
+      while (!es.awaitTermination(1, TimeUnit.MINUTES))
+        Log.info(label + " waiting for predictions which were already started to finish");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void warnOutOfTime(Result r, String label) {
+    Log.warn(label + " ran out of time after " + maxSeconds + " seconds,"
+        + " evaluated " + r.numEvaluated() + " of " + r.numInstances()
+        + ", the result is PARTIAL");
+  }
+
+  private boolean outOfTime(long start) {
+    return maxSeconds > 0 && (System.currentTimeMillis() - start) / 1000d > maxSeconds;
+  }
+
+  private long maybeReport(Result r, String label, long lastReport) {
+    long now = System.currentTimeMillis();
+    if (reportInterval <= 0 || (now - lastReport) / 1000d < reportInterval)
+      return lastReport;
+    Log.info(label + " partial result:" + r);
+    return now;
+  }
+}
@@ -14,14 +14,13 @@ import edu.jhu.hlt.fnparse.datatypes.Frame;
 import edu.jhu.hlt.fnparse.datatypes.FrameArgInstance;
 import edu.jhu.hlt.fnparse.features.precompute.BiAlph;
 import edu.jhu.hlt.fnparse.features.precompute.BiAlph.LineMode;
-import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures;
 import edu.jhu.hlt.fnparse.features.precompute.FeatureFile;
 import edu.jhu.hlt.fnparse.features.precompute.FeaturePrecomputation;
 import edu.jhu.hlt.fnparse.features.precompute.FeatureSet;
+import edu.jhu.hlt.fnparse.features.precompute.ProductCache;
 import edu.jhu.hlt.fnparse.rl.full2.AveragedPerceptronWeights;
 import edu.jhu.hlt.tutils.ExperimentProperties;
 import edu.jhu.hlt.tutils.Log;
-import edu.jhu.hlt.tutils.ProductIndex;
 import edu.jhu.hlt.tutils.Span;
 import edu.jhu.hlt.tutils.TimeMarker;
 import edu.jhu.hlt.tutils.hash.Hash;
@@ -36,6 +35,10 @@ import edu.jhu.hlt.tutils.scoring.Adjoints;
  * This only supports classification (e.g. no global features), so it can be
  * relatively light-weight (doesn't know about FNParses, just sees features).
  *
+ * Products are computed by a {@link ProductCache}, which can be shared by
+ * several of these (e.g. one per feature set, see main) so that products of
+ * templates common to several feature sets are only computed once.
+ *
  * Right now this uses the progressive validation loss described in:
  * http://hunch.net/~jl/projects/prediction_bounds/progressive_validation/coltfinal.pdf
  *
@@ -264,6 +267,9 @@ public class FeatureSelectionClassificationExperiments {
   private int[][] fs;
   private int[] template2cardinality;
   private BitSet templates;
+  private ProductCache products;
+  private ProductCache.Plan plan;
+  private ProductCache.Buffer buf;
 
   // Stuff related to learning
   private AveragedPerceptronWeights[] theta;    // indexed by role, 0th index is weights for no-role
@@ -284,6 +290,19 @@ public class FeatureSelectionClassificationExperiments {
       BiAlph featureCardinalities,
       File featureSetFile,
       Iterable<File> featureFiles) {
+    this(r, featureCardinalities, featureSetFile, featureFiles, null);
+  }
+
+  /**
+   * @param products may be null, in which case a small cache is made for this
+   * instance. Must have been built with featureCardinalities' cardinalities.
+   */
+  public FeatureSelectionClassificationExperiments(
+      Random r,
+      BiAlph featureCardinalities,
+      File featureSetFile,
+      Iterable<File> featureFiles,
+      ProductCache products) {
 
     this.rand = r;
     this.tm = new TimeMarker();
@@ -306,6 +325,11 @@ public class FeatureSelectionClassificationExperiments {
     for (int[] f : fs)
       for (int ff : f)
         this.templates.set(ff);
+    if (products == null)
+      products = new ProductCache(template2cardinality, 1 << 20);
+    this.products = products;
+    this.plan = products.compile(fs);
+    this.buf = new ProductCache.Buffer();
   }
 
   /**
@@ -336,12 +360,8 @@ public class FeatureSelectionClassificationExperiments {
     Collections.shuffle(lines, rand);
 
     for (FeatureFile.Line line : lines) {
-      CachedFeatures.Item i = new CachedFeatures.Item(null);
-      Span t = line.getTarget();
-      Span s = line.getArgSpan();
-      i.setFeatures(t, s, line);
-      i.convertToFlattenedRepresentation(fs, template2cardinality);
-      List<ProductIndex> features = i.getFlattenedCachedFeatures(t, s);
+      products.features(line, plan, buf);
+      int[] features = buf.toIntArray(dimension);
 
       // Extract the label
       int yIdx;
@@ -429,7 +449,8 @@ public class FeatureSelectionClassificationExperiments {
       yhat.weights.completedObservation();
   }
 
-  public Inf predict(List<ProductIndex> features, boolean averageWeights) {
+  /** @param features must already be taken mod dimension */
+  public Inf predict(int[] features, boolean averageWeights) {
     Inf yhat = new Inf(-1, null, null);
     for (int k = 0; k < theta.length; k++) {
       AveragedPerceptronWeights w = getWeights(k, false);
@@ -467,12 +488,28 @@ public class FeatureSelectionClassificationExperiments {
     BiAlph featureCardinalities = new BiAlph(
         config.getExistingFile("bialph"), lm);
 
-    FeatureSelectionClassificationExperiments fsce =
-        new FeatureSelectionClassificationExperiments(
-            new Random(config.getInt("seed", 9001)),
-            featureCardinalities,
-            config.getExistingFile("featureSetFile"),
-            config.getFileGlob("featureFiles"));
-    fsce.run();
+    // Either one featureSetFile or a glob of them in featureSetFiles, which
+    // share one cache of products.
+    List<File> featureSetFiles;
+    if (config.containsKey("featureSetFiles"))
+      featureSetFiles = config.getFileGlob("featureSetFiles");
+    else
+      featureSetFiles = Arrays.asList(config.getExistingFile("featureSetFile"));
+    int maxValues = config.getInt("productCache.maxValues", 1 << 24);
+    ProductCache products = new ProductCache(
+        featureCardinalities.makeTemplate2Cardinality(), maxValues);
+    List<File> featureFiles = config.getFileGlob("featureFiles");
+    for (File fsf : featureSetFiles) {
+      Log.info("featureSetFile=" + fsf.getPath());
+      FeatureSelectionClassificationExperiments fsce =
+          new FeatureSelectionClassificationExperiments(
+              new Random(config.getInt("seed", 9001)),
+              featureCardinalities,
+              fsf,
+              featureFiles,
+              products);
+      fsce.run();
+      Log.info(products);
+    }
   }
 }
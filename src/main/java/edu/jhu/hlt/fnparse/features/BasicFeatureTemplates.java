@@ -22,6 +22,7 @@ import edu.jhu.hlt.fnparse.datatypes.ConstituencyParse.NodePathPiece;
 import edu.jhu.hlt.fnparse.datatypes.DependencyParse;
 import edu.jhu.hlt.fnparse.datatypes.Frame;
 import edu.jhu.hlt.fnparse.datatypes.Sentence;
+import edu.jhu.hlt.fnparse.datatypes.TokenVocab;
 import edu.jhu.hlt.fnparse.features.Path.EdgeType;
 import edu.jhu.hlt.fnparse.features.Path.NodeType;
 import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
@@ -265,14 +266,31 @@ public class BasicFeatureTemplates {
 //    return SINGLETON;
 //  }
 
-  protected BrownClusters bc256 = new BrownClusters(BrownClusters.bc256dirAuto());
-  protected BrownClusters bc1000 = new BrownClusters(BrownClusters.bc1000dirAuto());
+  // Read-only, may be shared, see BasicFeatureTemplates(BasicFeatureTemplates)
+  protected BrownClusters bc256;
+  protected BrownClusters bc1000;
 
   protected Map<String, Function<SentencePosition, String>> tokenExtractors;
+  // Same keys as tokenExtractors (but not all of them), returns a hash of the
+  // value the extractor would have returned, or IntFeatureSink.NONE if null.
+  protected Map<String, ToIntFunction<SentencePosition>> tokenHashers;
   protected Map<String, Template> basicTemplates;
   protected Map<String, Template> labelTemplates;
 
   public BasicFeatureTemplates() {
+    bc256 = new BrownClusters(BrownClusters.bc256dirAuto());
+    bc1000 = new BrownClusters(BrownClusters.bc1000dirAuto());
+    init();
+  }
+
+  /**
+   * Re-uses other's read-only resources (e.g. Brown clusters) rather than
+   * loading them again. The templates are new, since some re-use buffers and
+   * can't be shared between threads.
+   */
+  public BasicFeatureTemplates(BasicFeatureTemplates other) {
+    bc256 = other.bc256;
+    bc1000 = other.bc1000;
     init();
   }
 
@@ -301,6 +319,132 @@ public class BasicFeatureTemplates {
     return l;
   }
 
+  private static final int NO_CHILDREN_HASH = "NONE".hashCode();
+
+  private static int parentDir(DependencyParse deps, int i) {
+    int h = deps.getHead(i);
+    if (h < 0)
+      return 1;   // root
+    else if (h < i)
+      return 2;   // left
+    else
+      return 3;   // right
+  }
+
+  /**
+   * A template which looks up one token (given by position) and describes it
+   * with a tokenExtractor. If there is a tokenHasher for the extractor, then
+   * extractHashes doesn't build any Strings.
+   */
+  abstract class TokenTemplate extends TemplateSS {
+    private final String name;
+    private final int nameHash;
+    private final Function<SentencePosition, String> extractor;
+    private final ToIntFunction<SentencePosition> hasher;   // may be null
+    private SentencePosition pos = new SentencePosition();
+
+    public TokenTemplate(String name, String tokenExtractorName) {
+      this.name = name;
+      this.nameHash = name.hashCode();
+      this.extractor = tokenExtractors.get(tokenExtractorName);
+      this.hasher = tokenHashers.get(tokenExtractorName);
+    }
+
+    /** Set pos.index, returning false if this template doesn't fire */
+    abstract boolean position(TemplateContext context, SentencePosition pos);
+
+    @Override
+    String extractSS(TemplateContext context) {
+      if (!position(context, pos))
+        return null;
+      pos.sentence = context.getSentence();
+      return name + "=" + extractor.apply(pos);
+    }
+
+    @Override
+    public boolean extractHashes(TemplateContext context, IntFeatureSink out) {
+      if (hasher == null)
+        return super.extractHashes(context, out);
+      if (!position(context, pos))
+        return false;
+      pos.sentence = context.getSentence();
+      int v = hasher.applyAsInt(pos);
+      out.add(IntFeatureSink.mix(nameHash, v == IntFeatureSink.NONE ? IntFeatureSink.NULL_HASH : v));
+      return true;
+    }
+  }
+
+  /**
+   * Describes each child of a head (in some parse) with a tokenExtractor, or
+   * "NONE" if there are no children. Like {@link TokenTemplate}, extractHashes
+   * doesn't build Strings if there is a tokenHasher.
+   */
+  abstract class ChildrenTemplate implements Template {
+    private final String name;
+    private final int nameHash;
+    private final Function<SentencePosition, String> extractor;
+    private final ToIntFunction<SentencePosition> hasher;   // may be null
+    private final Function<Sentence, DependencyParse> extractDeps;
+    private SentencePosition pos = new SentencePosition();
+
+    public ChildrenTemplate(String name, String tokenExtractorName, Function<Sentence, DependencyParse> extractDeps) {
+      this.name = name;
+      this.nameHash = name.hashCode();
+      this.extractor = tokenExtractors.get(tokenExtractorName);
+      this.hasher = tokenHashers.get(tokenExtractorName);
+      this.extractDeps = extractDeps;
+    }
+
+    /** Returns the token whose children are described, or TemplateContext.UNSET */
+    abstract int head(TemplateContext context);
+
+    private int[] children(TemplateContext context) {
+      int h = head(context);
+      if (h == TemplateContext.UNSET)
+        return null;
+      DependencyParse d = extractDeps.apply(context.getSentence());
+      if (d == null)
+        return null;
+      return d.getChildren(h);
+    }
+
+    @Override
+    public Iterable<String> extract(TemplateContext context) {
+      int[] c = children(context);
+      if (c == null)
+        return null;
+      if (c.length == 0)
+        return Arrays.asList(name + "=NONE");
+      pos.sentence = context.getSentence();
+      List<String> cs = new ArrayList<>();
+      for (int cd : c) {
+        pos.index = cd;
+        cs.add(name + "=" + extractor.apply(pos));
+      }
+      return cs;
+    }
+
+    @Override
+    public boolean extractHashes(TemplateContext context, IntFeatureSink out) {
+      if (hasher == null)
+        return Template.super.extractHashes(context, out);
+      int[] c = children(context);
+      if (c == null)
+        return false;
+      if (c.length == 0) {
+        out.add(IntFeatureSink.mix(nameHash, NO_CHILDREN_HASH));
+        return true;
+      }
+      pos.sentence = context.getSentence();
+      for (int cd : c) {
+        pos.index = cd;
+        int v = hasher.applyAsInt(pos);
+        out.add(IntFeatureSink.mix(nameHash, v == IntFeatureSink.NONE ? IntFeatureSink.NULL_HASH : v));
+      }
+      return true;
+    }
+  }
+
   private void addTemplate(String name, Template t) {
     if (basicTemplates == null)
       basicTemplates = new HashMap<>();
@@ -490,6 +634,31 @@ public class BasicFeatureTemplates {
       });
     }
 
+    /* TOKEN HASHERS *********************************************************/
+    tokenHashers = new HashMap<>();
+    // Hashes come from the sentence's int view (TokenVocab): String.hashCode, or NULL_HASH for null
+    tokenHashers.put("Word", x -> x.indexInSent() ? x.sentence.getTokenHash(TokenVocab.Type.WORD, x.index) : IntFeatureSink.NONE);
+    tokenHashers.put("Lemma", x -> x.indexInSent() ? x.sentence.getTokenHash(TokenVocab.Type.LEMMA, x.index) : IntFeatureSink.NONE);
+    tokenHashers.put("Pos", x -> x.indexInSent() ? x.sentence.getTokenHash(TokenVocab.Type.POS, x.index) : IntFeatureSink.NONE);
+    tokenHashers.put("Pos2", x -> x.indexInSent() ? x.sentence.getTokenHash(TokenVocab.Type.COARSE_POS, x.index) : IntFeatureSink.NONE);
+    tokenHashers.put("Shape", x -> x.indexInSent() ? x.sentence.getTokenHash(TokenVocab.Type.SHAPE, x.index) : IntFeatureSink.NONE);
+    tokenHashers.put("BasicLabel", x -> {
+      DependencyParse deps = x.indexInSent() ? x.sentence.getBasicDeps() : null;
+      return deps == null ? IntFeatureSink.NONE : deps.getLabelHash(x.sentence.getVocab(), x.index);
+    });
+    tokenHashers.put("CollapsedLabel", x -> {
+      DependencyParse deps = x.indexInSent() ? x.sentence.getCollapsedDeps() : null;
+      return deps == null ? IntFeatureSink.NONE : deps.getLabelHash(x.sentence.getVocab(), x.index);
+    });
+    tokenHashers.put("BasicParentDir", x -> {
+      DependencyParse deps = x.indexInSent() ? x.sentence.getBasicDeps() : null;
+      return deps == null ? IntFeatureSink.NONE : parentDir(deps, x.index);
+    });
+    tokenHashers.put("CollapsedParentDir", x -> {
+      DependencyParse deps = x.indexInSent() ? x.sentence.getCollapsedDeps() : null;
+      return deps == null ? IntFeatureSink.NONE : parentDir(deps, x.index);
+    });
+
     /* START OF TEMPLATES *****************************************************/
     
     
@@ -577,25 +746,17 @@ public class BasicFeatureTemplates {
     // head1
     for (Map.Entry<String, Function<SentencePosition, String>> x : tokenExtractors.entrySet()) {
       String name1 = "Head1-" + x.getKey();
-      addTemplate(name1, new TemplateSS() {
-        private SentencePosition pos = new SentencePosition();
-        public String extractSS(TemplateContext context) {
+      addTemplate(name1, new TokenTemplate(name1, x.getKey()) {
+        boolean position(TemplateContext context, SentencePosition pos) {
           pos.index = context.getHead1();
-          if (pos.index == TemplateContext.UNSET)
-            return null;
-          pos.sentence = context.getSentence();
-          return name1 + "=" + x.getValue().apply(pos);
+          return pos.index != TemplateContext.UNSET;
         }
       });
       String name2 = "Head2-" + x.getKey();
-      addTemplate(name2, new TemplateSS() {
-        private SentencePosition pos = new SentencePosition();
-        public String extractSS(TemplateContext context) {
+      addTemplate(name2, new TokenTemplate(name2, x.getKey()) {
+        boolean position(TemplateContext context, SentencePosition pos) {
           pos.index = context.getHead2();
-          if (pos.index == TemplateContext.UNSET)
-            return null;
-          pos.sentence = context.getSentence();
-          return name2 + "=" + x.getValue().apply(pos);
+          return pos.index != TemplateContext.UNSET;
         }
       });
     }
@@ -608,38 +769,34 @@ public class BasicFeatureTemplates {
       // head1 parent
       for (Map.Entry<String, Function<SentencePosition, String>> x : tokenExtractors.entrySet()) {
         String name = "Head1-Parent-" + dp.getKey() + "-" + x.getKey();
-        addTemplate(name, new TemplateSS() {
-          private SentencePosition pos = new SentencePosition();
+        addTemplate(name, new TokenTemplate(name, x.getKey()) {
           private Function<Sentence, DependencyParse> extractDeps = dp.getValue();
-          public String extractSS(TemplateContext context) {
+          boolean position(TemplateContext context, SentencePosition pos) {
             int h = context.getHead1();
             if (h == TemplateContext.UNSET)
-              return null;
+              return false;
             DependencyParse deps = extractDeps.apply(context.getSentence());
             if (deps == null)
-              return null;
+              return false;
             pos.index = deps.getHead(h);
-            pos.sentence = context.getSentence();
-            return name + "=" + x.getValue().apply(pos);
+            return true;
           }
         });
       }
       // head2 parent
       for (Map.Entry<String, Function<SentencePosition, String>> x : tokenExtractors.entrySet()) {
         String name = "Head2-Parent-" + dp.getKey() + "-" + x.getKey();
-        addTemplate(name, new TemplateSS() {
-          private SentencePosition pos = new SentencePosition();
+        addTemplate(name, new TokenTemplate(name, x.getKey()) {
           private Function<Sentence, DependencyParse> extractDeps = dp.getValue();
-          public String extractSS(TemplateContext context) {
+          boolean position(TemplateContext context, SentencePosition pos) {
             int h = context.getHead2();
             if (h == TemplateContext.UNSET)
-              return null;
+              return false;
             DependencyParse deps = extractDeps.apply(context.getSentence());
             if (deps == null)
-              return null;
+              return false;
             pos.index = deps.getHead(h);
-            pos.sentence = context.getSentence();
-            return name + "=" + x.getValue().apply(pos);
+            return true;
           }
         });
       }
@@ -647,44 +804,40 @@ public class BasicFeatureTemplates {
       // head1 grandparent
       for (Map.Entry<String, Function<SentencePosition, String>> x : tokenExtractors.entrySet()) {
         String name = "Head1-Grandparent-" + dp.getKey() + "-" + x.getKey();
-        addTemplate(name, new TemplateSS() {
-          private SentencePosition pos = new SentencePosition();
+        addTemplate(name, new TokenTemplate(name, x.getKey()) {
           private Function<Sentence, DependencyParse> extractDeps = dp.getValue();
-          public String extractSS(TemplateContext context) {
+          boolean position(TemplateContext context, SentencePosition pos) {
             int h = context.getHead1();
             if (h == TemplateContext.UNSET)
-              return null;
+              return false;
             DependencyParse deps = extractDeps.apply(context.getSentence());
             if (deps == null)
-              return null;
+              return false;
             pos.index = deps.getHead(h);
             if (pos.index < 0)
-              return null;
+              return false;
             pos.index = deps.getHead(pos.index);
-            pos.sentence = context.getSentence();
-            return name + "=" + x.getValue().apply(pos);
+            return true;
           }
         });
       }
       // head2 grandparent
       for (Map.Entry<String, Function<SentencePosition, String>> x : tokenExtractors.entrySet()) {
         String name = "Head2-Grandparent-" + dp.getKey() + "-" + x.getKey();
-        addTemplate(name, new TemplateSS() {
-          private SentencePosition pos = new SentencePosition();
+        addTemplate(name, new TokenTemplate(name, x.getKey()) {
           private Function<Sentence, DependencyParse> extractDeps = dp.getValue();
-          public String extractSS(TemplateContext context) {
+          boolean position(TemplateContext context, SentencePosition pos) {
             int h = context.getHead2();
             if (h == TemplateContext.UNSET)
-              return null;
+              return false;
             DependencyParse deps = extractDeps.apply(context.getSentence());
             if (deps == null)
-              return null;
+              return false;
             pos.index = deps.getHead(h);
             if (pos.index < 0)
-              return null;
+              return false;
             pos.index = deps.getHead(pos.index);
-            pos.sentence = context.getSentence();
-            return name + "=" + x.getValue().apply(pos);
+            return true;
           }
         });
       }
@@ -692,56 +845,18 @@ public class BasicFeatureTemplates {
       // head1 children
       for (Map.Entry<String, Function<SentencePosition, String>> x : tokenExtractors.entrySet()) {
         String name = "Head1-Child-" + dp.getKey() +"-" + x.getKey();
-        addTemplate(name, new Template() {
-          private SentencePosition pos = new SentencePosition();
-          private Function<Sentence, DependencyParse> extractDeps = dp.getValue();
-          public Iterable<String> extract(TemplateContext context) {
-            int h = context.getHead1();
-            if (h == TemplateContext.UNSET)
-              return null;
-            DependencyParse d = extractDeps.apply(context.getSentence());
-            if (d == null)
-              return null;
-            int[] c = d.getChildren(h);
-            if (c.length == 0)
-              return Arrays.asList(name + "=NONE");
-            else {
-              pos.sentence = context.getSentence();
-              List<String> cs = new ArrayList<>();
-              for (int cd : c) {
-                pos.index = cd;
-                cs.add(name + "=" + x.getValue().apply(pos));
-              }
-              return cs;
-            }
+        addTemplate(name, new ChildrenTemplate(name, x.getKey(), dp.getValue()) {
+          int head(TemplateContext context) {
+            return context.getHead1();
           }
         });
       }
       // head2 children
       for (Map.Entry<String, Function<SentencePosition, String>> x : tokenExtractors.entrySet()) {
         String name = "Head2-Child-" + dp.getKey() +"-" + x.getKey();
-        addTemplate(name, new Template() {
-          private SentencePosition pos = new SentencePosition();
-          private Function<Sentence, DependencyParse> extractDeps = dp.getValue();
-          public Iterable<String> extract(TemplateContext context) {
-            int h = context.getHead2();
-            if (h == TemplateContext.UNSET)
-              return null;
-            DependencyParse d = extractDeps.apply(context.getSentence());
-            if (d == null)
-              return null;
-            int[] c = d.getChildren(h);
-            if (c.length == 0)
-              return Arrays.asList(name + "=NONE");
-            else {
-              pos.sentence = context.getSentence();
-              List<String> cs = new ArrayList<>();
-              for (int cd : c) {
-                pos.index = cd;
-                cs.add(name + "=" + x.getValue().apply(pos));
-              }
-              return cs;
-            }
+        addTemplate(name, new ChildrenTemplate(name, x.getKey(), dp.getValue()) {
+          int head(TemplateContext context) {
+            return context.getHead2();
           }
         });
       }
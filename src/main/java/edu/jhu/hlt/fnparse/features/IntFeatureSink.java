@@ -0,0 +1,97 @@
+package edu.jhu.hlt.fnparse.features;
+
+import java.util.Arrays;
+
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
+
+/**
+ * A growable int[] which {@link Template#extractHashes(TemplateContext, IntFeatureSink)}
+ * writes feature hashes into. Meant to be re-used (call {@link #clear()}) so
+ * that extracting features doesn't allocate Strings, Pairs, or Lists.
+ *
+ * Templates may use the space past {@link #size()} as scratch space (see
+ * {@link TemplatedFeatures.TemplateJoin}), but must leave only their own
+ * features behind.
+ *
+ * @author travis
+ */
+public class IntFeatureSink {
+  /** Hashers may return this to mean "no value", {@link #mix(int, int)} never returns it */
+  public static final int NONE = Integer.MIN_VALUE;
+
+  /** Stands in for a null String, e.g. "Head1-Word=null" */
+  public static final int NULL_HASH = 0x5bd1e995;
+
+  private int[] buf;
+  private int size;
+
+  public IntFeatureSink() {
+    this(64);
+  }
+
+  public IntFeatureSink(int capacity) {
+    buf = new int[Math.max(4, capacity)];
+    size = 0;
+  }
+
+  public void add(int h) {
+    if (size == buf.length)
+      buf = Arrays.copyOf(buf, buf.length * 2);
+    buf[size++] = h;
+  }
+
+  public int get(int i) {
+    assert i < size;
+    return buf[i];
+  }
+
+  public void set(int i, int h) {
+    assert i < size;
+    buf[i] = h;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void truncate(int newSize) {
+    assert newSize <= size;
+    size = newSize;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /** Moves [from, size) down to start at to (to <= from), shrinking size accordingly */
+  public void shiftDown(int from, int to) {
+    assert to <= from && from <= size;
+    System.arraycopy(buf, from, buf, to, size - from);
+    size -= from - to;
+  }
+
+  /** Copies [from, size) into a new array */
+  public int[] toArray(int from) {
+    return Arrays.copyOfRange(buf, from, size);
+  }
+
+  public int[] toArray() {
+    return toArray(0);
+  }
+
+  /** Combines two hashes (murmur3 finalizer), order matters */
+  public static int mix(int a, int b) {
+    int h = a * 0xcc9e2d51 + b;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h == NONE ? 0 : h;
+  }
+
+  /** Hash of a String, which doesn't allocate (String caches hashCode) */
+  public static int hash(String s) {
+    return mix(NULL_HASH, s == null ? NULL_HASH : s.hashCode());
+  }
+}
@@ -196,6 +196,198 @@ public class Pred2ArgPaths {
     }
   }
 
+  /**
+   * A read-only copy of a {@link Trie} keyed on interned ints, with children
+   * sorted by key so that following a path is a walk over arrays.
+   */
+  static class IntTrie {
+    private static final int[] NONE = new int[0];
+    private static final IntTrie[] NO_CHILDREN = new IntTrie[0];
+
+    public final int cur;
+    public final int nObjs;
+    public final int sumOfNObjOfChildren;
+    private final int[] childKeys;
+    private final IntTrie[] children;
+    private final int[] terminalChildKeys;  // keys of children with nObjs > 0
+
+    private IntTrie(int cur, int nObjs, int[] childKeys, IntTrie[] children) {
+      this.cur = cur;
+      this.nObjs = nObjs;
+      this.childKeys = childKeys;
+      this.children = children;
+      int s = 0, nt = 0;
+      for (IntTrie c : children) {
+        s += c.nObjs;
+        if (c.nObjs > 0)
+          nt++;
+      }
+      this.sumOfNObjOfChildren = s;
+      int[] tk = nt == 0 ? NONE : new int[nt];
+      for (int i = 0, j = 0; i < children.length; i++)
+        if (children[i].nObjs > 0)
+          tk[j++] = childKeys[i];
+      this.terminalChildKeys = tk;
+    }
+
+    /** Keys are interned with keyIds (new keys are added) */
+    public static <T> IntTrie build(Trie<T> t, Map<T, Integer> keyIds) {
+      int cur = t.cur == null ? -1 : intern(t.cur, keyIds);
+      int n = t.children.size();
+      if (n == 0)
+        return new IntTrie(cur, t.nObjs, NONE, NO_CHILDREN);
+      IntTrie[] cs = new IntTrie[n];
+      int i = 0;
+      for (Trie<T> c : t.children.values())
+        cs[i++] = build(c, keyIds);
+      Arrays.sort(cs, (a, b) -> Integer.compare(a.cur, b.cur));
+      int[] keys = new int[n];
+      for (i = 0; i < n; i++)
+        keys[i] = cs[i].cur;
+      return new IntTrie(cur, t.nObjs, keys, cs);
+    }
+
+    static <T> int intern(T key, Map<T, Integer> keyIds) {
+      Integer id = keyIds.get(key);
+      if (id == null) {
+        id = keyIds.size();
+        keyIds.put(key, id);
+      }
+      return id;
+    }
+
+    /** Returns null if there is no such child (or key < 0, meaning unknown) */
+    public IntTrie child(int key) {
+      if (key < 0)
+        return null;
+      int i = Arrays.binarySearch(childKeys, key);
+      return i < 0 ? null : children[i];
+    }
+
+    /** Keys of children with nObjs > 0 (do not modify) */
+    public int[] terminalChildKeys() {
+      return terminalChildKeys;
+    }
+  }
+
+  /**
+   * The dependency path (as in {@link #getPath(int, int, DependencyParse, Sentence)})
+   * between every pair of tokens in a sentence, looked up in {@link IntTrie}s.
+   * Edges are interned once per sentence. For a given source token, the trie
+   * node for the path to every other token is computed in one pass over the
+   * tree (parents before children): the path to a token off of the source's
+   * root path is the path to its parent plus one down edge, so paths share
+   * prefixes up to the common ancestor.
+   *
+   * If the parse has a cycle then every path is built as in getPath (slow).
+   */
+  static class SentencePaths {
+    final Sentence sent;
+    final DependencyParse deps;
+    final int n;
+    private final int[] head;
+    private final int[] up, down;   // interned edge from token to its parent, -1 if unknown
+    private final int[] order;      // parents before children, null if parse has a cycle
+    private final Map<String, Integer> keyIds;
+
+    // Scratch for nodes()
+    private final int[] chainStamp;
+    private final boolean[] connected;
+    private int stamp;
+
+    SentencePaths(Sentence sent, DependencyParse deps, Map<String, Integer> keyIds) {
+      this.sent = sent;
+      this.deps = deps;
+      this.keyIds = keyIds;
+      n = sent.size();
+      head = new int[n];
+      up = new int[n];
+      down = new int[n];
+      for (int i = 0; i < n; i++) {
+        head[i] = deps.getHead(i);
+        String l = deps.getLabel(i);
+        up[i] = id(l + "<");
+        down[i] = id(l + ">");
+      }
+      chainStamp = new int[n];
+      connected = new boolean[n];
+
+      // Roots first, then breadth first. Tokens never reached are on a cycle.
+      int[] firstChild = new int[n];
+      int[] nextSibling = new int[n];
+      Arrays.fill(firstChild, -1);
+      for (int i = n - 1; i >= 0; i--) {
+        int h = head[i];
+        if (h >= 0 && h < n) {
+          nextSibling[i] = firstChild[h];
+          firstChild[h] = i;
+        }
+      }
+      int[] o = new int[n];
+      int m = 0;
+      for (int i = 0; i < n; i++)
+        if (head[i] < 0 || head[i] >= n)
+          o[m++] = i;
+      for (int q = 0; q < m; q++)
+        for (int c = firstChild[o[q]]; c >= 0; c = nextSibling[c])
+          o[m++] = c;
+      order = m == n ? o : null;
+    }
+
+    private int id(String key) {
+      Integer i = keyIds.get(key);
+      return i == null ? -1 : i;
+    }
+
+    /**
+     * Writes the node in trie for the path from src to every token into out
+     * (null if the path is not in the trie). Like getPath, tokens which are not
+     * connected to src get the empty path (i.e. trie).
+     */
+    void nodes(IntTrie trie, int src, IntTrie[] out) {
+      if (order == null) {
+        for (int x = 0; x < n; x++)
+          out[x] = getNode(trie, getPath(src, x, deps, sent));
+        return;
+      }
+      stamp++;
+      // src and its ancestors: only up edges
+      IntTrie node = trie;
+      int cur = src;
+      out[cur] = node;
+      chainStamp[cur] = stamp;
+      connected[cur] = true;
+      while (head[cur] >= 0 && head[cur] < n) {
+        node = node == null ? null : node.child(up[cur]);
+        cur = head[cur];
+        out[cur] = node;
+        chainStamp[cur] = stamp;
+        connected[cur] = true;
+      }
+      // Everything else: path to parent plus a down edge
+      for (int i = 0; i < n; i++) {
+        int x = order[i];
+        if (chainStamp[x] == stamp)
+          continue;
+        int p = head[x];
+        if (p < 0 || p >= n || !connected[p]) {
+          connected[x] = false;
+          out[x] = trie;
+        } else {
+          connected[x] = true;
+          out[x] = out[p] == null ? null : out[p].child(down[x]);
+        }
+      }
+    }
+
+    private IntTrie getNode(IntTrie trie, List<String> path) {
+      IntTrie cur = trie;
+      for (int i = 0; i < path.size() && cur != null; i++)
+        cur = cur.child(id(path.get(i)));
+      return cur;
+    }
+  }
+
   // A set of paths from pred -> arg head
   private Trie<String> pred2argHead;
 
@@ -405,6 +597,9 @@ public class Pred2ArgPaths {
    *     count(k, path(p,h)) >= k1
    * and count(k, path(h,s)) >= k2
    * and count(k, path(h,e)) >= k3
+   *
+   * Safe to call from many threads (once k1, k2, k3, and c are set): paths
+   * for the last sentence and scratch space are kept per thread.
    */
   public static class DepDecompArgCandidiates {
     private Trie<String> pred2head;
@@ -415,6 +610,27 @@ public class Pred2ArgPaths {
     public int k3 = 1;
     public int c = 1;
 
+    // Same as above, keyed on ids in keyIds (edges and roles). Read-only after construction.
+    private Map<String, Integer> keyIds;
+    private String[] keyNames;
+    private IntTrie pred2headI, head2startI, head2endI;
+
+    /**
+     * Paths for the last sentence seen by a thread, and head->start/end nodes
+     * computed so far (indexed by arg head). Shared by all predicates in a
+     * sentence (handled by the same thread).
+     */
+    private static class Scratch {
+      SentencePaths lastPaths;
+      IntTrie[][] lastHead2Start, lastHead2End;
+      final int[] roleCounts, roles;   // indexed by key, roleCounts is all 0s between uses
+      Scratch(int numKeys) {
+        roleCounts = new int[numKeys];
+        roles = new int[numKeys];
+      }
+    }
+    private final ThreadLocal<Scratch> scratch;
+
     public DepDecompArgCandidiates(File p2h, File h2s, File h2e) {
       pred2head = new Trie<String>(null);
       head2start = new Trie<String>(null);
@@ -426,6 +642,33 @@ public class Pred2ArgPaths {
       } catch (Exception e) {
         throw new RuntimeException(e);
       }
+      keyIds = new HashMap<>();
+      pred2headI = IntTrie.build(pred2head, keyIds);
+      head2startI = IntTrie.build(head2start, keyIds);
+      head2endI = IntTrie.build(head2end, keyIds);
+      Log.info("[main] numKeys=" + keyIds.size());
+      keyNames = new String[keyIds.size()];
+      for (Map.Entry<String, Integer> e : keyIds.entrySet())
+        keyNames[e.getValue()] = e.getKey();
+      int numKeys = keyIds.size();
+      scratch = ThreadLocal.withInitial(() -> new Scratch(numKeys));
+    }
+
+    private static SentencePaths paths(Scratch sc, Sentence sent, DependencyParse deps, Map<String, Integer> keyIds) {
+      if (sc.lastPaths == null || sc.lastPaths.sent != sent || sc.lastPaths.deps != deps) {
+        sc.lastPaths = new SentencePaths(sent, deps, keyIds);
+        sc.lastHead2Start = new IntTrie[sc.lastPaths.n][];
+        sc.lastHead2End = new IntTrie[sc.lastPaths.n][];
+      }
+      return sc.lastPaths;
+    }
+
+    private IntTrie[] row(IntTrie[][] rows, IntTrie trie, int src, SentencePaths sp) {
+      if (rows[src] == null) {
+        rows[src] = new IntTrie[sp.n];
+        sp.nodes(trie, src, rows[src]);
+      }
+      return rows[src];
     }
 
     public List<Pair<Span, String>> getArgCandidates2(int predicate, Sentence sent) {
@@ -436,6 +679,79 @@ public class Pred2ArgPaths {
       assert k2 > 0;
       assert k3 > 0;
 
+      Scratch sc = scratch.get();
+      SentencePaths sp = paths(sc, sent, deps, keyIds);
+      IntTrie[] x1s = new IntTrie[n];
+      sp.nodes(pred2headI, predicate, x1s);
+      int[] ends = new int[n];
+      int[] roleCounts = sc.roleCounts;
+      int[] roles = sc.roles;
+
+      for (int aHead = 0; aHead < n; aHead++) {
+        IntTrie x1 = x1s[aHead];
+        int c1 = x1 == null ? 0 : x1.sumOfNObjOfChildren;
+        if (c1 < k1)
+          continue;
+
+        // Ends don't depend on start, find them once per arg head
+        IntTrie[] x3s = row(sc.lastHead2End, head2endI, aHead, sp);
+        int nEnds = 0;
+        for (int end = aHead; end < n; end++) {
+          IntTrie x3 = x3s[end];
+          if (x3 != null && x3.sumOfNObjOfChildren >= k3)
+            ends[nEnds++] = end;
+        }
+        if (nEnds == 0)
+          continue;
+
+        IntTrie[] x2s = row(sc.lastHead2Start, head2startI, aHead, sp);
+        for (int start = 0; start <= aHead; start++) {
+          IntTrie x2 = x2s[start];
+          int c2 = x2 == null ? 0 : x2.sumOfNObjOfChildren;
+          if (c2 < k2)
+            continue;
+          for (int e = 0; e < nEnds; e++) {
+            int end = ends[e];
+            IntTrie x3 = x3s[end];
+
+            // A role may have appeared with any 2/3 of the three paths
+            int nr = 0;
+            nr = countTerminalChildren(x1, roleCounts, roles, nr);
+            nr = countTerminalChildren(x2, roleCounts, roles, nr);
+            nr = countTerminalChildren(x3, roleCounts, roles, nr);
+            Span s = null;
+            for (int i = 0; i < nr; i++) {
+              int k = roles[i];
+              if (roleCounts[k] >= c) {
+                if (s == null)
+                  s = Span.getSpan(start, end+1);
+                args.add(new Pair<>(s, keyNames[k]));
+              }
+              roleCounts[k] = 0;
+            }
+          }
+        }
+      }
+      return args;
+    }
+
+    /** Increments counts of x's terminal children, adding new ones to seen[nSeen:], returns nSeen */
+    private static int countTerminalChildren(IntTrie x, int[] counts, int[] seen, int nSeen) {
+      for (int k : x.terminalChildKeys()) {
+        if (counts[k]++ == 0)
+          seen[nSeen++] = k;
+      }
+      return nSeen;
+    }
+
+    /**
+     * Same as {@link #getArgCandidates2(int, Sentence)} (up to the order of
+     * roles for a span) by building every path with {@link Path2}, slow.
+     */
+    List<Pair<Span, String>> getArgCandidates2ByPath(int predicate, Sentence sent) {
+      DependencyParse deps = sent.getParseyDeps();
+      int n = sent.size();
+      List<Pair<Span, String>> args = new ArrayList<>();
       for (int aHead = 0; aHead < n; aHead++) {
         List<String> ph = getPath(predicate, aHead, deps, sent);
         Trie<String> x1 = pred2head.getNode(ph);
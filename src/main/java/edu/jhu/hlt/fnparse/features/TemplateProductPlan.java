@@ -0,0 +1,189 @@
+package edu.jhu.hlt.fnparse.features;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.jhu.hlt.fnparse.features.TemplateTrie.Node;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.TemplateJoin;
+import edu.jhu.hlt.fnparse.features.precompute.FeatureSet;
+import edu.jhu.hlt.tutils.Log;
+
+/**
+ * A compiled version of a feature set (list of products of basic templates,
+ * see {@link FeatureSet#getFeatureSet3(File)}) for extracting int features
+ * (see {@link Template#extractHashes(TemplateContext, IntFeatureSink)}).
+ *
+ * Building every product with {@link TemplateJoin#prod(Template[])} means that
+ * a basic template which appears in many products is extracted once per
+ * product. Here every basic template is extracted at most once per
+ * {@link TemplateContext}, and the template sequences of the products are put
+ * in a {@link TemplateTrie} so that products which share a prefix (e.g. A*B*C and A*B*D) share
+ * the mixed hashes of that prefix. Values are only computed for prefixes/basic
+ * templates which are needed, e.g. if A doesn't fire then B isn't extracted
+ * for A*B (unless another product needs it).
+ *
+ * The hashes (and their order) are the same as {@link TemplateJoin#prod(Template[])}'s
+ * extractHashes, so this is a drop-in replacement.
+ *
+ * Not thread safe (re-uses buffers).
+ *
+ * @author travis
+ */
+public class TemplateProductPlan {
+  public static int DEBUG = 0;
+
+  private final Template[] basic;
+  private final String[] basicNames;
+  private final TemplateTrie trie;    // templates are indices into basic
+  private final Node[] basicNodes;    // basicNodes[t] is root's child for template t
+  private final Node[] products;
+
+  // Per-context values of each node, stored in vals[start[n], start[n]+len[n])
+  private final IntFeatureSink vals;
+  private final int[] start, len;
+  private final int[] stamp;          // value of curStamp if computed for current context
+  private int curStamp;
+
+  /**
+   * @param bft looks up basic templates by name
+   * @param products e.g. from {@link FeatureSet#getFeatureSet3(File)}
+   */
+  public static TemplateProductPlan compile(BasicFeatureTemplates bft, List<String[]> products) {
+    Map<String, Integer> name2idx = new HashMap<>();
+    List<String> names = new ArrayList<>();
+    int[][] prods = new int[products.size()][];
+    for (int i = 0; i < prods.length; i++) {
+      String[] p = products.get(i);
+      prods[i] = new int[p.length];
+      for (int j = 0; j < p.length; j++) {
+        Integer t = name2idx.get(p[j]);
+        if (t == null) {
+          t = names.size();
+          names.add(p[j]);
+          name2idx.put(p[j], t);
+        }
+        prods[i][j] = t;
+      }
+    }
+    String[] basicNames = names.toArray(new String[names.size()]);
+    return new TemplateProductPlan(bft.getBasicTemplates(basicNames), basicNames, prods);
+  }
+
+  /**
+   * @param basic basic templates (each is extracted at most once per context)
+   * @param basicNames parallel to basic, for debugging
+   * @param prods each product is a list of indices into basic (in order)
+   */
+  public TemplateProductPlan(Template[] basic, String[] basicNames, int[][] prods) {
+    if (basic.length != basicNames.length)
+      throw new IllegalArgumentException();
+    this.basic = basic;
+    this.basicNames = basicNames;
+
+    this.trie = new TemplateTrie();
+    this.basicNodes = new Node[basic.length];
+    for (int t = 0; t < basic.length; t++)
+      basicNodes[t] = trie.child(trie.getRoot(), t);
+    this.products = new Node[prods.length];
+    for (int i = 0; i < prods.length; i++) {
+      if (prods[i].length == 0)
+        throw new IllegalArgumentException("empty product: " + i);
+      for (int t : prods[i])
+        if (t < 0 || t >= basic.length)
+          throw new IllegalArgumentException("unknown template: " + t);
+      this.products[i] = trie.add(prods[i]);
+    }
+
+    int n = trie.size();
+    this.vals = new IntFeatureSink(4 * n);
+    this.start = new int[n];
+    this.len = new int[n];
+    this.stamp = new int[n];
+    this.curStamp = 0;
+    Log.info("[main] compiled " + prods.length + " products of " + basic.length
+        + " basic templates into " + (n - 1) + " prefixes");
+  }
+
+  public int numProducts() {
+    return products.length;
+  }
+
+  public int numBasicTemplates() {
+    return basic.length;
+  }
+
+  public String getBasicTemplateName(int i) {
+    return basicNames[i];
+  }
+
+  /**
+   * Appends the hashes of every product which fires in context to out. The
+   * hashes of product i are out[productEnds[i-1], productEnds[i]) (where
+   * productEnds[-1] is out's size when this was called).
+   */
+  public void extractHashes(TemplateContext context, IntFeatureSink out, int[] productEnds) {
+    if (productEnds.length < products.length)
+      throw new IllegalArgumentException("productEnds.length=" + productEnds.length + " numProducts=" + products.length);
+    curStamp++;
+    if (curStamp == 0) {
+      // Wrapped around, invalidate everything
+      Arrays.fill(stamp, 0);
+      curStamp = 1;
+    }
+    vals.clear();
+    for (int i = 0; i < products.length; i++) {
+      Node p = products[i];
+      compute(p, context);
+      int s = start[p.id];
+      int e = s + len[p.id];
+      for (int j = s; j < e; j++)
+        out.add(vals.get(j));
+      productEnds[i] = out.size();
+    }
+    if (DEBUG > 1)
+      Log.info("computed " + vals.size() + " hashes for " + products.length + " products");
+  }
+
+  /** Ensures that n's values have been computed for the current context */
+  private void compute(Node n, TemplateContext context) {
+    if (stamp[n.id] == curStamp)
+      return;
+    if (n.parent.isRoot()) {
+      // Basic template
+      int s = vals.size();
+      if (!basic[n.template].extractHashes(context, vals))
+        vals.truncate(s);
+      start[n.id] = s;
+      len[n.id] = vals.size() - s;
+    } else {
+      // Product of the prefix and a basic template, see TemplateJoin.extractHashes
+      Node left = n.parent;
+      Node right = basicNodes[n.template];
+      compute(left, context);
+      int ln = len[left.id];
+      int rn = 0;
+      if (ln > 0) {
+        compute(right, context);
+        rn = len[right.id];
+      }
+      int s = vals.size();
+      if (ln > 0 && rn > 0) {
+        int ls = start[left.id];
+        int rs = start[right.id];
+        for (int i = 0; i < ln; i++) {
+          int l = vals.get(ls + i);
+          for (int j = 0; j < rn; j++)
+            vals.add(IntFeatureSink.mix(l, vals.get(rs + j)));
+        }
+      }
+      start[n.id] = s;
+      len[n.id] = vals.size() - s;
+    }
+    stamp[n.id] = curStamp;
+  }
+}
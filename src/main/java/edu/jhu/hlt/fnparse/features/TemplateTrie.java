@@ -0,0 +1,78 @@
+package edu.jhu.hlt.fnparse.features;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trie of template sequences, e.g. the products in a feature set, where a
+ * node is a prefix of one or more products. Products which share a prefix
+ * (e.g. A*B*C and A*B*D) share the node for that prefix, so values computed
+ * for a prefix can be re-used by every product which extends it (see
+ * {@link TemplateProductPlan} and
+ * {@link edu.jhu.hlt.fnparse.features.precompute.ProductCache}).
+ *
+ * Nodes are numbered 0 (the root, the empty sequence), 1, 2, ... in the order
+ * they are added, so per-node values can be kept in arrays indexed by
+ * {@link Node#id}.
+ *
+ * Not thread safe.
+ *
+ * @author travis
+ */
+public class TemplateTrie {
+
+  /** A prefix of a template sequence */
+  public static final class Node {
+    public final int id;
+    public final int template;   // -1 for root
+    public final Node parent;    // null for root
+    private final Map<Integer, Node> children = new HashMap<>();
+    private Node(int id, int template, Node parent) {
+      this.id = id;
+      this.template = template;
+      this.parent = parent;
+    }
+    public boolean isRoot() {
+      return parent == null;
+    }
+  }
+
+  private final Node root;
+  private final List<Node> nodes;
+
+  public TemplateTrie() {
+    this.nodes = new ArrayList<>();
+    this.root = new Node(0, -1, null);
+    this.nodes.add(root);
+  }
+
+  public Node getRoot() {
+    return root;
+  }
+
+  /** Returns the node for parent's sequence followed by template, adding it if needed */
+  public Node child(Node parent, int template) {
+    Node c = parent.children.get(template);
+    if (c == null) {
+      c = new Node(nodes.size(), template, parent);
+      nodes.add(c);
+      parent.children.put(template, c);
+    }
+    return c;
+  }
+
+  /** Returns the node for this template sequence, adding it (and its prefixes) if needed */
+  public Node add(int[] templates) {
+    Node cur = root;
+    for (int t : templates)
+      cur = child(cur, t);
+    return cur;
+  }
+
+  /** Number of nodes, including the root */
+  public int size() {
+    return nodes.size();
+  }
+}
@@ -53,6 +53,23 @@ public abstract class TemplatedFeatures implements Serializable {
      * template built off of conjunctions with this feature will NOT fire.
      */
     Iterable<String> extract(TemplateContext context);
+
+    /**
+     * Like extract, but adds a hash of each feature to out instead of returning
+     * Strings. Returns false (and adds nothing) where extract would return null.
+     * Hashes are NOT the same as hashing the Strings from extract.
+     *
+     * This default implementation calls extract, override it to avoid building
+     * Strings.
+     */
+    default boolean extractHashes(TemplateContext context, IntFeatureSink out) {
+      Iterable<String> fs = extract(context);
+      if (fs == null)
+        return false;
+      for (String f : fs)
+        out.add(IntFeatureSink.hash(f));
+      return true;
+    }
   }
 
   /**
@@ -68,6 +85,14 @@ public abstract class TemplatedFeatures implements Serializable {
         return null;
       return Arrays.asList(ss);
     }
+    @Override
+    public boolean extractHashes(TemplateContext context, IntFeatureSink out) {
+      String ss = extractSS(context);
+      if (ss == null)
+        return false;
+      out.add(IntFeatureSink.hash(ss));
+      return true;
+    }
   }
 
   public static class TemplateJoinWithRandomSample implements Template {
@@ -146,6 +171,33 @@ public abstract class TemplatedFeatures implements Serializable {
       };
     }
 
+    /**
+     * Writes left's and right's hashes to out (past its current size) and then
+     * replaces them with their product, so this doesn't allocate once out is
+     * big enough.
+     */
+    @Override
+    public boolean extractHashes(TemplateContext context, IntFeatureSink out) {
+      int start = out.size();
+      if (!left.extractHashes(context, out))
+        return false;
+      int mid = out.size();
+      if (mid == start || !right.extractHashes(context, out)) {
+        out.truncate(start);
+        return false;
+      }
+      int end = out.size();
+      if (end == mid) {
+        out.truncate(start);
+        return false;
+      }
+      for (int i = start; i < mid; i++)
+        for (int j = mid; j < end; j++)
+          out.add(IntFeatureSink.mix(out.get(i), out.get(j)));
+      out.shiftDown(end, start);
+      return true;
+    }
+
     public static Template prod(Template[] templates) {
       return prod(templates, null);
     }
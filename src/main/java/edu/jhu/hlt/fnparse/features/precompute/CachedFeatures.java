@@ -19,7 +19,12 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 import edu.jhu.hlt.fnparse.data.FileFrameInstanceProvider;
 import edu.jhu.hlt.fnparse.data.propbank.ParsePropbankData;
@@ -64,10 +69,10 @@ import edu.jhu.hlt.tutils.OrderStatistics;
 import edu.jhu.hlt.tutils.ProductIndex;
 import edu.jhu.hlt.tutils.RedisMap;
 import edu.jhu.hlt.tutils.SerializationUtils;
-import edu.jhu.hlt.tutils.ShardUtils;
 import edu.jhu.hlt.tutils.Span;
 import edu.jhu.hlt.tutils.SpanPair;
 import edu.jhu.hlt.tutils.TimeMarker;
+import edu.jhu.hlt.uberts.util.Metrics;
 import edu.jhu.prim.list.IntArrayList;
 import edu.jhu.prim.tuple.Pair;
 import edu.jhu.prim.vector.IntDoubleDenseVector;
@@ -114,6 +119,16 @@ public class CachedFeatures implements Serializable {
   private java.util.Vector<Item> loadedTestItems;
   private Map<String, Item> loadedSentId2Item;
 
+  // Completed as items are added (see getItemFuture and ItemProvider), created
+  // lazily since these aren't serializable.
+  private transient Map<String, CompletableFuture<Item>> sentId2ready;
+  private transient CompletableFuture<Void> trainReady, devReady, testReady;
+  private transient volatile boolean ingestDone;
+
+  // If non-null, addItem writes items here instead of keeping them (see writeColumnar)
+  private transient volatile ColumnarFeatureStore.Writer columnarSink;
+  private transient Set<String> columnarSinkIds;
+
   // This is used by the ItemProvider part of this module. Nice to have as a
   // field here so that there is less book-keeping in RerankerTrainer.
   public PropbankFNParses sentIdsAndFNParses;
@@ -137,9 +152,14 @@ public class CachedFeatures implements Serializable {
     private Map<SpanPair, Object> features4b;   // values either int[] (if they can fit) or long[]. not taken any modulo, hoping PI from disk/flatten fit in 64 bits
     private Map<Span, List<Span>> argsForTarget;
 
+    // If non-null, flattened features are read from here and features3/4b are null
+    private transient ColumnarFeatureStore.Block columnar;
+
     public void convertToFlattenedRepresentation(int[][] featureSet, int[] template2cardinality) {
       if (DEBUG_FLATTEN_CACHE)
         Log.info("converting to flattened representation: " + parse.getId());
+      if (columnar != null)
+        return;
       if (features4b != null) {
         assert features3 == null;
         return;
@@ -162,7 +182,41 @@ public class CachedFeatures implements Serializable {
       features3 = null;
     }
 
+    /**
+     * Points into at the flattened features for (t, s), without allocating.
+     * Returns false if there are no flattened features for (t, s).
+     */
+    public boolean getFlattenedCachedFeatures(Span t, Span s, ColumnarFeatureStore.FeatureView into) {
+      if (columnar != null)
+        return columnar.view(t, s, into);
+      if (features4b == null)
+        return false;
+      Object x = features4b.get(new SpanPair(t, s));
+      if (x == null)
+        return false;
+      if (x instanceof int[])
+        into.set((int[]) x);
+      else
+        into.set((long[]) x);
+      return true;
+    }
+
+    /** Values are int[] or long[], null if not flattened */
+    Map<SpanPair, Object> getFlattenedFeatures() {
+      return features4b;
+    }
+
     public List<ProductIndex> getFlattenedCachedFeatures(Span t, Span s) {
+      if (columnar != null) {
+        ColumnarFeatureStore.FeatureView v = new ColumnarFeatureStore.FeatureView();
+        if (!columnar.view(t, s, v))
+          return null;
+        int n = v.size();
+        List<ProductIndex> l = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+          l.add(new ProductIndex(v.get(i)));
+        return l;
+      }
       if (features4b == null)
         return null;
       Object x = features4b.get(new SpanPair(t, s));
@@ -226,11 +280,19 @@ public class CachedFeatures implements Serializable {
       this.features3 = new HashMap<>();
     }
 
+    /** Features are read from a {@link ColumnarFeatureStore} */
+    public Item(FNParse parse, ColumnarFeatureStore.Block features) {
+      this.parse = parse;
+      this.columnar = features;
+    }
+
     public FNParse getParse() {
       return parse;
     }
 
     public List<Span> getArgSpansForTarget(Span t) {
+      if (columnar != null)
+        return columnar.getArgSpansForTarget(t);
       if (argsForTarget != null)
         return argsForTarget.get(t);
       Map<Span, FeatureFile.Line> f = features3.get(t);
@@ -270,8 +332,19 @@ public class CachedFeatures implements Serializable {
       assert old == null;
     }
 
-    /** @deprecated use getFlattenedCachedFeatures */
+    /**
+     * @deprecated use getFlattenedCachedFeatures
+     * @throws IllegalStateException if this item only has flattened features
+     * (after {@link #convertToFlattenedRepresentation(int[][], int[])} or when
+     * read from a {@link ColumnarFeatureStore}), which can't be turned back
+     * into template values.
+     */
     public FeatureFile.Line getFeatures(Span t, Span arg) {
+      if (features3 == null) {
+        throw new IllegalStateException("only flattened features are available for "
+            + parse.getId() + (columnar != null ? " (columnar store)" : "")
+            + ", can't get templates for t=" + t.shortString() + " arg=" + arg.shortString());
+      }
       FeatureFile.Line feats = this.features3.get(t).get(arg);
       assert feats != null : "t=" + t.shortString() + " arg=" + arg.shortString() + " y=" + parse.getId();
       return feats;
@@ -290,7 +363,10 @@ public class CachedFeatures implements Serializable {
         // Gaurantee that nullSpan is in there by putting it first
         values.add(Span.nullSpan);
         boolean sawNullSpan = false;
-        for (Span s : this.features3.get(yt.getTarget()).keySet()) {
+        Iterable<Span> args = columnar != null
+            ? columnar.getArgSpansForTarget(yt.getTarget())
+            : this.features3.get(yt.getTarget()).keySet();
+        for (Span s : args) {
           if (s != Span.nullSpan)
             values.add(s);
           else
@@ -352,6 +428,231 @@ public class CachedFeatures implements Serializable {
     }
   }
 
+  /**
+   * Replacement for a set of {@link Inserter} threads which doesn't need the
+   * files to be sharded ahead of time.
+   *
+   * Reader threads take files off of a shared queue (largest first), decompress
+   * them (see {@link FileUtil#getReader(File)}), and group lines into one chunk
+   * per sentence. Parser threads take chunks off of a bounded queue, build the
+   * {@link Item}s, and add them. When the parsers fall behind the readers
+   * block, which bounds the number of unparsed lines in memory.
+   *
+   * Consumers wait with {@link CachedFeatures#getItemFuture(String)} or through
+   * {@link ItemProvider} rather than polling. {@link #run()} returns once
+   * everything has been added, so run it in its own thread to load in the
+   * background.
+   */
+  public class ParallelInserter implements Runnable {
+    private final List<String> DONE = Collections.emptyList();
+    private ConcurrentLinkedQueue<File> readFrom;
+    private int numFiles;
+    private int numReaders, numParsers;
+    private BlockingQueue<List<String>> chunks;
+    private boolean skipEntriesNotInSentId2ParseMap;
+    private boolean featuresSorted = true;
+    private volatile Throwable failure;
+
+    private Metrics.Counter lines, chars, sentences, skipped, filesDone, readerBlocked;
+    private Metrics.Timer parseTime;
+    private Metrics.Gauge queueDepth;
+
+    /**
+     * @param numReaders is the number of files which are read (and decompressed) at once.
+     * @param numParsers is the number of threads which build {@link Item}s.
+     * @param queueSize is the max number of sentences read but not yet parsed.
+     */
+    public ParallelInserter(List<File> files, int numReaders, int numParsers, int queueSize,
+        boolean skipEntriesNotInSentId2ParseMap) {
+      Log.info("numFiles=" + files.size() + " numReaders=" + numReaders
+          + " numParsers=" + numParsers + " queueSize=" + queueSize
+          + " sentId2parse.size=" + sentIdsAndFNParses.sentId2parse.size());
+      if (numReaders < 1 || numParsers < 1 || queueSize < 1)
+        throw new IllegalArgumentException();
+      List<File> bySize = new ArrayList<>(files);
+      bySize.sort((a, b) -> Long.compare(b.length(), a.length()));
+      this.readFrom = new ConcurrentLinkedQueue<>(bySize);
+      this.numFiles = bySize.size();
+      this.numReaders = Math.max(1, Math.min(numReaders, numFiles));
+      this.numParsers = numParsers;
+      this.chunks = new ArrayBlockingQueue<>(queueSize);
+      this.skipEntriesNotInSentId2ParseMap = skipEntriesNotInSentId2ParseMap;
+
+      Metrics m = Metrics.getDefault();
+      lines = m.counter("cachedFeatures/ingest/lines");
+      chars = m.counter("cachedFeatures/ingest/chars");
+      sentences = m.counter("cachedFeatures/ingest/sentences");
+      skipped = m.counter("cachedFeatures/ingest/skipped");
+      filesDone = m.counter("cachedFeatures/ingest/files");
+      readerBlocked = m.counter("cachedFeatures/ingest/readerBlocked");
+      parseTime = m.timer("cachedFeatures/ingest/parse");
+      queueDepth = m.gauge("cachedFeatures/ingest/queueDepth");
+    }
+
+    @Override
+    public void run() {
+      TimeMarker tm = new TimeMarker();
+      List<Thread> readers = new ArrayList<>();
+      for (int i = 0; i < numReaders; i++)
+        readers.add(start("ingest-read-" + i, this::readFiles));
+      List<Thread> parsers = new ArrayList<>();
+      for (int i = 0; i < numParsers; i++)
+        parsers.add(start("ingest-parse-" + i, this::parseChunks));
+      try {
+        for (Thread t : readers) {
+          while (t.isAlive()) {
+            t.join(15 * 1000);
+            logProgress(tm);
+          }
+        }
+        // If a thread failed it already told the parsers to stop
+        for (int i = 0; i < numParsers && failure == null; i++)
+          put(DONE);
+        for (Thread t : parsers) {
+          while (t.isAlive()) {
+            t.join(15 * 1000);
+            logProgress(tm);
+          }
+        }
+      } catch (InterruptedException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        if (failure == null)
+          failure = e;
+      }
+      ingestFinished(failure);
+      if (failure != null)
+        throw new RuntimeException("ingest failed", failure);
+      logProgress(tm);
+      Log.info("done reading all files");
+    }
+
+    private Thread start(String name, Runnable r) {
+      Thread t = new Thread(() -> {
+        try {
+          r.run();
+        } catch (Throwable e) {
+          Log.warn(name + " failed: " + e);
+          e.printStackTrace();
+          failure = e;
+          readFrom.clear();
+          chunks.clear();
+          for (int i = 0; i < numParsers; i++)
+            chunks.offer(DONE);
+        }
+      }, name);
+      t.start();
+      return t;
+    }
+
+    private void logProgress(TimeMarker tm) {
+      double s = Math.max(1e-3, tm.secondsSinceFirstMark());
+      queueDepth.set(chunks.size());
+      Log.info("files=" + filesDone.get() + "/" + numFiles
+          + " sentences=" + sentences.get()
+          + " skipped=" + skipped.get()
+          + " lines=" + lines.get()
+          + " lines/sec=" + String.format("%.1f", lines.get() / s)
+          + " MB/sec=" + String.format("%.2f", chars.get() / (s * 1024 * 1024))
+          + " queueDepth=" + chunks.size()
+          + " readerBlocked=" + readerBlocked.get()
+          + " train.size=" + loadedTrainItems.size()
+          + " dev.size=" + loadedDevItems.size()
+          + " test.size=" + loadedTestItems.size()
+          + " " + Describe.memoryUsage());
+    }
+
+    private void readFiles() {
+      for (File f = readFrom.poll(); f != null; f = readFrom.poll()) {
+        Log.info("about to insert items from " + f.getPath() + " numLeft=" + readFrom.size());
+        try (BufferedReader r = FileUtil.getReader(f)) {
+          String sentId = null;
+          List<String> chunk = null;
+          for (String line = r.readLine(); line != null; line = r.readLine()) {
+            // Group by sentence id, the second column
+            int a = line.indexOf('\t');
+            int b = line.indexOf('\t', a + 1);
+            if (a < 0 || b < 0)
+              throw new RuntimeException("malformed line in " + f.getPath() + ": " + line);
+            if (sentId == null || b - a - 1 != sentId.length()
+                || !line.regionMatches(a + 1, sentId, 0, sentId.length())) {
+              if (chunk != null)
+                put(chunk);
+              sentId = line.substring(a + 1, b);
+              chunk = new ArrayList<>();
+            }
+            chunk.add(line);
+            lines.increment();
+            chars.add(line.length());
+          }
+          if (chunk != null)
+            put(chunk);
+        } catch (IOException e) {
+          throw new RuntimeException("failed to read " + f.getPath(), e);
+        }
+        filesDone.increment();
+      }
+    }
+
+    private void put(List<String> chunk) {
+      if (chunks.offer(chunk))
+        return;
+      readerBlocked.increment();
+      try {
+        while (!chunks.offer(chunk, 1, TimeUnit.SECONDS)) {
+          if (failure != null)
+            throw new RuntimeException("stopping, another ingest thread failed");
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void parseChunks() {
+      Map<String, FNParse> sentId2parse = sentIdsAndFNParses.sentId2parse;
+      Set<String> devSentIds = sentIdsAndFNParses.devSetSentIds;
+      Set<String> testSentIds = sentIdsAndFNParses.testSetSentIds;
+      while (true) {
+        List<String> chunk;
+        try {
+          chunk = chunks.take();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        if (chunk == DONE)
+          break;
+        long start = parseTime.start();
+        FeatureFile.Line ffl = new FeatureFile.Line(chunk.get(0), featuresSorted);
+        String sentId = ffl.getSentenceId();
+        FNParse parse = sentId2parse.get(sentId);
+        if (parse == null) {
+          if (skipEntriesNotInSentId2ParseMap) {
+            skipped.increment();
+            continue;
+          }
+          throw new RuntimeException("no parse for " + sentId
+              + " in map of size " + sentId2parse.size());
+        }
+        Item cur = new Item(parse);
+        parse.featuresAndSpans = cur;
+        for (int i = 0; i < chunk.size(); i++) {
+          if (i > 0)
+            ffl = new FeatureFile.Line(chunk.get(i), featuresSorted);
+          if (keepBoth)
+            cur.setFeatures(ffl.getTarget(), ffl.getArgSpan(), ffl);
+        }
+        if (keepKeys) {
+          synchronized (debugKeys) {
+            debugKeys.add(parse);
+          }
+        }
+        addItem(cur, devSentIds, testSentIds);
+        sentences.increment();
+        parseTime.stop(start);
+      }
+    }
+  }
+
   public static class PropbankFNParses implements Serializable {
     private static final long serialVersionUID = -8859010506985261169L;
 
@@ -360,6 +661,14 @@ public class CachedFeatures implements Serializable {
     public Set<String> devSetSentIds;
     private int maxRole;
 
+    /** Uses the given parses rather than loading them */
+    public PropbankFNParses(Map<String, FNParse> sentId2parse,
+        Set<String> devSetSentIds, Set<String> testSetSentIds) {
+      this.sentId2parse = sentId2parse;
+      this.devSetSentIds = devSetSentIds;
+      this.testSetSentIds = testSetSentIds;
+    }
+
     public PropbankFNParses(ExperimentProperties config) {
       Log.info("loading sentId->FNparse mapping...");
       // This can be null since the only reason we need the parses is for
@@ -495,19 +804,13 @@ public class CachedFeatures implements Serializable {
         li = loadedDevItems;
       else
         li = loadedTrainItems;
-      int n;
-      while (true) {
+      int n = li.size();
+      if (n < 1) {
+        initReadiness();
+        CompletableFuture<Void> ready = test ? testReady : (dev ? devReady : trainReady);
+        Log.info("waiting because there are no labels to give out yet, test=" + test + " dev=" + dev + " eventualSize=" + eventualSize);
+        ready.join();
         n = li.size();
-        if (n < 1) {
-          Log.info("sleeping because there are no labels to give out yet, test=" + test + " dev=" + dev + " eventualSize=" + eventualSize);
-          try {
-            Thread.sleep(2 * 1000);
-          } catch (Exception e) {
-            throw new RuntimeException(e);
-          }
-        } else {
-          break;
-        }
       }
       return li.get(i % n).parse;
     }
@@ -695,6 +998,15 @@ public class CachedFeatures implements Serializable {
 //      return features;
     }
 
+    @Override
+    public void getFeaturesNoModulo(Sentence sent, Span t, Span s, ColumnarFeatureStore.FeatureView into) {
+      if (dropoutMode != DropoutMode.OFF)
+        throw new RuntimeException("fixme");
+      Item cur = loadedSentId2Item.get(sent.getId());
+      if (!cur.getFlattenedCachedFeatures(t, s, into))
+        CFLike.super.getFeaturesNoModulo(sent, t, s, into);
+    }
+
     @Override
     public IntDoubleUnsortedVector getFeatures(Sentence sent, Span t, Span s) {
       if (dropoutMode != DropoutMode.OFF)
@@ -972,8 +1284,166 @@ public class CachedFeatures implements Serializable {
         + " test.size=" + loadedTestItems.size());
   }
 
+  /**
+   * Runs ingest (e.g. a {@link ParallelInserter} or {@link Inserter}) and
+   * writes the flattened features of every item it reads to a
+   * {@link ColumnarFeatureStore}, which can be read with
+   * {@link #loadColumnar(File, boolean)}. Items are written as soon as they
+   * are read and are not kept, so only the items in flight are on the heap.
+   */
+  public void writeColumnar(File f, Runnable ingest) throws IOException {
+    long fsHash = ColumnarFeatureStore.featureSetHash(featureSet, template2cardinality);
+    try (ColumnarFeatureStore.Writer w = new ColumnarFeatureStore.Writer(f, fsHash)) {
+      columnarSinkIds = new HashSet<>();
+      columnarSink = w;
+      try {
+        ingest.run();
+      } finally {
+        columnarSink = null;
+      }
+      Log.info("wrote " + columnarSinkIds.size() + " items to " + f.getPath());
+    }
+  }
+
+  private void writeToColumnar(Item cur) {
+    cur.convertToFlattenedRepresentation(featureSet, template2cardinality);
+    Map<SpanPair, Object> feats = cur.getFlattenedFeatures();
+    if (feats == null)
+      throw new IllegalStateException("item is not flattened: " + cur.getParse().getId());
+    String id = cur.parse.getSentence().getId();
+    ColumnarFeatureStore.Writer w = columnarSink;
+    synchronized (w) {
+      if (!columnarSinkIds.add(id)) {
+        Log.warn("duplicate item: key=" + id + " new=" + cur.parse.getId() + ", skipping");
+        return;
+      }
+      try {
+        w.write(id, feats);
+      } catch (IOException e) {
+        throw new RuntimeException("failed to write " + id, e);
+      }
+    }
+  }
+
+  /**
+   * Adds items whose features are read from a memory mapped
+   * {@link ColumnarFeatureStore} (rather than kept on the heap), on this thread.
+   * Uses sentIdsAndFNParses like {@link Inserter}.
+   */
+  public void loadColumnar(File f, boolean skipEntriesNotInSentId2ParseMap) throws IOException {
+    if (!FModel.CACHE_FLATTEN) {
+      // The store only has flattened features, there are no templates to
+      // compute features from (see Item.getFeatures(Span, Span))
+      throw new IllegalStateException("columnar features require FModel.CACHE_FLATTEN");
+    }
+    ColumnarFeatureStore store = new ColumnarFeatureStore(f);
+    long fsHash = ColumnarFeatureStore.featureSetHash(featureSet, template2cardinality);
+    if (store.getFeatureSetHash() != fsHash) {
+      throw new IllegalArgumentException(f.getPath() + " was built with a different"
+          + " feature set or template cardinalities");
+    }
+    Map<String, FNParse> sentId2parse = sentIdsAndFNParses.sentId2parse;
+    int skipped = 0;
+    for (int i = 0; i < store.numSentences(); i++) {
+      String sentId = store.getSentenceId(i);
+      FNParse parse = sentId2parse.get(sentId);
+      if (parse == null) {
+        if (skipEntriesNotInSentId2ParseMap) {
+          skipped++;
+          continue;
+        }
+        throw new RuntimeException("no parse for " + sentId + " in " + f.getPath());
+      }
+      Item cur = new Item(parse, store.getBlock(i));
+      parse.featuresAndSpans = cur;
+      addItem(cur, sentIdsAndFNParses.devSetSentIds, sentIdsAndFNParses.testSetSentIds);
+    }
+    Log.info("done loading " + f.getPath() + " skipped=" + skipped
+        + " train.size=" + loadedTrainItems.size()
+        + " dev.size=" + loadedDevItems.size()
+        + " test.size=" + loadedTestItems.size());
+  }
+
+  /**
+   * Reads cachedFeatures.featuresParent, cachedFeatures.featuresGlob,
+   * cachedFeatures.numReadThreads, cachedFeatures.numDataLoadThreads (parsers),
+   * and cachedFeatures.ingestQueueSize (sentences).
+   */
+  public ParallelInserter parallelInserter(ExperimentProperties config, boolean skipEntriesNotInSentId2ParseMap) {
+    List<File> featureFiles = FileUtil.find(
+        config.getExistingDir("cachedFeatures.featuresParent"),
+        config.getString("cachedFeatures.featuresGlob", "glob:**/*"));
+    int numReadThreads = config.getInt("cachedFeatures.numReadThreads", 2);
+    int numDataLoadThreads = config.getInt("cachedFeatures.numDataLoadThreads", 1);
+    int ingestQueueSize = config.getInt("cachedFeatures.ingestQueueSize", 4096);
+    Log.info("[main] loading data with numReadThreads=" + numReadThreads
+        + " numDataLoadThreads=" + numDataLoadThreads
+        + " ingestQueueSize=" + ingestQueueSize);
+    return this.new ParallelInserter(featureFiles, numReadThreads,
+        numDataLoadThreads, ingestQueueSize, skipEntriesNotInSentId2ParseMap);
+  }
+
+  private synchronized void initReadiness() {
+    if (sentId2ready == null) {
+      trainReady = new CompletableFuture<>();
+      devReady = new CompletableFuture<>();
+      testReady = new CompletableFuture<>();
+      sentId2ready = new ConcurrentHashMap<>();
+    }
+  }
+
+  /**
+   * Returns a future which completes when the features for the given sentence
+   * have been added. If loading finishes without them, it completes with null.
+   */
+  public CompletableFuture<Item> getItemFuture(String sentId) {
+    Item i = loadedSentId2Item.get(sentId);
+    if (i != null)
+      return CompletableFuture.completedFuture(i);
+    initReadiness();
+    CompletableFuture<Item> f = sentId2ready.computeIfAbsent(sentId, k -> new CompletableFuture<>());
+    // In case it was added (or loading finished) between the two checks
+    i = loadedSentId2Item.get(sentId);
+    if (i != null || ingestDone) {
+      sentId2ready.remove(sentId, f);
+      f.complete(i);
+    }
+    return f;
+  }
+
+  /**
+   * Called once all the data has been read. Wakes up anyone waiting for items
+   * which never came.
+   * @param failure is null unless loading failed
+   */
+  private void ingestFinished(Throwable failure) {
+    initReadiness();
+    ingestDone = true;
+    for (String sentId : new ArrayList<>(sentId2ready.keySet())) {
+      CompletableFuture<Item> f = sentId2ready.remove(sentId);
+      if (f == null)
+        continue;
+      if (failure != null)
+        f.completeExceptionally(failure);
+      else
+        f.complete(loadedSentId2Item.get(sentId));
+    }
+    CompletableFuture<?>[] splits = new CompletableFuture<?>[] {trainReady, devReady, testReady};
+    String[] names = new String[] {"train", "dev", "test"};
+    for (int i = 0; i < splits.length; i++) {
+      if (failure != null)
+        splits[i].completeExceptionally(failure);
+      else
+        splits[i].completeExceptionally(new IllegalStateException("no " + names[i] + " items were loaded"));
+    }
+  }
+
   private void addItem(Item cur, Set<String> devSentIds, Set<String> testSentIds) {
-    if (FModel.CACHE_FLATTEN) {
+    if (columnarSink != null) {
+      writeToColumnar(cur);
+      return;
+    }
+    if (FModel.CACHE_FLATTEN && cur.columnar == null) {
       Log.info("converting to flattened representation for storage: " + cur.getParse().getId());
       assert featureSet != null && featureSet.length > 0;
       assert template2cardinality != null && template2cardinality.length > 0;
@@ -988,12 +1458,20 @@ public class CachedFeatures implements Serializable {
             + ", skipping");
       } else {
         String id = cur.parse.getSentence().getId();
-        if (testSentIds.contains(id))
+        initReadiness();
+        if (testSentIds.contains(id)) {
           loadedTestItems.add(cur);
-        else if (devSentIds.contains(id))
+          testReady.complete(null);
+        } else if (devSentIds.contains(id)) {
           loadedDevItems.add(cur);
-        else
+          devReady.complete(null);
+        } else {
           loadedTrainItems.add(cur);
+          trainReady.complete(null);
+        }
+        CompletableFuture<Item> f = sentId2ready.remove(id);
+        if (f != null)
+          f.complete(cur);
       }
     }
   }
@@ -1050,13 +1528,10 @@ public class CachedFeatures implements Serializable {
     File featuresParent = config.getExistingDir("featuresParent");
     String featuresGlob = config.getString("featuresGlob", "glob:**/*");
     List<File> featureFiles = FileUtil.find(featuresParent, featuresGlob);
-    for (int i = 0; i < numInsertThreads; i++) {
-      List<File> featureFilesI = ShardUtils.shard(featureFiles, File::hashCode, i, numInsertThreads);
-      Log.info("starting thread to ingest: " + featureFilesI);
-      Inserter ins = this.new Inserter(featureFilesI, false, skipEntriesNotInSentId2ParseMap);
-      Thread insThread = new Thread(ins);
-      insThread.start();
-    }
+    Log.info("starting thread to ingest: " + featureFiles);
+    ParallelInserter ins = this.new ParallelInserter(featureFiles, numInsertThreads, numInsertThreads, 1024, skipEntriesNotInSentId2ParseMap);
+    Thread insThread = new Thread(ins);
+    insThread.start();
 
     int dimension = 256 * 1024;
     int numRoles = 20;
@@ -1177,6 +1652,22 @@ public class CachedFeatures implements Serializable {
     return features;
   }
 
+  /**
+   * Same features as {@link #statelessGetFeaturesNoModulo(Span, Span, Item, int[][], int[])}
+   * without building {@link ProductIndex}s: products are computed as longs into
+   * out and are cached (and shared with other feature sets) by products.
+   * NOTE: the features are numbered differently, see {@link ProductCache}.
+   * Requires un-flattened features (see {@link Item#convertToFlattenedRepresentation(int[][], int[])}).
+   */
+  public static void statelessGetFeaturesNoModulo(
+      Span t, Span s,
+      Item cur, ProductCache products, ProductCache.Plan featureSet,
+      ProductCache.Buffer out) {
+    // pre-computed features don't include nullSpan
+    FeatureFile.Line data = s == Span.nullSpan ? null : cur.getFeatures(t, s);
+    products.features(data, featureSet, out);
+  }
+
   // For redis (intTemplate,intFeature) -> stringFeature
   public static String makeKey(int template, int feature) {
     return "t" + template + "f" + feature;
@@ -1284,20 +1775,9 @@ public class CachedFeatures implements Serializable {
 
     // Start loading the data in the background
     mt.start("load");
-    int numDataLoadThreads = config.getInt("cachedFeatures.numDataLoadThreads", 1);
-    Log.info("[main] loading data in the background with "
-        + numDataLoadThreads + " extra threads");
-    List<File> featureFiles = FileUtil.find(
-        config.getExistingDir("cachedFeatures.featuresParent"),
-        config.getString("cachedFeatures.featuresGlob", "glob:**/*"));
-    assert numDataLoadThreads > 0;
-    boolean readForever = false;  // only useful with reservoir sampling, not doing that
     boolean skipEntriesNotInSentId2ParseMap = false;
-    for (int i = 0; i < numDataLoadThreads; i++) {
-      List<File> rel = ShardUtils.shard(featureFiles, f -> f.getPath().hashCode(), i, numDataLoadThreads);
-      Thread t = new Thread(cachedFeatures.new Inserter(rel, readForever, skipEntriesNotInSentId2ParseMap));
-      t.start();
-    }
+    Thread t = new Thread(cachedFeatures.parallelInserter(config, skipEntriesNotInSentId2ParseMap));
+    t.start();
     mt.stop("load");
 
     // Setup the params
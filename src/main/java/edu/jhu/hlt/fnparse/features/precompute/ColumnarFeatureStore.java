@@ -0,0 +1,462 @@
+package edu.jhu.hlt.fnparse.features.precompute;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import edu.jhu.hlt.fnparse.features.precompute.BiAlph.LineMode;
+import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures.Item;
+import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures.PropbankFNParses;
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.tutils.Span;
+import edu.jhu.hlt.tutils.SpanPair;
+import edu.jhu.hlt.tutils.TimeMarker;
+
+/**
+ * A read-only, memory mapped store of the flattened (product) features which
+ * {@link CachedFeatures} computes, so that the features for a whole dataset can
+ * be served without keeping them on the heap. Each sentence is a block with a
+ * sorted (target, argSpan) key table and one contiguous array of features,
+ * which are read through a re-usable {@link FeatureView} (no
+ * {@link edu.jhu.hlt.tutils.ProductIndex} allocation).
+ *
+ * The features depend on the feature set and template cardinalities used to
+ * flatten them, a hash of which is stored in the header and checked when a
+ * {@link CachedFeatures} loads this file.
+ *
+ * Layout (big endian):
+ *   header: magic, version, numSents, featureSetHash (long), sentIdsOffset (long), sentIndexOffset (long)
+ *   sentence blocks: numKeys, width (4 or 8 bytes per feature),
+ *                    keys (numKeys * [t.start, t.end, s.start, s.end], sorted),
+ *                    offsets (numKeys+1 ints, in features), features
+ *   sentence ids: for each sentence, numBytes (int) followed by UTF-8 bytes
+ *   sentence index: file offset of each block (long)
+ *
+ * Like {@link edu.jhu.hlt.uberts.io.BinaryRelationFile}, the blocks are mapped in
+ * segments of {@link #SEGMENT_BYTES} and no block crosses a segment boundary.
+ *
+ * Use {@link #main(String[])} to build one from feature files.
+ *
+ * @author travis
+ */
+public class ColumnarFeatureStore implements AutoCloseable {
+  public static final int MAGIC = 0x43465354;   // "CFST"
+  public static final int VERSION = 1;
+  public static final long SEGMENT_BYTES = 1L << 30;
+  static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 8 + 8;
+
+  private File file;
+  private int numSents;
+  private long featureSetHash;
+  private String[] sentIds;
+  private long[] blockOffsets;
+  private MappedByteBuffer[] segments;
+
+  public ColumnarFeatureStore(File f) throws IOException {
+    TimeMarker tm = new TimeMarker();
+    this.file = f;
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+        FileChannel fc = raf.getChannel()) {
+      ByteBuffer h = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      if (h.getInt() != MAGIC)
+        throw new IOException("not a columnar feature store: " + f.getPath());
+      int version = h.getInt();
+      if (version != VERSION)
+        throw new IOException("version=" + version + " but can only read " + VERSION + ": " + f.getPath());
+      numSents = h.getInt();
+      featureSetHash = h.getLong();
+      long sentIdsOffset = h.getLong();
+      long sentIndexOffset = h.getLong();
+
+      // Blocks
+      int nSeg = (int) ((sentIdsOffset + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+      segments = new MappedByteBuffer[nSeg];
+      for (int i = 0; i < nSeg; i++) {
+        long start = i * SEGMENT_BYTES;
+        long size = Math.min(SEGMENT_BYTES, sentIdsOffset - start);
+        segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+      }
+
+      // Sentence ids
+      sentIds = new String[numSents];
+      ByteBuffer st = map(fc, sentIdsOffset, sentIndexOffset - sentIdsOffset);
+      byte[] buf = new byte[64];
+      for (int i = 0; i < numSents; i++) {
+        int n = st.getInt();
+        if (n > buf.length)
+          buf = new byte[Math.max(n, 2 * buf.length)];
+        st.get(buf, 0, n);
+        sentIds[i] = new String(buf, 0, n, StandardCharsets.UTF_8);
+      }
+
+      // Block index
+      blockOffsets = new long[numSents];
+      map(fc, sentIndexOffset, 8L * numSents).asLongBuffer().get(blockOffsets);
+    }
+    Log.info("numSents=" + numSents + " segments=" + segments.length
+        + " f=" + f.getPath() + " in " + tm.secondsSinceFirstMark() + " seconds");
+  }
+
+  private static ByteBuffer map(FileChannel fc, long start, long size) throws IOException {
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("region is too big to map: " + size);
+    return fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+  }
+
+  /** Checks the magic number */
+  public static boolean isColumnar(File f) {
+    if (!f.isFile() || f.length() < HEADER_BYTES)
+      return false;
+    try (DataInputStream dis = new DataInputStream(new FileInputStream(f))) {
+      return dis.readInt() == MAGIC;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Identifies the feature set which the stored features were flattened with */
+  public static long featureSetHash(int[][] featureSet, int[] template2cardinality) {
+    long h = Arrays.deepHashCode(featureSet);
+    return h * 1000003L + Arrays.hashCode(template2cardinality);
+  }
+
+  public long getFeatureSetHash() {
+    return featureSetHash;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int numSentences() {
+    return numSents;
+  }
+
+  public String getSentenceId(int i) {
+    return sentIds[i];
+  }
+
+  /** Safe to call from many threads, blocks only use absolute reads */
+  public Block getBlock(int i) {
+    long o = blockOffsets[i];
+    int seg = (int) (o / SEGMENT_BYTES);
+    return new Block(segments[seg], (int) (o - seg * SEGMENT_BYTES));
+  }
+
+  /**
+   * Drops references to the mapped buffers, the mapping is released when they
+   * (and all {@link Block}s) are garbage collected.
+   */
+  @Override
+  public void close() {
+    segments = null;
+  }
+
+  /**
+   * The features of one (target, argSpan), either backed by a mapped
+   * {@link Block} or by an int[] or long[]. Re-use one of these rather than
+   * allocating per lookup.
+   */
+  public static final class FeatureView {
+    private ByteBuffer buf;
+    private int pos;
+    private boolean wide;
+    private int[] ints;
+    private long[] longs;
+    private int size;
+
+    public int size() {
+      return size;
+    }
+
+    /** The i-th feature (not taken modulo anything) */
+    public long get(int i) {
+      assert i >= 0 && i < size;
+      if (buf != null)
+        return wide ? buf.getLong(pos + 8 * i) : buf.getInt(pos + 4 * i);
+      if (ints != null)
+        return ints[i];
+      return longs[i];
+    }
+
+    void set(ByteBuffer buf, int pos, int size, boolean wide) {
+      this.buf = buf;
+      this.pos = pos;
+      this.size = size;
+      this.wide = wide;
+      this.ints = null;
+      this.longs = null;
+    }
+
+    public void set(int[] features) {
+      buf = null;
+      longs = null;
+      ints = features;
+      size = features.length;
+    }
+
+    public void set(long[] features) {
+      set(features, features.length);
+    }
+
+    /** Only the first size features */
+    public void set(long[] features, int size) {
+      assert size <= features.length;
+      buf = null;
+      ints = null;
+      longs = features;
+      this.size = size;
+    }
+  }
+
+  /**
+   * The features for one sentence. Holds a reference to (but doesn't modify
+   * the position of) a mapped segment.
+   */
+  public static final class Block {
+    private final ByteBuffer buf;
+    private final int numKeys;
+    private final boolean wide;
+    private final int keys;       // position of keys
+    private final int offsets;    // position of offsets
+    private final int features;   // position of features
+
+    Block(ByteBuffer buf, int base) {
+      this.buf = buf;
+      this.numKeys = buf.getInt(base);
+      this.wide = buf.getInt(base + 4) == 8;
+      this.keys = base + 8;
+      this.offsets = keys + 16 * numKeys;
+      this.features = offsets + 4 * (numKeys + 1);
+    }
+
+    public int numKeys() {
+      return numKeys;
+    }
+
+    private int key(int i, int j) {
+      return buf.getInt(keys + 16 * i + 4 * j);
+    }
+
+    /** Compares key i to (a, b, c, d) */
+    private int compare(int i, int a, int b, int c, int d) {
+      int x;
+      if ((x = Integer.compare(key(i, 0), a)) != 0) return x;
+      if ((x = Integer.compare(key(i, 1), b)) != 0) return x;
+      if ((x = Integer.compare(key(i, 2), c)) != 0) return x;
+      return Integer.compare(key(i, 3), d);
+    }
+
+    /** Returns the index of the key (t, s) or -1 if it isn't in this block */
+    public int find(Span t, Span s) {
+      int lo = 0, hi = numKeys - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int c = compare(mid, t.start, t.end, s.start, s.end);
+        if (c < 0)
+          lo = mid + 1;
+        else if (c > 0)
+          hi = mid - 1;
+        else
+          return mid;
+      }
+      return -1;
+    }
+
+    /** Points view at the features of the given key */
+    public void view(int key, FeatureView view) {
+      int start = buf.getInt(offsets + 4 * key);
+      int end = buf.getInt(offsets + 4 * (key + 1));
+      view.set(buf, features + (wide ? 8 : 4) * start, end - start, wide);
+    }
+
+    /** Returns false if there are no features for (t, s) */
+    public boolean view(Span t, Span s, FeatureView view) {
+      int k = find(t, s);
+      if (k < 0)
+        return false;
+      view(k, view);
+      return true;
+    }
+
+    /** Returns null if there are no keys with this target */
+    public List<Span> getArgSpansForTarget(Span t) {
+      // First key with this target
+      int lo = 0, hi = numKeys;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (compare(mid, t.start, t.end, Integer.MIN_VALUE, Integer.MIN_VALUE) < 0)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      if (lo == numKeys || key(lo, 0) != t.start || key(lo, 1) != t.end)
+        return null;
+      List<Span> args = new ArrayList<>();
+      for (int i = lo; i < numKeys && key(i, 0) == t.start && key(i, 1) == t.end; i++)
+        args.add(span(key(i, 2), key(i, 3)));
+      return args;
+    }
+
+    private static Span span(int start, int end) {
+      if (start == Span.nullSpan.start && end == Span.nullSpan.end)
+        return Span.nullSpan;
+      return Span.getSpan(start, end);
+    }
+  }
+
+  /**
+   * Writes sentences in the order they are given, the file is not readable
+   * until {@link #close()} is called.
+   */
+  public static class Writer implements AutoCloseable {
+    private File file;
+    private long featureSetHash;
+    private DataOutputStream out;
+    private long pos;
+    private List<String> sentIds = new ArrayList<>();
+    private long[] blockOffsets = new long[1024];
+    private ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    private DataOutputStream blockOut = new DataOutputStream(blockBytes);
+
+    public Writer(File f, long featureSetHash) throws IOException {
+      Log.info("writing to " + f.getPath());
+      this.file = f;
+      this.featureSetHash = featureSetHash;
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+      out.write(new byte[HEADER_BYTES]);  // written in close
+      pos = HEADER_BYTES;
+    }
+
+    /**
+     * @param features values are either int[] or long[] (see
+     * {@link Item#lpi2la2(List)}).
+     */
+    public void write(String sentId, Map<SpanPair, Object> features) throws IOException {
+      int n = features.size();
+      List<SpanPair> keys = new ArrayList<>(features.keySet());
+      keys.sort((a, b) -> {
+        int c;
+        if ((c = Integer.compare(a.get1().start, b.get1().start)) != 0) return c;
+        if ((c = Integer.compare(a.get1().end, b.get1().end)) != 0) return c;
+        if ((c = Integer.compare(a.get2().start, b.get2().start)) != 0) return c;
+        return Integer.compare(a.get2().end, b.get2().end);
+      });
+      boolean wide = false;
+      for (Object v : features.values())
+        wide |= v instanceof long[];
+
+      blockBytes.reset();
+      blockOut.writeInt(n);
+      blockOut.writeInt(wide ? 8 : 4);
+      for (SpanPair k : keys) {
+        blockOut.writeInt(k.get1().start);
+        blockOut.writeInt(k.get1().end);
+        blockOut.writeInt(k.get2().start);
+        blockOut.writeInt(k.get2().end);
+      }
+      int offset = 0;
+      blockOut.writeInt(offset);
+      for (SpanPair k : keys) {
+        Object v = features.get(k);
+        offset += v instanceof int[] ? ((int[]) v).length : ((long[]) v).length;
+        blockOut.writeInt(offset);
+      }
+      for (SpanPair k : keys) {
+        Object v = features.get(k);
+        if (v instanceof int[]) {
+          for (int f : (int[]) v) {
+            if (wide)
+              blockOut.writeLong(f);
+            else
+              blockOut.writeInt(f);
+          }
+        } else {
+          for (long f : (long[]) v)
+            blockOut.writeLong(f);
+        }
+      }
+      blockOut.flush();
+      int size = blockBytes.size();
+
+      // Don't let a block cross a segment boundary
+      if (pos / SEGMENT_BYTES != (pos + size - 1) / SEGMENT_BYTES) {
+        long pad = SEGMENT_BYTES - (pos % SEGMENT_BYTES);
+        for (long i = 0; i < pad; i++)
+          out.write(0);
+        pos += pad;
+      }
+
+      int i = sentIds.size();
+      if (i == blockOffsets.length)
+        blockOffsets = Arrays.copyOf(blockOffsets, 2 * i);
+      blockOffsets[i] = pos;
+      sentIds.add(sentId);
+      blockBytes.writeTo(out);
+      pos += size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      long sentIdsOffset = pos;
+      for (String s : sentIds) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+        pos += 4 + b.length;
+      }
+      long sentIndexOffset = pos;
+      int n = sentIds.size();
+      for (int i = 0; i < n; i++)
+        out.writeLong(blockOffsets[i]);
+      out.close();
+
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(n);
+        raf.writeLong(featureSetHash);
+        raf.writeLong(sentIdsOffset);
+        raf.writeLong(sentIndexOffset);
+      }
+      Log.info("wrote numSents=" + n + " bytes=" + (sentIndexOffset + 8L * n)
+          + " to " + file.getPath());
+    }
+  }
+
+  /**
+   * Reads feature files (with the same config as RerankerTrainer's cached
+   * features: cachedFeatures.bialph, cachedFeatures.featuresParent, etc),
+   * flattens them with the given featureSet, and writes them to "output" as
+   * they are read (see {@link CachedFeatures#writeColumnar(File, Runnable)}).
+   */
+  public static void main(String[] args) throws Exception {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    File output = config.getFile("output");
+    BiAlph bialph = new BiAlph(
+        config.getExistingFile("cachedFeatures.bialph"),
+        LineMode.valueOf(config.getString("cachedFeatures.bialph.lineMode")));
+    String fs = FeatureSet.getFeatureSetString(config.getExistingFile("featureSet"));
+    Log.info("[main] featureSet=" + fs);
+    CachedFeatures cf = new CachedFeatures(bialph, FeatureSet.parseFeatureSet(fs, bialph));
+    cf.sentIdsAndFNParses = new PropbankFNParses(config);
+    boolean skipEntriesNotInSentId2ParseMap = config.getBoolean("skipEntriesNotInSentId2ParseMap", false);
+    cf.writeColumnar(output, cf.parallelInserter(config, skipEntriesNotInSentId2ParseMap));
+  }
+
+}
@@ -0,0 +1,329 @@
+package edu.jhu.hlt.fnparse.features.precompute;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import edu.jhu.hlt.fnparse.features.TemplateTrie;
+import edu.jhu.hlt.fnparse.features.TemplateTrie.Node;
+import edu.jhu.hlt.fnparse.features.precompute.FeaturePrecomputation.Feature;
+import edu.jhu.hlt.fnparse.features.precompute.featureselection.InformationGainProducts;
+import edu.jhu.hlt.tutils.Log;
+
+/**
+ * Computes the (product) features for a {@link FeatureFile.Line} given a
+ * feature set (int[][], each a sorted list of templates, see
+ * {@link FeatureSet#getFeatureSet2}) as primitive longs, without
+ * {@link edu.jhu.hlt.tutils.ProductIndex} objects, and caches the products.
+ *
+ * The products of a feature (t1, t2, ..., tn) are computed from the products
+ * of its prefix (t1, ..., tn-1), so the template sequences of every feature set
+ * passed to {@link #compile(int[][])} are put in one {@link TemplateTrie} and the products for
+ * each trie node are cached per line. Feature sets which share prefixes (e.g.
+ * many feature sets considered during feature selection) share those
+ * products. Only lines recently asked about are kept: at most maxValues
+ * longs are cached, least recently used lines are evicted first.
+ *
+ * Products are taken like {@link InformationGainProducts#flatten}:
+ * prod(x, value, card) = x * card + value starting with 0, and the i-th
+ * feature's products are zipped together with the intercept as
+ * 1 + i + (1 + fsLen) * product (the intercept is 0 or 1 + fsLen for a null
+ * span). This is an injective numbering, but it is NOT the same as
+ * {@link CachedFeatures#statelessGetFeaturesNoModulo}'s (which goes through
+ * ProductIndex.flatProd), so don't mix the two in one model. Products with a
+ * lot of high cardinality templates may overflow a long, in which case they
+ * wrap around (and may collide, like hashing).
+ *
+ * Not thread safe.
+ *
+ * @author travis
+ */
+public class ProductCache {
+
+  private static final long[] ROOT = new long[] {0};
+  private static final long[] EMPTY = new long[0];
+
+  /** A feature set, see {@link ProductCache#compile(int[][])} */
+  public static final class Plan {
+    private final ProductCache owner;
+    private final int[][] featureSet;
+    private final Node[] features;
+    private Plan(ProductCache owner, int[][] featureSet, Node[] features) {
+      this.owner = owner;
+      this.featureSet = featureSet;
+      this.features = features;
+    }
+    public int[][] getFeatureSet() {
+      return featureSet;
+    }
+    public int size() {
+      return features.length;
+    }
+  }
+
+  /** Re-usable output of {@link ProductCache#features} */
+  public static final class Buffer {
+    private long[] values = new long[64];
+    private int size;
+
+    public int size() {
+      return size;
+    }
+
+    public long get(int i) {
+      assert i >= 0 && i < size;
+      return values[i];
+    }
+
+    public void clear() {
+      size = 0;
+    }
+
+    void add(long v) {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = v;
+    }
+
+    void ensureCapacity(int n) {
+      if (n > values.length)
+        values = Arrays.copyOf(values, Math.max(n, values.length * 2));
+    }
+
+    public long[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Features taken mod dimension, in [0, dimension) even for negative
+     * features (products which overflowed), including Long.MIN_VALUE.
+     */
+    public int[] toIntArray(int dimension) {
+      int[] a = new int[size];
+      for (int i = 0; i < size; i++)
+        a[i] = (int) Math.floorMod(values[i], (long) dimension);
+      return a;
+    }
+
+    /** Points into at these features, valid until this buffer is used again */
+    public void view(ColumnarFeatureStore.FeatureView into) {
+      into.set(values, size);
+    }
+  }
+
+  /** The template values for a line and the products computed so far */
+  static final class LineProducts {
+    final int[] templates;  // sorted
+    final int[] values;     // parallel to templates
+    long[][] products = new long[16][];   // indexed by Node.id, null if not computed
+    int numValues;
+    LineProducts(FeatureFile.Line line) {
+      List<Feature> fs = line.getFeatures();
+      int n = fs.size();
+      long[] tv = new long[n];
+      for (int i = 0; i < n; i++) {
+        Feature f = fs.get(i);
+        tv[i] = (((long) f.template) << 32) | (f.feature & 0xffffffffL);
+      }
+      Arrays.sort(tv);
+      templates = new int[n];
+      values = new int[n];
+      for (int i = 0; i < n; i++) {
+        templates[i] = (int) (tv[i] >>> 32);
+        values[i] = (int) tv[i];
+      }
+    }
+  }
+
+  private final int[] template2cardinality;
+  private final long maxValues;
+
+  private final TemplateTrie trie;
+
+  // Keys are line text (or the Line if it wasn't read from text), least to most recently used
+  private final LinkedHashMap<Object, LineProducts> lines = new LinkedHashMap<>(16, 0.75f, true);
+  private long numValues;
+
+  private long hits, misses, evictions;
+
+  public ProductCache(int[] template2cardinality, long maxValues) {
+    Log.info("[main] maxValues=" + maxValues + " numTemplates=" + template2cardinality.length);
+    this.template2cardinality = template2cardinality;
+    this.maxValues = maxValues;
+    this.trie = new TemplateTrie();
+  }
+
+  /**
+   * Adds the template sequences in featureSet to the trie. Every product/feature
+   * must be sorted (like {@link InformationGainProducts#flatten} expects).
+   */
+  public Plan compile(int[][] featureSet) {
+    Node[] features = new Node[featureSet.length];
+    for (int i = 0; i < featureSet.length; i++) {
+      for (int j = 0; j < featureSet[i].length; j++) {
+        int t = featureSet[i][j];
+        if (j > 0 && featureSet[i][j - 1] >= t)
+          throw new IllegalArgumentException("templates must be sorted: " + Arrays.toString(featureSet[i]));
+        if (t < 0 || t >= template2cardinality.length)
+          throw new IllegalArgumentException("unknown template: " + t);
+      }
+      features[i] = trie.add(featureSet[i]);
+    }
+    return new Plan(this, featureSet, features);
+  }
+
+  /** Number of template prefixes in all of the feature sets compiled so far */
+  public int getNumPrefixes() {
+    return trie.size();
+  }
+
+  /**
+   * Writes the intercept and every feature which fires in line into out (cleared
+   * first). Each product/feature's values are sorted and unique (see
+   * {@link CachedFeatures#DEDUP_FEATS}).
+   *
+   * @param line may be null for a null span, which only has the intercept.
+   */
+  public void features(FeatureFile.Line line, Plan plan, Buffer out) {
+    if (plan.owner != this)
+      throw new IllegalArgumentException("plan was compiled by another cache");
+    final int fsLen = plan.features.length;
+    final long stride = fsLen + 1;
+    out.clear();
+    if (line == null) {
+      out.add(0);
+      return;
+    }
+    out.add(stride);
+
+    LineProducts lp = lookup(line);
+    for (int i = 0; i < fsLen; i++) {
+      long[] p = products(plan.features[i], lp);
+      int n = p.length;
+      if (n == 0)
+        continue;
+      int start = out.size;
+      out.ensureCapacity(start + n);
+      long[] o = out.values;
+      long offset = i + 1;
+      for (int j = 0; j < n; j++)
+        o[start + j] = offset + stride * p[j];
+      if (n > 1) {
+        // Products come out sorted (when nothing overflowed), check before sorting
+        boolean sorted = true;
+        for (int j = start + 1; j < start + n && sorted; j++)
+          sorted = o[j - 1] < o[j];
+        if (!sorted) {
+          Arrays.sort(o, start, start + n);
+          int w = start + 1;
+          for (int j = start + 1; j < start + n; j++)
+            if (o[j] != o[w - 1])
+              o[w++] = o[j];
+          n = w - start;
+        }
+      }
+      out.size = start + n;
+    }
+  }
+
+  private LineProducts lookup(FeatureFile.Line line) {
+    Object key = line.getLine() != null ? line.getLine() : line;
+    LineProducts lp = lines.get(key);
+    if (lp == null) {
+      lp = new LineProducts(line);
+      lines.put(key, lp);
+    }
+    return lp;
+  }
+
+  /** Returns the products of the templates in the path to n (sorted if no overflow) */
+  private long[] products(Node n, LineProducts lp) {
+    if (n.isRoot())
+      return ROOT;
+    if (n.id < lp.products.length && lp.products[n.id] != null) {
+      hits++;
+      return lp.products[n.id];
+    }
+    misses++;
+
+    long[] prev = products(n.parent, lp);
+    long[] p = EMPTY;
+    if (prev.length > 0) {
+      int lo = Arrays.binarySearch(lp.templates, n.template);
+      if (lo >= 0) {
+        while (lo > 0 && lp.templates[lo - 1] == n.template)
+          lo--;
+        int hi = lo + 1;
+        while (hi < lp.templates.length && lp.templates[hi] == n.template)
+          hi++;
+        long card = template2cardinality[n.template];
+        p = new long[prev.length * (hi - lo)];
+        int k = 0;
+        for (int i = 0; i < prev.length; i++) {
+          long base = prev[i] * card;
+          for (int j = lo; j < hi; j++) {
+            if (j > lo && lp.values[j] == lp.values[j - 1])
+              continue;
+            assert lp.values[j] < card : "template=" + n.template + " value=" + lp.values[j] + " card=" + card;
+            p[k++] = base + lp.values[j];
+          }
+        }
+        if (k < p.length)
+          p = Arrays.copyOf(p, k);
+      }
+    }
+
+    if (n.id >= lp.products.length)
+      lp.products = Arrays.copyOf(lp.products, Math.max(n.id + 1, lp.products.length * 2));
+    lp.products[n.id] = p;
+    lp.numValues += p.length + 1;
+    numValues += p.length + 1;
+    if (numValues > maxValues)
+      evict(lp);
+    return p;
+  }
+
+  /** Removes least recently used lines other than cur until under budget */
+  private void evict(LineProducts cur) {
+    Iterator<LineProducts> itr = lines.values().iterator();
+    while (numValues > maxValues && itr.hasNext()) {
+      LineProducts lp = itr.next();
+      if (lp == cur)
+        continue;
+      numValues -= lp.numValues;
+      itr.remove();
+      evictions++;
+    }
+  }
+
+  /** Number of longs cached (products plus one per trie node per line) */
+  public long getNumValues() {
+    return numValues;
+  }
+
+  /** Number of lines which have products cached */
+  public int getNumLines() {
+    return lines.size();
+  }
+
+  public long getNumEvictions() {
+    return evictions;
+  }
+
+  public void clear() {
+    lines.clear();
+    numValues = 0;
+  }
+
+  @Override
+  public String toString() {
+    return "(ProductCache lines=" + lines.size()
+        + " values=" + numValues
+        + " prefixes=" + trie.size()
+        + " hits=" + hits
+        + " misses=" + misses
+        + " evictions=" + evictions
+        + ")";
+  }
+}
@@ -50,14 +50,18 @@ public class Wsabie implements Serializable {
   public static final boolean USE_FLOATS_FEAT_EMB = true;
 
   private double margin = 0.001;
-  private int dimFeat = 1<<19;
-  private int dimEmb = 128;       // up to 512 (at least) is good
+  private int dimFeat;
+  private int dimEmb;             // up to 512 (at least) is good
   private int numTemplates;
   private double[][] V;       // frame embeddings
   private double[][] M;       // feature -> frame embedding projection
   private float[][] Mf;       // feature -> frame embedding projection
   private double[] lossAtRank;
   private int batchSize = 1;    // 1 is better for fast learning, 2 may win after many iterations
+  public static final int DEFAULT_PREDICT_BLOCK_SIZE = 64;
+  // Number of targets embedded/scored together in predict(List, ...). Models
+  // serialized before this was added read this as 0, see getPredictBlockSize.
+  private int predictBlockSize = DEFAULT_PREDICT_BLOCK_SIZE;
   private double learningRate = 0.5;
   private Random rand;
 
@@ -95,6 +99,16 @@ public class Wsabie implements Serializable {
    * @param numTemplates is an upper bound on the number of templates in the feature files.
    */
   public Wsabie(FrameSchemaHelper schemas, int numTemplates) {
+    this(schemas, numTemplates, 1<<19, 128);
+  }
+
+  /**
+   * @param dimFeat is the number of rows in the feature embedding matrix (features must be less than this).
+   * @param dimEmb is the embedding dimension.
+   */
+  public Wsabie(FrameSchemaHelper schemas, int numTemplates, int dimFeat, int dimEmb) {
+    this.dimFeat = dimFeat;
+    this.dimEmb = dimEmb;
     int numFrames = schemas.numFrames();
     Log.info("dimFeat=" + dimFeat);
     Log.info("dimEmb=" + dimEmb);
@@ -404,6 +418,282 @@ public class Wsabie implements Serializable {
     return b;
   }
 
+  /**
+   * Top k frames (best first) and their scores for each of a list of targets,
+   * see {@link Wsabie#predict(List, int, boolean)}.
+   */
+  public static final class TopK {
+    public final int k;
+    private final int[] size;
+    private final int[] frames;   // i-th target's are [i*k, i*k + size[i])
+    private final float[] scores;
+
+    TopK(int n, int k) {
+      this.k = k;
+      this.size = new int[n];
+      this.frames = new int[n * k];
+      this.scores = new float[n * k];
+    }
+
+    /** Number of targets */
+    public int numTargets() {
+      return size.length;
+    }
+
+    /** Number of frames predicted for the i-th target, at most k */
+    public int size(int i) {
+      return size[i];
+    }
+
+    public int frame(int i, int rank) {
+      assert rank < size[i];
+      return frames[i * k + rank];
+    }
+
+    public float score(int i, int rank) {
+      assert rank < size[i];
+      return scores[i * k + rank];
+    }
+  }
+
+  /**
+   * Re-usable buffers for {@link Wsabie#predict(List, int, boolean)}. Features
+   * and frames are mapped to rows of the flat, contiguous, rows/frameRows
+   * arrays using stamps (slot is valid iff stamp == cur).
+   */
+  private static final class PredictScratch {
+    int cur;
+    int[] featStamp, featSlot;
+    int[] frameStamp, frameSlot;
+    float[] rows = new float[0];        // features (in this block) x dimEmb
+    float[] frameRows = new float[0];   // frames (in this block) x dimEmb
+    float[] targets = new float[0];     // targets (in this block) x dimEmb
+    int[] candFrames = new int[0];      // candidate frames for one target
+    float[] candScores = new float[0];
+    int[][] cands;                      // candidate frames per target in block
+    int[] numCands;
+
+    PredictScratch(int dimFeat, int numFrames, int blockSize) {
+      featStamp = new int[dimFeat];
+      featSlot = new int[dimFeat];
+      frameStamp = new int[numFrames];
+      frameSlot = new int[numFrames];
+      cands = new int[blockSize][];
+      numCands = new int[blockSize];
+    }
+  }
+
+  /** Returns a positive block size, see {@link #predict(List, int, boolean)} */
+  public int getPredictBlockSize() {
+    return predictBlockSize > 0 ? predictBlockSize : DEFAULT_PREDICT_BLOCK_SIZE;
+  }
+
+  public void setPredictBlockSize(int targets) {
+    if (targets <= 0)
+      throw new IllegalArgumentException("targets=" + targets);
+    this.predictBlockSize = targets;
+  }
+
+  /**
+   * Same as {@link #predict(FrameIdExample, int)} for a list of targets, but
+   * processes predictBlockSize targets at a time so that the rows of M and V
+   * which are needed are read once per block and laid out in flat float[]s:
+   * target embeddings are sums of feature rows, frame scores are dot products
+   * between target and frame rows, and the top k come from a partial sort over
+   * primitive arrays (no {@link Beam}). Scores are computed in floats, so
+   * near-ties may be broken differently than {@link #predict(FrameIdExample, int)}.
+   *
+   * @param useConfusionSet if true then targets which have a
+   * {@link FrameIdExample#getConfusionSet()} (see {@link FrameConfusionSetCreation})
+   * are only scored against those frames, otherwise every frame (in the schema
+   * of e.frame if it is non-negative) is scored.
+   */
+  public TopK predict(List<FrameIdExample> es, int topK, boolean useConfusionSet) {
+    if (topK <= 0)
+      throw new IllegalArgumentException("topK=" + topK);
+    int n = es.size();
+    TopK out = new TopK(n, topK);
+    int blockSize = getPredictBlockSize();
+    PredictScratch ps = new PredictScratch(dimFeat, V.length, blockSize);
+    for (int start = 0; start < n; start += blockSize) {
+      int end = Math.min(n, start + blockSize);
+      predictBlock(es, start, end, useConfusionSet, ps, out);
+    }
+    return out;
+  }
+
+  private void predictBlock(List<FrameIdExample> es, int start, int end,
+      boolean useConfusionSet, PredictScratch ps, TopK out) {
+    final int B = end - start;
+    final int d = dimEmb;
+    ps.cur++;
+
+    // 1) Gather the rows of M needed for this block into ps.rows
+    int numRows = 0;
+    for (int b = 0; b < B; b++) {
+      int[] fs = es.get(start + b).targetFeatures;
+      for (int i = 0; i < fs.length; i++) {
+        int f = fs[i];
+        if (ps.featStamp[f] == ps.cur)
+          continue;
+        ps.featStamp[f] = ps.cur;
+        ps.featSlot[f] = numRows;
+        if ((numRows + 1) * d > ps.rows.length)
+          ps.rows = Arrays.copyOf(ps.rows, Math.max((numRows + 1) * d, ps.rows.length * 2));
+        int o = numRows * d;
+        if (USE_FLOATS_FEAT_EMB) {
+          System.arraycopy(Mf[f], 0, ps.rows, o, d);
+        } else {
+          double[] m = M[f];
+          for (int j = 0; j < d; j++)
+            ps.rows[o + j] = (float) m[j];
+        }
+        numRows++;
+      }
+    }
+
+    // 2) Target embeddings: sum of feature rows
+    if (B * d > ps.targets.length)
+      ps.targets = new float[B * d];
+    float[] G = ps.targets;
+    Arrays.fill(G, 0, B * d, 0f);
+    for (int b = 0; b < B; b++) {
+      int[] fs = es.get(start + b).targetFeatures;
+      int go = b * d;
+      for (int i = 0; i < fs.length; i++) {
+        int ro = ps.featSlot[fs[i]] * d;
+        for (int j = 0; j < d; j++)
+          G[go + j] += ps.rows[ro + j];
+      }
+    }
+
+    // 3) Candidate frames for each target, gather their rows of V into ps.frameRows
+    int numFrameRows = 0;
+    for (int b = 0; b < B; b++) {
+      FrameIdExample e = es.get(start + b);
+      int[] confusion = useConfusionSet ? e.getConfusionSet() : null;
+      if (confusion == null) {
+        confusion = e.frame >= 0
+            ? getDefaultConfusionSet(e.frame)
+            : getDefaultConfusionSet();
+      }
+      Schema sc = e.frame >= 0 ? schemas.getSchema(e.frame) : null;
+      if (ps.cands[b] == null || ps.cands[b].length < confusion.length)
+        ps.cands[b] = new int[confusion.length];
+      int nc = 0;
+      for (int i = 0; i < confusion.length; i++) {
+        int frame = confusion[i];
+        if (frame < 0 || frame >= V.length)
+          throw new IllegalStateException("confusion set contains illegal frame: " + frame + " V.length=" + V.length);
+        if (sc != null && schemas.getSchema(frame) != sc)
+          continue;
+        ps.cands[b][nc++] = frame;
+        if (ps.frameStamp[frame] != ps.cur) {
+          ps.frameStamp[frame] = ps.cur;
+          ps.frameSlot[frame] = numFrameRows;
+          if ((numFrameRows + 1) * d > ps.frameRows.length)
+            ps.frameRows = Arrays.copyOf(ps.frameRows, Math.max((numFrameRows + 1) * d, ps.frameRows.length * 2));
+          double[] v = V[frame];
+          int o = numFrameRows * d;
+          for (int j = 0; j < d; j++)
+            ps.frameRows[o + j] = (float) v[j];
+          numFrameRows++;
+        }
+      }
+      ps.numCands[b] = nc;
+    }
+
+    // 4) Scores and top k
+    for (int b = 0; b < B; b++) {
+      int nc = ps.numCands[b];
+      if (nc > ps.candScores.length) {
+        ps.candScores = new float[nc];
+        ps.candFrames = new int[nc];
+      }
+      int go = b * d;
+      for (int c = 0; c < nc; c++) {
+        int frame = ps.cands[b][c];
+        ps.candFrames[c] = frame;
+        ps.candScores[c] = dot(G, go, ps.frameRows, ps.frameSlot[frame] * d, d);
+      }
+      int i = start + b;
+      out.size[i] = topK(ps.candFrames, ps.candScores, nc, out.k, out.frames, out.scores, i * out.k);
+    }
+  }
+
+  /** Dot product of a[aOffset:aOffset+n] and b[bOffset:bOffset+n], 4 independent sums */
+  static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int j = 0;
+    for (; j + 3 < n; j += 4) {
+      s0 += a[aOffset + j] * b[bOffset + j];
+      s1 += a[aOffset + j + 1] * b[bOffset + j + 1];
+      s2 += a[aOffset + j + 2] * b[bOffset + j + 2];
+      s3 += a[aOffset + j + 3] * b[bOffset + j + 3];
+    }
+    for (; j < n; j++)
+      s0 += a[aOffset + j] * b[bOffset + j];
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * Writes the (up to) k highest scoring of the first n (id, score)s into
+   * outIds/outScores starting at outOffset, best first, and returns how many
+   * were written. Uses a size k min-heap (in the output arrays) and then sorts
+   * it, O(n log k). An item only displaces a strictly worse one.
+   */
+  static int topK(int[] ids, float[] scores, int n, int k,
+      int[] outIds, float[] outScores, int outOffset) {
+    int h = 0;  // heap size
+    for (int i = 0; i < n; i++) {
+      float s = scores[i];
+      if (h < k) {
+        // sift up
+        int c = h++;
+        while (c > 0) {
+          int p = (c - 1) >> 1;
+          if (outScores[outOffset + p] <= s)
+            break;
+          outScores[outOffset + c] = outScores[outOffset + p];
+          outIds[outOffset + c] = outIds[outOffset + p];
+          c = p;
+        }
+        outScores[outOffset + c] = s;
+        outIds[outOffset + c] = ids[i];
+      } else if (s > outScores[outOffset]) {
+        siftDown(outIds, outScores, outOffset, h, ids[i], s);
+      }
+    }
+    // Heap sort: repeatedly move the min to the end => descending order
+    for (int end = h - 1; end > 0; end--) {
+      int id = outIds[outOffset + end];
+      float s = outScores[outOffset + end];
+      outIds[outOffset + end] = outIds[outOffset];
+      outScores[outOffset + end] = outScores[outOffset];
+      siftDown(outIds, outScores, outOffset, end, id, s);
+    }
+    return h;
+  }
+
+  /** Puts (id, s) at the root of the min-heap of size h and sifts it down */
+  private static void siftDown(int[] ids, float[] scores, int off, int h, int id, float s) {
+    int c = 0;
+    while (true) {
+      int l = 2 * c + 1;
+      if (l >= h)
+        break;
+      int r = l + 1;
+      int m = (r < h && scores[off + r] < scores[off + l]) ? r : l;
+      if (scores[off + m] >= s)
+        break;
+      scores[off + c] = scores[off + m];
+      ids[off + c] = ids[off + m];
+      c = m;
+    }
+    scores[off + c] = s;
+    ids[off + c] = id;
+  }
+
   private transient int[] defaultConfusionSet;
   private int[] getDefaultConfusionSet() {
     if (defaultConfusionSet == null) {
@@ -420,7 +710,12 @@ public class Wsabie implements Serializable {
     Schema sc = schemas.getSchema(frame);
     int s = sc.ordinal();
     if (schemaConfusionSet[s] == null) {
-      schemaConfusionSet[s] = new int[schemas.numFrames(sc)];
+      // Count rather than use schemas.numFrames(sc), which doesn't count OTHER (e.g. the null frame)
+      int n = 0;
+      for (int i = 0; i < V.length; i++)
+        if (sc == schemas.getSchema(i))
+          n++;
+      schemaConfusionSet[s] = new int[n];
       for (int i = 0, j = 0; i < V.length; i++) {
         if (sc == schemas.getSchema(i))
           schemaConfusionSet[s][j++] = i;
@@ -511,8 +806,10 @@ public class Wsabie implements Serializable {
 
   public FPR accuracy(List<FrameIdExample> instances, int noFrameId) {
     FPR fpr = new FPR(false);
-    for (FrameIdExample e : instances) {
-      int yhat = predict(e, 1).pop();
+    TopK yhats = predict(instances, 1, true);
+    for (int i = 0; i < yhats.numTargets(); i++) {
+      FrameIdExample e = instances.get(i);
+      int yhat = yhats.size(i) > 0 ? yhats.frame(i, 0) : noFrameId;
       if (yhat != noFrameId) {
         if (yhat == e.frame)
           fpr.accumTP();
@@ -530,14 +827,14 @@ public class Wsabie implements Serializable {
     double right = 0;
     double rightF = 0;
     int totalF = 0;
-    for (FrameIdExample e : instances) {
+    TopK yhats = predict(instances, maxRank, true);
+    for (int i = 0; i < yhats.numTargets(); i++) {
+      FrameIdExample e = instances.get(i);
       if (e.frame != nullFrameId)
         totalF++;
-      Beam<Integer> yhat = predict(e, maxRank);
-      int rank = 0;
-      while (yhat.size() > 0) {
-        rank++;
-        int yh = yhat.pop();
+      for (int r = 0; r < yhats.size(i); r++) {
+        int rank = r + 1;
+        int yh = yhats.frame(i, r);
         if (yh == e.frame) {
           right += 1d / rank;
           if (e.frame != nullFrameId)
@@ -1,11 +1,12 @@
 package edu.jhu.hlt.fnparse.rl.full;
 
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeSet;
 
-import edu.jhu.hlt.fnparse.rl.full2.LLSSP;
 import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.tutils.scoring.Adjoints;
 
@@ -38,7 +39,8 @@ public interface Beam<T extends StateLike> {
 
 
   /**
-   * Compares first on score, then on State.sig.
+   * Compares first on score, then on State.sig (or the order they were added
+   * in if the states don't have signatures).
    * Will never return compareTo == 0,
    * thus you should only ever construct pairs of instances s.t. (score,sig) are unique!
    */
@@ -60,13 +62,13 @@ public interface Beam<T extends StateLike> {
         return +1;
       if (this == o)
         return 0;
-      if (LLSSP.DISABLE_PRIMES) {
+      Sig s1 = state.getSignature();
+      Sig s2 = s1 == null ? null : o.state.getSignature();
+      if (s2 == null) {
         assert inst != o.inst || this == o;
         assert inst >= 0 && o.inst >= 0;
         return inst < o.inst ? +1 : -1;
       }
-      BigInteger s1 = state.getSignature();
-      BigInteger s2 = o.state.getSignature();
       int c = s1.compareTo(s2);
       if (c == 0) {
         if (this != o) {  // TreeSet/Map calls compare(key,key) for some stupid reason...
@@ -113,7 +115,9 @@ public interface Beam<T extends StateLike> {
     // scores: BeamItem -> State + ...
     // table: State -> BeamItem
     private TreeSet<BeamItem<T>> scores;
-    private HashMap<T, BeamItem<T>> table;   // ensures that entries in scores are unique up to State
+    // Ensures that entries in scores are unique up to State. Only used (and
+    // created) once we see a State with a signature.
+    private HashMap<T, BeamItem<T>> table;
     private int capacity;
     private int numCollapses, numOffers;
     private SearchCoefficients coefs;
@@ -124,14 +128,11 @@ public interface Beam<T extends StateLike> {
 
     public DoubleBeam(int capacity, SearchCoefficients coefs) {
       this.capacity = capacity;
-      if (LLSSP.DISABLE_PRIMES) {
-        // All states are assumed to be unique, don't attempt to call equals
-        // which will at best waste time calling getSig and at worst falsely
-        // assume two States are the same because of some dummy primeProd value.
-        this.table = null;
-      } else {
-        this.table = new HashMap<>((int) (capacity * 1.5 + 1));
-      }
+      // States without signatures (e.g. with LLSSP.DISABLE_PRIMES) are assumed
+      // to be unique, don't attempt to call equals which will at best waste
+      // time and at worst falsely assume two States are the same because of
+      // some dummy primeProd value.
+      this.table = null;
       this.scores = new TreeSet<>();
       this.numCollapses = 0;
       this.numOffers = 0;
@@ -191,6 +192,8 @@ public interface Beam<T extends StateLike> {
         return false;
       }
 
+      if (table == null && s.getSignature() != null)
+        table = new HashMap<>((int) (capacity * 1.5 + 1));
       BeamItem<T> old = table == null ? null : table.get(s);
       if (old != null) {
         numCollapses++;
@@ -270,4 +273,362 @@ public interface Beam<T extends StateLike> {
     public int size() { return scores.size(); }
     public int capacity() { return capacity; }
   }
-}
\ No newline at end of file
+
+  /**
+   * Same interface and collapse semantics as {@link DoubleBeam} (if two States
+   * are equal, keep the higher scoring one), but items and scores live in
+   * parallel arrays arranged as a min-heap, and dedup is done with an
+   * open-addressed table of heap positions rather than a HashMap. Offers which
+   * would be rejected by the lower bound return before any lookup or
+   * allocation.
+   *
+   * The first {@link #pop()} after some offers heap-sorts the items in place,
+   * after which pops are O(1). Meant to be {@link #clear()}ed and re-used, e.g.
+   * for cur/next in {@link State#runInference(Info)}.
+   *
+   * Ties in score go to the item which was offered first.
+   */
+  public static class ArrayBeam<T extends StateLike> implements Beam<T> {
+
+    private static final int INITIAL_SIZE = 64;
+
+    private int capacity;
+    private SearchCoefficients coefs;
+    private int numCollapses, numOffers;
+    private long instanceCounter = 0;
+
+    // Indexed by heap position. In heap mode the items are in [0,size), and
+    // after sorting for pops they are in [popIdx,popIdx+size), best first.
+    private Object[] items;
+    private double[] scores;
+    private long[] insts;
+    private int[] hashes;
+    private int[] tpos;       // index into table
+    private int size;
+    private int popIdx;
+    private boolean sorted;
+
+    // Heap position + 1, 0 means empty. Only used if states have signatures,
+    // which is decided on the first offer.
+    private int[] table;
+    private Boolean dedup;
+
+    public ArrayBeam(HowToSearch hts) {
+      this(hts.beamSize(), hts);
+    }
+
+    public ArrayBeam(int capacity, SearchCoefficients coefs) {
+      if (capacity < 1)
+        throw new IllegalArgumentException("capacity=" + capacity);
+      this.capacity = capacity;
+      this.coefs = coefs;
+      alloc(Math.min(capacity, INITIAL_SIZE));
+    }
+
+    private void alloc(int n) {
+      items = items == null ? new Object[n] : Arrays.copyOf(items, n);
+      scores = scores == null ? new double[n] : Arrays.copyOf(scores, n);
+      insts = insts == null ? new long[n] : Arrays.copyOf(insts, n);
+      hashes = hashes == null ? new int[n] : Arrays.copyOf(hashes, n);
+      tpos = tpos == null ? new int[n] : Arrays.copyOf(tpos, n);
+      if (dedup != null && dedup)
+        rehash();
+    }
+
+    private void rehash() {
+      int n = Integer.highestOneBit(Math.max(2, items.length) * 2 - 1) << 1;
+      table = new int[n];
+      for (int i = popIdx; i < popIdx + size; i++)
+        tableInsert(i);
+    }
+
+    public SearchCoefficients getCoefficients() {
+      return coefs;
+    }
+
+    public void clear() {
+      Arrays.fill(items, popIdx, popIdx + size, null);
+      if (table != null)
+        Arrays.fill(table, 0);
+      size = 0;
+      popIdx = 0;
+      sorted = false;
+      numCollapses = 0;
+      numOffers = 0;
+    }
+
+    public int getNumOffers() {
+      return numOffers;
+    }
+
+    public double getCollapseRate() {
+      return ((double) numCollapses) / numOffers;
+    }
+
+    /** True if i should be popped after j */
+    private boolean worse(int i, int j) {
+      if (scores[i] != scores[j])
+        return scores[i] < scores[j];
+      return insts[i] > insts[j];
+    }
+
+    /* TABLE ******************************************************************/
+
+    private static int spread(int h) {
+      h *= 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+
+    /** Returns a table index or -1 */
+    private int tableFind(T s, int h) {
+      int mask = table.length - 1;
+      for (int t = spread(h) & mask; table[t] != 0; t = (t + 1) & mask) {
+        int i = table[t] - 1;
+        if (hashes[i] == h && s.equals(items[i]))
+          return t;
+      }
+      return -1;
+    }
+
+    private void tableInsert(int i) {
+      int mask = table.length - 1;
+      int t = spread(hashes[i]) & mask;
+      while (table[t] != 0)
+        t = (t + 1) & mask;
+      table[t] = i + 1;
+      tpos[i] = t;
+    }
+
+    /** Backward shift deletion for linear probing */
+    private void tableRemove(int t) {
+      int mask = table.length - 1;
+      table[t] = 0;
+      for (int j = (t + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+        int i = table[j] - 1;
+        int home = spread(hashes[i]) & mask;
+        boolean stay = t <= j ? (t < home && home <= j) : (t < home || home <= j);
+        if (!stay) {
+          table[t] = table[j];
+          tpos[i] = t;
+          table[j] = 0;
+          t = j;
+        }
+      }
+    }
+
+    /* HEAP *******************************************************************/
+
+    private void swap(int i, int j) {
+      Object o = items[i]; items[i] = items[j]; items[j] = o;
+      double d = scores[i]; scores[i] = scores[j]; scores[j] = d;
+      long l = insts[i]; insts[i] = insts[j]; insts[j] = l;
+      int h = hashes[i]; hashes[i] = hashes[j]; hashes[j] = h;
+      int t = tpos[i]; tpos[i] = tpos[j]; tpos[j] = t;
+      if (table != null) {
+        table[tpos[i]] = i + 1;
+        table[tpos[j]] = j + 1;
+      }
+    }
+
+    /** Moves the item at i to the (empty) position j */
+    private void move(int i, int j) {
+      items[j] = items[i]; items[i] = null;
+      scores[j] = scores[i];
+      insts[j] = insts[i];
+      hashes[j] = hashes[i];
+      tpos[j] = tpos[i];
+      if (table != null)
+        table[tpos[j]] = j + 1;
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int p = (i - 1) >>> 1;
+        if (!worse(i, p))
+          break;
+        swap(i, p);
+        i = p;
+      }
+    }
+
+    /** Heap is [0,n) */
+    private void siftDown(int i, int n) {
+      while (true) {
+        int l = 2 * i + 1;
+        if (l >= n)
+          break;
+        int c = l + 1 < n && worse(l + 1, l) ? l + 1 : l;
+        if (!worse(c, i))
+          break;
+        swap(i, c);
+        i = c;
+      }
+    }
+
+    /** Heap-sorts in place so that the best item is first */
+    private void sortForPops() {
+      for (int end = size - 1; end > 0; end--) {
+        swap(0, end);
+        siftDown(0, end);
+      }
+      sorted = true;
+      popIdx = 0;
+    }
+
+    /** Undoes sortForPops: the reverse of a sorted list is a valid heap */
+    private void unsort() {
+      for (int i = popIdx, j = popIdx + size - 1; i < j; i++, j--)
+        swap(i, j);
+      if (popIdx > 0) {
+        for (int k = 0; k < size; k++)
+          move(popIdx + k, k);
+      }
+      popIdx = 0;
+      sorted = false;
+    }
+
+    /**
+     * Assumes that {@link Adjoints}s are cached and calls to forwards() are cheap.
+     */
+    @Override
+    public boolean offer(T s) {
+      DoubleBeam.COUNTER_OFFER++;
+      numOffers++;
+      double sc = coefs.forwards(s.getStepScores());
+
+      assert !Double.isNaN(sc);
+      if (Double.isInfinite(sc)) {
+        assert sc < 0;
+        return false;
+      }
+
+      if (sorted)
+        unsort();
+
+      // If s is equal to something on the beam, that item has a score of at
+      // least lowerBound, so it would be kept anyway.
+      if (size == capacity && sc <= scores[0])
+        return false;
+
+      if (dedup == null) {
+        dedup = s.getSignature() != null;
+        if (dedup)
+          rehash();
+      }
+      int h = 0;
+      if (dedup) {
+        h = s.hashCode();
+        int t = tableFind(s, h);
+        if (t >= 0) {
+          numCollapses++;
+          int i = table[t] - 1;
+          if (scores[i] < sc) {
+            items[i] = s;
+            scores[i] = sc;
+            insts[i] = instanceCounter++;
+            siftDown(i, size);
+            return true;
+          }
+          return false;
+        }
+      }
+
+      int i;
+      if (size < capacity) {
+        if (size == items.length)
+          alloc((int) Math.min(capacity, 2L * items.length));
+        i = size++;
+      } else {
+        // Evict the worst item
+        i = 0;
+        if (dedup)
+          tableRemove(tpos[0]);
+      }
+      items[i] = s;
+      scores[i] = sc;
+      insts[i] = instanceCounter++;
+      hashes[i] = h;
+      if (dedup)
+        tableInsert(i);
+      if (i == 0)
+        siftDown(0, size);
+      else
+        siftUp(i);
+      return true;
+    }
+
+    @Override
+    public Double lowerBound() {
+      if (size == 0)
+        return null;
+      return sorted ? scores[popIdx + size - 1] : scores[0];
+    }
+
+    private int best() {
+      if (size == 0)
+        throw new IllegalStateException();
+      if (sorted)
+        return popIdx;
+      int b = 0;
+      for (int i = 1; i < size; i++)
+        if (worse(b, i))
+          b = i;
+      return b;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T peek() {
+      return (T) items[best()];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T pop() {
+      if (size == 0)
+        throw new IllegalStateException();
+      if (!sorted)
+        sortForPops();
+      int i = popIdx++;
+      T s = (T) items[i];
+      if (table != null)
+        tableRemove(tpos[i]);
+      items[i] = null;
+      size--;
+      if (size == 0) {
+        popIdx = 0;
+        sorted = false;
+      }
+      return s;
+    }
+
+    /** Best first, does not modify this beam */
+    @SuppressWarnings("unchecked")
+    public Iterator<BeamItem<T>> iterator() {
+      List<BeamItem<T>> l = new ArrayList<>(size);
+      for (int i = popIdx; i < popIdx + size; i++)
+        l.add(new BeamItem<>((T) items[i], scores[i], insts[i]));
+      l.sort((a, b) -> {
+        if (a.score != b.score)
+          return a.score > b.score ? -1 : 1;
+        return Long.compare(a.inst, b.inst);
+      });
+      return l.iterator();
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("(ArrayBeam %d/%d collapseRate=%.3f\n", size(), capacity, getCollapseRate()));
+      Iterator<BeamItem<T>> itr = iterator();
+      while (itr.hasNext()) {
+        BeamItem<T> i = itr.next();
+        sb.append(String.format("  %.3f %s\n", i.score, i.state));
+      }
+      sb.append(')');
+      return sb.toString();
+    }
+
+    public int size() { return size; }
+    public int capacity() { return capacity; }
+  }
+}
@@ -2,6 +2,7 @@ package edu.jhu.hlt.fnparse.rl.full;
 
 import java.io.Serializable;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import edu.jhu.hlt.fnparse.data.RolePacking;
 import edu.jhu.hlt.fnparse.rl.full.State.GeneralizedWeights;
@@ -82,6 +83,12 @@ public class Config implements Serializable {
   /** Misc ********************************************************************/
   public double recallBias = 0;
 
+  // If >0, State.runInference expands beams with at least this many states in
+  // parallel (see State.expandParallel). 0 means always expand serially.
+  public int parallelExpandMinBeam = 0;
+  // Pool used for parallel expansion, null means ForkJoinPool.commonPool()
+  public transient ForkJoinPool expandPool = null;
+
 
   /** Data used across many parses ********************************************/
   // Should be set from above
@@ -18,10 +18,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 
@@ -44,11 +40,13 @@ import edu.jhu.hlt.fnparse.datatypes.LabelIndex;
 import edu.jhu.hlt.fnparse.datatypes.Sentence;
 import edu.jhu.hlt.fnparse.evaluation.BasicEvaluation;
 import edu.jhu.hlt.fnparse.evaluation.SentenceEval;
+import edu.jhu.hlt.fnparse.evaluation.StreamingEvaluation;
 import edu.jhu.hlt.fnparse.features.TemplatedFeatures.TemplateDescriptionParsingException;
 import edu.jhu.hlt.fnparse.features.precompute.BiAlph;
 import edu.jhu.hlt.fnparse.features.precompute.BiAlph.LineMode;
 import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures;
 import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures.Item;
+import edu.jhu.hlt.fnparse.features.precompute.ColumnarFeatureStore;
 import edu.jhu.hlt.fnparse.features.precompute.FeatureFile;
 import edu.jhu.hlt.fnparse.features.precompute.FeaturePrecomputation;
 import edu.jhu.hlt.fnparse.features.precompute.FeaturePrecomputation.Feature;
@@ -60,6 +58,7 @@ import edu.jhu.hlt.fnparse.rl.full2.AbstractTransitionScheme;
 import edu.jhu.hlt.fnparse.rl.full2.AbstractTransitionScheme.PerceptronUpdateMode;
 import edu.jhu.hlt.fnparse.rl.full2.AveragedPerceptronWeights;
 import edu.jhu.hlt.fnparse.rl.full2.FNParseTransitionScheme;
+import edu.jhu.hlt.fnparse.rl.full2.LLSSP;
 import edu.jhu.hlt.fnparse.rl.full2.LLTVN;
 import edu.jhu.hlt.fnparse.rl.full2.Node2;
 import edu.jhu.hlt.fnparse.rl.full2.State2;
@@ -120,6 +119,28 @@ public class FModel implements Serializable {
    */
   private FNParseTransitionScheme shardAvgWeights;            // average over shards
   private transient FNParseTransitionScheme[] shardWeights;   // indexed by shard
+  // HOGWILD only: the lock-free weights which every shard trains. In this mode
+  // shardAvgWeights is a snapshot of these (taken by combineWeightShards) so
+  // that evaluation reads frozen weights and their average, like the other modes.
+  private transient FNParseTransitionScheme sharedWeights;
+
+  /**
+   * How the shards' weights relate to each other, read from
+   * "distributedPerceptron.mode".
+   */
+  public enum ParallelTraining {
+    // One copy of the weights per shard, combined (and maybe redistributed)
+    // by combineWeightShards
+    SHARD_AVERAGE,
+    // Same, but the average is always sent back to every shard (iterative
+    // parameter mixing)
+    MIXING,
+    // Every shard updates the same lock-free weights
+    // (AveragedPerceptronWeights.ConcurrentStorage), combineWeightShards only
+    // copies them into the average
+    HOGWILD,
+  }
+  private ParallelTraining parallelTraining;
 
   private boolean maxViolation;
   public PerceptronUpdateMode perceptronUpdateMode;
@@ -156,7 +177,7 @@ public class FModel implements Serializable {
     conf = new Config();
     conf.frPacking = new FrameRolePacking(fi);
     conf.rPacking = new RolePacking(fi);
-    conf.primes = new PrimesAdapter(new Primes(p), conf.frPacking);
+    conf.primes = PrimesAdapter.build(p, conf.frPacking);
     conf.rand = new Random(9001);
 
     if (pruningMode != null)
@@ -167,25 +188,48 @@ public class FModel implements Serializable {
     if (!MULTI_THREADED)
       timer = new MultiTimer.ShowPeriodically(30);
 
-    Primes primes = new Primes(ExperimentProperties.getInstance());
+    // Only needed for signatures, which are off
+    Primes primes = LLSSP.DISABLE_PRIMES ? null : new Primes(ExperimentProperties.getInstance());
     CFLike params = null;
 //    ts = new FNParseTransitionScheme(params, primes);
 
-    shardAvgWeights = new FNParseTransitionScheme(params, primes);
-    shardWeights = new FNParseTransitionScheme[numShards];
-    for (int i = 0; i < numShards; i++)
-      shardWeights[i] = new FNParseTransitionScheme(params, primes);
+    parallelTraining = ParallelTraining.valueOf(p.getString(
+        "distributedPerceptron.mode", ParallelTraining.SHARD_AVERAGE.name()));
+    Log.info("[main] distributedPerceptron.mode=" + parallelTraining);
 
-    long nb = shardAvgWeights.getNumBytesUsed();
-    for (int i = 0; i < numShards; i++)
-      nb += shardWeights[i].getNumBytesUsed();
+    shardWeights = new FNParseTransitionScheme[numShards];
+    long nb;
+    if (parallelTraining == ParallelTraining.HOGWILD) {
+      // Each shard gets its own transition system, but they all share weights
+      sharedWeights = new FNParseTransitionScheme(params, primes, true, null);
+      for (int i = 0; i < numShards; i++)
+        shardWeights[i] = new FNParseTransitionScheme(params, primes, false, sharedWeights);
+      shardAvgWeights = new FNParseTransitionScheme(params, primes);
+      nb = sharedWeights.getNumBytesUsed() + shardAvgWeights.getNumBytesUsed();
+    } else {
+      shardAvgWeights = new FNParseTransitionScheme(params, primes);
+      for (int i = 0; i < numShards; i++)
+        shardWeights[i] = new FNParseTransitionScheme(params, primes);
+      nb = shardAvgWeights.getNumBytesUsed();
+      for (int i = 0; i < numShards; i++)
+        nb += shardWeights[i].getNumBytesUsed();
+    }
     Log.info("[main] totalMemoryUsageForWeights=" + (nb/(1L<<30)) + "GB");
   }
 
   public void setAllWeightsToAverage() {
     shardAvgWeights.setParamsToAverage();
-    for (int i = 0; i < shardWeights.length; i++)
-      shardWeights[i].setParamsToAverage();
+    if (parallelTraining == ParallelTraining.HOGWILD)
+      sharedWeights.setParamsToAverage();
+    for (int i = 0; i < shardWeights.length; i++) {
+      if (parallelTraining == ParallelTraining.HOGWILD)
+        shardWeights[i].shareWeights(sharedWeights);
+      else
+        shardWeights[i].setParamsToAverage();
+    }
+  }
+  public ParallelTraining getParallelTraining() {
+    return parallelTraining;
   }
   public FNParseTransitionScheme getAverageWeights() {
     return shardAvgWeights;
@@ -200,6 +244,17 @@ public class FModel implements Serializable {
   }
 
   public void combineWeightShards(boolean redistribute) {
+    if (parallelTraining == ParallelTraining.HOGWILD) {
+      // All shards share the same weights, there is nothing to mix. Copy them
+      // (and the sums needed for their average) so that evaluation doesn't read
+      // weights which are being updated.
+      Log.info("[main] copying the shared weights into the average");
+      shardAvgWeights.zeroOutWeights(true);
+      shardAvgWeights.addWeightsAndAverage(1, sharedWeights);
+      return;
+    }
+    if (parallelTraining == ParallelTraining.MIXING)
+      redistribute = true;
     Log.info("[main] combining the average based on "
         + shardWeights.length + " independent perceptrons"
         + " redistribute=" + redistribute);
@@ -223,6 +278,13 @@ public class FModel implements Serializable {
 
   public void zeroWeights(boolean includeAverage) {
     boolean includeWeightSums = true;
+    if (parallelTraining == ParallelTraining.HOGWILD) {
+      // The shards all use sharedWeights
+      sharedWeights.zeroOutWeights(includeWeightSums);
+      if (includeAverage)
+        shardAvgWeights.zeroOutWeights(includeWeightSums);
+      return;
+    }
     if (includeAverage)
       shardAvgWeights.zeroOutWeights(includeWeightSums);
     for (int i = 0; i < shardWeights.length; i++)
@@ -245,6 +307,8 @@ public class FModel implements Serializable {
     assert cf != null;
 //    ts.setCachedFeatures(cf);
     shardAvgWeights.setCachedFeatures(cf);
+    if (sharedWeights != null)
+      sharedWeights.setCachedFeatures(cf);
     for (FNParseTransitionScheme ts : shardWeights)
       ts.setCachedFeatures(cf);
   }
@@ -618,6 +682,15 @@ public class FModel implements Serializable {
 
   public interface CFLike {
     public List<ProductIndex> getFeaturesNoModulo(Sentence sent, Span t, Span s);
+
+    /**
+     * Same features as {@link #getFeaturesNoModulo(Sentence, Span, Span)},
+     * but implementations backed by flattened/columnar features can avoid
+     * allocating a {@link ProductIndex} per feature.
+     */
+    default void getFeaturesNoModulo(Sentence sent, Span t, Span s, ColumnarFeatureStore.FeatureView into) {
+      into.set(CachedFeatures.Item.lpi2la(getFeaturesNoModulo(sent, t, s)));
+    }
   }
   public static class SimpleCFLike implements CFLike {
     private Map<Pair<Sentence, SpanPair>, List<ProductIndex>> sentTS2feats;
@@ -695,6 +768,13 @@ public class FModel implements Serializable {
       assert feats != null;
       return feats;
     }
+
+    @Override
+    public void getFeaturesNoModulo(Sentence sent, Span t, Span s, ColumnarFeatureStore.FeatureView into) {
+      Item cur = s2i.get(sent);
+      if (!cur.getFlattenedCachedFeatures(t, s, into))
+        CFLike.super.getFeaturesNoModulo(sent, t, s, into);
+    }
   }
 
   // TODO This does not do feature sets! This just takes templates rather than their products.
@@ -1256,46 +1336,16 @@ public class FModel implements Serializable {
     return showLoss(ys2, m, ts, label);
   }
 
+  /**
+   * Evaluates predictions as they finish, see {@link StreamingEvaluation} for
+   * the config keys which control threads, partial results, and time limits.
+   * @return the evaluated instances (all of ys unless the time limit was hit).
+   */
   public static List<SentenceEval> showLoss(List<FNParse> ys, FModel m, FNParseTransitionScheme ts, String label) {
-    List<SentenceEval> se = new ArrayList<>();
-    int t = ExperimentProperties.getInstance().getInt("threads", 1);
-    if (t == 1) {
-      for (FNParse y : ys) {
-        FNParse yhat = m.predict(y, ts);
-        se.add(new SentenceEval(y, yhat));
-      }
-    } else {
-      ExecutorService es = Executors.newWorkStealingPool(t);
-      List<Future<SentenceEval>> fu = new ArrayList<>();
-      for (FNParse y : ys) {
-        Future<SentenceEval> f = es.submit(() -> {
-          FNParse yhat = m.predict(y, ts);
-          return new SentenceEval(y, yhat);
-        });
-        fu.add(f);
-      }
-      es.shutdown();
-      try {
-        es.awaitTermination(999, TimeUnit.DAYS);
-      } catch (Exception e) {
-        throw new RuntimeException(e);
-      }
-      for (Future<SentenceEval> fse : fu) {
-        try {
-          se.add(fse.get());
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
-      }
-    }
-    Map<String, Double> r = BasicEvaluation.evaluate(se);
-    double f1 = r.get("ArgumentMicroF1");
-    Log.info(label + " result: "
-        + " f1=" + f1
-        + " p=" + r.get("ArgumentMicroPRECISION")
-        + " r=" + r.get("ArgumentMicroRECALL")
-        + " n=" + se.size());
-    return se;
+    StreamingEvaluation se = StreamingEvaluation.fromConfig(ExperimentProperties.getInstance());
+    StreamingEvaluation.Result r = se.evaluate(ys.size(), ys::get, y -> m.predict(y, ts), label);
+    Log.info(label + " result: " + r);
+    return r.getSentenceEvals();
   }
 
   private static void showLoss(FNParse y, FNParse yhat, String label) {
@@ -0,0 +1,71 @@
+package edu.jhu.hlt.fnparse.rl.full;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import edu.jhu.hlt.fnparse.rl.full.Beam.ArrayBeam;
+
+/**
+ * Expands every state on a beam on a fork-join pool, see
+ * {@link #expand(List, ArrayBeam, ArrayBeam, Random, ForkJoinPool, Successors)}.
+ * Used by {@link State#runInference(Info)}, split out so that it can be
+ * tested without running inference (see ParallelExpandTest).
+ *
+ * @author travis
+ */
+public class ParallelExpand {
+
+  /**
+   * Adds the successors of a state to beam and overall, like
+   * {@link State#next(Beam, Beam)}. This is called from many threads at once,
+   * so it must be thread-safe, and any randomness should come from the given
+   * {@link Random} (which belongs to this call) so that the result doesn't
+   * depend on scheduling.
+   */
+  @FunctionalInterface
+  public interface Successors<T extends StateLike> {
+    public void next(T state, Random rand, Beam<T> beam, Beam<T> overall);
+  }
+
+  /**
+   * Each item (popped from the current beam, best first) is expanded into its
+   * own pair of local beams with the same size and coefficients as next and
+   * all, so pruning happens in the workers, and then the local beams are
+   * merged into next and all in the order of items. The i^th item gets a
+   * {@link Random} seeded with the i^th draw from rand (drawn before forking).
+   *
+   * This gives the same result regardless of the pool's parallelism, and is
+   * equivalent to calling succ on each item in order with next and all (and
+   * the same Randoms) up to ties in score, since anything in the top k overall
+   * is in the top k of the state which produced it.
+   *
+   * @param pool may be null, in which case the common pool is used.
+   */
+  public static <T extends StateLike> void expand(List<T> items,
+      ArrayBeam<T> next, ArrayBeam<T> all,
+      Random rand, ForkJoinPool pool, Successors<T> succ) {
+    int n = items.size();
+    long[] seeds = new long[n];
+    for (int i = 0; i < n; i++)
+      seeds[i] = rand.nextLong();
+    @SuppressWarnings("unchecked")
+    ArrayBeam<T>[] localNext = new ArrayBeam[n];
+    @SuppressWarnings("unchecked")
+    ArrayBeam<T>[] localAll = new ArrayBeam[n];
+    if (pool == null)
+      pool = ForkJoinPool.commonPool();
+    pool.submit(() -> IntStream.range(0, n).parallel().forEach(i -> {
+      localNext[i] = new ArrayBeam<>(next.capacity(), next.getCoefficients());
+      localAll[i] = new ArrayBeam<>(all.capacity(), all.getCoefficients());
+      succ.next(items.get(i), new Random(seeds[i]), localNext[i], localAll[i]);
+    })).join();
+    for (int i = 0; i < n; i++) {
+      while (localNext[i].size() > 0)
+        next.offer(localNext[i].pop());
+      while (localAll[i].size() > 0)
+        all.offer(localAll[i].pop());
+    }
+  }
+}
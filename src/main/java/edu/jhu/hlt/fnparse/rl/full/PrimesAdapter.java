@@ -7,6 +7,8 @@ import edu.jhu.hlt.fnparse.datatypes.Frame;
 import edu.jhu.hlt.fnparse.rl.full.State.SpecialFrame;
 import edu.jhu.hlt.fnparse.rl.full.State.SpecialRole;
 import edu.jhu.hlt.fnparse.util.FrameRolePacking;
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.tutils.Span;
 import edu.jhu.prim.map.LongIntHashMap;
 
@@ -17,9 +19,10 @@ import edu.jhu.prim.map.LongIntHashMap;
 public class PrimesAdapter implements Serializable {
   private static final long serialVersionUID = -3267402547765020302L;
 
-  private Primes primes;
+  private Primes primes;   // null unless mode.exact
   private int nPrimes;
   private FrameRolePacking frp;
+  private Sig.Mode mode;
 
   // Optimization for assiging small primes:
   // As (t,f,k,s) come in, they are hashed, then looked up through this
@@ -78,22 +81,58 @@ public class PrimesAdapter implements Serializable {
      */
 
   public PrimesAdapter(Primes p, FrameRolePacking frp) {
+    this(p, frp, Sig.Mode.PRIMES);
+  }
+
+  /**
+   * @param p may be null if !mode.exact, in which case the int methods below
+   * (e.g. {@link #get(Span)}) may not be used.
+   */
+  public PrimesAdapter(Primes p, FrameRolePacking frp, Sig.Mode mode) {
+    if (mode.exact && p == null)
+      throw new IllegalArgumentException("mode=" + mode + " needs primes");
     this.primes = p;
-    this.nPrimes = p.size();
+    this.nPrimes = p == null ? 0 : p.size();
     this.frp = frp;
-    this.hash2dense = new LongIntHashMap(30 * 10 * 5 * 30, MISSING);
+    this.mode = mode;
+    if (p != null)
+      this.hash2dense = new LongIntHashMap(30 * 10 * 5 * 30, MISSING);
+  }
+
+  /**
+   * Reads "stateSigMode" (see {@link Sig.Mode}) and only loads the primes file
+   * if that mode needs it.
+   */
+  public static PrimesAdapter build(ExperimentProperties config, FrameRolePacking frp) {
+    Sig.Mode mode = Sig.Mode.valueOf(config.getString("stateSigMode", Sig.Mode.ZOBRIST.name()));
+    Log.info("[main] stateSigMode=" + mode);
+    Primes p = mode.exact ? new Primes(config) : null;
+    return new PrimesAdapter(p, frp, mode);
   }
 
+  /** May be null, see {@link #getMode()} */
   public Primes getPrimes() {
     return primes;
   }
 
+  public Sig.Mode getMode() {
+    return mode;
+  }
+
+  /** Signature of the empty set */
+  public Sig one() {
+    return mode.one();
+  }
+
   private int gp(long h) {
     assert h >= 0;
-    int hd = hash2dense.get(h);
-    if (hd == MISSING) {
-      hd = hash2dense.size();
-      hash2dense.put(h, hd);
+    int hd;
+    synchronized (hash2dense) {   // State.expandParallel calls this from many threads
+      hd = hash2dense.get(h);
+      if (hd == MISSING) {
+        hd = hash2dense.size();
+        hash2dense.put(h, hd);
+      }
     }
     return primes.get(hd % nPrimes);
   }
@@ -126,6 +165,40 @@ public class PrimesAdapter implements Serializable {
     return gp(2 * index(t) * (1 + frp.index(f, k)) * (1 + q.ordinal()) * index(s));
   }
 
+  /*
+   * Signatures for the same items as above. The hashed part is keyed on the
+   * fields themselves (and a tag for each kind of item), so unlike the
+   * products used to pick primes, (t=3,f=5) and (t=5,f=3) don't collide.
+   */
+
+  public Sig sig(Span t) {
+    return Sig.item(mode, mode.exact ? get(t) : 0, 1, index(t), 0, 0, 0, 0);
+  }
+
+  public Sig sigSpecial(SpecialFrame f) {
+    return Sig.item(mode, mode.exact ? getSpecial(f) : 0, 2, f.ordinal(), 0, 0, 0, 0);
+  }
+
+  public Sig sig(Span t, Frame f) {
+    return Sig.item(mode, mode.exact ? get(t, f) : 0, 3, index(t), f.getId(), 0, 0, 0);
+  }
+
+  public Sig sigSpecial(Span t, Frame f, SpecialRole r) {
+    return Sig.item(mode, mode.exact ? getSpecial(t, f, r) : 0, 4, index(t), f.getId(), r.ordinal(), 0, 0);
+  }
+
+  public Sig sig(Span t, Frame f, int k, RoleType q) {
+    return Sig.item(mode, mode.exact ? get(t, f, k, q) : 0, 5, index(t), f.getId(), k, q.ordinal(), 0);
+  }
+
+  public Sig sig(Span t, Frame f, Span s) {
+    return Sig.item(mode, mode.exact ? get(t, f, s) : 0, 6, index(t), f.getId(), index(s), 0, 0);
+  }
+
+  public Sig sig(Span t, Frame f, int k, RoleType q, Span s) {
+    return Sig.item(mode, mode.exact ? get(t, f, k, q, s) : 0, 7, index(t), f.getId(), k, q.ordinal(), index(s));
+  }
+
   private static long index(Span span) {
     if (span == Span.nullSpan)
       return 1;
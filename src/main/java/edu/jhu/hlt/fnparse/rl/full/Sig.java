@@ -0,0 +1,184 @@
+package edu.jhu.hlt.fnparse.rl.full;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.jhu.hlt.tutils.Log;
+
+/**
+ * A signature for a set of (t,f,k,q,s) items, built up one item at a time
+ * with {@link #add(Sig)}, which is commutative so that the order items are
+ * added in doesn't matter.
+ *
+ * In {@link Mode#PRIMES} this is the exact product of one prime per item (see
+ * {@link PrimesAdapter}). In {@link Mode#ZOBRIST} it is the sum (mod 2^128) of
+ * one random 128-bit key per item, which is computed by hashing the item so no
+ * table of primes is needed. Addition is used rather than xor so that adding an
+ * item twice doesn't cancel out, mirroring the prime product. In
+ * {@link Mode#AUDIT} both are kept, the exact product decides equality, and any
+ * disagreement between the two is counted and logged.
+ *
+ * @author travis
+ */
+public final class Sig implements Comparable<Sig>, Serializable {
+  private static final long serialVersionUID = 6142021366924816593L;
+
+  public enum Mode {
+    PRIMES(false, true),
+    ZOBRIST(true, false),
+    AUDIT(true, true);
+
+    public final boolean hashed;
+    public final boolean exact;
+
+    Mode(boolean hashed, boolean exact) {
+      this.hashed = hashed;
+      this.exact = exact;
+    }
+
+    /** The signature of the empty set */
+    public Sig one() {
+      return new Sig(0, 0, exact ? BigInteger.ONE : null, hashed);
+    }
+  }
+
+  // In AUDIT mode, number of comparisons and number where the two signatures disagreed
+  public static final AtomicLong AUDITS = new AtomicLong();
+  public static final AtomicLong COLLISIONS = new AtomicLong();
+
+  private static final long SEED_HI = 0x6A09E667F3BCC908L;
+  private static final long SEED_LO = 0xBB67AE8584CAA73BL;
+
+  private final long hi, lo;
+  private final BigInteger prod;  // null if not tracking the exact product
+  private final boolean hashed;   // false if hi and lo are not meaningful
+
+  private Sig(long hi, long lo, BigInteger prod, boolean hashed) {
+    this.hi = hi;
+    this.lo = lo;
+    this.prod = prod;
+    this.hashed = hashed;
+  }
+
+  /**
+   * The signature of one item.
+   * @param prime is only used if mode.exact.
+   * @param tag should be unique to the type of item, and a-e are its fields.
+   */
+  public static Sig item(Mode mode, int prime, int tag, long a, long b, long c, long d, long e) {
+    long hi = 0, lo = 0;
+    if (mode.hashed) {
+      hi = hash(SEED_HI, tag, a, b, c, d, e);
+      lo = hash(SEED_LO, tag, a, b, c, d, e);
+    }
+    BigInteger prod = mode.exact ? BigInteger.valueOf(prime) : null;
+    return new Sig(hi, lo, prod, mode.hashed);
+  }
+
+  /** Wraps a prime product computed elsewhere (e.g. by {@link edu.jhu.hlt.fnparse.rl.full2.Node2}) */
+  public static Sig exact(BigInteger prod) {
+    if (prod == null)
+      throw new IllegalArgumentException();
+    return new Sig(0, 0, prod, false);
+  }
+
+  private static long hash(long seed, int tag, long a, long b, long c, long d, long e) {
+    long z = mix(seed ^ tag);
+    z = mix(z ^ a);
+    z = mix(z ^ b);
+    z = mix(z ^ c);
+    z = mix(z ^ d);
+    return mix(z ^ e);
+  }
+
+  /** splitmix64 */
+  private static long mix(long z) {
+    z += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /** Signature of the union of the two (multi-)sets */
+  public Sig add(Sig other) {
+    long l = lo + other.lo;
+    long carry = Long.compareUnsigned(l, lo) < 0 ? 1 : 0;
+    long h = hi + other.hi + carry;
+    BigInteger p = prod == null || other.prod == null ? null : prod.multiply(other.prod);
+    return new Sig(h, l, p, hashed && other.hashed);
+  }
+
+  public long getHi() {
+    return hi;
+  }
+
+  public long getLo() {
+    return lo;
+  }
+
+  /** Null unless built in {@link Mode#PRIMES} or {@link Mode#AUDIT} */
+  public BigInteger getPrimeProduct() {
+    return prod;
+  }
+
+  private boolean hashEquals(Sig o) {
+    return hi == o.hi && lo == o.lo;
+  }
+
+  private int hashCompare(Sig o) {
+    int c = Long.compare(hi, o.hi);
+    if (c != 0)
+      return c;
+    return Long.compare(lo, o.lo);
+  }
+
+  private void audit(Sig o, boolean exactEqual) {
+    AUDITS.incrementAndGet();
+    if (exactEqual != hashEquals(o)) {
+      long n = COLLISIONS.incrementAndGet();
+      Log.warn("signature disagreement #" + n + " (of " + AUDITS.get() + "):"
+          + " exactEqual=" + exactEqual + " this=" + this + " other=" + o);
+    }
+  }
+
+  @Override
+  public int compareTo(Sig o) {
+    if (prod != null && o.prod != null) {
+      int c = prod.compareTo(o.prod);
+      if (hashed && o.hashed)
+        audit(o, c == 0);
+      return c;
+    }
+    if (hashed && o.hashed)
+      return hashCompare(o);
+    throw new IllegalStateException("incomparable signatures: " + this + " " + o);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof Sig))
+      return false;
+    return compareTo((Sig) other) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    if (prod != null)
+      return prod.hashCode();
+    return (int) (lo ^ (lo >>> 32) ^ hi);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    if (hashed)
+      sb.append(String.format("%016x%016x", hi, lo));
+    if (prod != null) {
+      if (hashed)
+        sb.append('/');
+      sb.append(prod);
+    }
+    return sb.toString();
+  }
+}
@@ -1,7 +1,6 @@
 package edu.jhu.hlt.fnparse.rl.full;
 
 import java.io.File;
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -13,6 +12,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 import edu.jhu.hlt.fnparse.data.DataUtil;
@@ -34,7 +35,7 @@ import edu.jhu.hlt.fnparse.features.TemplatedFeatures.TemplateDescriptionParsing
 import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures;
 import edu.jhu.hlt.fnparse.pruning.DeterministicRolePruning;
 import edu.jhu.hlt.fnparse.rl.ActionType;
-import edu.jhu.hlt.fnparse.rl.full.Beam.DoubleBeam;
+import edu.jhu.hlt.fnparse.rl.full.Beam.ArrayBeam;
 import edu.jhu.hlt.fnparse.rl.full.Config.ArgActionTransitionSystem;
 import edu.jhu.hlt.fnparse.rl.full.Config.FrameActionTransitionSystem;
 import edu.jhu.hlt.fnparse.rl.full.weights.ProductIndexAdjoints;
@@ -68,9 +69,14 @@ public class State implements StateLike {
   public static boolean DEBUG = false;
   public static boolean DEBUG_F = false;
   public static boolean CHEAT_FEATURES_1 = true;  // if true, use the most obviuos cheating features
-  public static int NUM_NEXT_EVALS = 0;
+  // Incremented by next(), which expandParallel calls from many threads
+  public static final LongAdder NUM_NEXT_EVALS = new LongAdder();
 
-  // For prototyping
+  // Set while a state is being expanded by expandParallel, see rand()
+  private static final ThreadLocal<Random> EXPAND_RAND = new ThreadLocal<>();
+
+  // For prototyping. Guarded by synchronized(ALPH) since next() may be called
+  // from many threads, see ff and expandParallel.
   public static final Alphabet<String> ALPH = new Alphabet<>();
   public static int ALPH_DIM = 250_000;
   public static double ALPH_DIM_GROW_RATE = 4;
@@ -97,9 +103,9 @@ public class State implements StateLike {
     public final int k;   // k=-1 means only this span has been chosen, but it hasn't been labeled yet
     public final RoleType q;
     public final Span s;
-    public final BigInteger sig;
+    public final Sig sig;
 
-    public RI(int k, RoleType q, Span s, BigInteger sig) {
+    public RI(int k, RoleType q, Span s, Sig sig) {
       this.k = k;
       this.q = q;
       this.s = s;
@@ -150,8 +156,8 @@ public class State implements StateLike {
     // Does not count nullSpan
     public final fj.data.Set<Span> realizedSpans;   // z=1
 
-    // Product of a unique prime at every (t,f,k,s)
-    public final BigInteger sig;
+    // Combination of a signature for every (t,f,k,s), see Sig
+    public final Sig sig;
 
     @Override
     public String toString() {
@@ -204,7 +210,7 @@ public class State implements StateLike {
         fixedRolesRef = l.fixedRolesRef | (r.q == RoleType.REF ? fixedMask : 0);
         realizedSpans = r.s == null || r.s == Span.nullSpan
             ? l.realizedSpans : l.realizedSpans.insert(r.s);
-        sig = l.sig.multiply(r.sig);
+        sig = l.sig.add(r.sig);
       }
     }
 
@@ -343,30 +349,26 @@ public class State implements StateLike {
      * to be over big things like (t,f,k,s), or assumptions need to be made about
      * how big the t/f/k/s alphabet can get...
      */
-    public BigInteger getSig() {
+    public Sig getSig() {
       // NOTE: Since noMoreArgs = noMoreSpans & noMoreRoles, don't use a separate
       // prime for noMoreArgs.
-      BigInteger b = args == null ? BigInteger.ONE : args.sig;
       PrimesAdapter pa = info.config.primes;
+      Sig b = args == null ? pa.one() : args.sig;
 
       // Need primes for (t,f)...
       // Want to be able to tell apart the states...
       // What happens when a (t,?) is completed?
       assert t != null;
       if (f == null)
-        b = b.multiply(BigInteger.valueOf(pa.get(t)));
+        b = b.add(pa.sig(t));
       else
-        b = b.multiply(BigInteger.valueOf(pa.get(t, f)));
+        b = b.add(pa.sig(t, f));
 
-      long p = 1;
       if (noMoreArgSpans)
-        p *= pa.getSpecial(t, f, SpecialRole.NO_MORE_ARG_SPANS);
+        b = b.add(pa.sigSpecial(t, f, SpecialRole.NO_MORE_ARG_SPANS));
       if (noMoreArgRoles)
-        p *= pa.getSpecial(t, f, SpecialRole.NO_MORE_ARG_ROLES);
-      if (p == 1)
-        return b;
-      else
-        return b.multiply(BigInteger.valueOf(p));
+        b = b.add(pa.sigSpecial(t, f, SpecialRole.NO_MORE_ARG_ROLES));
+      return b;
     }
 
     /** Returns null if either t or f are null */
@@ -464,7 +466,7 @@ public class State implements StateLike {
     public final fj.data.Set<Span> targetsSelectedSoFar;
 
     // Includes primes for noMore*
-    public final BigInteger sig;
+    public final Sig sig;
 
     /**
      * New target chosen (next actions will range over features)
@@ -482,7 +484,7 @@ public class State implements StateLike {
         targetsSelectedSoFar = highlightedTarget.t != null
             ? otherFrames.targetsSelectedSoFar.insert(highlightedTarget.t)
                 : otherFrames.targetsSelectedSoFar;
-        sig = highlightedTarget.getSig().multiply(otherFrames.sig);
+        sig = highlightedTarget.getSig().add(otherFrames.sig);
       }
     }
   }
@@ -544,7 +546,7 @@ public class State implements StateLike {
 //  public State noMoreFrames(Adjoints partialScore) {
   public State noMoreFrames(Object partialScore) {
     assert !noMoreFrames;
-    double rand = info.config.rand.nextGaussian();
+    double rand = rand().nextGaussian();
 //    StepScores<Info> ss = new StepScores<>(info, partialScore, 0, 0, score.trueP, score.trueN, rand, score);
 //    return new State(frames, true, true, incomplete, ss, info);
     throw new RuntimeException("fixme");
@@ -553,12 +555,22 @@ public class State implements StateLike {
 //  public State noMoreTargets(Adjoints partialScore) {
   public State noMoreTargets(Object partialScore) {
     assert !noMoreTargets;
-    double rand = info.config.rand.nextGaussian();
+    double rand = rand().nextGaussian();
 //    StepScores<Info> ss = new StepScores<>(info, partialScore, 0, 0, score.trueP, score.trueN, rand, score);
 //    return new State(frames, noMoreFrames, true, incomplete, ss, info);
     throw new RuntimeException("fixme");
   }
 
+  /**
+   * Source of random scores. This is config.rand except during
+   * {@link #expandParallel(List, ArrayBeam, ArrayBeam, Info)}, where every
+   * state gets its own so that draws don't depend on thread scheduling.
+   */
+  private Random rand() {
+    Random r = EXPAND_RAND.get();
+    return r != null ? r : info.config.rand;
+  }
+
   public String show() {
     StringBuilder sb = new StringBuilder();
     sb.append("(State\n");
@@ -600,10 +612,14 @@ public class State implements StateLike {
   }
 
   public static void ff(List<ProductIndex> addTo, String featName) {
-    int i = ALPH.lookupIndex(featName, true);
-    if (ALPH.size() >= ALPH_DIM)
-      ALPH_DIM = (int) (ALPH_DIM * ALPH_DIM_GROW_RATE + 1);
-    addTo.add(new ProductIndex(i, ALPH_DIM));
+    int i, dim;
+    synchronized (ALPH) {
+      i = ALPH.lookupIndex(featName, true);
+      if (ALPH.size() >= ALPH_DIM)
+        ALPH_DIM = (int) (ALPH_DIM * ALPH_DIM_GROW_RATE + 1);
+      dim = ALPH_DIM;
+    }
+    addTo.add(new ProductIndex(i, dim));
   }
 
   private List<ProductIndex> _stateFeaturesMemo = null;
@@ -633,27 +649,25 @@ public class State implements StateLike {
     return f;
   }
 
-  public BigInteger getSig() {
-    BigInteger p = BigInteger.ONE;
-    if (frames != null) {
-      p = frames.sig;
-    }
-    if (noMoreTargets) {
-      int x = info.config.primes.getSpecial(SpecialFrame.NO_MORE_TARGETS);
-      p = p.multiply(BigInteger.valueOf(x));
-    }
-    if (noMoreFrames) {
-      int x = info.config.primes.getSpecial(SpecialFrame.NO_MORE_FRAMES);
-      p = p.multiply(BigInteger.valueOf(x));
-    }
-    if (incomplete != null) {
-      p = p.multiply(incomplete.getSig());
-    }
-    return p;
+  /** Memoized, State is immutable */
+  public Sig getSig() {
+    if (_sigMemo == null) {
+      PrimesAdapter pa = info.config.primes;
+      Sig p = frames != null ? frames.sig : pa.one();
+      if (noMoreTargets)
+        p = p.add(pa.sigSpecial(SpecialFrame.NO_MORE_TARGETS));
+      if (noMoreFrames)
+        p = p.add(pa.sigSpecial(SpecialFrame.NO_MORE_FRAMES));
+      if (incomplete != null)
+        p = p.add(incomplete.getSig());
+      _sigMemo = p;
+    }
+    return _sigMemo;
   }
+  private Sig _sigMemo;
 
   @Override   // for StateLike
-  public BigInteger getSignature() {
+  public Sig getSignature() {
     return getSig();
   }
   @Override   // for StateLike
@@ -669,7 +683,7 @@ public class State implements StateLike {
   @Override
   public boolean equals(Object other) {
     if (other instanceof State) {
-      BigInteger os = ((State) other).getSig();
+      Sig os = ((State) other).getSig();
       return getSig().equals(os);
     }
     return false;
@@ -1254,7 +1268,7 @@ public class State implements StateLike {
       }
     }
 
-    double rr = 2 * (info.config.rand.nextDouble() - 0.5);
+    double rr = 2 * (rand().nextDouble() - 0.5);
 
 //    return new StepScores<>(info, model, fp, fn, tp, tn, rr, score);
     throw new RuntimeException("fixme");
@@ -1346,7 +1360,7 @@ public class State implements StateLike {
         // Loop over s
         for (Span s : info.getPossibleArgs(fi)) {
 
-          BigInteger sig = BigInteger.valueOf(info.config.primes.get(fi.t, fi.f, incomplete.ri.k, incomplete.ri.q, s));
+          Sig sig = info.config.primes.sig(fi.t, fi.f, incomplete.ri.k, incomplete.ri.q, s);
           RI newArg = new RI(incomplete.ri.k, incomplete.ri.q, s, sig);
           if (DEBUG) Log.debug("incomplete RI - span " + newArg);
 
@@ -1391,8 +1405,8 @@ public class State implements StateLike {
 
     // STOP
     if (DEBUG) Log.debug("adding noMoreArgRoles for k=" + k + " (" + fi.f.getRole(k) + ") q=" + q + "\t" + fi + "\t" + newRI);
-    int p = info.config.primes.get(fi.t, fi.f, k, q, Span.nullSpan);
-    RI riStop = new RI(k, q, Span.nullSpan, BigInteger.valueOf(p));
+    Sig p = info.config.primes.sig(fi.t, fi.f, k, q, Span.nullSpan);
+    RI riStop = new RI(k, q, Span.nullSpan, p);
     StepScores<Info> featsS = f(AT.STOP_K, fi, riStop, sf);
     Incomplete incS = null;   // Stop doesn't need a completion
     State ss = this.surgery(cur, fi.prependArg(riStop), incS, featsS);
@@ -1422,7 +1436,7 @@ public class State implements StateLike {
    * @param overall is the beam which stores the argmax over *all* values throughout search.
    */
   public void next(Beam<State> beam, Beam<State> overall) {
-    NUM_NEXT_EVALS++;
+    NUM_NEXT_EVALS.increment();
 
     if (DEBUG) {
       Log.debug("Starting to compute next()");
@@ -1648,8 +1662,8 @@ public class State implements StateLike {
             assert false : "generate cont/ref roles!";
 
             RoleType q = RoleType.BASE;
-            int p = info.config.primes.get(fi.t, fi.f, k, q, s);
-            RI newRI = new RI(k, q, s, BigInteger.valueOf(p));
+            Sig p = info.config.primes.sig(fi.t, fi.f, k, q, s);
+            RI newRI = new RI(k, q, s, p);
             Incomplete inc = null;  // ONE_STEP doesn't need a completion
 
             // NEW
@@ -1725,18 +1739,16 @@ public class State implements StateLike {
       return "(Incomplete fi=" + fill.item + " ri=" + ri + ")";
     }
 
-    public BigInteger getSig() {
+    public Sig getSig() {
       FI fi = fill.item;
-      int p;
       if (isFrame())
-        p = info.config.primes.get(fi.t);
+        return info.config.primes.sig(fi.t);
       else if (missingArgRole())
-        p = info.config.primes.get(fi.t, fi.f, ri.s);
+        return info.config.primes.sig(fi.t, fi.f, ri.s);
       else if (missingArgSpan())
-        p = info.config.primes.get(fi.t, fi.f, ri.k, ri.q);
+        return info.config.primes.sig(fi.t, fi.f, ri.k, ri.q);
       else
         throw new RuntimeException();
-      return BigInteger.valueOf(p);
     }
   }
 
@@ -1826,7 +1838,7 @@ public class State implements StateLike {
   }
 
   public static FNParse runInference2(Info inf) {
-    Pair<State, DoubleBeam<State>> p = runInference(inf);
+    Pair<State, ArrayBeam<State>> p = runInference(inf);
     State s = p.get1();
     FNParse y = s.decode();
     return y;
@@ -1838,7 +1850,7 @@ public class State implements StateLike {
    * constraints optimization problem, i.e. ordered by
    *   f(z) = modelScore(z) + max_{y \in Proj(z)} loss(y)
    */
-  public static Pair<State, DoubleBeam<State>> runInference(Info inf) {
+  public static Pair<State, ArrayBeam<State>> runInference(Info inf) {
     if (DEBUG)
       Log.info("starting: " + inf);
     /*
@@ -1852,26 +1864,36 @@ public class State implements StateLike {
 
     // Objective: s(z) + max_{y \in Proj(z)} loss(y)
     // [where s(z) may contain random scores]
-    DoubleBeam<State> all = new DoubleBeam<>(inf.htsConstraints);
+    ArrayBeam<State> all = new ArrayBeam<>(inf.htsConstraints);
 
     // Objective: search objective, that is,
     // coef:      accumLoss    accumModel      accumRand
     // oracle:    -1             0              0
     // mv:        +1            +1              0
-    DoubleBeam<State> cur = new DoubleBeam<>(inf.htsBeam);
-    DoubleBeam<State> next = new DoubleBeam<>(inf.htsBeam);
+    // These are swapped and re-used (cur is emptied by popping) at every step
+    ArrayBeam<State> cur = new ArrayBeam<>(inf.htsBeam);
+    ArrayBeam<State> next = new ArrayBeam<>(inf.htsBeam);
 
     State lastState = null;
     push(next, all, s0);
     for (int i = 0; true; i++) {
       if (DEBUG) Log.debug("starting iter=" + i);
-      DoubleBeam<State> t = cur; cur = next; next = t;
+      ArrayBeam<State> t = cur; cur = next; next = t;
       assert next.size() == 0;
-      for (int b = 0; cur.size() > 0; b++) {
-        State s = cur.pop();
-        if (b == 0) // best item in cur
-          lastState = s;
-        s.next(next, all);
+      int minPar = inf.config.parallelExpandMinBeam;
+      if (minPar > 0 && cur.size() >= minPar) {
+        List<State> items = new ArrayList<>(cur.size());
+        while (cur.size() > 0)
+          items.add(cur.pop());
+        lastState = items.get(0);
+        expandParallel(items, next, all, inf);
+      } else {
+        for (int b = 0; cur.size() > 0; b++) {
+          State s = cur.pop();
+          if (b == 0) // best item in cur
+            lastState = s;
+          s.next(next, all);
+        }
       }
       if (DEBUG) Log.info("collapseRate=" + next.getCollapseRate());
       if (next.size() == 0)
@@ -1882,6 +1904,27 @@ public class State implements StateLike {
     return new Pair<>(lastState, all);
   }
 
+  /**
+   * Expands every state in items (popped from the current beam, best first)
+   * on a fork-join pool, see {@link ParallelExpand}. Random scores come from a
+   * Random seeded per state (see rand()) rather than config.rand itself.
+   *
+   * next() is called from many threads, so everything it touches must be
+   * thread-safe: the static counters and alphabet here (see ff), the
+   * {@link PrimesAdapter}, and config.weights (including its
+   * {@link CachedFeatureParamsShim}).
+   */
+  private static void expandParallel(List<State> items, ArrayBeam<State> next, ArrayBeam<State> all, Info inf) {
+    ParallelExpand.expand(items, next, all, inf.config.rand, inf.config.expandPool, (s, r, b, o) -> {
+      EXPAND_RAND.set(r);
+      try {
+        s.next(b, o);
+      } finally {
+        EXPAND_RAND.remove();
+      }
+    });
+  }
+
   /**
    * Make sure the oracle can get 100% accuracy if search is only guided by loss.
    */
@@ -1976,12 +2019,12 @@ public class State implements StateLike {
     System.out.println("re-playing update for debugging:");
 
     System.out.println("searching for oracle update:");
-    Pair<State, DoubleBeam<State>> oracleStateColl = runInference(oracleInf);
+    Pair<State, ArrayBeam<State>> oracleStateColl = runInference(oracleInf);
     State oracleState = oracleStateColl.get2().pop();
     System.out.println("oracleState=" + oracleState.show());
 
     System.out.println("searching for mv update:");
-    Pair<State, DoubleBeam<State>> mvStateColl = runInference(mvInf);
+    Pair<State, ArrayBeam<State>> mvStateColl = runInference(mvInf);
     State mvState = mvStateColl.get2().pop();
     System.out.println("mvState=" + mvState.show());
 
@@ -2025,7 +2068,7 @@ public class State implements StateLike {
 
     Config conf = new Config();
     conf.frPacking = new FrameRolePacking(FrameIndex.getFrameNet());
-    conf.primes = new PrimesAdapter(new Primes(config), conf.frPacking);
+    conf.primes = PrimesAdapter.build(config, conf.frPacking);
 
 //    CachedFeatureParamsShim features = new RandomFeatures();
     CachedFeatureParamsShim features = new CheatingFeatures().add(ys);
@@ -2075,7 +2118,7 @@ public class State implements StateLike {
     long time = System.currentTimeMillis() - start;
 
     System.out.println("took " + time + " ms, " + (nParses*1000d)/time + " parse/sec");
-    System.out.println("numNextEvals: " + NUM_NEXT_EVALS);
+    System.out.println("numNextEvals: " + NUM_NEXT_EVALS.sum());
     System.out.println("numParses: " + nParses);
 
     // Call checkLearning
@@ -2312,11 +2355,13 @@ public class State implements StateLike {
 //          this.at2k2sfWeights[i][k] = new LazyL2UpdateVector(new IntDoubleDenseVector(D), updateInterval);
 //      }
       Primes p = config.primes.getPrimes();
-      this.kPrimes = new int[K];
-      this.kPrimes[0] = 1;
-      for (int i = 1; i < K; i++) {
-        this.kPrimes[i] = p.get(i - 1);
-        assert this.kPrimes[i-1] < this.kPrimes[i] : this.kPrimes[i-1] + " " + this.kPrimes[i] + " " + i;
+      if (p != null) {
+        this.kPrimes = new int[K];
+        this.kPrimes[0] = 1;
+        for (int i = 1; i < K; i++) {
+          this.kPrimes[i] = p.get(i - 1);
+          assert this.kPrimes[i-1] < this.kPrimes[i] : this.kPrimes[i-1] + " " + this.kPrimes[i] + " " + i;
+        }
       }
 
     }
@@ -2349,14 +2394,15 @@ public class State implements StateLike {
 
     private Alphabet<String> dbgAlph = new Alphabet<>();
     public boolean debug = false;
-    private int fCalls = 0;
+    private AtomicInteger fCalls = new AtomicInteger();
 
     public Adjoints allFeatures(AT actionType, FI fi, RI ri, Sentence s, List<ProductIndex> stateFeatures) {
       assert fi.f != null;
       boolean attemptApplyL2Update = true;
 
-      if (++fCalls % 500000 == 0) {
-        Log.info("debug=true, fCalls=" + fCalls + " anyGlobalFeatures=" + config.anyGlobalFeatures());
+      int fc = fCalls.incrementAndGet();
+      if (fc % 500000 == 0) {
+        Log.info("debug=true, fCalls=" + fc + " anyGlobalFeatures=" + config.anyGlobalFeatures());
         showWeightSummary();
       }
 
@@ -2396,7 +2442,10 @@ public class State implements StateLike {
       if (debug) {
         if (CHEAT_FEATURES_1) {
           String overFeat = fi.f.getName() + "_" + fi.t.shortString() + "_" + ri.k + "_" + ri.q + "_" + Span.safeShortString(ri.s);
-          int overFeatI = dbgAlph.lookupIndex(overFeat, true);
+          int overFeatI;
+          synchronized (dbgAlph) {
+            overFeatI = dbgAlph.lookupIndex(overFeat, true);
+          }
           List<ProductIndex> overFeats = Arrays.asList(new ProductIndex(overFeatI));
           LazyL2UpdateVector ww = at2k2sfWeights[actionType.ordinal()];
           if (DEBUG)
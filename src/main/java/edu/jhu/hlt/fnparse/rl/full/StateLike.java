@@ -1,11 +1,10 @@
 package edu.jhu.hlt.fnparse.rl.full;
 
-import java.math.BigInteger;
-
 /** Adapter which lets me use beam code with new and old states */
 public interface StateLike {
   public StepScores<?> getStepScores();
-  public BigInteger getSignature();
+  /** Null means this state can't be compared to others for beam dedup */
+  public Sig getSignature();
   // StateLike should be hashable
   public int hashCode();
   public boolean equals(Object other);
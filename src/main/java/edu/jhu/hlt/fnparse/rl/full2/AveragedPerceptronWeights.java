@@ -5,6 +5,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import edu.jhu.hlt.tutils.ExperimentProperties;
 import edu.jhu.hlt.tutils.Log;
@@ -20,7 +22,15 @@ import edu.jhu.util.Alphabet;
 /**
  * See http://www.ciml.info/dl/v0_8/ciml-v0_8-ch03.pdf
  *
- * TODO Add an option to use floats instead of doubles
+ * The average is maintained lazily with the (u, c) trick from that chapter:
+ * every update to w also adds c times the update to u, and the average is
+ * w - u/c, so nothing is done per observation.
+ *
+ * Use {@link #build(int)} to choose the storage according to the config:
+ * {@link FloatStorage} uses float[]s (8 bytes per dimension rather than 16), and
+ * quantizeAverageBits=8|16 makes {@link #averageView()} return a
+ * {@link QuantizedView} (1 or 2 bytes per dimension) for decoding.
+ * {@link ConcurrentStorage} is meant to be shared by many training threads.
  *
  * @author travis
  */
@@ -47,9 +57,18 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
 
   private IntDoubleDenseVector w;
   private IntDoubleDenseVector u;
-  private double c;
+  protected double c;
   private int dimension;
 
+  // Incremented on every change to w, u, or c. Used to tell when a cached
+  // QuantizedView is out of date.
+  protected long version = 0;
+
+  // If 8 or 16, averageView() returns a QuantizedView
+  private int quantizeAverageBits = 0;
+  private transient QuantizedView quantized;
+  private transient long quantizedVersion;
+
   // Calls to backwards() should add to this buffer. Only when completedObservation()
   // is called do we compute the L2 norm of the net update and then scale the
   // step accordingly.
@@ -84,7 +103,42 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
       Log.info("A dim=" + dimension + " nIntercept=" + numIntercept + " passiveAggressive=" + passiveAgressive + " size=" + b + " MB");
   }
 
-  private AveragedPerceptronWeights(int dimension, int numIntercept, double c, boolean pa) {
+  /**
+   * Reads "weightStorage" (DOUBLE or FLOAT) and "quantizeAverageBits" (0, 8,
+   * or 16) from the config.
+   */
+  public static AveragedPerceptronWeights build(int dimension) {
+    ExperimentProperties config = ExperimentProperties.getInstance();
+    String storage = config.getString("weightStorage", "DOUBLE");
+    AveragedPerceptronWeights w;
+    switch (storage.toUpperCase()) {
+    case "DOUBLE":
+      w = new AveragedPerceptronWeights(dimension, 0);
+      break;
+    case "FLOAT":
+      w = new FloatStorage(dimension);
+      break;
+    default:
+      throw new IllegalArgumentException("unknown weightStorage: " + storage);
+    }
+    w.quantizeAverage(config.getInt("quantizeAverageBits", 0));
+    return w;
+  }
+
+  /**
+   * @param bits is 8 or 16 to have {@link #averageView()} return a quantized
+   * snapshot of the average (rebuilt if the weights change), or 0 to turn this off.
+   */
+  public void quantizeAverage(int bits) {
+    if (bits != 0 && bits != 8 && bits != 16)
+      throw new IllegalArgumentException("bits must be 0, 8, or 16: " + bits);
+    if (DEBUG > 1 || (DEBUG > 0 && bits != quantizeAverageBits))
+      Log.info("quantizeAverageBits " + quantizeAverageBits + " => " + bits);
+    quantizeAverageBits = bits;
+    quantized = null;
+  }
+
+  protected AveragedPerceptronWeights(int dimension, int numIntercept, double c, boolean pa) {
     if (numIntercept != 0)
       throw new IllegalArgumentException("figoure out another way to do this");
     this.updateBuffer = new IntDoubleHashVector();
@@ -104,6 +158,7 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
       w.set(i, r.nextGaussian());
     u.scale(0);
     c = 0;
+    version++;
   }
 
   /**
@@ -133,11 +188,447 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
       throw new RuntimeException("not allowed on a view");
     }
   }
-  public AverageView averageView() {
+  public AveragedPerceptronWeights averageView() {
+    if (quantizeAverageBits > 0) {
+      QuantizedView q = quantized;
+      if (q == null || quantizedVersion != version) {
+        q = new QuantizedView(this, quantizeAverageBits);
+        quantized = q;
+        quantizedVersion = version;
+      }
+      return q;
+    }
 //    return new AverageView(dimension, numInterceptFeatures, c, passiveAgressive);
     return new AverageView(dimension, 0, c, passiveAgressive);
   }
 
+  /**
+   * A read-only snapshot of the average weights, stored as 8 or 16 bit ints
+   * times a single step size (max |average weight| / 127 or 32767). Only
+   * meant for decoding: small weights lose precision when a few weights are
+   * very large.
+   */
+  public static class QuantizedView extends AveragedPerceptronWeights {
+    private static final long serialVersionUID = -4190366717021961877L;
+    private byte[] q8;
+    private short[] q16;
+    private double step;
+
+    public QuantizedView(AveragedPerceptronWeights averageOf, int bits) {
+      super(averageOf.dimension(), 0, averageOf.c, averageOf.passiveAgressive);
+      int D = averageOf.dimension();
+      double max = 0;
+      for (int i = 0; i < D; i++)
+        max = Math.max(max, Math.abs(averageOf.getAveragedWeight(i)));
+      int levels = bits == 8 ? Byte.MAX_VALUE : Short.MAX_VALUE;
+      step = max / levels;
+      if (bits == 8)
+        q8 = new byte[D];
+      else if (bits == 16)
+        q16 = new short[D];
+      else
+        throw new IllegalArgumentException("bits=" + bits);
+      if (step > 0) {
+        for (int i = 0; i < D; i++) {
+          long q = Math.round(averageOf.getAveragedWeight(i) / step);
+          if (q8 != null)
+            q8[i] = (byte) q;
+          else
+            q16[i] = (short) q;
+        }
+      }
+      if (DEBUG > 0)
+        Log.info("dim=" + D + " bits=" + bits + " step=" + step + " maxAbsWeight=" + max);
+    }
+    @Override
+    public double getWeight(int i) {
+      return (q8 != null ? q8[i] : q16[i]) * step;
+    }
+    @Override
+    public double getAveragedWeight(int i) {
+      return getWeight(i);
+    }
+    @Override
+    protected void update(int i, double delta) {
+      throw new RuntimeException("not allowed on a view");
+    }
+    @Override
+    public void completedObservation() {
+      throw new RuntimeException("not allowed on a view");
+    }
+    @Override
+    public double numObervations() {
+      throw new RuntimeException("not allowed on a view");
+    }
+    @Override
+    public String summary() {
+      return "(QuantizedView dim=" + dimension() + " bits=" + (q8 != null ? 8 : 16) + " step=" + step + ")";
+    }
+  }
+
+  /**
+   * Same as {@link AveragedPerceptronWeights} but w and u are float[]s, which
+   * halves the memory (and cache footprint) of the weights. Scores and updates
+   * are still computed in double, only the stored values are rounded.
+   */
+  public static class FloatStorage extends AveragedPerceptronWeights {
+    private static final long serialVersionUID = 2519404338870003563L;
+    private float[] wf;
+    private float[] uf;
+
+    public FloatStorage(int dimension) {
+      super(dimension, 0, 0,
+          ExperimentProperties.getInstance().getBoolean("passiveAggressive", true));
+      this.wf = new float[dimension];
+      this.uf = new float[dimension];
+      long b = (dimension * 2 * 4l) / (1l << 20);
+      if (DEBUG > 0)
+        Log.info("F dim=" + dimension + " passiveAggressive=" + passiveAgressive + " size=" + b + " MB");
+    }
+
+    @Override
+    public double getWeight(int i) {
+      return wf[i];
+    }
+    @Override
+    public double getAveragedWeight(int i) {
+      if (c == 0) {
+        assert wf[i] == 0 : "are you calling completedObservation?";
+        return 0;
+      }
+      return wf[i] - (1d/c) * uf[i];
+    }
+    @Override
+    protected void update(int i, double delta) {
+      wf[i] += delta;
+      uf[i] += c * delta;
+      version++;
+    }
+    @Override
+    public void gaussianFill(Random r) {
+      for (int i = 0; i < wf.length; i++)
+        wf[i] = (float) r.nextGaussian();
+      Arrays.fill(uf, 0);
+      c = 0;
+      version++;
+    }
+    @Override
+    public void zeroWeights() {
+      Arrays.fill(wf, 0);
+      version++;
+    }
+    @Override
+    public void zeroWeightsAverage() {
+      Arrays.fill(uf, 0);
+      c = 0;
+      version++;
+    }
+    @Override
+    public void scale(double alpha, boolean includeAverage) {
+      for (int i = 0; i < wf.length; i++)
+        wf[i] *= alpha;
+      if (includeAverage)
+        for (int i = 0; i < uf.length; i++)
+          uf[i] *= alpha;
+      version++;
+    }
+    @Override
+    public void addWeights(double coef, IntDoubleDenseVector w) {
+      for (int i = 0; i < wf.length; i++)
+        wf[i] += coef * w.get(i);
+      version++;
+    }
+    @Override
+    protected double getAverageAccumulator(int i) {
+      return uf[i];
+    }
+    @Override
+    protected void addRaw(int i, double dw, double du) {
+      wf[i] += dw;
+      uf[i] += du;
+    }
+    @Override
+    public void addWeightsIntoAverage(boolean alsoZeroOutWeights) {
+      for (int i = 0; i < wf.length; i++)
+        uf[i] -= wf[i];
+      if (alsoZeroOutWeights)
+        Arrays.fill(wf, 0);
+      c += 1;
+      version++;
+    }
+    @Override
+    public void makeWeightsUnitLength() {
+      makeUnitLength(wf);
+      version++;
+    }
+    @Override
+    public void makeWeightsAverageUnitLength() {
+      makeUnitLength(uf);
+      c = 1;
+      version++;
+    }
+    private static void makeUnitLength(float[] x) {
+      double l2 = 0;
+      for (float xi : x)
+        l2 += xi * xi;
+      l2 = Math.sqrt(l2);
+      assert l2 > 1e-16 : "l2=" + l2;
+      for (int i = 0; i < x.length; i++)
+        x[i] /= l2;
+    }
+    @Override
+    public String summary() {
+      double l2 = 0;
+      for (float wi : wf)
+        l2 += wi * wi;
+      double bytes = 2 * wf.length * 4;
+      String mem = String.format(" mem=%.1fGB", bytes / (1L<<30));
+      return "(APW.Float L2=" + Math.sqrt(l2) + " dim=" + dimension() + " c=" + c + mem + ")";
+    }
+    /** Returns a copy, changes to it don't affect these weights */
+    @Override
+    public IntDoubleDenseVector getInternalWeights() {
+      return copyWeights();
+    }
+    @Override
+    public AveragedPerceptronWeights computeAverageWeights() {
+      assert c > 0;
+      FloatStorage a = new FloatStorage(dimension());
+      for (int i = 0; i < wf.length; i++) {
+        float wi = (float) getAveragedWeight(i);
+        a.wf[i] = wi;
+        a.uf[i] = wi;
+      }
+      a.c = 1;
+      return a;
+    }
+  }
+
+  /**
+   * Same as {@link AveragedPerceptronWeights} but w and u are doubles stored
+   * (as bits) in {@link AtomicLongArray}s, so that a single instance can be
+   * updated by many threads at once without locks (Hogwild). Every update is a
+   * compare-and-set on w[i] and u[i], so no update is lost, but a score
+   * computed during an update may only see part of it.
+   *
+   * The average is still exact: an update made while the observation count is
+   * t counts towards every observation after t, which is what u and c
+   * compute. The count is kept (atomically) here rather than in the
+   * (unsynchronized) c field, which this class doesn't use. Read the average
+   * (and call the whole-vector methods like {@link #scale(double, boolean)})
+   * once the workers are done.
+   *
+   * With {@link AveragedPerceptronWeights#UPDATE_BUFFER_FIX} every thread has
+   * its own update buffer, which is applied when that thread calls
+   * {@link #completedObservation()}.
+   */
+  public static class ConcurrentStorage extends AveragedPerceptronWeights {
+    private static final long serialVersionUID = -3398527046113938460L;
+    private AtomicLongArray wa;
+    private AtomicLongArray ua;
+    // The number of observations (c) as double bits, fractional after
+    // addWeightsAndAverage with coef != 1
+    private AtomicLong count;
+    private transient ThreadLocal<IntDoubleHashVector> updateBuffers;
+
+    public ConcurrentStorage(int dimension) {
+      super(dimension, 0, 0,
+          ExperimentProperties.getInstance().getBoolean("passiveAggressive", true));
+      // The bits of 0L are 0d
+      this.wa = new AtomicLongArray(dimension);
+      this.ua = new AtomicLongArray(dimension);
+      this.count = new AtomicLong();
+      long b = (dimension * 2 * 8l) / (1l << 20);
+      if (DEBUG > 0)
+        Log.info("C dim=" + dimension + " passiveAggressive=" + passiveAgressive + " size=" + b + " MB");
+    }
+
+    private static double get(AtomicLongArray a, int i) {
+      return Double.longBitsToDouble(a.get(i));
+    }
+    private static void set(AtomicLongArray a, int i, double value) {
+      a.set(i, Double.doubleToRawLongBits(value));
+    }
+    private static void add(AtomicLongArray a, int i, double delta) {
+      long prev, next;
+      do {
+        prev = a.get(i);
+        next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + delta);
+      } while (!a.compareAndSet(i, prev, next));
+    }
+
+    private double getCount() {
+      return Double.longBitsToDouble(count.get());
+    }
+    private void setCount(double c) {
+      count.set(Double.doubleToRawLongBits(c));
+    }
+    private double addCount(double delta) {
+      long prev, next;
+      do {
+        prev = count.get();
+        next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + delta);
+      } while (!count.compareAndSet(prev, next));
+      return Double.longBitsToDouble(next);
+    }
+
+    private IntDoubleHashVector updateBuffer() {
+      if (updateBuffers == null) {
+        synchronized (this) {
+          if (updateBuffers == null)
+            updateBuffers = ThreadLocal.withInitial(IntDoubleHashVector::new);
+        }
+      }
+      return updateBuffers.get();
+    }
+
+    @Override
+    public double getWeight(int i) {
+      return get(wa, i);
+    }
+    @Override
+    public double getAveragedWeight(int i) {
+      double n = getCount();
+      if (n == 0)
+        return 0;
+      return get(wa, i) - (1d/n) * get(ua, i);
+    }
+    @Override
+    protected void update(int i, double delta) {
+      // Not version++, every worker would contend on it. completedObservation does it.
+      double t = getCount();
+      add(wa, i, delta);
+      add(ua, i, t * delta);
+    }
+    @Override
+    protected double getAverageAccumulator(int i) {
+      return get(ua, i);
+    }
+    @Override
+    protected void addRaw(int i, double dw, double du) {
+      add(wa, i, dw);
+      add(ua, i, du);
+    }
+    @Override
+    protected void addObservations(double n) {
+      addCount(n);
+    }
+    @Override
+    public void bwh(int i, double dErr_dForwards) {
+      if (UPDATE_BUFFER_FIX)
+        addToUpdateBuffer(updateBuffer(), i, dErr_dForwards);
+      else
+        update(i, -dErr_dForwards);
+    }
+    @Override
+    public void completedObservation() {
+      if (UPDATE_BUFFER_FIX)
+        applyUpdateBuffer(updateBuffer());
+      addCount(1);
+      version++;
+    }
+    @Override
+    public double numObervations() {
+      return getCount();
+    }
+    @Override
+    public void gaussianFill(Random r) {
+      for (int i = 0; i < wa.length(); i++) {
+        set(wa, i, r.nextGaussian());
+        set(ua, i, 0);
+      }
+      setCount(0);
+      version++;
+    }
+    @Override
+    public void zeroWeights() {
+      for (int i = 0; i < wa.length(); i++)
+        set(wa, i, 0);
+      version++;
+    }
+    @Override
+    public void zeroWeightsAverage() {
+      for (int i = 0; i < ua.length(); i++)
+        set(ua, i, 0);
+      setCount(0);
+      version++;
+    }
+    @Override
+    public void scale(double alpha, boolean includeAverage) {
+      for (int i = 0; i < wa.length(); i++)
+        set(wa, i, alpha * get(wa, i));
+      if (includeAverage)
+        for (int i = 0; i < ua.length(); i++)
+          set(ua, i, alpha * get(ua, i));
+      version++;
+    }
+    @Override
+    public void addWeights(double coef, IntDoubleDenseVector w) {
+      for (int i = 0; i < wa.length(); i++)
+        add(wa, i, coef * w.get(i));
+      version++;
+    }
+    @Override
+    public void addWeightsIntoAverage(boolean alsoZeroOutWeights) {
+      for (int i = 0; i < wa.length(); i++) {
+        add(ua, i, -get(wa, i));
+        if (alsoZeroOutWeights)
+          set(wa, i, 0);
+      }
+      addCount(1);
+      version++;
+    }
+    @Override
+    public void makeWeightsUnitLength() {
+      makeUnitLength(wa);
+      version++;
+    }
+    @Override
+    public void makeWeightsAverageUnitLength() {
+      makeUnitLength(ua);
+      setCount(1);
+      version++;
+    }
+    private static void makeUnitLength(AtomicLongArray x) {
+      double l2 = l2(x);
+      assert l2 > 1e-16 : "l2=" + l2;
+      for (int i = 0; i < x.length(); i++)
+        set(x, i, get(x, i) / l2);
+    }
+    private static double l2(AtomicLongArray x) {
+      double l2 = 0;
+      for (int i = 0; i < x.length(); i++) {
+        double xi = get(x, i);
+        l2 += xi * xi;
+      }
+      return Math.sqrt(l2);
+    }
+    @Override
+    public String summary() {
+      double bytes = 2 * wa.length() * 8;
+      String mem = String.format(" mem=%.1fGB", bytes / (1L<<30));
+      return "(APW.Concurrent L2=" + l2(wa) + " dim=" + dimension() + " c=" + getCount() + mem + ")";
+    }
+    /** Returns a copy, changes to it don't affect these weights */
+    @Override
+    public IntDoubleDenseVector getInternalWeights() {
+      return copyWeights();
+    }
+    /** The average is returned as (single threaded) {@link AveragedPerceptronWeights} */
+    @Override
+    public AveragedPerceptronWeights computeAverageWeights() {
+      assert getCount() > 0;
+      AveragedPerceptronWeights a = new AveragedPerceptronWeights(dimension(), 0);
+      for (int i = 0; i < wa.length(); i++) {
+        double wi = getAveragedWeight(i);
+        a.w.set(i, wi);
+        a.u.set(i, wi);
+      }
+      a.c = 1;
+      return a;
+    }
+  }
+
   public Adjoints intercept(int i) {
 //    assert i >= 0;
 //    if (i >= numInterceptFeatures) {
@@ -150,30 +641,80 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
 
   public void zeroWeights() {
     w = new IntDoubleDenseVector(dimension);
+    version++;
   }
   public void zeroWeightsAverage() {
     u = new IntDoubleDenseVector(dimension);
     c = 0;
+    version++;
   }
 
   public void scale(double alpha, boolean includeAverage) {
     w.scale(alpha);
     if (includeAverage)
       u.scale(alpha);
+    version++;
   }
 
   /** Performs this += coef * w, does not affect c or u */
   public void addWeights(double coef, IntDoubleDenseVector w) {
     for (int i = 0; i < dimension; i++)
       this.w.add(i, coef * w.get(i));
+    version++;
   }
 
+  /** Performs this += coef * other, does not affect c or u. other may use any storage. */
+  public void addWeights(double coef, AveragedPerceptronWeights other) {
+    checkSameDimension(other);
+    for (int i = 0; i < dimension; i++)
+      addRaw(i, coef * other.getWeight(i), 0);
+    version++;
+  }
+
+  /**
+   * Performs w += coef * other.w, u += coef * other.u, and c += coef * other.c,
+   * e.g. to combine weights trained on separate shards. other may use any storage.
+   */
   public void addWeightsAndAverage(double coef, AveragedPerceptronWeights other) {
+    checkSameDimension(other);
     for (int i = 0; i < dimension; i++)
-      this.w.add(i, coef * other.w.get(i));
+      addRaw(i, coef * other.getWeight(i), coef * other.getAverageAccumulator(i));
+    addObservations(coef * other.numObervations());
+    version++;
+  }
+
+  private void checkSameDimension(AveragedPerceptronWeights other) {
+    if (other.dimension() != dimension)
+      throw new IllegalArgumentException("dimension=" + dimension + " other.dimension=" + other.dimension());
+  }
+
+  /*
+   * Storage abstraction: subclasses which don't use w and u override these
+   * (along with getWeight, getAveragedWeight, and update).
+   */
+
+  /** u[i], where the average is w[i] - u[i]/c */
+  protected double getAverageAccumulator(int i) {
+    return u.get(i);
+  }
+
+  /** w[i] += dw, u[i] += du, without touching c */
+  protected void addRaw(int i, double dw, double du) {
+    w.add(i, dw);
+    u.add(i, du);
+  }
+
+  /** c += n */
+  protected void addObservations(double n) {
+    c += n;
+  }
+
+  /** A copy of w (read through {@link #getWeight(int)}) */
+  protected IntDoubleDenseVector copyWeights() {
+    IntDoubleDenseVector v = new IntDoubleDenseVector(dimension);
     for (int i = 0; i < dimension; i++)
-      this.u.add(i, coef * other.u.get(i));
-    c += coef * other.c;
+      v.set(i, getWeight(i));
+    return v;
   }
 
   // I don't need to do this if I average u and w from the train shards
@@ -186,14 +727,17 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
     if (alsoZeroOutWeights)
       w.scale(0);
     c += 1;
+    version++;
   }
 
   public void makeWeightsUnitLength() {
     makeUnitLength(w);
+    version++;
   }
   public void makeWeightsAverageUnitLength() {
     makeUnitLength(u);
     c = 1;
+    version++;
   }
   private static void makeUnitLength(IntDoubleVector u) {
     double l2 = u.getL2Norm();
@@ -234,6 +778,43 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
     return this.new Adj(features, reindex);
   }
 
+  /**
+   * Scores n feature vectors at once, the i-th being
+   * features[offsets[i], offsets[i+1]). All of the dot products are computed in
+   * one pass over features, and the returned {@link Adjoints} share that array.
+   * Their forwards values are computed here and cached, so read them before
+   * these weights are updated (like {@link Adjoints#cacheIfNeeded(Adjoints)}).
+   *
+   * @param reindex says whether features should be taken mod dimension (done in place).
+   */
+  public Adjoints[] scoreBatch(int[] features, int[] offsets, int n, boolean reindex) {
+    assert offsets.length > n && offsets[n] <= features.length;
+    Adjoints[] out = new Adjoints[n];
+    for (int i = 0; i < n; i++) {
+      int start = offsets[i], end = offsets[i + 1];
+      double dot = 0;
+      for (int j = start; j < end; j++) {
+        if (reindex)
+          features[j] = reindexFeature(features[j]);
+        dot += getWeight(features[j]);
+      }
+      out[i] = this.new SliceAdj(features, start, end, dot);
+    }
+    COUNTER_FORWARDS += n;
+    return out;
+  }
+
+  private int reindexFeature(long rawIndex) {
+    if (rawIndex < 0)
+      rawIndex = -rawIndex;
+    assert rawIndex >= 0;
+    long d = dimension;// - numInterceptFeatures;
+//    long x = ((long) numInterceptFeatures) + rawIndex % d;
+    long x = 0L + rawIndex % d;
+    assert x <= ((long) dimension) && x >= 0;
+    return (int) x;
+  }
+
   public double getWeight(int i) {
     assert i >= 0 && i < dimension : "i=" + i + " dimension=" + dimension;
     return w.get(i);
@@ -247,6 +828,11 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
     return w.get(i) - (1d/c) * u.get(i);
   }
 
+  /**
+   * Returns w itself, or a copy for storage which doesn't use an
+   * {@link IntDoubleDenseVector}. Prefer {@link #addWeights(double, AveragedPerceptronWeights)}
+   * to reading weights through this.
+   */
   public IntDoubleDenseVector getInternalWeights() {
     return w;
   }
@@ -271,37 +857,60 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
 
   public void completedObservation() {
     // Apply update
-    if (UPDATE_BUFFER_FIX) {
+    if (UPDATE_BUFFER_FIX)
+      applyUpdateBuffer(updateBuffer);
+    c += 1;
+    version++;
+  }
 
-      final double scale;
-      if (passiveAgressive) {
-        // updateBuffer contains (featureIndex, count(appearsInPred) - count(appearsInOracle))
-        // The loss is the difference in score plus a margin (assuming oracle!=pred)
-        MutableDouble deltaScore = new MutableDouble(0);
-        MutableDouble deltaSqL2 = new MutableDouble(0);
-        updateBuffer.forEach(ide -> {
-          double w = getWeight(ide.index());
-          double sign = ide.get();
-          deltaScore.v += sign * w;
-          deltaSqL2.v += sign * sign;
-        });
-        double C = 0.01;
-        double loss = deltaScore.v + 1;
-        scale = Math.min(C,  loss / deltaSqL2.v);
-        assert scale > 0 : "dont call this if no violation?";
-      } else {
-        scale = 1;
-      }
-      updateBuffer.forEach(ide -> {
-        int i = ide.index();
-        double dErr_dForwards = ide.get();
-        dErr_dForwards *= scale;
-        w.add(i, -dErr_dForwards);
-        u.add(i, c * -dErr_dForwards);
+  /**
+   * Applies (and clears) the updates accumulated in buf, see
+   * {@link #UPDATE_BUFFER_FIX}.
+   */
+  protected void applyUpdateBuffer(IntDoubleHashVector buf) {
+    final double scale;
+    if (passiveAgressive) {
+      // updateBuffer contains (featureIndex, count(appearsInPred) - count(appearsInOracle))
+      // The loss is the difference in score plus a margin (assuming oracle!=pred)
+      MutableDouble deltaScore = new MutableDouble(0);
+      MutableDouble deltaSqL2 = new MutableDouble(0);
+      buf.forEach(ide -> {
+        double w = getWeight(ide.index());
+        double sign = ide.get();
+        deltaScore.v += sign * w;
+        deltaSqL2.v += sign * sign;
       });
-      updateBuffer.clear();
+      double C = 0.01;
+      double loss = deltaScore.v + 1;
+      scale = Math.min(C,  loss / deltaSqL2.v);
+      assert scale > 0 : "dont call this if no violation?";
+    } else {
+      scale = 1;
     }
-    c += 1;
+    buf.forEach(ide -> {
+      int i = ide.index();
+      double dErr_dForwards = ide.get();
+      dErr_dForwards *= scale;
+      update(i, -dErr_dForwards);
+    });
+    buf.clear();
+  }
+
+  protected static void addToUpdateBuffer(IntDoubleHashVector buf, int i, double dErr_dForwards) {
+    double d0 = buf.getWithDefault(i, 0);
+    double d1 = d0 + dErr_dForwards;
+    if (d1 == 0) {
+      buf.remove(i);
+    } else {
+      buf.put(i, d1);
+    }
+  }
+
+  /** w[i] += delta, and the corresponding change to u for the average */
+  protected void update(int i, double delta) {
+    w.add(i, delta);
+    u.add(i, c * delta);
+    version++;
   }
 
   // bwh = "backwards helper"
@@ -317,16 +926,9 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
 //    }
 
     if (UPDATE_BUFFER_FIX) {
-      double d0 = updateBuffer.getWithDefault(i, 0);
-      double d1 = d0 + dErr_dForwards;
-      if (d1 == 0) {
-        updateBuffer.remove(i);
-      } else {
-        updateBuffer.put(i, d1);
-      }
+      addToUpdateBuffer(updateBuffer, i, dErr_dForwards);
     } else {
-      w.add(i, -dErr_dForwards);
-      u.add(i, c * -dErr_dForwards);
+      update(i, -dErr_dForwards);
     }
   }
 
@@ -466,14 +1068,7 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
     }
 
     private int reindex(long rawIndex) {
-      if (rawIndex < 0)
-        rawIndex = -rawIndex;
-      assert rawIndex >= 0;
-      long d = dimension;// - numInterceptFeatures;
-//      long x = ((long) numInterceptFeatures) + rawIndex % d;
-      long x = 0L + rawIndex % d;
-      assert x <= ((long) dimension) && x >= 0;
-      return (int) x;
+      return reindexFeature(rawIndex);
     }
 
     @Override
@@ -537,6 +1132,51 @@ public class AveragedPerceptronWeights implements Serializable, ProductIndexWeig
     }
   }
 
+  /**
+   * Features are features[start, end) (already reindexed), forwards was
+   * computed by {@link AveragedPerceptronWeights#scoreBatch(int[], int[], int, boolean)}.
+   */
+  public class SliceAdj implements Adjoints.ICaching {
+    private int[] features;
+    private int start, end;
+    private double dot;
+
+    public SliceAdj(int[] features, int start, int end, double dot) {
+      this.features = features;
+      this.start = start;
+      this.end = end;
+      this.dot = dot;
+    }
+
+    @Override
+    public String toString() {
+      int[] f = Arrays.copyOfRange(features, start, end);
+      return "(AvgPctW f=" + StringUtils.trunc(hexToString(f, 2), 40) + ")";
+    }
+
+    @Override
+    public double forwards() {
+      return dot;
+    }
+
+    @Override
+    public void backwards(double dErr_dForwards) {
+      if (passiveAgressive) {
+        if (UPDATE_BUFFER_FIX) {
+          // No-op, see Adj.backwards
+          assert dErr_dForwards == -1 || dErr_dForwards == +1
+              : "for passive-agressive you don't need a learning rate (at least"
+              + " via backwards). dErr_dForwards needs to be +/-1 so that updates cancel properly.";
+        } else {
+          dErr_dForwards /= Math.sqrt(end - start);
+        }
+      }
+      for (int i = start; i < end; i++)
+        bwh(features[i], dErr_dForwards);
+      COUNTER_BACKWARDS++;
+    }
+  }
+
   public static void main(String[] args) {
     Random rand = new Random(9001);
     for (int D : Arrays.asList(1<<10, 1<<14, 1<<18, 1<<22, 1<<26)) {  // dimension
@@ -20,6 +20,7 @@ import edu.jhu.hlt.fnparse.datatypes.Frame;
 import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
 import edu.jhu.hlt.fnparse.datatypes.Sentence;
 import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures;
+import edu.jhu.hlt.fnparse.features.precompute.ColumnarFeatureStore;
 import edu.jhu.hlt.fnparse.pruning.DeterministicRolePruning;
 import edu.jhu.hlt.fnparse.rl.full.Beam;
 import edu.jhu.hlt.fnparse.rl.full.FModel;
@@ -155,11 +156,11 @@ public class FNParseTransitionScheme extends AbstractTransitionScheme<FNParse, I
     assert (wSquash == null) == (w.wSquash == null);
     assert (wGlobal == null) == (w.wGlobal == null);
     if (wHatch != null)
-      wHatch.addWeights(coef, w.wHatch.getInternalWeights());
+      wHatch.addWeights(coef, w.wHatch);
     if (wSquash != null)
-      wSquash.addWeights(coef, w.wSquash.getInternalWeights());
+      wSquash.addWeights(coef, w.wSquash);
     if (wGlobal != null)
-      wGlobal.addWeights(coef, w.wGlobal.getInternalWeights());
+      wGlobal.addWeights(coef, w.wGlobal);
   }
 
   public void addWeightsAndAverage(double coef, FNParseTransitionScheme w) {
@@ -232,6 +233,17 @@ public class FNParseTransitionScheme extends AbstractTransitionScheme<FNParse, I
   }
 
   public FNParseTransitionScheme(CFLike cf, Primes primes) {
+    this(cf, primes, false, null);
+  }
+
+  /**
+   * @param concurrentWeights says whether to use
+   * {@link AveragedPerceptronWeights.ConcurrentStorage}, which many threads
+   * can update at once.
+   * @param shareWeightsWith may be null, otherwise no weights are allocated
+   * and this instance uses (and updates) the weights of the given one.
+   */
+  public FNParseTransitionScheme(CFLike cf, Primes primes, boolean concurrentWeights, FNParseTransitionScheme shareWeightsWith) {
     Log.info("cfLike=" + cf);
     this.cachedFeatures = cf;
     this.alph = new Alphabet<>();
@@ -262,14 +274,20 @@ public class FNParseTransitionScheme extends AbstractTransitionScheme<FNParse, I
 
     int numIntercept = addConstantToSquashParams ? 1 : 0;
     int numWV = 1;
-    wHatch = new AveragedPerceptronWeights(dimension, numIntercept);
-    if (!onlyUseHatchWeights) {
-      numWV++;
-      wSquash = new AveragedPerceptronWeights(dimension, 0);
-    }
-    if (useGlobalFeats) {
-      numWV++;
-      wGlobal = new AveragedPerceptronWeights(dimension, 0);
+    if (shareWeightsWith != null) {
+      shareWeights(shareWeightsWith);
+      if (wSquash != null) numWV++;
+      if (wGlobal != null) numWV++;
+    } else {
+      wHatch = newWeights(dimension, numIntercept, concurrentWeights);
+      if (!onlyUseHatchWeights) {
+        numWV++;
+        wSquash = newWeights(dimension, 0, concurrentWeights);
+      }
+      if (useGlobalFeats) {
+        numWV++;
+        wGlobal = newWeights(dimension, 0, concurrentWeights);
+      }
     }
 
     if (MAIN_LOGGING) {
@@ -300,6 +318,22 @@ public class FNParseTransitionScheme extends AbstractTransitionScheme<FNParse, I
     }
   }
 
+  private static AveragedPerceptronWeights newWeights(int dimension, int numIntercept, boolean concurrent) {
+    if (concurrent) {
+      if (numIntercept != 0)
+        throw new IllegalArgumentException("numIntercept=" + numIntercept);
+      return new AveragedPerceptronWeights.ConcurrentStorage(dimension);
+    }
+    return new AveragedPerceptronWeights(dimension, numIntercept);
+  }
+
+  /** Use (and update) the same weights as other */
+  public void shareWeights(FNParseTransitionScheme other) {
+    wHatch = other.wHatch;
+    wSquash = other.wSquash;
+    wGlobal = other.wGlobal;
+  }
+
   public long getNumBytesUsed() {
     int numWV = 0;
     if (wHatch != null) numWV++;
@@ -1014,11 +1048,13 @@ public class FNParseTransitionScheme extends AbstractTransitionScheme<FNParse, I
 
       // These are exact feature indices (from disk, who precompute pipeline)
       COUNTER_COMPUTE_FEATS++;
-      List<ProductIndex> feats = cachedFeatures.getFeaturesNoModulo(sent, t, s);
+      ColumnarFeatureStore.FeatureView feats = new ColumnarFeatureStore.FeatureView();
+      cachedFeatures.getFeaturesNoModulo(sent, t, s, feats);
+      int nFeats = feats.size();
 
       if (featProdBase) {
-        for (ProductIndex pi : feats) {
-          long i = pi.getProdFeature();
+        for (int j = 0; j < nFeats; j++) {
+          long i = feats.get(j);
           addTo.add(PI_STAT_S.destructiveProd(i));
         }
       }
@@ -1027,8 +1063,8 @@ public class FNParseTransitionScheme extends AbstractTransitionScheme<FNParse, I
         int f = frame.getId();
         int F = fi.getNumFrames();
         ProductIndex p = PI_STAT_S_F.prod(f, F);
-        for (ProductIndex pi : feats) {
-          long i = pi.getProdFeature();
+        for (int j = 0; j < nFeats; j++) {
+          long i = feats.get(j);
           addTo.add(p.destructiveProd(i));
         }
       }
@@ -1038,8 +1074,8 @@ public class FNParseTransitionScheme extends AbstractTransitionScheme<FNParse, I
         int fk = frp.index(frame, eggPrefix.k);
         int FK = frp.size();
         ProductIndex p = PI_STAT_S_FK.prod(fk, FK);
-        for (ProductIndex pi : feats) {
-          long i = pi.getProdFeature();
+        for (int j = 0; j < nFeats; j++) {
+          long i = feats.get(j);
           addTo.add(p.destructiveProd(i));
         }
       }
@@ -1051,8 +1087,8 @@ public class FNParseTransitionScheme extends AbstractTransitionScheme<FNParse, I
         int k = rp.getRole(frame, eggPrefix.k);
         int K = rp.size();
         ProductIndex p = PI_STAT_S_K.prod(k, K);
-        for (ProductIndex pi : feats) {
-          long i = pi.getProdFeature();
+        for (int j = 0; j < nFeats; j++) {
+          long i = feats.get(j);
           addTo.add(p.destructiveProd(i));
         }
       }
@@ -1,7 +1,6 @@
 package edu.jhu.hlt.fnparse.rl.full2;
 
-import java.math.BigInteger;
-
+import edu.jhu.hlt.fnparse.rl.full.Sig;
 import edu.jhu.hlt.fnparse.rl.full.StateLike;
 import edu.jhu.hlt.fnparse.rl.full.StepScores;
 
@@ -46,8 +45,10 @@ public class State2<T> implements StateLike {
   }
 
   @Override
-  public BigInteger getSignature() {
-    return root.getSig();
+  public Sig getSignature() {
+    if (LLSSP.DISABLE_PRIMES)
+      return null;
+    return Sig.exact(root.getSig());
   }
 
   @Override
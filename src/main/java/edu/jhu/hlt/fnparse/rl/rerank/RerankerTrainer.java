@@ -48,6 +48,7 @@ import edu.jhu.hlt.fnparse.evaluation.BasicEvaluation.EvalFunc;
 import edu.jhu.hlt.fnparse.evaluation.BasicEvaluation.StdEvalFunc;
 import edu.jhu.hlt.fnparse.evaluation.SemaforEval;
 import edu.jhu.hlt.fnparse.evaluation.SentenceEval;
+import edu.jhu.hlt.fnparse.evaluation.StreamingEvaluation;
 import edu.jhu.hlt.fnparse.experiment.grid.ResultReporter;
 import edu.jhu.hlt.fnparse.features.precompute.BiAlph;
 import edu.jhu.hlt.fnparse.features.precompute.BiAlph.LineMode;
@@ -83,7 +84,6 @@ import edu.jhu.hlt.tutils.FPR;
 import edu.jhu.hlt.tutils.FileUtil;
 import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.tutils.MultiTimer;
-import edu.jhu.hlt.tutils.ShardUtils;
 import edu.jhu.hlt.tutils.Span;
 import edu.jhu.hlt.tutils.TimeMarker;
 import edu.jhu.hlt.tutils.Timer;
@@ -788,6 +788,22 @@ public class RerankerTrainer {
           w.setDropoutMode(DropoutMode.TEST);
         }
 
+        // The loss only depends on predictions, so there is no need to compute
+        // violations: fold predictions in as they finish.
+        if (showAllLosses && lossFunc instanceof StdEvalFunc) {
+          StreamingEvaluation se = StreamingEvaluation.fromConfig(
+              ExperimentProperties.getInstance(), conf.threads);
+          StreamingEvaluation.Result r = se.evaluate(devUse.size(), devUse::label, model::predict, "[devLossFunc]");
+          double loss = r.getScore((StdEvalFunc) lossFunc);
+          Log.info("[devLossFunc] loss=" + loss + " n=" + r.numEvaluated() + " nDev=" + devUse.size()
+              + " for conf=" + conf.name + " result:" + r);
+          if (resetDropoutModeToTrain) {
+            Log.info("[devLossFunc] about to toggle dropout back to how it was");
+            w.setDropoutMode(DropoutMode.TRAIN);
+          }
+          return loss;
+        }
+
         ExecutorService es = conf.threads > 1
           ? Executors.newWorkStealingPool(conf.threads)
           : Executors.newSingleThreadExecutor();
@@ -1365,18 +1381,15 @@ public class RerankerTrainer {
 
       // Start loading the data in the background
       mt.start("load");
-      int numDataLoadThreads = config.getInt("cachedFeatures.numDataLoadThreads", 1);
-      Log.info("[main] loading data in the background with "
-          + numDataLoadThreads + " extra threads");
-      List<File> featureFiles = FileUtil.find(
-          config.getExistingDir("cachedFeatures.featuresParent"),
-          config.getString("cachedFeatures.featuresGlob", "glob:**/*"));
-      assert numDataLoadThreads > 0;
-      boolean readForever = false;  // only useful with reservoir sampling, not doing that
       boolean skipEntriesNotInSentId2ParseMap = false;
-      for (int i = 0; i < numDataLoadThreads; i++) {
-        List<File> rel = ShardUtils.shard(featureFiles, f -> f.getPath().hashCode(), i, numDataLoadThreads);
-        Thread t = new Thread(trainer.cachedFeatures.new Inserter(rel, readForever, skipEntriesNotInSentId2ParseMap));
+      String columnar = config.getString("cachedFeatures.columnar", "");
+      if (!columnar.isEmpty()) {
+        // Memory mapped, built by ColumnarFeatureStore.main
+        Log.info("[main] reading features from columnar store: " + columnar);
+        trainer.cachedFeatures.loadColumnar(new File(columnar), skipEntriesNotInSentId2ParseMap);
+      } else {
+        Log.info("[main] loading data in the background");
+        Thread t = new Thread(trainer.cachedFeatures.parallelInserter(config, skipEntriesNotInSentId2ParseMap));
         t.start();
       }
       mt.stop("load");
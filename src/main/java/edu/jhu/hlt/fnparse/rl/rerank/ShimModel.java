@@ -490,6 +490,11 @@ public class ShimModel implements Serializable {
       es.shutdown();
       es.awaitTermination(999, TimeUnit.DAYS);
 
+      // HOGWILD evaluates a snapshot of the shared weights, take it now that
+      // the workers are done
+      if (m.getParallelTraining() == FModel.ParallelTraining.HOGWILD)
+        m.combineWeightShards(false);
+
       // Measure performance
       // TEST
       int nTestLim = epoch >= noApproxAfter ? test.size() : Math.min(test.size(), numInstApprox);
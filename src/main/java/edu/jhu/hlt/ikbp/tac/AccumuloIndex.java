@@ -1442,7 +1442,12 @@ public class AccumuloIndex {
       FetchCommunicationService.Client failOver = new FetchCommunicationService.Client(protocol);
       boolean saveFetchedComms = true;
       boolean compressionForSavedComms = true;
-      DiskBackedFetchWrapper db = new DiskBackedFetchWrapper(failOver, transport, cacheDir, saveFetchedComms, compressionForSavedComms);
+      // The in-memory and packed segment tiers are off unless asked for
+      ExperimentProperties config = ExperimentProperties.getInstance();
+      long maxMemBytes = config.getInt("fetch.cache.memMB", 0) * (1L << 20);
+      boolean packedSegments = config.getBoolean("fetch.cache.packedSegments", false);
+      DiskBackedFetchWrapper db = new DiskBackedFetchWrapper(failOver, transport, cacheDir,
+          saveFetchedComms, compressionForSavedComms, maxMemBytes, packedSegments);
 //      db.debug = true;
 //      db.disableCache = true;
       return db;
@@ -13,6 +13,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.tutils.StringUtils;
@@ -127,6 +128,105 @@ public class Agenda {
   private RescoreMode rescoreMode = RescoreMode.NONE;
   private Labels labels;  // needed for rescoreMode != NONE
 
+  // Pending (deferred) re-scorings, keyed by owner (e.g. a GlobalFactor)
+  private List<Pair<Object, LazyRescorer>> lazyRescorers = new ArrayList<>();
+
+  /**
+   * Lets a {@link edu.jhu.hlt.uberts.factor.GlobalFactor} defer re-scoring
+   * agenda edges until they are about to be popped (or otherwise looked at),
+   * rather than doing a remove+add for every edge every time it is affected.
+   * One instance per (owner, agenda), so pending work is dropped by
+   * {@link Agenda#clear()}, and {@link Agenda#duplicate()} settles everything
+   * before copying.
+   */
+  public interface LazyRescorer {
+    /**
+     * Return the new score for e (and forget any pending work for it), or null
+     * if there is nothing pending for e.
+     */
+    public Adjoints settle(HypEdge e, Adjoints score);
+
+    /** e was removed from the agenda without being settled, forget any pending work for it */
+    public void forget(HypEdge e);
+
+    /** Forget all pending work */
+    public void clear();
+  }
+
+  /**
+   * Returns the {@link LazyRescorer} registered by owner for this agenda,
+   * creating (and registering) one if there isn't one already.
+   */
+  public LazyRescorer getLazyRescorer(Object owner, Supplier<LazyRescorer> ifAbsent) {
+    for (Pair<Object, LazyRescorer> x : lazyRescorers)
+      if (x.get1() == owner)
+        return x.get2();
+    LazyRescorer r = ifAbsent.get();
+    lazyRescorers.add(new Pair<>(owner, r));
+    return r;
+  }
+
+  /** Edge at the given heap position, 0 is the top */
+  protected AgendaItem itemAt(int i) {
+    return heap[i];
+  }
+
+  private Adjoints settle(AgendaItem ai) {
+    Adjoints s = null;
+    for (Pair<Object, LazyRescorer> x : lazyRescorers) {
+      Adjoints s2 = x.get2().settle(ai.edge, s == null ? ai.score : s);
+      if (s2 != null)
+        s = s2;
+    }
+    return s;
+  }
+
+  /**
+   * Applies pending re-scorings to the top of the agenda until the top item has
+   * none. Called by peek/pop, so you shouldn't need to call this.
+   */
+  public void settleTop() {
+    if (lazyRescorers.isEmpty())
+      return;
+    while (size() > 0) {
+      AgendaItem ai = itemAt(0);
+      Adjoints s = settle(ai);
+      if (s == null)
+        return;
+      HashableHypEdge e = ai.getHashableEdge();
+      remove(e);
+      add(e, s);
+    }
+  }
+
+  /** Applies every pending re-scoring */
+  public void settleAll() {
+    if (lazyRescorers.isEmpty())
+      return;
+    List<Pair<HashableHypEdge, Adjoints>> changed = new ArrayList<>();
+    int n = size();
+    for (int i = 0; i < n; i++) {
+      AgendaItem ai = itemAt(i);
+      Adjoints s = settle(ai);
+      if (s != null)
+        changed.add(new Pair<>(ai.getHashableEdge(), s));
+    }
+    for (Pair<HashableHypEdge, Adjoints> x : changed) {
+      remove(x.get1());
+      add(x.get1(), x.get2());
+    }
+  }
+
+  protected void forgetLazyRescores(HypEdge e) {
+    for (Pair<Object, LazyRescorer> x : lazyRescorers)
+      x.get2().forget(e);
+  }
+
+  protected void clearLazyRescorers() {
+    for (Pair<Object, LazyRescorer> x : lazyRescorers)
+      x.get2().clear();
+  }
+
 
   /*
    * DO NOT USE THIS METHOD.
@@ -154,6 +254,7 @@ public class Agenda {
    * Rescores all edges on the agenda according to the given mode.
    */
   public void oneTimeRescore(RescoreMode m, Labels gold) {
+    settleAll();
 //    this.rescoreMode = m;
     this.labels = gold;
     // Rescore
@@ -172,6 +273,21 @@ public class Agenda {
     assert parentInvariantSatisfied();
   }
 
+  /**
+   * @param impl is either "hash" for {@link Agenda} or "indexed" for
+   * {@link IndexedAgenda}.
+   */
+  public static Agenda build(String impl, BiFunction<HypEdge, Adjoints, Double> priority, Comparator<AgendaItem> comparator) {
+    switch (impl.toLowerCase()) {
+    case "hash":
+      return new Agenda(priority, comparator);
+    case "indexed":
+      return new IndexedAgenda(priority, comparator);
+    default:
+      throw new IllegalArgumentException("unknown agenda impl: " + impl);
+    }
+  }
+
   public Agenda(BiFunction<HypEdge, Adjoints, Double> priority, Comparator<AgendaItem> comparator) {
     this.top = 0;
     int initSize = 16;
@@ -185,6 +301,14 @@ public class Agenda {
     assert (priority == null) != (comparator == null) : "priority=" + priority + " comparator=" + comparator;
   }
 
+  public BiFunction<HypEdge, Adjoints, Double> getPriority() {
+    return priority;
+  }
+
+  public Comparator<AgendaItem> getComparator() {
+    return comparator;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -198,6 +322,7 @@ public class Agenda {
   }
 
   public Agenda duplicate() {
+    settleAll();
     Agenda c = new Agenda(priority, comparator);
     c.heap = Arrays.copyOf(heap, heap.length);
     c.top = top;
@@ -217,9 +342,11 @@ public class Agenda {
     this.e2i.clear();
     this.fineView.clear();
     this.uniq.clear();
+    clearLazyRescorers();
   }
 
   public List<AgendaItem> getContentsInNoParticularOrder() {
+    settleAll();
     List<AgendaItem> l = new ArrayList<>();
     for (int i = 0; i < top; i++)
       if (heap[i] != null)
@@ -346,6 +473,7 @@ public class Agenda {
 //    }
 
     int i = e2i.get(e);
+    forgetLazyRescores(e);
     return removeAt(i);
 
 //    if (DEBUG) {
@@ -395,6 +523,37 @@ public class Agenda {
   }
 
   public void add(HashableHypEdge edge, Adjoints score) {
+    siftUp(append(edge, score));
+  }
+
+  /**
+   * Adds all of the edges (which must not already be on the agenda) and then
+   * restores the heap property once, which is O(n) rather than O(k log n) if
+   * many edges are added.
+   */
+  public void addAll(List<HashableHypEdge> edges, List<Adjoints> scores) {
+    assert edges.size() == scores.size();
+    int first = size();
+    int k = edges.size();
+    for (int i = 0; i < k; i++)
+      append(edges.get(i), scores.get(i));
+    int n = size();
+    if (k > 1 && (long) k * (32 - Integer.numberOfLeadingZeros(n)) > n) {
+      // Heapify, siftDown is a no-op on leaves
+      for (int i = n / 2; i >= 0; i--)
+        siftDown(i);
+    } else {
+      for (int i = first; i < n; i++)
+        siftUp(i);
+    }
+    assert parentInvariantSatisfied();
+  }
+
+  /**
+   * Puts the edge at the end of the heap without restoring the heap property.
+   * @return the edge's heap position.
+   */
+  protected int append(HashableHypEdge edge, Adjoints score) {
     if (edge == null)
       throw new IllegalArgumentException();
     if (score == null)
@@ -441,7 +600,7 @@ public class Agenda {
     heap[t] = new AgendaItem(edge, score, p);
     e2i.put(e, t);
     n2eiSet(t, e, true);
-    siftUp(t);
+    return t;
   }
 
   public int size() {
@@ -458,20 +617,24 @@ public class Agenda {
   }
 
   public Adjoints peekScore() {
+    settleTop();
     assert top > 0;
     return heap[0].score;
   }
 
   public HypEdge peek() {
+    settleTop();
     assert top > 0;
     return heap[0].edge;
   }
 
   public Pair<HypEdge, Adjoints> peekBoth() {
+    settleTop();
     return new Pair<>(heap[0].edge, heap[0].score);
   }
 
   public HypEdge pop() {
+    settleTop();
     assert top > 0;
     AgendaItem ai = heap[0];
     moveAndFree(top-1, 0);
@@ -482,6 +645,7 @@ public class Agenda {
   }
 
   public Pair<HypEdge, Adjoints> popBoth() {
+    settleTop();
     assert top > 0;
     AgendaItem ai = heap[0];
     moveAndFree(top-1, 0);
@@ -492,6 +656,7 @@ public class Agenda {
   }
 
   public AgendaItem popBoth2() {
+    settleTop();
     assert top > 0;
     AgendaItem ai = heap[0];
     moveAndFree(top-1, 0);
@@ -0,0 +1,93 @@
+package edu.jhu.hlt.uberts;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+import edu.jhu.hlt.uberts.factor.LocalFactor;
+import edu.jhu.hlt.uberts.transition.TransGen;
+
+/**
+ * Edges produced by {@link TransGen}s which haven't been put on the agenda
+ * yet. Edges may be added with a score or with the {@link LocalFactor} which
+ * should score them, in which case all of the edges for a factor are scored
+ * with one call to {@link LocalFactor#score(List, Uberts, Adjoints[])}.
+ *
+ * See {@link Uberts#addEdgesToAgenda(AgendaBatch)}.
+ *
+ * @author travis
+ */
+public class AgendaBatch {
+
+  // Co-indexed, in the order they were added
+  private List<HypEdge> edges = new ArrayList<>();
+  private List<LocalFactor> factors = new ArrayList<>();  // null if already scored
+  private List<Adjoints> scores = new ArrayList<>();      // null if not yet scored
+
+  /** Add an edge which has already been scored */
+  public void add(HypEdge e, Adjoints score) {
+    if (score == null)
+      throw new IllegalArgumentException();
+    edges.add(e);
+    factors.add(null);
+    scores.add(score);
+  }
+
+  /** Add an edge which should be scored by f, a null score means prune this edge */
+  public void add(HypEdge e, LocalFactor f) {
+    if (f == null)
+      throw new IllegalArgumentException();
+    edges.add(e);
+    factors.add(f);
+    scores.add(null);
+  }
+
+  public int size() {
+    return edges.size();
+  }
+
+  public boolean isEmpty() {
+    return edges.isEmpty();
+  }
+
+  public HypEdge getEdge(int i) {
+    return edges.get(i);
+  }
+
+  public Adjoints getScore(int i) {
+    return scores.get(i);
+  }
+
+  public void clear() {
+    edges.clear();
+    factors.clear();
+    scores.clear();
+  }
+
+  /**
+   * Scores every edge which was added with a factor and for which keep[i] is
+   * true, one batch per factor. Afterwards {@link #getScore(int)} is either
+   * the score or null if the factor pruned it.
+   */
+  public void score(Uberts u, boolean[] keep) {
+    Map<LocalFactor, List<Integer>> byFactor = new IdentityHashMap<>();
+    int n = edges.size();
+    for (int i = 0; i < n; i++) {
+      LocalFactor f = factors.get(i);
+      if (f != null && keep[i])
+        byFactor.computeIfAbsent(f, k -> new ArrayList<>()).add(i);
+    }
+    for (Map.Entry<LocalFactor, List<Integer>> fi : byFactor.entrySet()) {
+      List<Integer> idx = fi.getValue();
+      List<HypEdge> ys = new ArrayList<>(idx.size());
+      for (int i : idx)
+        ys.add(edges.get(i));
+      Adjoints[] out = new Adjoints[ys.size()];
+      fi.getKey().score(ys, u, out);
+      for (int j = 0; j < out.length; j++)
+        scores.set(idx.get(j), out[j]);
+    }
+  }
+}
@@ -0,0 +1,749 @@
+package edu.jhu.hlt.uberts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+import edu.jhu.hlt.uberts.HypEdge.HashableHypEdge;
+import edu.jhu.prim.tuple.Pair;
+
+/**
+ * Same contract as {@link Agenda}, but every index is stored in primitive
+ * arrays rather than boxed hash maps:
+ * - edges live in dense int "slots" which are recycled through a free list,
+ * - the heap is a d-ary heap of slots (with slot->heap position back-pointers
+ *   so that remove is O(log n)) and priorities live in a parallel double[],
+ * - contains/dedup is an open-addressing table of slots keyed on
+ *   {@link HashableHypEdge#hc},
+ * - nodes are interned to dense ids, and (slot, node) incidences are kept in
+ *   intrusive linked lists which support adjacency and
+ *   {@link #match(int, Relation, HypNode)} (the job of the fineView in
+ *   {@link Agenda}).
+ *
+ * Once the arrays have grown to the largest agenda seen, add/pop/remove do not
+ * allocate anything other than the {@link AgendaItem} being stored.
+ *
+ * Items which compare equal may pop in a different order than in
+ * {@link Agenda} since the heap shape is different.
+ *
+ * Use {@link Uberts#setAgendaImpl(String)} to choose this implementation.
+ */
+public class IndexedAgenda extends Agenda {
+
+  /** Branching factor of the heap */
+  public static final int D = 4;
+
+  private BiFunction<HypEdge, Adjoints, Double> priority;
+  private Comparator<AgendaItem> comparator;
+
+  // Indexed by slot (aka dense edge id)
+  private AgendaItem[] items;
+  private long[] hash;          // HashableHypEdge.hc
+  private double[] prio;        // only used if priority != null
+  private int[] slot2hp;        // heap position, or -1 if this slot is free
+  private int[] slotInc;        // first incidence of this slot, or -1
+  private int numSlots;         // high water mark, slots >= this have never been used
+  private int[] freeSlots;
+  private int numFree;
+
+  // heap position -> slot
+  private int[] heap;
+  private int top;              // aka size
+
+  // contains/dedup: linear probing, stores slot+1 (0 means empty)
+  private int[] edgeTable;
+  private int edgeTableMask;
+
+  // node id -> node and the (insertion ordered) list of incidences of that node
+  private HypNode[] nodes;
+  private int[] nodeFirstInc;
+  private int[] nodeLastInc;
+  private int[] nodeDegree;
+  private int numNodes;
+  // linear probing, stores node id+1 (0 means empty), nodes are never removed (until clear)
+  private int[] nodeTable;
+  private int nodeTableMask;
+
+  // Incidences are (slot, node) pairs: doubly linked by node, singly linked by slot.
+  // Freed incidences are chained through incNext.
+  private int[] incSlot;
+  private int[] incNode;
+  private int[] incPrev;
+  private int[] incNext;
+  private int[] incSlotNext;
+  private int numInc;           // high water mark
+  private int freeInc;
+
+  public IndexedAgenda(BiFunction<HypEdge, Adjoints, Double> priority, Comparator<AgendaItem> comparator) {
+    super(priority, comparator);
+    this.priority = priority;
+    this.comparator = comparator;
+
+    int n = 16;
+    items = new AgendaItem[n];
+    hash = new long[n];
+    prio = new double[n];
+    slot2hp = new int[n];
+    slotInc = new int[n];
+    freeSlots = new int[n];
+    heap = new int[n];
+    numSlots = 0;
+    numFree = 0;
+    top = 0;
+
+    edgeTable = new int[2 * n];
+    edgeTableMask = edgeTable.length - 1;
+
+    nodes = new HypNode[n];
+    nodeFirstInc = new int[n];
+    nodeLastInc = new int[n];
+    nodeDegree = new int[n];
+    nodeTable = new int[2 * n];
+    nodeTableMask = nodeTable.length - 1;
+    numNodes = 0;
+
+    int ni = 4 * n;
+    incSlot = new int[ni];
+    incNode = new int[ni];
+    incPrev = new int[ni];
+    incNext = new int[ni];
+    incSlotNext = new int[ni];
+    numInc = 0;
+    freeInc = -1;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("(IndexedAgenda top=" + top);
+    if (priority != null)
+      sb.append(" priority=" + priority);
+    else
+      sb.append(" comparator=" + comparator);
+    sb.append(" numNodes=" + numNodes);
+    sb.append(')');
+    return sb.toString();
+  }
+
+  @Override
+  public IndexedAgenda duplicate() {
+    settleAll();
+    IndexedAgenda c = new IndexedAgenda(priority, comparator);
+    c.items = Arrays.copyOf(items, items.length);
+    c.hash = Arrays.copyOf(hash, hash.length);
+    c.prio = Arrays.copyOf(prio, prio.length);
+    c.slot2hp = Arrays.copyOf(slot2hp, slot2hp.length);
+    c.slotInc = Arrays.copyOf(slotInc, slotInc.length);
+    c.numSlots = numSlots;
+    c.freeSlots = Arrays.copyOf(freeSlots, freeSlots.length);
+    c.numFree = numFree;
+    c.heap = Arrays.copyOf(heap, heap.length);
+    c.top = top;
+    c.edgeTable = Arrays.copyOf(edgeTable, edgeTable.length);
+    c.edgeTableMask = edgeTableMask;
+    c.nodes = Arrays.copyOf(nodes, nodes.length);
+    c.nodeFirstInc = Arrays.copyOf(nodeFirstInc, nodeFirstInc.length);
+    c.nodeLastInc = Arrays.copyOf(nodeLastInc, nodeLastInc.length);
+    c.nodeDegree = Arrays.copyOf(nodeDegree, nodeDegree.length);
+    c.numNodes = numNodes;
+    c.nodeTable = Arrays.copyOf(nodeTable, nodeTable.length);
+    c.nodeTableMask = nodeTableMask;
+    c.incSlot = Arrays.copyOf(incSlot, incSlot.length);
+    c.incNode = Arrays.copyOf(incNode, incNode.length);
+    c.incPrev = Arrays.copyOf(incPrev, incPrev.length);
+    c.incNext = Arrays.copyOf(incNext, incNext.length);
+    c.incSlotNext = Arrays.copyOf(incSlotNext, incSlotNext.length);
+    c.numInc = numInc;
+    c.freeInc = freeInc;
+    return c;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(items, 0, numSlots, null);
+    numSlots = 0;
+    numFree = 0;
+    top = 0;
+    Arrays.fill(edgeTable, 0);
+    Arrays.fill(nodes, 0, numNodes, null);
+    numNodes = 0;
+    Arrays.fill(nodeTable, 0);
+    numInc = 0;
+    freeInc = -1;
+    clearLazyRescorers();
+  }
+
+  /**
+   * Rescores all edges on the agenda according to the given mode.
+   */
+  @Override
+  public void oneTimeRescore(RescoreMode m, Labels gold) {
+    settleAll();
+    for (int i = 0; i < top; i++) {
+      int s = heap[i];
+      HashableHypEdge he = items[s].getHashableEdge();
+      boolean y = gold.getLabel(he);
+      if (!y) {
+        Adjoints score = Adjoints.sum(items[s].score, Adjoints.Constant.ONE);
+        double p = priority == null ? Double.NaN : priority.apply(he.getEdge(), score);
+        items[s] = new AgendaItem(he, score, p);
+        prio[s] = p;
+      }
+    }
+    // Heapify
+    for (int i = parent(top - 1); i >= 0; i--)
+      siftDown(i);
+    assert parentInvariantSatisfied();
+  }
+
+  @Override
+  public List<AgendaItem> getContentsInNoParticularOrder() {
+    settleAll();
+    List<AgendaItem> l = new ArrayList<>(top);
+    for (int i = 0; i < top; i++)
+      l.add(items[heap[i]]);
+    return l;
+  }
+
+  @Override
+  public boolean contains(HashableHypEdge e) {
+    return findSlot(e) >= 0;
+  }
+
+  /**
+   * Orphaned nodes (no adjacent edges) keep their id until {@link #clear()},
+   * they are never visible through {@link #adjacent(HypNode)} or
+   * {@link #dbgNodeSet1()}, so there is nothing to do here.
+   */
+  @Override
+  public void cleanN2Ei() {}
+
+  @Override
+  public Set<HypNode> dbgNodeSet1() {
+    Set<HypNode> s = new HashSet<>();
+    for (int i = 0; i < numNodes; i++)
+      if (nodeDegree[i] > 0)
+        s.add(nodes[i]);
+    return s;
+  }
+
+  @Override
+  public Set<HypNode> dbgNodeSet2() {
+    Set<HypNode> s = new HashSet<>();
+    for (int i = 0; i < top; i++) {
+      HypEdge e = items[heap[i]].edge;
+      for (HypNode n : e.getNeighbors())
+        s.add(n);
+    }
+    return s;
+  }
+
+  /**
+   * Return all edges on the agenda which have type rel and have argPos matching
+   * equal to arg (in the order they were added).
+   */
+  @Override
+  public Iterable<HypEdge> match(int argPos, Relation rel, HypNode arg) {
+    int nid = findNode(arg);
+    if (nid < 0 || nodeDegree[nid] == 0)
+      return Collections.emptyList();
+    List<HypEdge> eager = new ArrayList<>();
+    for (int inc = nodeFirstInc[nid]; inc >= 0; inc = incNext[inc]) {
+      HypEdge e = items[incSlot[inc]].edge;
+      if (e.getRelation() != rel)
+        continue;
+      if (argPos == State.HEAD_ARG_POS) {
+        if (e.getHead() == arg)
+          eager.add(e);
+      } else if (argPos < e.getNumTails() && e.getTail(argPos) == arg) {
+        eager.add(e);
+      }
+    }
+    return eager;
+  }
+
+  @Override
+  public List<HashableHypEdge> adjacent(HypNode n) {
+    int nid = findNode(n);
+    if (nid < 0 || nodeDegree[nid] == 0)
+      return Collections.emptyList();
+    List<HashableHypEdge> el = new ArrayList<>(nodeDegree[nid]);
+    for (int inc = nodeFirstInc[nid]; inc >= 0; inc = incNext[inc])
+      el.add(items[incSlot[inc]].getHashableEdge());
+    return el;
+  }
+
+  /**
+   * Returns a list of {@link HypEdge}s which are adjacent to both nodes.
+   */
+  @Override
+  public List<HypEdge> adjacent(HypNode n1, HypNode n2) {
+    int nid1 = findNode(n1);
+    int nid2 = findNode(n2);
+    if (nid1 < 0 || nid2 < 0)
+      return Collections.emptyList();
+    if (nodeDegree[nid2] < nodeDegree[nid1]) {
+      int t = nid1;
+      nid1 = nid2;
+      nid2 = t;
+    }
+    List<HypEdge> el = new ArrayList<>();
+    for (int inc = nodeFirstInc[nid1]; inc >= 0; inc = incNext[inc]) {
+      int s = incSlot[inc];
+      if (slotTouches(s, nid2))
+        el.add(items[s].edge);
+    }
+    return el;
+  }
+
+  /**
+   * ONLY works if you have a {@link HypEdge} which you got from this agenda.
+   */
+  @Override
+  public Adjoints getScore(HypEdge e) {
+    AgendaItem ai = getScore2(e);
+    return ai == null ? null : ai.score;
+  }
+
+  @Override
+  public AgendaItem getScore2(HypEdge e) {
+    int s = findSlot(new HashableHypEdge(e));
+    if (s < 0 || items[s].edge != e)
+      return null;
+    return items[s];
+  }
+
+  @Override
+  public AgendaItem remove(HashableHypEdge e) {
+    int s = findSlot(e);
+    if (s < 0)
+      throw new IllegalArgumentException("not on agenda: " + e);
+    forgetLazyRescores(e.getEdge());
+    return removeAt(slot2hp[s]);
+  }
+
+  /**
+   * Only call this for edges which you know are on the agenda.
+   * See {@link Agenda#contains(HashableHypEdge)}
+   */
+  @Override
+  public AgendaItem remove(HypEdge e) {
+    return remove(new HashableHypEdge(e));
+  }
+
+  private AgendaItem removeAt(int i) {
+    assert i >= 0 && i < top;
+    int s = heap[i];
+    AgendaItem old = items[s];
+    int last = --top;
+    if (i != last) {
+      int m = heap[last];
+      heap[i] = m;
+      slot2hp[m] = i;
+      if (i > 0 && before(m, heap[parent(i)]))
+        siftUp(i);
+      else
+        siftDown(i);
+    }
+    freeSlot(s);
+    return old;
+  }
+
+  @Override
+  public boolean parentInvariantSatisfied() {
+    for (int i = 0; i < top; i++) {
+      if (!parentInvariantSatisfied(i)) {
+        int parent = parent(i);
+        Log.warn("parent=" + items[heap[parent]] + " child=" + items[heap[i]] + " i=" + i + " iparent=" + parent + " top=" + top);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean parentInvariantSatisfied(int i) {
+    if (i == 0 || i >= top)
+      return true;
+    return !before(heap[i], heap[parent(i)]);
+  }
+
+  @Override
+  public void add(HypEdge edge, Adjoints score) {
+    add(new HashableHypEdge(edge), score);
+  }
+
+  @Override
+  protected int append(HashableHypEdge edge, Adjoints score) {
+    if (edge == null)
+      throw new IllegalArgumentException();
+    if (score == null)
+      throw new IllegalArgumentException();
+    assert getRescoreMode() == RescoreMode.NONE;
+
+    HypEdge e = edge.getEdge();
+    double p = priority == null ? Double.NaN : priority.apply(e, score);
+    if (DEBUG)
+      Log.info("adding " + e + " priority=" + p + " score=" + score);
+
+    int s = allocSlot();
+    items[s] = new AgendaItem(edge, score, p);
+    hash[s] = edge.hc;
+    prio[s] = p;
+    slotInc[s] = -1;
+    boolean a = edgeTableAdd(s);
+    assert a : "duplicate?: " + edge;
+
+    if (e.getHead() != null)
+      link(s, e.getHead());
+    int n = e.getNumTails();
+    for (int j = 0; j < n; j++)
+      link(s, e.getTail(j));
+
+    if (top == heap.length)
+      heap = Arrays.copyOf(heap, grow(heap.length));
+    int t = top++;
+    heap[t] = s;
+    slot2hp[s] = t;
+    return t;
+  }
+
+  @Override
+  public int size() {
+    return top;
+  }
+
+  @Override
+  public int capacity() {
+    return heap.length;
+  }
+
+  @Override
+  public void dbgShowScores() {
+    Log.info("Agenda has " + top + " items:");
+    for (int i = 0; i < top; i++)
+      System.out.println(items[heap[i]]);
+  }
+
+  @Override
+  protected AgendaItem itemAt(int i) {
+    return items[heap[i]];
+  }
+
+  @Override
+  public Adjoints peekScore() {
+    settleTop();
+    assert top > 0;
+    return items[heap[0]].score;
+  }
+
+  @Override
+  public HypEdge peek() {
+    settleTop();
+    assert top > 0;
+    return items[heap[0]].edge;
+  }
+
+  @Override
+  public Pair<HypEdge, Adjoints> peekBoth() {
+    settleTop();
+    AgendaItem ai = items[heap[0]];
+    return new Pair<>(ai.edge, ai.score);
+  }
+
+  @Override
+  public HypEdge pop() {
+    return popBoth2().edge;
+  }
+
+  @Override
+  public Pair<HypEdge, Adjoints> popBoth() {
+    AgendaItem ai = popBoth2();
+    return new Pair<>(ai.edge, ai.score);
+  }
+
+  @Override
+  public AgendaItem popBoth2() {
+    settleTop();
+    assert top > 0;
+    return removeAt(0);
+  }
+
+  /* HEAP *********************************************************************/
+
+  private static int parent(int i) {
+    return (i - 1) / D;
+  }
+
+  /** Returns true if slot s1 should be popped before slot s2 */
+  private boolean before(int s1, int s2) {
+    if (priority != null)
+      return prio[s1] > prio[s2];
+    return comparator.compare(items[s1], items[s2]) < 0;
+  }
+
+  @Override
+  public void siftUp(int i) {
+    assert i < top && i >= 0;
+    int s = heap[i];
+    while (i > 0) {
+      int p = parent(i);
+      int ps = heap[p];
+      if (!before(s, ps))
+        break;
+      heap[i] = ps;
+      slot2hp[ps] = i;
+      i = p;
+    }
+    heap[i] = s;
+    slot2hp[s] = i;
+  }
+
+  @Override
+  public void siftDown(int i) {
+    if (i >= top)
+      return;
+    int s = heap[i];
+    while (true) {
+      int c = D * i + 1;
+      if (c >= top)
+        break;
+      int best = c;
+      int cEnd = Math.min(c + D, top);
+      for (int j = c + 1; j < cEnd; j++)
+        if (before(heap[j], heap[best]))
+          best = j;
+      int bs = heap[best];
+      if (!before(bs, s))
+        break;
+      heap[i] = bs;
+      slot2hp[bs] = i;
+      i = best;
+    }
+    heap[i] = s;
+    slot2hp[s] = i;
+  }
+
+  /* SLOTS AND DEDUP **********************************************************/
+
+  private static int grow(int n) {
+    return (int) (n * 1.6 + 2);
+  }
+
+  private static int mix(long h) {
+    h *= 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private int allocSlot() {
+    if (numFree > 0)
+      return freeSlots[--numFree];
+    if (numSlots == items.length) {
+      int n = grow(items.length);
+      items = Arrays.copyOf(items, n);
+      hash = Arrays.copyOf(hash, n);
+      prio = Arrays.copyOf(prio, n);
+      slot2hp = Arrays.copyOf(slot2hp, n);
+      slotInc = Arrays.copyOf(slotInc, n);
+      freeSlots = Arrays.copyOf(freeSlots, n);
+    }
+    return numSlots++;
+  }
+
+  private void freeSlot(int s) {
+    edgeTableRemove(s);
+    unlinkAll(s);
+    items[s] = null;
+    slot2hp[s] = -1;
+    freeSlots[numFree++] = s;
+  }
+
+  /** Returns the slot holding an edge equal to e, or -1 */
+  private int findSlot(HashableHypEdge e) {
+    for (int i = mix(e.hc) & edgeTableMask; edgeTable[i] != 0; i = (i + 1) & edgeTableMask) {
+      int s = edgeTable[i] - 1;
+      if (hash[s] == e.hc && items[s].getHashableEdge().equals(e))
+        return s;
+    }
+    return -1;
+  }
+
+  /** Returns false if there was already an equal edge in the table */
+  private boolean edgeTableAdd(int slot) {
+    if (2 * (top + 1) > edgeTable.length)
+      rehashEdges(2 * edgeTable.length);
+    HashableHypEdge e = items[slot].getHashableEdge();
+    int i = mix(hash[slot]) & edgeTableMask;
+    for (; edgeTable[i] != 0; i = (i + 1) & edgeTableMask) {
+      int s = edgeTable[i] - 1;
+      if (hash[s] == hash[slot] && items[s].getHashableEdge().equals(e))
+        return false;
+    }
+    edgeTable[i] = slot + 1;
+    return true;
+  }
+
+  private void edgeTableRemove(int slot) {
+    int i = mix(hash[slot]) & edgeTableMask;
+    while (edgeTable[i] != slot + 1) {
+      assert edgeTable[i] != 0 : "slot not in table: " + slot;
+      i = (i + 1) & edgeTableMask;
+    }
+    // Backwards-shift deletion, no tombstones
+    int j = i;
+    while (true) {
+      j = (j + 1) & edgeTableMask;
+      int v = edgeTable[j];
+      if (v == 0)
+        break;
+      int k = mix(hash[v - 1]) & edgeTableMask;
+      boolean move = j > i ? (k <= i || k > j) : (k <= i && k > j);
+      if (move) {
+        edgeTable[i] = v;
+        i = j;
+      }
+    }
+    edgeTable[i] = 0;
+  }
+
+  private void rehashEdges(int newSize) {
+    edgeTable = new int[newSize];
+    edgeTableMask = newSize - 1;
+    for (int hp = 0; hp < top; hp++) {
+      int s = heap[hp];
+      int i = mix(hash[s]) & edgeTableMask;
+      while (edgeTable[i] != 0)
+        i = (i + 1) & edgeTableMask;
+      edgeTable[i] = s + 1;
+    }
+  }
+
+  /* NODES AND ADJACENCY ******************************************************/
+
+  /** Returns the id of n, or -1 if it has never been seen */
+  private int findNode(HypNode n) {
+    if (n == null)
+      return -1;
+    for (int i = mix(n.hashCode()) & nodeTableMask; nodeTable[i] != 0; i = (i + 1) & nodeTableMask) {
+      int nid = nodeTable[i] - 1;
+      if (nodes[nid] == n || nodes[nid].equals(n))
+        return nid;
+    }
+    return -1;
+  }
+
+  private int internNode(HypNode n) {
+    int i = mix(n.hashCode()) & nodeTableMask;
+    for (; nodeTable[i] != 0; i = (i + 1) & nodeTableMask) {
+      int nid = nodeTable[i] - 1;
+      if (nodes[nid] == n || nodes[nid].equals(n))
+        return nid;
+    }
+    if (numNodes == nodes.length) {
+      int m = grow(nodes.length);
+      nodes = Arrays.copyOf(nodes, m);
+      nodeFirstInc = Arrays.copyOf(nodeFirstInc, m);
+      nodeLastInc = Arrays.copyOf(nodeLastInc, m);
+      nodeDegree = Arrays.copyOf(nodeDegree, m);
+    }
+    int nid = numNodes++;
+    nodes[nid] = n;
+    nodeFirstInc[nid] = -1;
+    nodeLastInc[nid] = -1;
+    nodeDegree[nid] = 0;
+    if (2 * numNodes > nodeTable.length) {
+      rehashNodes(2 * nodeTable.length);
+    } else {
+      nodeTable[i] = nid + 1;
+    }
+    return nid;
+  }
+
+  private void rehashNodes(int newSize) {
+    nodeTable = new int[newSize];
+    nodeTableMask = newSize - 1;
+    for (int nid = 0; nid < numNodes; nid++) {
+      int i = mix(nodes[nid].hashCode()) & nodeTableMask;
+      while (nodeTable[i] != 0)
+        i = (i + 1) & nodeTableMask;
+      nodeTable[i] = nid + 1;
+    }
+  }
+
+  private boolean slotTouches(int slot, int nid) {
+    for (int inc = slotInc[slot]; inc >= 0; inc = incSlotNext[inc])
+      if (incNode[inc] == nid)
+        return true;
+    return false;
+  }
+
+  /** Adds a (slot, node) incidence unless one already exists */
+  private void link(int slot, HypNode n) {
+    int nid = internNode(n);
+    if (slotTouches(slot, nid))
+      return;
+    int inc;
+    if (freeInc >= 0) {
+      inc = freeInc;
+      freeInc = incNext[inc];
+    } else {
+      if (numInc == incSlot.length) {
+        int m = grow(incSlot.length);
+        incSlot = Arrays.copyOf(incSlot, m);
+        incNode = Arrays.copyOf(incNode, m);
+        incPrev = Arrays.copyOf(incPrev, m);
+        incNext = Arrays.copyOf(incNext, m);
+        incSlotNext = Arrays.copyOf(incSlotNext, m);
+      }
+      inc = numInc++;
+    }
+    incSlot[inc] = slot;
+    incNode[inc] = nid;
+
+    // Append to the node's list
+    int last = nodeLastInc[nid];
+    incPrev[inc] = last;
+    incNext[inc] = -1;
+    if (last < 0)
+      nodeFirstInc[nid] = inc;
+    else
+      incNext[last] = inc;
+    nodeLastInc[nid] = inc;
+    nodeDegree[nid]++;
+
+    // Prepend to the slot's list
+    incSlotNext[inc] = slotInc[slot];
+    slotInc[slot] = inc;
+  }
+
+  private void unlinkAll(int slot) {
+    int inc = slotInc[slot];
+    while (inc >= 0) {
+      int nextInSlot = incSlotNext[inc];
+      int nid = incNode[inc];
+      int p = incPrev[inc];
+      int n = incNext[inc];
+      if (p < 0)
+        nodeFirstInc[nid] = n;
+      else
+        incNext[p] = n;
+      if (n < 0)
+        nodeLastInc[nid] = p;
+      else
+        incPrev[n] = p;
+      nodeDegree[nid]--;
+
+      incNext[inc] = freeInc;
+      freeInc = inc;
+      inc = nextInSlot;
+    }
+    slotInc[slot] = -1;
+  }
+}
@@ -3,6 +3,7 @@ package edu.jhu.hlt.uberts;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.jhu.hlt.tutils.hash.Hash;
 import edu.jhu.hlt.uberts.HypEdge.HashableHypEdge;
@@ -21,6 +22,10 @@ public class Relation {
   private NodeType[] domain;
   private long hc;
 
+  // Dense, process-wide, used to index per-relation arrays (e.g. Metrics)
+  private static final AtomicInteger NEXT_ID = new AtomicInteger();
+  private final int id = NEXT_ID.getAndIncrement();
+
   public Relation(String name, NodeType... domain) {
     this.name = name.intern();
     this.domain = domain;
@@ -40,6 +45,11 @@ public class Relation {
     return name;
   }
 
+  /** A small non-negative int unique to this instance */
+  public int getId() {
+    return id;
+  }
+
   public int getNumArgs() {
     return domain.length;
   }
@@ -10,6 +10,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,9 +47,11 @@ import edu.jhu.hlt.uberts.io.ManyDocRelationFileIterator.RelDoc;
 import edu.jhu.hlt.uberts.io.RelationFileIterator;
 import edu.jhu.hlt.uberts.io.RelationFileIterator.RelLine;
 import edu.jhu.hlt.uberts.rules.Env.Trie3;
+import edu.jhu.hlt.uberts.rules.JoinPlan;
 import edu.jhu.hlt.uberts.srl.EdgeUtils;
 import edu.jhu.hlt.uberts.transition.TransGen;
 import edu.jhu.hlt.uberts.util.EdgeDiff;
+import edu.jhu.hlt.uberts.util.Metrics;
 import edu.jhu.prim.list.IntArrayList;
 import edu.jhu.prim.tuple.Pair;
 import edu.jhu.util.Alphabet;
@@ -78,6 +81,7 @@ public class Uberts {
 
   private State state;
   private Agenda agenda;
+  private String agendaImpl = "hash";   // see Agenda.build
 
   // When true, every time addEdgeToAgenda is called, a loss term
   // is added to the item's score.
@@ -86,6 +90,12 @@ public class Uberts {
 
   // Index of Triggers which cause TransGens and GlobalFactors to fire.
   private Trie3 trie3;
+  // Same triggers compiled into JoinPlans, if non-null this is used instead of trie3.
+  private JoinPlan.Index joinPlans;
+
+  // If non-null, TransGen output is collected here while matching a new state
+  // edge and then scored and added to the agenda all at once.
+  private AgendaBatch agendaBatch;
 
   // All of these are co-indexed
   // What happens if we have multiple factors with the same trigger?
@@ -126,6 +136,22 @@ public class Uberts {
   // This must be cleared after each round of inference by the user.
   public IntArrayList statsAgendaSizePerStep = new IntArrayList();
 
+  // Counters for things which happen on every push/pop. Unlike stats, these
+  // are registered once so that incrementing them doesn't build a string.
+  private Metrics metrics = Metrics.getDefault();
+  private Metrics.Counter mState = metrics.counter("state");
+  private Metrics.PerRelation mStateRel = metrics.perRelation("state");
+  private Metrics.Counter mStateNilFact = metrics.counter("state/nilFact");
+  private Metrics.Counter mStateNoMatch = metrics.counter("state/noMatch");
+  private Metrics.PerRelation mStateNoMatchRel = metrics.perRelation("state/noMatch");
+  private Metrics.Counter mAgenda = metrics.counter("agenda");
+  private Metrics.PerRelation mAgendaRel = metrics.perRelation("agenda");
+  private Metrics.Counter mAgendaDupAgenda = metrics.counter("agenda/dup/agenda");
+  private Metrics.PerRelation mAgendaDupAgendaRel = metrics.perRelation("agenda/dup/agenda");
+  private Metrics.Counter mAgendaDupState = metrics.counter("agenda/dup/state");
+  private Metrics.PerRelation mAgendaDupStateRel = metrics.perRelation("agenda/dup/state");
+  private Metrics.Histogram mAgendaSize = metrics.histogram("agenda/sizePerStep");
+
 
   // If this document represents a sentence and you need to call older code
   // which only knows how to read Sentences, then set this.
@@ -243,7 +269,51 @@ public class Uberts {
    * Allocates a new agenda with the given priority.
    */
   public void setAgendaPriority(BiFunction<HypEdge, Adjoints, Double> agendaPriority) {
-    this.agenda = new Agenda(agendaPriority, null);
+    this.agenda = Agenda.build(agendaImpl, agendaPriority, null);
+  }
+
+  /**
+   * Allocates a new (empty) agenda with the same priority/comparator, backed
+   * by the given implementation, e.g. "hash" or "indexed" (see {@link Agenda#build}).
+   */
+  public void setAgendaImpl(String impl) {
+    Log.info("[main] agendaImpl=" + impl);
+    this.agenda = Agenda.build(impl, agenda.getPriority(), agenda.getComparator());
+    this.agendaImpl = impl;
+  }
+  public String getAgendaImpl() {
+    return agendaImpl;
+  }
+
+  /**
+   * Choose how rules/triggers are matched against new state edges: "trie" for
+   * {@link Trie3} or "compiled", "interpreted", "checked" for a
+   * {@link JoinPlan.Index} (see {@link JoinPlan.Mode}).
+   */
+  public void setRuleMatching(String how) {
+    Log.info("[main] ruleMatching=" + how);
+    if ("trie".equalsIgnoreCase(how)) {
+      joinPlans = null;
+      return;
+    }
+    JoinPlan.Mode m = JoinPlan.Mode.valueOf(how.toUpperCase());
+    if (joinPlans != null) {
+      joinPlans.setMode(m);
+    } else {
+      joinPlans = new JoinPlan.Index(m);
+      for (int i = 0; i < numTriggers; i++)
+        joinPlans.add(triggers[i]);
+    }
+  }
+
+  /**
+   * If true, edges generated by {@link TransGen}s when a fact is added to the
+   * state are scored together (one call per {@link LocalFactor}), de-duplicated,
+   * and put on the agenda with one heap fix-up. See {@link AgendaBatch}.
+   */
+  public void setBatchTransGen(boolean batch) {
+    Log.info("[main] batchTransGen=" + batch);
+    agendaBatch = batch ? new AgendaBatch() : null;
   }
 
   // TODO This is an ugly hack, fixme.
@@ -281,6 +351,7 @@ public class Uberts {
     List<Step> steps = new ArrayList<>();
     while (agenda.size() > 0) {
       statsAgendaSizePerStep.add(agenda.size());
+      mAgendaSize.record(agenda.size());
       AgendaItem ai = agenda.popBoth2();
       Boolean y = perf == null ? null : getLabel(ai);
       if (DEBUG > 1)
@@ -331,6 +402,7 @@ public class Uberts {
     statsAgendaSizePerStep.clear();
     while (agenda.size() > 0) {
       statsAgendaSizePerStep.add(agenda.size());
+      mAgendaSize.record(agenda.size());
       AgendaItem ai = agenda.popBoth2();
       boolean yhat = ai.score.forwards() > 0;
       boolean y = getLabel(ai);
@@ -526,6 +598,7 @@ public class Uberts {
       statsAgendaSizePerStep.clear();
       while (agenda.size() > 0) {
         statsAgendaSizePerStep.add(agenda.size());
+        mAgendaSize.record(agenda.size());
         AgendaItem ai = agenda.popBoth2();
         boolean y = getLabel(ai);
         Pair<Boolean, Adjoints> p = thresh.decide2(ai);
@@ -1343,6 +1416,8 @@ public class Uberts {
     if (numTriggers == triggers.length)
       growTriggers();
     trie3.add(t);
+    if (joinPlans != null)
+      joinPlans.add(t);
     triggers[t.getIndex()] = t;
     numTriggers++;
     return t;
@@ -1399,15 +1474,13 @@ public class Uberts {
   public HypEdge addEdgeToState(HypEdge e, Adjoints score) {
     if (DEBUG > 1)
       System.out.println("Uberts addEdgeToState: " + e.toString() + " " + score.forwards() + " " + score);
-    if (stats != null) {
-      stats.increment("state");
-      stats.increment("state/" + e.getRelation().getName());
-    }
+    mState.increment();
+    mStateRel.increment(e.getRelation());
     assert nodesContains(e);
 
     boolean nilFact = UbertsLearnPipeline.isNilFact(e);
     if (nilFact) {
-      stats.increment("state/nilFact");
+      mStateNilFact.increment();
 //      return null;
     } else {
       state.add(e, score);
@@ -1420,32 +1493,49 @@ public class Uberts {
     for (NewStateEdgeListener l : newStateEdgeListeners)
       l.addedToState(he, score, y);
 
-    trie3.match(state, e, m -> {
-      Trigger t = m.getTrigger();
-      int ti = t.getIndex();
-      HypEdge[] values = m.getValues();
-
-      if (DEBUG > 2) {
-        Log.info("just tripped: " + t
-            + " with values=" + Arrays.toString(values)
-            + " nilFact=" + nilFact
-            + " triggersGlobalFactor=" + (globalFactors[ti] != null)
-            + " triggersTransitionGenerator=" + (transitionGenrators[ti] != null));
-      }
+    if (joinPlans != null)
+      joinPlans.match(state, e, (t, values) -> fire(t, values, nilFact));
+    else
+      trie3.match(state, e, m -> fire(m.getTrigger(), m.getValues(), nilFact));
+    if (agendaBatch != null && !agendaBatch.isEmpty())
+      addEdgesToAgenda(agendaBatch);
+    return e;
+  }
 
-      if (globalFactors[ti] != null && !disableGlobalFeats)
-        globalFactors[ti].rescore(this, values);
+  /**
+   * Called when a new state edge completes a proof of a {@link Trigger}.
+   * @param values are the facts which matched each of the trigger's terms.
+   */
+  private void fire(Trigger t, HypEdge[] values, boolean nilFact) {
+    int ti = t.getIndex();
+
+    if (DEBUG > 2) {
+      Log.info("just tripped: " + t
+          + " with values=" + Arrays.toString(values)
+          + " nilFact=" + nilFact
+          + " triggersGlobalFactor=" + (globalFactors[ti] != null)
+          + " triggersTransitionGenerator=" + (transitionGenrators[ti] != null));
+    }
+
+    if (globalFactors[ti] != null && !disableGlobalFeats) {
+      // Global factors should see the same agenda as if edges were added one at a time
+      if (agendaBatch != null && !agendaBatch.isEmpty())
+        addEdgesToAgenda(agendaBatch);
+      globalFactors[ti].rescore(this, values);
+    }
 
-      if (!nilFact && transitionGenrators[ti] != null) {
-        // TODO This could become a bug, or at least unexpected behavior.
-        // Triggers for global features are not tripped when an edge is first
-        // created.
+    if (!nilFact && transitionGenrators[ti] != null) {
+      // TODO This could become a bug, or at least unexpected behavior.
+      // Triggers for global features are not tripped when an edge is first
+      // created.
+      if (agendaBatch != null) {
+        transitionGenrators[ti].match(values, this, agendaBatch);
+      } else {
         List<Pair<HypEdge, Adjoints>> edges = transitionGenrators[ti].match(values, this);
         for (Pair<HypEdge, Adjoints> se : edges)
           addEdgeToAgenda(se);
       }
-    });
-    return e;
+    }
   }
 
   /**
@@ -1459,12 +1549,12 @@ public class Uberts {
       System.out.println("Uberts addEdgeToStateNoMatch: " + e.toString() + " " + score.forwards() + " " + score);
 
     if (UbertsLearnPipeline.isNilFact(e)) {
-      stats.increment("state/nilFact");
+      mStateNilFact.increment();
       return;
     }
 
-    stats.increment("state/noMatch");
-    stats.increment("state/noMatch/" + e.getRelation().getName());
+    mStateNoMatch.increment();
+    mStateNoMatchRel.increment(e.getRelation());
     state.add(e, score);
   }
 
@@ -1480,17 +1570,15 @@ public class Uberts {
       else
         System.out.println("[Uberts addEdgeToAgenda] y=" + y + "\t" + e.toString());
     }
-    if (stats != null) {
-      stats.increment("agenda");
-      stats.increment("agenda/" + e.getRelation().getName());
-    }
+    mAgenda.increment();
+    mAgendaRel.increment(e.getRelation());
     assert nodesContains(e);
     if (agenda.contains(hhe)) {
-      stats.increment("agenda/dup/agenda");
-      stats.increment("agenda/dup/agenda/" + e.getRelation().getName());
+      mAgendaDupAgenda.increment();
+      mAgendaDupAgendaRel.increment(e.getRelation());
     } else if (state.getScore(hhe) != null) {
-      stats.increment("agenda/dup/state");
-      stats.increment("agenda/dup/state/" + e.getRelation().getName());
+      mAgendaDupState.increment();
+      mAgendaDupStateRel.increment(e.getRelation());
     } else {
       if (lossAugmentation && !y)
         score = Adjoints.sum(score, Adjoints.Constant.ONE);
@@ -1498,6 +1586,53 @@ public class Uberts {
     }
   }
 
+  /**
+   * Same as calling {@link #addEdgeToAgenda(HypEdge, Adjoints)} on every edge
+   * in the batch, but duplicates are removed before scoring, edges which
+   * need scores are scored in one batch per {@link LocalFactor}, and the
+   * agenda's heap is fixed up once. Clears the batch.
+   */
+  public void addEdgesToAgenda(AgendaBatch batch) {
+    int n = batch.size();
+    HashableHypEdge[] hhe = new HashableHypEdge[n];
+    boolean[] keep = new boolean[n];
+    Set<HashableHypEdge> seen = new HashSet<>();
+    for (int i = 0; i < n; i++) {
+      HypEdge e = batch.getEdge(i);
+      hhe[i] = new HashableHypEdge(e);
+      if (DEBUG > 2)
+        System.out.println("[Uberts addEdgesToAgenda] y=" + getLabel(hhe[i]) + "\t" + e.toString());
+      mAgenda.increment();
+      mAgendaRel.increment(e.getRelation());
+      assert nodesContains(e);
+      if (agenda.contains(hhe[i]) || !seen.add(hhe[i])) {
+        mAgendaDupAgenda.increment();
+        mAgendaDupAgendaRel.increment(e.getRelation());
+      } else if (state.getScore(hhe[i]) != null) {
+        mAgendaDupState.increment();
+        mAgendaDupStateRel.increment(e.getRelation());
+      } else {
+        keep[i] = true;
+      }
+    }
+
+    batch.score(this, keep);
+
+    List<HashableHypEdge> edges = new ArrayList<>(n);
+    List<Adjoints> scores = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      Adjoints score = batch.getScore(i);
+      if (!keep[i] || score == null)
+        continue;
+      if (lossAugmentation && !getLabel(hhe[i]))
+        score = Adjoints.sum(score, Adjoints.Constant.ONE);
+      edges.add(hhe[i]);
+      scores.add(score);
+    }
+    agenda.addAll(edges, scores);
+    batch.clear();
+  }
+
   /** returns its argument */
   public Relation addEdgeType(Relation r) {
     Log.info(r.toString());
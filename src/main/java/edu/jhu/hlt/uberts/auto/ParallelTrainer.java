@@ -0,0 +1,183 @@
+package edu.jhu.hlt.uberts.auto;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.jhu.hlt.fnparse.rl.full2.AveragedPerceptronWeights;
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.tutils.TimeMarker;
+import edu.jhu.hlt.uberts.Uberts;
+import edu.jhu.hlt.uberts.auto.UbertsLearnPipeline.TrainMethod;
+import edu.jhu.hlt.uberts.io.ManyDocRelationFileIterator.RelDoc;
+
+/**
+ * Trains on a segment of documents using several {@link UbertsLearnPipeline}s,
+ * one per thread, each with its own {@link Uberts} (state, agenda, nodes), but
+ * whose local and global factors share weights with a master pipeline. Dev and
+ * test are still run (serially) by the master, so scores are computed the same
+ * way as when training serially. Training performance is collected from every
+ * worker and reported by the master.
+ *
+ * There are two ways updates can be applied:
+ * HOGWILD: workers pull documents off a shared counter and apply their updates
+ *   to the shared weights as soon as they have them, without locking (updates
+ *   may occasionally be lost). Only completedObservation is serialized.
+ * MINIBATCH: documents are processed in rounds of numWorkers, during which the
+ *   weights don't change. After each round the calling thread applies every
+ *   document's updates in document order (respecting batchSize). Results don't
+ *   depend on thread timing, and with one worker this is the serial algorithm.
+ *
+ * NOTE: AgendaComparators.BY_ROLE_RAND_DYNAMIC is static and re-seeded by every
+ * consume, so runs using it are not deterministic with more than one worker.
+ *
+ * @author travis
+ */
+public class ParallelTrainer {
+
+  public enum Sync {
+    HOGWILD,
+    MINIBATCH,
+  }
+
+  private UbertsLearnPipeline master;
+  private List<UbertsLearnPipeline> workers;
+  private Sync sync;
+  private ExecutorService pool;
+
+  /**
+   * @param master is the pipeline whose weights will be trained, it is not
+   * used to run inference on training documents.
+   * @param config is used to build numWorkers new {@link UbertsLearnPipeline}s,
+   * see {@link UbertsLearnPipeline#buildWorker(ExperimentProperties, UbertsLearnPipeline)}
+   * for what they share with master.
+   */
+  public ParallelTrainer(UbertsLearnPipeline master, int numWorkers, Sync sync, ExperimentProperties config) throws IOException {
+    Log.info("[main] numWorkers=" + numWorkers + " sync=" + sync);
+    if (numWorkers < 1)
+      throw new IllegalArgumentException("numWorkers=" + numWorkers);
+    if (sync == Sync.HOGWILD && AveragedPerceptronWeights.UPDATE_BUFFER_FIX)
+      throw new IllegalArgumentException("UPDATE_BUFFER_FIX buffers updates in a hash map which can't be shared between threads");
+    if (sync == Sync.MINIBATCH && UbertsLearnPipeline.trainMethod == TrainMethod.LASO2)
+      throw new IllegalArgumentException("LASO2 updates are applied immediately, use sync=HOGWILD");
+    this.master = master;
+    this.sync = sync;
+    this.workers = new ArrayList<>();
+    Object completedObservationLock = new Object();
+    for (int i = 0; i < numWorkers; i++) {
+      Log.info("[main] building worker " + (i+1) + " of " + numWorkers);
+      UbertsLearnPipeline w = UbertsLearnPipeline.buildWorker(config, master);
+      w.becomeWorkerFor(master, sync == Sync.MINIBATCH, completedObservationLock);
+      workers.add(w);
+    }
+    AtomicInteger threadIdx = new AtomicInteger();
+    this.pool = Executors.newFixedThreadPool(numWorkers, r -> {
+      Thread t = new Thread(r, "ParallelTrainer-" + threadIdx.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public int numWorkers() {
+    return workers.size();
+  }
+
+  /**
+   * Analogous to master.runInference(docs.iterator(), dataName) where dataName
+   * indicates training data. The training performance measured by every
+   * worker is reported by master.finish, as it would be in serial training.
+   */
+  public void train(List<RelDoc> docs, String dataName) {
+    Log.info("[main] starting on " + dataName + " nDocs=" + docs.size()
+        + " numWorkers=" + workers.size() + " sync=" + sync);
+    TimeMarker tm = new TimeMarker();
+    master.start(dataName);
+    List<TypeInference.Expander> exps = new ArrayList<>();
+    for (UbertsLearnPipeline w : workers) {
+      w.start(dataName);
+      exps.add(w.newExpander());
+    }
+    Job infer = (w, i) -> workers.get(w).runInference(docs.get(i), exps.get(w));
+    switch (sync) {
+    case HOGWILD:
+      hogwild(workers.size(), docs.size(), pool, infer);
+      break;
+    case MINIBATCH:
+      minibatch(workers.size(), docs.size(), pool, infer,
+          (w, i) -> master.addToBatch(workers.get(w).takeBatch()));
+      break;
+    default:
+      throw new RuntimeException("implement " + sync);
+    }
+    for (UbertsLearnPipeline w : workers)
+      w.finishWorker(dataName, master);
+    master.finish(dataName);
+    Log.info("[main] finished with " + dataName + " in " + tm.secondsSinceFirstMark() + " seconds");
+  }
+
+  /** Does something with a document (index) on a worker (index) */
+  interface Job {
+    void run(int worker, int doc);
+  }
+
+  /**
+   * Every worker pulls documents off a shared counter until there are none
+   * left. Each document is given to exactly one worker, and a worker only
+   * processes one document at a time.
+   */
+  static void hogwild(int numWorkers, int numDocs, ExecutorService pool, Job infer) {
+    AtomicInteger next = new AtomicInteger();
+    List<Future<?>> fs = new ArrayList<>();
+    for (int w = 0; w < numWorkers; w++) {
+      int worker = w;
+      fs.add(pool.submit(() -> {
+        for (int i = next.getAndIncrement(); i < numDocs; i = next.getAndIncrement())
+          infer.run(worker, i);
+      }));
+    }
+    await(fs);
+  }
+
+  /**
+   * Documents are processed in rounds of numWorkers (document start+j goes to
+   * worker j). After every document in a round has been inferred, update is
+   * called (on the calling thread) for each of them in document order.
+   */
+  static void minibatch(int numWorkers, int numDocs, ExecutorService pool, Job infer, Job update) {
+    for (int start = 0; start < numDocs; start += numWorkers) {
+      // Inference, weights are fixed
+      int end = Math.min(numDocs, start + numWorkers);
+      List<Future<?>> fs = new ArrayList<>();
+      for (int i = start; i < end; i++) {
+        int doc = i;
+        int worker = i - start;
+        fs.add(pool.submit(() -> infer.run(worker, doc)));
+      }
+      await(fs);
+
+      // Updates, in document order
+      for (int i = start; i < end; i++)
+        update.run(i - start, i);
+    }
+  }
+
+  private static void await(List<Future<?>> fs) {
+    for (Future<?> f : fs) {
+      try {
+        f.get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+}
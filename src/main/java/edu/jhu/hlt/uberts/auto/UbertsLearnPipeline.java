@@ -73,13 +73,16 @@ import edu.jhu.hlt.uberts.features.FeatureExtractionFactor;
 import edu.jhu.hlt.uberts.features.FyMode;
 import edu.jhu.hlt.uberts.features.OldFeaturesWrapper;
 import edu.jhu.hlt.uberts.features.OldFeaturesWrapper.Ints3;
+import edu.jhu.hlt.uberts.io.BinaryRelationFile;
 import edu.jhu.hlt.uberts.io.ManyDocRelationFileIterator;
 import edu.jhu.hlt.uberts.io.ManyDocRelationFileIterator.RelDoc;
 import edu.jhu.hlt.uberts.io.PerlRegexFileInputStream;
 import edu.jhu.hlt.uberts.io.RelationFileIterator;
+import edu.jhu.hlt.uberts.io.RelationFileIterator.RelLine;
 import edu.jhu.hlt.uberts.srl.AddNullSpanArgs;
 import edu.jhu.hlt.uberts.srl.AddNullSpanArgs.TFK;
 import edu.jhu.hlt.uberts.srl.EdgeUtils;
+import edu.jhu.hlt.uberts.util.Metrics;
 import edu.jhu.prim.map.IntObjectHashMap;
 import edu.jhu.prim.tuple.Pair;
 import edu.jhu.util.Alphabet;
@@ -159,6 +162,18 @@ public class UbertsLearnPipeline extends UbertsPipeline {
 
   private List<Consumer<Double>> batch = new ArrayList<>();
   private int batchSize = 1;
+
+  // If non-null, training segments are split across this many threads.
+  // See trainThreads and trainSync.
+  private ParallelTrainer parallelTrainer;
+  // Set on ParallelTrainer workers:
+  // deferUpdates means leave updates in batch for the ParallelTrainer to apply,
+  // completedObservationLock (if non-null) is held while calling completedObservation.
+  private boolean deferUpdates = false;
+  private Object completedObservationLock;
+  // Non-null while buildWorker is running, since the factors are built in the
+  // constructor (before any instance fields can be set).
+  private static UbertsLearnPipeline buildingWorkerFor;
   private boolean updateAccordingToPriority = false;
   private double pOracleRollIn = 1;
 
@@ -337,9 +352,24 @@ public class UbertsLearnPipeline extends UbertsPipeline {
     String ac = config.getString("agendaComparator");
     Log.info("[main] agendaComparator=" + ac);
     Comparator<AgendaItem> comparator = AgendaComparators.naaclWorkshopHack(ac);
+
+    // metrics = OFF | COUNTERS | FULL
+    Metrics metrics = Metrics.getDefault();
+    metrics.setLevel(Metrics.Level.valueOf(config.getString("metrics", "COUNTERS").toUpperCase()));
+    String metricsOutput = config.getString("metrics.output", "");
+    if (!metricsOutput.isEmpty() && !metrics.isReporting()) {
+      int period = config.getInt("metrics.periodSeconds", 60);
+      metrics.startReporting(new File(metricsOutput), period, metricsOutput.endsWith(".json"));
+    }
+
     final Uberts u = new Uberts(new Random(9001), null, comparator);
     Log.warn("IGNORING agendaPriority!");
+    u.setAgendaImpl(config.getString("agendaImpl", "hash"));
+    u.setRuleMatching(config.getString("ruleMatching", "trie"));
+    u.setBatchTransGen(config.getBoolean("batchTransGen", false));
     UbertsLearnPipeline pipe = new UbertsLearnPipeline(u, grammarFile, schemaFiles, relationDefs);
+    if (pipe.perfTracker instanceof PerformanceTracker.Default)
+      ((PerformanceTracker.Default) pipe.perfTracker).setMetrics(metrics);
 
     pipe.showParamStatsAfterEveryConsume = config.getBoolean("showParamStatsAfterEveryConsume", false);
 
@@ -418,9 +448,33 @@ public class UbertsLearnPipeline extends UbertsPipeline {
     return pipe;
   }
   
+  /**
+   * Builds a pipeline to be a {@link ParallelTrainer} worker for master. The
+   * worker has its own {@link Uberts} and feature extraction (neither is thread
+   * safe), but the read-only resources of master's feature templates (e.g.
+   * Brown clusters) and master's local factor weights are re-used rather than
+   * loaded/allocated again. Weights are not read from disk, they are shared
+   * with master (see {@link #shareWeightsWith(UbertsLearnPipeline)}).
+   */
+  static synchronized UbertsLearnPipeline buildWorker(ExperimentProperties config, UbertsLearnPipeline master) throws IOException {
+    if (buildingWorkerFor != null)
+      throw new IllegalStateException("already building a worker for " + buildingWorkerFor);
+    buildingWorkerFor = master;
+    try {
+      return build(config);
+    } finally {
+      buildingWorkerFor = null;
+    }
+  }
+
   public static void main(String[] args) throws IOException {
     ExperimentProperties config = ExperimentProperties.init(args);
     UbertsLearnPipeline pipe = build(config);
+    int trainThreads = config.getInt("trainThreads", 1);
+    if (trainThreads > 1) {
+      ParallelTrainer.Sync sync = ParallelTrainer.Sync.valueOf(config.getString("trainSync", "MINIBATCH"));
+      pipe.parallelTrainer = new ParallelTrainer(pipe, trainThreads, sync, config);
+    }
     pipe.run();
   }
   
@@ -459,6 +513,12 @@ public class UbertsLearnPipeline extends UbertsPipeline {
         dev2 = () -> new PerlRegexFileInputStream(dev, dataRegex).startOrBlowup();
       if (test != null)
         test2 = () -> new PerlRegexFileInputStream(test, dataRegex).startOrBlowup();
+      List<File> all = new ArrayList<>(train);
+      if (dev != null) all.add(dev);
+      if (test != null) all.add(test);
+      for (File f : all)
+        if (BinaryRelationFile.isBinary(f))
+          throw new IllegalArgumentException("can't apply dataRegex to binary file: " + f.getPath());
     } else {
       for (File f : train)
         train2.add(() -> FileUtil.getInputStreamOrBlowup(f));
@@ -484,21 +544,21 @@ public class UbertsLearnPipeline extends UbertsPipeline {
         File tf = trainIdx < train.size() ? train.get(trainIdx) : null;
         if (tf != null) {
           Log.info("[main] pass=" + (i+1) + " of=" + passes + " trainFile=" + tf.getPath());
-          try (InputStream is = train2.get(trainIdx).get();
-              RelationFileIterator rels = new RelationFileIterator(is);
-              ManyDocRelationFileIterator many = new ManyDocRelationFileIterator(rels, true)) {
+          try (ManyDocRelationFileIterator many = openDocs(tf, train2.get(trainIdx))) {
             Iterator<List<RelDoc>> segItr = Iterators.partition(many, trainSegSize);
             int s = 0;
             while (segItr.hasNext() && !overTimeLimit) {
               // Train on segment
               List<RelDoc> segment = segItr.next();
-              runInference(segment.iterator(), "train-epoch" + i + "-segment" + s);
+              String segName = "train-epoch" + i + "-segment" + s;
+              if (parallelTrainer != null)
+                parallelTrainer.train(segment, segName);
+              else
+                runInference(segment.iterator(), segName);
 
               // Evaluate on mini-dev
               if (dev2 != null) {
-                try (InputStream dev2is = dev2.get();
-                    RelationFileIterator dr = new RelationFileIterator(dev2is);
-                    ManyDocRelationFileIterator devDocs = new ManyDocRelationFileIterator(dr, true)) {
+                try (ManyDocRelationFileIterator devDocs = openDocs(dev, dev2)) {
                   Iterator<RelDoc> miniDev = Iterators.limit(devDocs, miniDevSize);
                   runInference(miniDev, "dev-mini-epoch" + i + "-segment" + s);
                 }
@@ -521,9 +581,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
         if (dev != null) {
           Log.info("[main] pass=" + (i+1) + " of=" + passes + " devFile=" + dev.getPath());
           if (dev2 != null) {
-            try (InputStream dev2is = dev2.get();
-                RelationFileIterator rels = new RelationFileIterator(dev2is);
-                ManyDocRelationFileIterator many = new ManyDocRelationFileIterator(rels, true)) {
+            try (ManyDocRelationFileIterator many = openDocs(dev, dev2)) {
               runInference(many, "dev-full-epoch" + i);
             }
           }
@@ -531,9 +589,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
         // Full evaluate on test
         if (test2 != null) {
           Log.info("[main] pass=" + (i+1) + " of=" + passes + " testFile=" + test.getPath());
-          try (InputStream test2is = test2.get();
-              RelationFileIterator rels = new RelationFileIterator(test2is);
-              ManyDocRelationFileIterator many = new ManyDocRelationFileIterator(rels, true)) {
+          try (ManyDocRelationFileIterator many = openDocs(test, test2)) {
             runInference(many, "test-full-epoch" + i);
           }
         }
@@ -543,6 +599,19 @@ public class UbertsLearnPipeline extends UbertsPipeline {
     Log.info("[main] done at " + new java.util.Date().toString());
   }
 
+  /**
+   * Reads f as a {@link BinaryRelationFile} if it is one, otherwise reads the
+   * text (startdoc) format from text.
+   */
+  private static ManyDocRelationFileIterator openDocs(File f, Supplier<InputStream> text) throws IOException {
+    Iterator<RelLine> lines;
+    if (BinaryRelationFile.isBinary(f))
+      lines = new BinaryRelationFile(f).lines();
+    else
+      lines = RelationFileIterator.closing(text.get());
+    return new ManyDocRelationFileIterator(lines, true);
+  }
+
   public boolean dontLearn(String relation) {
     if (dontLearnRelations == null) {
       dontLearnRelations = new HashSet<>();
@@ -580,6 +649,96 @@ public class UbertsLearnPipeline extends UbertsPipeline {
       hackyGlobalWeights.completedObservation();
   }
 
+  /**
+   * Makes every local and global factor read and update the weights in other's
+   * factor of the same name. Used to train with several {@link Uberts} at once.
+   */
+  public void shareWeightsWith(UbertsLearnPipeline other) {
+    if (hackyImplementation)
+      throw new RuntimeException("hackyImplementation weights can't be shared");
+    if (name2localFactor != null) {
+      for (Entry<String, Ints3> x : name2localFactor.entrySet()) {
+        Ints3 o = other.name2localFactor.get(x.getKey());
+        if (o == null)
+          throw new IllegalArgumentException("other has no local factor named " + x.getKey());
+        x.getValue().shareWeightsWith(o);
+      }
+    }
+    for (Entry<String, GlobalFactor> x : name2globalFactor.entrySet()) {
+      if (x.getValue() instanceof NumArgsRoleCoocArgLoc) {
+        GlobalFactor o = other.name2globalFactor.get(x.getKey());
+        if (o == null)
+          throw new IllegalArgumentException("other has no global factor named " + x.getKey());
+        ((NumArgsRoleCoocArgLoc) x.getValue()).shareWeightsWith((NumArgsRoleCoocArgLoc) o);
+      }
+    }
+  }
+
+  /**
+   * Setup for being one of a {@link ParallelTrainer}'s workers: shares weights
+   * with master and never writes predictions.
+   */
+  void becomeWorkerFor(UbertsLearnPipeline master, boolean deferUpdates, Object completedObservationLock) {
+    shareWeightsWith(master);
+    this.predictionsDir = null;
+    this.deferUpdates = deferUpdates;
+    this.completedObservationLock = completedObservationLock;
+  }
+
+  /**
+   * Called on a {@link ParallelTrainer} worker instead of finish: hands the
+   * performance measured on this worker's documents to master, so that
+   * master.finish reports (and tracks) the score over all of the documents.
+   */
+  void finishWorker(String dataName, UbertsLearnPipeline master) {
+    super.finish(dataName);
+    master.perfByRel.addAll(perfByRel);
+    perfByRel.clear();
+    perfByRole.clear();
+    mode = null;
+  }
+
+  /** Returns and clears the updates which haven't been applied yet */
+  List<Consumer<Double>> takeBatch() {
+    List<Consumer<Double>> b = batch;
+    batch = new ArrayList<>();
+    return b;
+  }
+
+  /**
+   * Add updates computed elsewhere (e.g. by a {@link ParallelTrainer} worker),
+   * which are applied once there are batchSize of them, as in train.
+   */
+  void addToBatch(List<Consumer<Double>> updates) {
+    for (Consumer<Double> u : updates) {
+      batch.add(u);
+      maybeApplyBatch();
+    }
+  }
+
+  /** Returns true if the batch was applied */
+  private boolean maybeApplyBatch() {
+    if (deferUpdates || batch.size() != batchSize)
+      return false;
+    timer.start("train/batchApply");
+    for (Consumer<Double> u : batch)
+      u.accept(1d / batchSize);
+    batch.clear();
+    completedObservationLocked();
+    timer.stop("train/batchApply");
+    return true;
+  }
+
+  private void completedObservationLocked() {
+    if (completedObservationLock == null) {
+      completedObservation();
+    } else {
+      synchronized (completedObservationLock) {
+        completedObservation();
+      }
+    }
+  }
+
   public UbertsLearnPipeline(Uberts u, File grammarFile, Iterable<File> schemaFiles, File relationDefs) throws IOException {
     super(u, grammarFile, schemaFiles, relationDefs);
 
@@ -606,7 +765,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
       NumArgsRoleCoocArgLoc a = new NumArgsRoleCoocArgLoc("predicate2", 0, p, u);
       a.storeExactFeatureIndices();
       String gfName = key + p.toString(false);
-      if ((io = parameterIO.get(gfName)) != null && io.read != null)
+      if (buildingWorkerFor == null && (io = parameterIO.get(gfName)) != null && io.read != null)
         a.readWeightsFrom(io.read);
       Object old = name2globalFactor.put(gfName, a);
       assert old == null;
@@ -626,7 +785,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
         NumArgsRoleCoocArgLoc a = new NumArgsRoleCoocArgLoc(srl2.getName(), 1, p, u);
         a.storeExactFeatureIndices();
         String gfName = key + p.toString(false);
-        if ((io = parameterIO.get(gfName)) != null && io.read != null)
+        if (buildingWorkerFor == null && (io = parameterIO.get(gfName)) != null && io.read != null)
           a.readWeightsFrom(io.read);
         name2globalFactor.put(gfName, a);
         u.addGlobalFactor(a.getTrigger(u), a);
@@ -643,7 +802,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
         NumArgsRoleCoocArgLoc a = new NumArgsRoleCoocArgLoc(srl2.getName(), 0, p, u);
         a.storeExactFeatureIndices();
         String gfName = key + p.toString(false);
-        if ((io = parameterIO.get(gfName)) != null && io.read != null)
+        if (buildingWorkerFor == null && (io = parameterIO.get(gfName)) != null && io.read != null)
           a.readWeightsFrom(io.read);
         name2globalFactor.put(gfName, a);
         u.addGlobalFactor(a.getTrigger(u), a);
@@ -661,7 +820,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
         NumArgsRoleCoocArgLoc a = new NumArgsRoleCoocArgLoc(srl3.getName(), 0, p, u);
         a.storeExactFeatureIndices();
         String gfName = key + p.toString(false);
-        if ((io = parameterIO.get(gfName)) != null && io.read != null)
+        if (buildingWorkerFor == null && (io = parameterIO.get(gfName)) != null && io.read != null)
           a.readWeightsFrom(io.read);
         name2globalFactor.put(gfName, a);
         u.addGlobalFactor(a.getTrigger(u), a);
@@ -674,7 +833,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
       NumArgsRoleCoocArgLoc a = new NumArgsRoleCoocArgLoc("argument4", 0, p, u);
       a.storeExactFeatureIndices();
       String gfName = key + p.toString(false);
-      if ((io = parameterIO.get(gfName)) != null && io.read != null)
+      if (buildingWorkerFor == null && (io = parameterIO.get(gfName)) != null && io.read != null)
         a.readWeightsFrom(io.read);
       name2globalFactor.put(gfName, a);
       u.addGlobalFactor(a.getTrigger(u), a);
@@ -687,7 +846,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
       NumArgsRoleCoocArgLoc a = new NumArgsRoleCoocArgLoc("argument4", 2, p, u);
       a.storeExactFeatureIndices();
       String gfName = key + p.toString(false);
-      if ((io = parameterIO.get(gfName)) != null && io.read != null)
+      if (buildingWorkerFor == null && (io = parameterIO.get(gfName)) != null && io.read != null)
         a.readWeightsFrom(io.read);
       name2globalFactor.put(key + p.toString(false), a);
       u.addGlobalFactor(a.getTrigger(u), a);
@@ -739,8 +898,12 @@ public class UbertsLearnPipeline extends UbertsPipeline {
 
 
     if (templateFeats) {
-      if (localFactorHelper == null)
-        localFactorHelper = new BasicFeatureTemplates();
+      if (localFactorHelper == null) {
+        if (buildingWorkerFor != null && buildingWorkerFor.localFactorHelper != null)
+          localFactorHelper = new BasicFeatureTemplates(buildingWorkerFor.localFactorHelper);
+        else
+          localFactorHelper = new BasicFeatureTemplates();
+      }
 
       ExperimentProperties config = ExperimentProperties.getInstance();
       Instance2 conf = getParameterIO().getOrAddDefault(r.rhs.relName);
@@ -750,8 +913,12 @@ public class UbertsLearnPipeline extends UbertsPipeline {
       String name = r.tryToParseNameFromComment();
       if (name == null)
         name = r.rhs.relName;
+      // ParallelTrainer workers use master's weights rather than allocating their own
+      OldFeaturesWrapper.Ints3 masterFe3 = null;
+      if (buildingWorkerFor != null && buildingWorkerFor.name2localFactor != null)
+        masterFe3 = buildingWorkerFor.name2localFactor.get(name);
       OldFeaturesWrapper.Ints3 fe3 = OldFeaturesWrapper.Ints3.build(
-          name, localFactorHelper, r.rhs.rel, !conf.learn, learnDebug, config);
+          name, localFactorHelper, r.rhs.rel, !conf.learn, learnDebug, config, masterFe3);
 
       // Oracle feature (cheating)
       String softOracleKey = r.rhs.relName + ".softLocalOracle";
@@ -773,7 +940,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
       f = new LocalFactor.Sum(fe3, f);
 
       // Maybe read in some features
-      if (conf.read != null)
+      if (conf.read != null && masterFe3 == null)
         fe3.readWeightsFrom(conf.read, !conf.learn);
 
       // Setup write-features-to-disk
@@ -1944,6 +2111,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
     if (eventCounts.getTotalCount() % 5000 == 0) {
       System.out.println("pipeline counts: " + eventCounts.toStringWithEq());
       System.out.println("uberts counts: " + u.stats.toStringWithEq());
+      System.out.println("uberts metrics: " + Metrics.getDefault());
       System.out.println("[memLeak] " + u.getState());
     }
 
@@ -2170,7 +2338,7 @@ public class UbertsLearnPipeline extends UbertsPipeline {
           c.predScore.backwards(+1);
 
       if (updates.size() > 0)
-        completedObservation();
+        completedObservationLocked();
 
       break;
     case LATEST_UPDATE:
@@ -2377,16 +2545,8 @@ public class UbertsLearnPipeline extends UbertsPipeline {
       throw new RuntimeException("implement " + trainMethod);
     }
 
-    if (batch.size() == batchSize) {
-      timer.start("train/batchApply");
-      for (Consumer<Double> u : batch)
-        u.accept(1d / batchSize);
-      batch.clear();
-      completedObservation();
-      timer.stop("train/batchApply");
-      if (verbose >= 1)
-        System.out.println();
-    }
+    if (maybeApplyBatch() && verbose >= 1)
+      System.out.println();
   }
 
 }
@@ -408,32 +408,14 @@ public abstract class UbertsPipeline {
 
     // NOTE: This iterator calls lookupNode which makes Uberts grow in memory
     // usage. See Uberts.clearNodes, which is called from cleanupUbertsForDoc.
-    TypeInference.Expander exp = typeInf.new Expander(dontBackwardsGenerate);
+    TypeInference.Expander exp = newExpander();
     while (x.hasNext()) {
       tIter.start();
       RelDoc doc = x.next();
       docs++;
       tIter.stop();
 
-      // Generate intermediate facts w.r.t. the transition system
-      tExp.start();
-      exp.expand(doc);
-      tExp.stop();
-
-      // Add labels, input data to state, etc
-      tSetup.start();
-      setupUbertsForDoc(u, doc);
-      tSetup.stop();
-
-      // Call learning/prediction algorithm
-      tConsume.start();
-      consume(doc);
-      tConsume.stop();
-
-      // Free any non-schema edges and nodes
-      tCleanup.start();
-      cleanupUbertsForDoc(u, doc);
-      tCleanup.stop();
+      runInference(doc, exp);
 
       if (tm.enoughTimePassed(60)) {
         Log.info("[main] dataName=" + dataName
@@ -444,6 +426,36 @@ public abstract class UbertsPipeline {
     finish(dataName);
   }
 
+  /**
+   * Expands, sets up, consumes, and cleans up after a single document.
+   * Does not call start/finish.
+   */
+  public void runInference(RelDoc doc, TypeInference.Expander exp) {
+    // Generate intermediate facts w.r.t. the transition system
+    tExp.start();
+    exp.expand(doc);
+    tExp.stop();
+
+    // Add labels, input data to state, etc
+    tSetup.start();
+    setupUbertsForDoc(u, doc);
+    tSetup.stop();
+
+    // Call learning/prediction algorithm
+    tConsume.start();
+    consume(doc);
+    tConsume.stop();
+
+    // Free any non-schema edges and nodes
+    tCleanup.start();
+    cleanupUbertsForDoc(u, doc);
+    tCleanup.stop();
+  }
+
+  public TypeInference.Expander newExpander() {
+    return typeInf.new Expander(dontBackwardsGenerate);
+  }
+
   /**
    * @deprecated see {@link UbertsLearnPipeline}
    */
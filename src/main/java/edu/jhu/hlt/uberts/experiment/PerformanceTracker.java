@@ -7,6 +7,7 @@ import edu.jhu.hlt.tutils.FPR;
 import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.uberts.auto.UbertsLearnPipeline;
 import edu.jhu.hlt.uberts.auto.UbertsPipeline.Mode;
+import edu.jhu.hlt.uberts.util.Metrics;
 
 /**
  * Knows about a metric of interest, e.g. F(argument4), and tracks its value
@@ -36,10 +37,23 @@ public interface PerformanceTracker {
    */
   public static class Default implements PerformanceTracker {
     private Map<String, PerformanceTracker> byRelation = new HashMap<>();
+    private Metrics metrics;
+
+    /** Also record perf/mode/relation/{p,r,f1} as gauges in metrics */
+    public void setMetrics(Metrics metrics) {
+      this.metrics = metrics;
+    }
 
     @Override
     public void observe(Mode mode, Map<String, FPR> perfByRelation) {
       for (String rel : perfByRelation.keySet()) {
+        if (metrics != null) {
+          FPR f = perfByRelation.get(rel);
+          String p = "perf/" + mode + "/" + rel;
+          metrics.gauge(p + "/p").set(f.precision());
+          metrics.gauge(p + "/r").set(f.recall());
+          metrics.gauge(p + "/f1").set(f.f1());
+        }
         PerformanceTracker pt = byRelation.get(rel);
         if (pt == null) {
           pt = new Simple(rel);
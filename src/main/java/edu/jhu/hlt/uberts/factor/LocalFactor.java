@@ -1,5 +1,6 @@
 package edu.jhu.hlt.uberts.factor;
 
+import java.util.List;
 import java.util.Random;
 
 import edu.jhu.hlt.tutils.scoring.Adjoints;
@@ -11,6 +12,19 @@ public interface LocalFactor {
 
   public Adjoints score(HypEdge y, Uberts x);
 
+  /**
+   * Scores many edges at once, e.g. everything a {@link edu.jhu.hlt.uberts.transition.TransGen}
+   * produced for one new fact. out[i] is the score of ys.get(i) (may be null,
+   * like score). Override this if there is a faster way than calling
+   * {@link #score(HypEdge, Uberts)} on each edge.
+   */
+  default void score(List<HypEdge> ys, Uberts x, Adjoints[] out) {
+    int n = ys.size();
+    assert out.length >= n;
+    for (int i = 0; i < n; i++)
+      out[i] = score(ys.get(i), x);
+  }
+
 
   public static class Sum implements LocalFactor {
     private LocalFactor left, right;
@@ -37,6 +51,23 @@ public interface LocalFactor {
       return a;
     }
     @Override
+    public void score(List<HypEdge> ys, Uberts x, Adjoints[] out) {
+      int n = ys.size();
+      Adjoints[] r = new Adjoints[n];
+      left.score(ys, x, out);
+      right.score(ys, x, r);
+      for (int i = 0; i < n; i++) {
+        Adjoints l = out[i];
+        if (l == Adjoints.Constant.ZERO) {
+          out[i] = r[i];
+        } else if (r[i] != Adjoints.Constant.ZERO) {
+          out[i] = Adjoints.sum(l, r[i]);
+        }
+        if (DEBUG)
+          out[i] = new Adjoints.Named("" + ys.get(i), out[i]);
+      }
+    }
+    @Override
     public String toString() {
       return "(Sum " + left + " " + right + ")";
     }
@@ -42,6 +42,7 @@ import edu.jhu.hlt.uberts.auto.UbertsLearnPipeline;
 import edu.jhu.hlt.uberts.features.DebugFeatureAdj;
 import edu.jhu.hlt.uberts.features.FyMode;
 import edu.jhu.hlt.uberts.srl.EdgeUtils;
+import edu.jhu.hlt.uberts.util.Metrics;
 import edu.jhu.prim.tuple.Pair;
 import edu.jhu.util.Alphabet;
 
@@ -104,9 +105,17 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
 
   private double globalToLocalScale = 1;  //0.25
 
+  // If true, rescore only records which state edges affected which agenda
+  // edges, and the global features are computed and added (with one agenda
+  // remove+add) when an edge reaches the top of the agenda. See PendingRescores.
+  private boolean lazyRescore = false;
+
   // Stats
   private int nRescore = 0;
   private int nEdgeRescore = 0;
+  private int nDeferred = 0;
+  private int nAvoided = 0;
+  private Metrics.Counter mDeferred, mAvoided;
   private TimeMarker tm = new TimeMarker();
   
   
@@ -146,8 +155,7 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
 
     ExperimentProperties config = ExperimentProperties.getInstance();
     dimension = config.getInt("global.hashDimension", 1 << 22);
-    int numIntercept = 0;
-    theta = new AveragedPerceptronWeights(dimension, numIntercept);
+    theta = AveragedPerceptronWeights.build(dimension);
 
     this.globalToLocalScale = config.getDouble("globalToLocalScale", globalToLocalScale);
     Log.info("[main] globalToLocalScale=" + globalToLocalScale);
@@ -173,6 +181,94 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
       additiveArgLocGlobal = config.getBoolean("additiveArgLocGlobal", additiveArgLocGlobal);
       Log.info("[main] additiveArgLocGlobal=" + additiveArgLocGlobal);
     }
+
+    lazyRescore = config.getBoolean("lazyGlobalRescore", lazyRescore);
+    Log.info("[main] lazyGlobalRescore=" + lazyRescore);
+    Metrics m = Metrics.getDefault();
+    mDeferred = m.counter("globalRescore/deferred/" + name());
+    mAvoided = m.counter("globalRescore/avoided/" + name());
+  }
+
+  /** A state edge which should change the score of some agenda edges */
+  private static class Trigger {
+    final HypEdge stateEdge;
+    final HypNode t;
+    final LL<HypEdge> inGroupInState;   // snapshot at the time of the trigger
+    Trigger(HypEdge stateEdge, HypNode t, LL<HypEdge> inGroupInState) {
+      this.stateEdge = stateEdge;
+      this.t = t;
+      this.inGroupInState = inGroupInState;
+    }
+  }
+
+  /**
+   * Triggers which haven't been applied to agenda edges yet, for one
+   * {@link Agenda}. An agenda edge may be affected by many triggers before it
+   * is popped, in which case they are all applied (in order) to one
+   * {@link MultiFeatureLL} and the edge is moved in the heap once rather than
+   * once per trigger. Edges which are never looked at (e.g. the agenda is
+   * cleared, or they are removed) are never rescored, and their entries are
+   * dropped when that happens. Every trigger is counted towards nAvoided at
+   * most once, when it is actually skipped.
+   *
+   * The scores are the same as eager rescoring (modulo weights changing
+   * between the trigger and the pop, e.g. LASO2), but the order edges come off
+   * the agenda can differ: a pending trigger can't raise an edge above the top
+   * of the agenda until that edge is at the top. With the usual comparators
+   * (BY_RELATION,BY_TARGET,...,BY_SCORE) this only matters for ties on all but
+   * BY_SCORE.
+   */
+  private class PendingRescores implements Agenda.LazyRescorer {
+    // Most recent trigger first
+    private Map<HypEdge, LL<Trigger>> pending = new HashMap<>();
+
+    void defer(HypEdge agendaEdge, Trigger tr) {
+      pending.put(agendaEdge, new LL<>(tr, pending.get(agendaEdge)));
+      nDeferred++;
+      mDeferred.increment();
+    }
+
+    @Override
+    public Adjoints settle(HypEdge e, Adjoints score) {
+      LL<Trigger> p = pending.remove(e);
+      if (p == null)
+        return null;
+      Deque<Trigger> inOrder = new ArrayDeque<>();
+      for (LL<Trigger> cur = p; cur != null; cur = cur.next)
+        inOrder.push(cur.item);
+      MultiFeatureLL gfeats = new MultiFeatureLL(score, e);
+      for (Trigger tr : inOrder)
+        addGlobalFeatures(gfeats, e, tr.stateEdge, tr.t, tr.inGroupInState);
+      nEdgeRescore++;
+      // Eager rescoring would have done one remove+add per trigger, we did one
+      avoided(inOrder.size() - 1);
+      return gfeats;
+    }
+
+    @Override
+    public void forget(HypEdge e) {
+      // Removed before being looked at, none of its rescorings were needed
+      avoided(length(pending.remove(e)));
+    }
+
+    @Override
+    public void clear() {
+      for (LL<Trigger> p : pending.values())
+        avoided(length(p));
+      pending.clear();
+    }
+
+    private int length(LL<Trigger> p) {
+      int n = 0;
+      for (LL<Trigger> cur = p; cur != null; cur = cur.next)
+        n++;
+      return n;
+    }
+
+    private void avoided(int n) {
+      nAvoided += n;
+      mAvoided.add(n);
+    }
   }
 
   static class Spany implements Comparable<Spany> {
@@ -401,12 +497,15 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
     public void update(String key, String[] fy, List<String> fx, boolean add) {
       int nx = fx.size();
       int[] fyx = new int[fy.length * nx];
-      for (int i = 0; i < fy.length; i++) {
-        for (int j = 0; j < nx; j++) {
-          // fx has to come first so we can tell when a feature belongs to a
-          // particular fx template.
-          String fn = fx.get(j) + "/" + fy[i];
-          fyx[i*nx + j] = featureNames.lookupIndex(fn);
+      // Locked since featureNames may be shared, see shareWeightsWith
+      synchronized (featureNames) {
+        for (int i = 0; i < fy.length; i++) {
+          for (int j = 0; j < nx; j++) {
+            // fx has to come first so we can tell when a feature belongs to a
+            // particular fx template.
+            String fn = fx.get(j) + "/" + fy[i];
+            fyx[i*nx + j] = featureNames.lookupIndex(fn);
+          }
         }
       }
       FeatureLL prev = add ? globalByKey.get(key) : null;
@@ -494,6 +593,13 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
   }
 
   private Adjoints rescoreOneAgendaEdge(HypEdge agendaEdge, Adjoints oldScore, HypEdge stateEdge, HypNode t, LL<HypEdge> inGroupInState) {
+    MultiFeatureLL gfeats = new MultiFeatureLL(oldScore, agendaEdge);
+    addGlobalFeatures(gfeats, agendaEdge, stateEdge, t, inGroupInState);
+    return gfeats;
+  }
+
+  /** Adds the features for one (stateEdge, agendaEdge) pair to gfeats */
+  private void addGlobalFeatures(MultiFeatureLL gfeats, HypEdge agendaEdge, HypEdge stateEdge, HypNode t, LL<HypEdge> inGroupInState) {
     String base = UbertsLearnPipeline.isNilFact(agendaEdge) ? "n" : "s";
     if (UbertsLearnPipeline.INCLUDE_EMPTY_HISTORY_BOOL_IN_BASE)
       base += (inGroupInState == null ? "0" : "1");
@@ -502,8 +608,6 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
 //    if (stateIsNil)
 //      Log.info("check it out!");
 
-    MultiFeatureLL gfeats = new MultiFeatureLL(oldScore, agendaEdge);
-
     // Pariwise features
     for (PairFeat pf : pairwiseFeaturesFunctions) {
       String fxBase = pf.getName() + "/" + base;
@@ -572,8 +676,6 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
 //        System.out.println("hist: " + cur.item);
 //      System.out.println();
 //    }
-
-    return gfeats;
   }
 
   private List<Object> makeDecoderGroupKey(HypEdge f) {
@@ -626,6 +728,12 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
     }
 
     List<Object> newEdgeGroupKey = makeDecoderGroupKey(stateEdge);
+    PendingRescores lazy = null;
+    Trigger trig = null;
+    if (lazyRescore) {
+      lazy = (PendingRescores) a.getLazyRescorer(this, PendingRescores::new);
+      trig = new Trigger(stateEdge, t, inGroupInState);
+    }
     int n = 0;
     for (HypEdge agendaEdge : inGroupOnAgenda) {
 
@@ -650,8 +758,12 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
         System.out.println("[Global rescore] " + agendaEdge + " is going to be re-scored according to " + stateEdge);
       }
 
-      nEdgeRescore++;
       n++;
+      if (lazy != null) {
+        lazy.defer(agendaEdge, trig);
+        continue;
+      }
+      nEdgeRescore++;
       Adjoints oldScore = a.getScore(agendaEdge);
       a.remove(agendaEdge);
       Adjoints newScore = rescoreOneAgendaEdge(agendaEdge, oldScore, stateEdge, t, inGroupInState);
@@ -791,6 +903,17 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
     return new Term[] { Term.uniqArguments(u.getEdgeType(firesFor)) };
   }
 
+  /**
+   * Makes this factor read and update other's weights (and feature alphabet),
+   * e.g. for training with several {@link Uberts}s at once.
+   */
+  public void shareWeightsWith(NumArgsRoleCoocArgLoc other) {
+    if (other.dimension != dimension)
+      throw new IllegalArgumentException("dimension=" + dimension + " other.dimension=" + other.dimension);
+    this.theta = other.theta;
+    this.featureNames = other.featureNames;
+  }
+
   public void useAverageWeights(boolean useAvg) {
     Log.info("useAvg " + this.useAvg + " => " + useAvg);
     this.useAvg = useAvg;
@@ -803,8 +926,12 @@ public class NumArgsRoleCoocArgLoc implements GlobalFactor {
   @Override
   public String getStats() {
     String s = "nRescore=" + nRescore + " nEdgeRescore=" + nEdgeRescore;
+    if (lazyRescore)
+      s += " nDeferred=" + nDeferred + " nAvoided=" + nAvoided;
     nRescore = 0;
     nEdgeRescore = 0;
+    nDeferred = 0;
+    nAvoided = 0;
     return s;
   }
 
@@ -0,0 +1,225 @@
+package edu.jhu.hlt.uberts.features;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.jhu.hlt.fnparse.datatypes.Sentence;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.uberts.HypEdge;
+import edu.jhu.hlt.uberts.Relation;
+import edu.jhu.hlt.uberts.util.Metrics;
+
+/**
+ * Caches int[] features for edges of one {@link Relation}, scoped to a
+ * document ({@link Sentence}). Keys are the (interned to int) values of some or
+ * all of an edge's tail nodes, so only use this when the features are a
+ * function of the sentence and those values (e.g. see
+ * {@link OldFeaturesWrapper#onlyUseTS} for argument4).
+ *
+ * Memory is bounded by maxEntries, counted over all documents. If warmStart
+ * is true then entries for previous documents are kept (least recently used
+ * documents are evicted first) so that they can be re-used in the next epoch,
+ * otherwise the cache is cleared every time the document changes.
+ *
+ * Keys intern tail node values to ints. That table is cleared along with the
+ * rest of the cache (every document when warmStart is false), and if it grows
+ * past a bound proportional to maxEntries (possible with warmStart, since
+ * evicted documents' values aren't forgotten) everything is dropped and the
+ * cache starts over.
+ *
+ * Call {@link #clear()} if the features change (e.g. refinements are added).
+ * {@link #key(HypEdge, Sentence)} switches to the edge's document before
+ * interning values, so a Key is only valid for that document and until the
+ * next call to key: use it for the {@link #get(Key)} and {@link #put(Key, int[])}
+ * which follow and then drop it.
+ *
+ * @author travis
+ */
+public class FeatureCache {
+  public static int DEBUG = 1;
+
+  private Relation rel;
+  private int[] keyArgs;
+  private int maxEntries;
+  private boolean warmStart;
+
+  // Tail node values -> small ints, cleared with the cache (or when bigger than maxValueIds)
+  private Map<Object, Integer> valueIds = new HashMap<>();
+  private int maxValueIds;
+
+  // Keys are document ids, in least to most recently used order
+  private LinkedHashMap<String, DocCache> docs = new LinkedHashMap<>(16, 0.75f, true);
+  private DocCache cur;
+  private Sentence curTag;
+  private int size;   // number of entries in all of docs
+
+  private Metrics.Counter mHit, mMiss, mEvict, mWarm, mReset;
+
+  public static final class Key {
+    private final int[] ids;
+    private final int hc;
+    Key(int[] ids) {
+      this.ids = ids;
+      this.hc = Arrays.hashCode(ids);
+    }
+    @Override
+    public int hashCode() {
+      return hc;
+    }
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof Key) {
+        Key k = (Key) other;
+        return hc == k.hc && Arrays.equals(ids, k.ids);
+      }
+      return false;
+    }
+  }
+
+  static final class DocCache {
+    final String id;
+    final int numTokens;
+    final Map<Key, int[]> features = new HashMap<>();
+    DocCache(Sentence s) {
+      this.id = s.getId();
+      this.numTokens = s.size();
+    }
+    boolean sameDoc(Sentence s) {
+      return id.equals(s.getId()) && numTokens == s.size();
+    }
+  }
+
+  /**
+   * @param keyArgs are the indices of the tail nodes which the features depend
+   * on, or null to use all of them.
+   */
+  public FeatureCache(Relation rel, int[] keyArgs, int maxEntries, boolean warmStart) {
+    if (keyArgs == null) {
+      keyArgs = new int[rel.getNumArgs()];
+      for (int i = 0; i < keyArgs.length; i++)
+        keyArgs[i] = i;
+    }
+    Log.info("[main] rel=" + rel.getName()
+        + " keyArgs=" + Arrays.toString(keyArgs)
+        + " maxEntries=" + maxEntries
+        + " warmStart=" + warmStart);
+    this.rel = rel;
+    this.keyArgs = keyArgs;
+    this.maxEntries = maxEntries;
+    this.warmStart = warmStart;
+    this.maxValueIds = (int) Math.min(Integer.MAX_VALUE, Math.max(1 << 16, 2L * maxEntries * keyArgs.length));
+    Metrics m = Metrics.getDefault();
+    mHit = m.counter("featureCache/hit/" + rel.getName());
+    mMiss = m.counter("featureCache/miss/" + rel.getName());
+    mEvict = m.counter("featureCache/evict/" + rel.getName());
+    mWarm = m.counter("featureCache/warmStartDoc/" + rel.getName());
+    mReset = m.counter("featureCache/resetValueIds/" + rel.getName());
+  }
+
+  public Relation getRelation() {
+    return rel;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    valueIds.clear();
+    docs.clear();
+    cur = null;
+    curTag = null;
+    size = 0;
+  }
+
+  private void setDocument(Sentence s) {
+    if (s == curTag)
+      return;
+    curTag = s;
+    if (!warmStart) {
+      valueIds.clear();
+      docs.clear();
+      size = 0;
+    }
+    cur = docs.get(s.getId());
+    if (cur != null && !cur.sameDoc(s)) {
+      size -= cur.features.size();
+      docs.remove(s.getId());
+      cur = null;
+    }
+    if (cur == null) {
+      cur = new DocCache(s);
+      docs.put(cur.id, cur);
+    } else {
+      mWarm.increment();
+    }
+  }
+
+  /**
+   * Makes s the current document and interns the values of y's key arguments,
+   * y must be of type rel.
+   */
+  public Key key(HypEdge y, Sentence s) {
+    assert y.getRelation() == rel;
+    if (valueIds.size() >= maxValueIds) {
+      // Every cached Key refers to these ids, so they have to go too
+      if (DEBUG > 0)
+        Log.info("rel=" + rel.getName() + " numValueIds=" + valueIds.size() + ", clearing cache");
+      mReset.increment();
+      clear();
+    }
+    // This may clear valueIds, so it has to happen before interning
+    setDocument(s);
+    int[] ids = new int[keyArgs.length];
+    for (int i = 0; i < ids.length; i++) {
+      Object v = y.getTail(keyArgs[i]).getValue();
+      Integer id = valueIds.get(v);
+      if (id == null) {
+        id = valueIds.size();
+        valueIds.put(v, id);
+      }
+      ids[i] = id;
+    }
+    return new Key(ids);
+  }
+
+  /** Returns null on a cache miss, k must come from the last call to key */
+  public int[] get(Key k) {
+    assert cur != null;
+    int[] f = cur.features.get(k);
+    if (f == null)
+      mMiss.increment();
+    else
+      mHit.increment();
+    return f;
+  }
+
+  /** Call after key (which sets the current document) */
+  public void put(Key k, int[] features) {
+    assert cur != null;
+    if (size >= maxEntries && !evict())
+      return;
+    if (cur.features.put(k, features) == null)
+      size++;
+  }
+
+  /** Removes the least recently used document which isn't the current one */
+  private boolean evict() {
+    Iterator<DocCache> itr = docs.values().iterator();
+    while (itr.hasNext()) {
+      DocCache d = itr.next();
+      if (d != cur) {
+        size -= d.features.size();
+        itr.remove();
+        mEvict.increment();
+        if (DEBUG > 1)
+          Log.info("rel=" + rel.getName() + " evicted " + d.id + " size=" + size);
+        return true;
+      }
+    }
+    return false;
+  }
+}
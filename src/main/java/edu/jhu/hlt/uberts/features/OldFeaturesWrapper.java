@@ -24,8 +24,11 @@ import edu.jhu.hlt.fnparse.datatypes.ConstituencyParse;
 import edu.jhu.hlt.fnparse.datatypes.DependencyParse;
 import edu.jhu.hlt.fnparse.datatypes.Sentence;
 import edu.jhu.hlt.fnparse.datatypes.StringLabeledDirectedGraph;
+import edu.jhu.hlt.fnparse.datatypes.TokenVocab;
 import edu.jhu.hlt.fnparse.features.BasicFeatureTemplates;
+import edu.jhu.hlt.fnparse.features.IntFeatureSink;
 import edu.jhu.hlt.fnparse.features.TemplateContext;
+import edu.jhu.hlt.fnparse.features.TemplateProductPlan;
 import edu.jhu.hlt.fnparse.features.TemplatedFeatures;
 import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
 import edu.jhu.hlt.fnparse.features.TemplatedFeatures.TemplateJoin;
@@ -40,7 +43,6 @@ import edu.jhu.hlt.tutils.FileUtil;
 import edu.jhu.hlt.tutils.LL;
 import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.tutils.Span;
-import edu.jhu.hlt.tutils.SpanPair;
 import edu.jhu.hlt.tutils.StringUtils;
 import edu.jhu.hlt.tutils.Timer;
 import edu.jhu.hlt.tutils.hash.Hash;
@@ -55,6 +57,7 @@ import edu.jhu.hlt.uberts.Uberts;
 import edu.jhu.hlt.uberts.auto.UbertsLearnPipeline;
 import edu.jhu.hlt.uberts.factor.LocalFactor;
 import edu.jhu.hlt.uberts.srl.EdgeUtils;
+import edu.jhu.hlt.uberts.util.Metrics;
 import edu.jhu.prim.tuple.Pair;
 import edu.jhu.util.Alphabet;
 
@@ -272,6 +275,14 @@ public class OldFeaturesWrapper {
     public static final boolean USE_SHA256 = false; // ExperimentProperties.getInstance().getBoolean("Int3.SHA256", false);
 
     public static Ints3 build(String name, BasicFeatureTemplates bft, Relation r, boolean fixed, boolean learnDebug, ExperimentProperties config) {
+      return build(name, bft, r, fixed, learnDebug, config, null);
+    }
+
+    /**
+     * @param shareWeights if not null, the returned factor reads and updates
+     * these weights rather than allocating its own (see {@link #shareWeightsWith(Ints3)}).
+     */
+    public static Ints3 build(String name, BasicFeatureTemplates bft, Relation r, boolean fixed, boolean learnDebug, ExperimentProperties config, Ints3 shareWeights) {
       if (name == null)
         throw new IllegalArgumentException("name is null");
       // Old way: take a map of <relationName>:<featureFile>
@@ -290,12 +301,12 @@ public class OldFeaturesWrapper {
         throw new RuntimeException("not a file: " + ff.getPath());
       int dim = 1 << config.getInt(r.getName() + ".hashBits", 22);
       Log.info("[main] relation=" + r.getName() + " featureSetDir=" + dir.getPath() + " dim=" + dim);
-      boolean cacheArg4 = !learnDebug && r.getName().equals("argument4");  // && ff.getPath().contains("by-hand");
-      Ints3 i3 = new Ints3(name, bft, r, ff, dim, fixed, cacheArg4, learnDebug);
+      boolean cacheFeatures = !learnDebug && config.getBoolean("featureCache", true);
+      Ints3 i3 = new Ints3(name, bft, r, ff, dim, fixed, cacheFeatures, learnDebug, shareWeights);
 
       if ("argument4".equals(r.getName())) {
         Log.info("[main] refining with (f,k) and (k,)");
-        i3.inner.onlyUseTS = cacheArg4;
+        i3.inner.onlyUseTS = cacheFeatures;
         i3.useBaseFeatures(false);
 
         i3.refine(new Refinement() {
@@ -438,7 +449,9 @@ public class OldFeaturesWrapper {
     private int dimension;
     private Intercept intercept;
     private boolean useAvg = false;
-    private Counts<String> cnt = new Counts<>();
+
+    // Registered once in the constructor since rel doesn't change
+    private Metrics.Counter mScore, mScoreNoFeat;
 
     // Set to true when you are using pre-trained weights. Does three things:
     // 1) disables the effects of calling useAverageWeights
@@ -455,11 +468,14 @@ public class OldFeaturesWrapper {
     // For writing out features to a file
     private BufferedWriter featStrDebug;
 
-    // For caching refined features based on (t,s)
-    // Only for use with refinements.
-    private Map<SpanPair, int[]> arg4FeatureCache;
-    private Counts<String> cacheCounts = new Counts<>();
-    private Sentence cacheTag = null;
+    // Caches f(x), not the refined features, so refinements don't invalidate it
+    private FeatureCache featureCache;
+
+    // If true, extract hashes directly rather than hashing feature strings.
+    // Only used when nothing needs the strings (FEATURE_DEBUG, learnDebug, featStrDebug).
+    private boolean useIntFeatures;
+    private IntFeatureSink sink;
+    private IntFeatureSink batchSink;   // see score(List, Uberts, Adjoints[])
 
     // You can add refinements (label features) to make the features more specific,
     // but this boolean says whether just f(x) should be included in every feature
@@ -515,7 +531,7 @@ public class OldFeaturesWrapper {
       }
 //      theta2.add(new Pair<>(f, new AveragedPerceptronWeights(dimension, 0)));
 //      theta2RefName.add(name);
-      theta2.add(new Pair<>(r, new AveragedPerceptronWeights(dimension, 0)));
+      theta2.add(new Pair<>(r, AveragedPerceptronWeights.build(dimension)));
     }
 
     /**
@@ -542,29 +558,52 @@ public class OldFeaturesWrapper {
       }
     }
 
-    public Ints3(String name, BasicFeatureTemplates bft, Relation r, File featureSet, int dimension, boolean fixed, boolean cacheArg4, boolean learnDebug) {
+    public Ints3(String name, BasicFeatureTemplates bft, Relation r, File featureSet, int dimension, boolean fixed, boolean cacheFeatures, boolean learnDebug) {
+      this(name, bft, r, featureSet, dimension, fixed, cacheFeatures, learnDebug, null);
+    }
+
+    public Ints3(String name, BasicFeatureTemplates bft, Relation r, File featureSet, int dimension, boolean fixed, boolean cacheFeatures, boolean learnDebug, Ints3 shareWeights) {
       Log.info("name=" + name
           + "r=" + r.getName()
           + " featureSet=" + featureSet.getPath()
           + " dimension=" + dimension
           + " fixed=" + fixed
-          + " cacheArg4=" + cacheArg4
+          + " cacheFeatures=" + cacheFeatures
           + " learnDebug=" + learnDebug);
-      if (cacheArg4) assert !learnDebug : "if you want learnDebug=true, you should set cacheArg4=false";
+      if (cacheFeatures) assert !learnDebug : "if you want learnDebug=true, you should set cacheFeatures=false";
       this.name = name;
       this.inner = new OldFeaturesWrapper(bft, featureSet);
       this.rel = r;
-      int numIntercept = 0;
       this.dimension = dimension;
-      this.theta = new AveragedPerceptronWeights(dimension, numIntercept);
+      if (shareWeights == null) {
+        this.theta = AveragedPerceptronWeights.build(dimension);
+      } else {
+        if (shareWeights.dimension != dimension)
+          throw new IllegalArgumentException("dimension=" + dimension + " shareWeights=" + shareWeights);
+        this.theta = shareWeights.theta;
+      }
       this.fixed = fixed;
       this.learnDebug = learnDebug;
 
-      if (cacheArg4 && r.getName().equals("argument4")) {
-        arg4FeatureCache = new HashMap<>();
-      }
+      Metrics m = Metrics.getDefault();
+      mScore = m.counter("score/" + r.getName());
+      mScoreNoFeat = m.counter("score/noFeat/" + r.getName());
 
       ExperimentProperties config = ExperimentProperties.getInstance();
+      if (cacheFeatures) {
+        // argument4 features only look at (t,s), see OldFeaturesWrapper.onlyUseTS
+        int[] keyArgs = r.getName().equals("argument4") ? new int[] {0, 2} : null;
+        int maxEntries = config.getInt("featureCache.maxEntries", 1 << 19);
+        boolean warmStart = config.getBoolean("featureCache.warmStart", false);
+        featureCache = new FeatureCache(r, keyArgs, maxEntries, warmStart);
+      }
+
+      useIntFeatures = config.getBoolean("intFeatures", false);
+      if (useIntFeatures) {
+        Log.info("[main] rel=" + r.getName() + " extracting int features (hashes differ from string features)");
+        sink = new IntFeatureSink();
+      }
+
       String k = r.getName() + ".intercept.mag";
       double mag = config.getDouble(k, -1);
       if (mag > 0) {
@@ -573,6 +612,18 @@ public class OldFeaturesWrapper {
       }
     }
 
+    /**
+     * Makes this factor read and update other's weights, e.g. for training with
+     * several {@link Uberts}s at once. Feature extraction and caches are not shared.
+     */
+    public void shareWeightsWith(Ints3 other) {
+      if (other.rel.getName() != rel.getName() || other.dimension != dimension)
+        throw new IllegalArgumentException("this=" + this + " other=" + other);
+      this.theta = other.theta;
+      this.theta2 = other.theta2;
+      this.intercept = other.intercept;
+    }
+
     public void useBaseFeatures(boolean useBase) {
       Log.info(this + "\t" + useBaseFeatures + " => " + useBase);
       this.useBaseFeatures = useBase;
@@ -599,71 +650,51 @@ public class OldFeaturesWrapper {
       }
     }
 
-    int scoreCalls = 0;
-    @Override
-    public Adjoints score(HypEdge y, Uberts x) {
-      scoreCalls++;
-      assert y.getRelation() == rel;
-      cnt.increment("score/" + y.getRelation().getName());
-
-//      if (rel.getName().equals("predicate2")) {
-//        Log.info("check me out");
-//      }
-
-      if (AUTO_LEARN_DEBUG && scoreCalls == 5000) {
-        learnDebug = false;
-        UbertsLearnPipeline.turnOffDebug();
-      }
-
-      // Check whether the cache is valid
+    /**
+     * Returns the (un-reindexed) features for y, or null if there are none.
+     * Uses and populates the feature cache.
+     *
+     * @param fx may be null, otherwise the string features are added to it (if
+     * they were computed).
+     */
+    private int[] features(HypEdge y, Uberts x, List<String> fx) {
+      // Check the cache (which is scoped to x.dbgSentenceCache)
       assert x.dbgSentenceCache != null;
-      if (arg4FeatureCache != null && x.dbgSentenceCache != cacheTag) {
-        cacheTag = x.dbgSentenceCache;
-        arg4FeatureCache.clear();
-        cacheCounts.increment("arg4CacheInvalidation");
-      }
-
-      // Create the key used for caching features
-      SpanPair key = null;
+      FeatureCache.Key key = null;
       int[] features = null;
-      boolean arg4 = y.getRelation().getName().equals("argument4");
-      if (arg4FeatureCache != null && arg4) {
-        Span t = Span.inverseShortString((String) y.getTail(0).getValue());
-        Span s = Span.inverseShortString((String) y.getTail(2).getValue());
-        key = new SpanPair(t, s);
-        features = arg4FeatureCache.get(key);
+      if (featureCache != null) {
+        key = featureCache.key(y, x.dbgSentenceCache);
+        features = featureCache.get(key);
       }
 
-      List<String> fx;
-      if (features != null) {
-        fx = null;
-        if (arg4)
-          cacheCounts.increment("arg4CacheHit");
+      if (features != null)
+        return features;
+
+      if (useIntFeatures && !learnDebug && featStrDebug == null && UbertsLearnPipeline.FEATURE_DEBUG == null) {
+        sink.clear();
+        inner.features(y, x, sink);
+        if (sink.size() == 0)
+          return null;
+        features = sink.toArray();
+        if (key != null)
+          featureCache.put(key, features);
       } else {
-        if (arg4)
-          cacheCounts.increment("arg4CacheMiss");
-        if (key != null && cacheCounts.getTotalCount() % 10000 == 0)
-          Log.info(cacheCounts);
 
         // Call the wrapped features
         List<Pair<TemplateAlphabet, String>> fyx = inner.features(y, x);
-        if (fyx.isEmpty()) {
-          cnt.increment("score/noFeat/" + y.getRelation().getName());
-          if (intercept == null)
-            return Adjoints.Constant.ZERO;
-          return useAvg ? intercept.avgScore() : intercept.score();
-        }
-        if (cnt.getTotalCount() % 750000 == 0)
-          System.out.println("Int3 events: " + cnt.toString());
+        if (fyx.isEmpty())
+          return null;
+        if (scoreCalls % 750000 == 0)
+          System.out.println("Int3 events: " + mScore.name + "=" + mScore.get() + " " + mScoreNoFeat.name + "=" + mScoreNoFeat.get());
 
         // Convert to int[]
-        fx = new ArrayList<>();
         features = new int[fyx.size()];
         int T = inner.getNumTemplates();
         for (int i = 0; i < features.length; i++) {
           Pair<TemplateAlphabet, String> fyxi = fyx.get(i);
           int t = fyxi.get1().index;
-          fx.add(fyxi.get2());
+          if (fx != null)
+            fx.add(fyxi.get2());
           assert t >= 0 && t < T;
           if (UbertsLearnPipeline.FEATURE_DEBUG != null) {
             features[i] = UbertsLearnPipeline.FEATURE_DEBUG.lookupIndex(fyxi.get1().name + "/" + fyxi.get2());
@@ -682,7 +713,7 @@ public class OldFeaturesWrapper {
 
         // Save to cache
         if (key != null) {
-          arg4FeatureCache.put(key, features);
+          featureCache.put(key, features);
         }
 
         // Maybe output features to disk
@@ -698,6 +729,35 @@ public class OldFeaturesWrapper {
           }
         }
       }
+      return features;
+    }
+
+    int scoreCalls = 0;
+    @Override
+    public Adjoints score(HypEdge y, Uberts x) {
+      scoreCalls++;
+      assert y.getRelation() == rel;
+      mScore.increment();
+
+//      if (rel.getName().equals("predicate2")) {
+//        Log.info("check me out");
+//      }
+
+      if (AUTO_LEARN_DEBUG && scoreCalls == 5000) {
+        learnDebug = false;
+        UbertsLearnPipeline.turnOffDebug();
+      }
+
+      List<String> fx = new ArrayList<>();
+      int[] features = features(y, x, fx);
+      if (features == null) {
+        mScoreNoFeat.increment();
+        if (intercept == null)
+          return Adjoints.Constant.ZERO;
+        return useAvg ? intercept.avgScore() : intercept.score();
+      }
+      if (fx.isEmpty())
+        fx = null;
 
       // Maybe add on one oracle feature in fx
       if (pOracleFeatureFlip != null) {
@@ -791,6 +851,95 @@ public class OldFeaturesWrapper {
 
       return a;
     }
+
+    /**
+     * Writes the features of all of ys into one buffer and scores them with one
+     * pass over it per weight vector (see
+     * {@link AveragedPerceptronWeights#scoreBatch(int[], int[], int, boolean)}).
+     * Debugging options (learnDebug, featStrDebug, oracle features) fall back
+     * on {@link #score(HypEdge, Uberts)}.
+     */
+    @Override
+    public void score(List<HypEdge> ys, Uberts x, Adjoints[] out) {
+      int n = ys.size();
+      if (n < 2 || learnDebug || featStrDebug != null || pOracleFeatureFlip != null
+          || UbertsLearnPipeline.FEATURE_DEBUG != null) {
+        LocalFactor.super.score(ys, x, out);
+        return;
+      }
+
+      int prevCalls = scoreCalls;
+      scoreCalls += n;
+      mScore.add(n);
+      if (AUTO_LEARN_DEBUG && prevCalls < 5000 && scoreCalls >= 5000) {
+        learnDebug = false;
+        UbertsLearnPipeline.turnOffDebug();
+      }
+
+      // Features of the k-th edge with any are flat[offsets[k], offsets[k+1])
+      // and it is ys.get(which[k])
+      if (batchSink == null)
+        batchSink = new IntFeatureSink(1024);
+      batchSink.clear();
+      int[] offsets = new int[n + 1];
+      int[] which = new int[n];
+      int m = 0;
+      for (int i = 0; i < n; i++) {
+        HypEdge y = ys.get(i);
+        assert y.getRelation() == rel;
+        int[] f = features(y, x, null);
+        if (f == null) {
+          mScoreNoFeat.increment();
+          if (intercept == null)
+            out[i] = Adjoints.Constant.ZERO;
+          else
+            out[i] = useAvg ? intercept.avgScore() : intercept.score();
+          continue;
+        }
+        for (int j = 0; j < f.length; j++)
+          batchSink.add(f[j]);
+        which[m++] = i;
+        offsets[m] = batchSink.size();
+      }
+      if (m == 0)
+        return;
+      // The Adjoints keep a pointer to this, so it can't be batchSink's buffer
+      int[] flat = batchSink.toArray();
+
+      boolean reindex = true;
+      Adjoints[] a = new Adjoints[m];
+      if (useBaseFeatures) {
+        AveragedPerceptronWeights w = useAvg ? theta.averageView() : theta;
+        a = w.scoreBatch(flat, offsets, m, reindex);
+        if (intercept != null) {
+          for (int k = 0; k < m; k++)
+            a[k] = Adjoints.sum(a[k], useAvg ? intercept.avgScore() : intercept.score());
+        }
+      }
+
+      // Same as score(HypEdge, Uberts): the refinement VALUE is mixed into
+      // (reindexed, if useBaseFeatures) features
+      if (theta2 != null) {
+        for (Pair<Refinement, AveragedPerceptronWeights> t2 : theta2) {
+          Refinement r = t2.get1();
+          int[] fr = new int[flat.length];
+          for (int k = 0; k < m; k++) {
+            int rh = Hash.hash(r.refine(ys.get(which[k])));
+            for (int j = offsets[k]; j < offsets[k + 1]; j++)
+              fr[j] = Hash.mix(rh, flat[j]);
+          }
+          AveragedPerceptronWeights rt = useAvg ? t2.get2().averageView() : t2.get2();
+          Adjoints[] a2 = rt.scoreBatch(fr, offsets, m, reindex);
+          for (int k = 0; k < m; k++)
+            a[k] = a[k] == null ? a2[k] : Adjoints.sum(a2[k], a[k]);
+        }
+      }
+
+      for (int k = 0; k < m; k++) {
+        assert a[k] != null : "useBaseFeatures=" + useBaseFeatures + " and theta2=" + theta2;
+        out[which[k]] = fixed ? new Adjoints.WithLearningRate(0, a[k]) : a[k];
+      }
+    }
   }
 
   /**
@@ -802,7 +951,11 @@ public class OldFeaturesWrapper {
     private AveragedPerceptronWeights[] rel2theta;
     private int dimension;
 //    private long nScore = 0, nScoreNoFeat = 0;
-    private Counts<String> cnt = new Counts<>();
+    private long nScore = 0;
+    private Metrics.Counter mScore = Metrics.getDefault().counter("score");
+    private Metrics.PerRelation mScoreRel = Metrics.getDefault().perRelation("score");
+    private Metrics.Counter mScoreNoFeat = Metrics.getDefault().counter("score/noFeat");
+    private Metrics.PerRelation mScoreNoFeatRel = Metrics.getDefault().perRelation("score/noFeat");
     private Timer timer;
 
     /**
@@ -822,16 +975,16 @@ public class OldFeaturesWrapper {
     public Adjoints score(HypEdge y, Uberts x) {
       timer.start();
 
-      cnt.increment("score");
-      cnt.increment("score/" + y.getRelation().getName());
+      mScore.increment();
+      mScoreRel.increment(y.getRelation());
       List<Pair<TemplateAlphabet, String>> fyx = inner.features(y, x);
       if (fyx.isEmpty()) {
-        cnt.increment("score/noFeat");
-        cnt.increment("score/noFeat/" + y.getRelation().getName());
+        mScoreNoFeat.increment();
+        mScoreNoFeatRel.increment(y.getRelation());
         return Adjoints.Constant.ZERO;
       }
-      if (cnt.getTotalCount() % 75000 == 0)
-        System.out.println("Int2 events: " + cnt.toString());
+      if (++nScore % 75000 == 0)
+        System.out.println("Int2 events: score=" + mScore.get() + " score/noFeat=" + mScoreNoFeat.get());
 
       int ri = rels.lookupIndex(y.getRelation());
       AveragedPerceptronWeights theta = rel2theta[ri];
@@ -860,6 +1013,9 @@ public class OldFeaturesWrapper {
 
   // See TemplatedFeatures.parseTemplate(String), etc
   private edu.jhu.hlt.fnparse.features.precompute.Alphabet features;
+  // Same products as features, used by the int feature path. May be null.
+  private TemplateProductPlan plan;
+  private int[] planEnds;
   private TemplateContext ctx;
   private HeadFinder hf;
   private Counts<String> skipped;
@@ -884,12 +1040,15 @@ public class OldFeaturesWrapper {
 
     Random rightRandomPrune = null; //new Random(9001);
     this.features = new edu.jhu.hlt.fnparse.features.precompute.Alphabet(bft, false);
-    for (String[] feat : FeatureSet.getFeatureSet3(featureSet)) {
+    List<String[]> fs = FeatureSet.getFeatureSet3(featureSet);
+    for (String[] feat : fs) {
       String n = StringUtils.join("*", feat);
       Template[] fts = bft.getBasicTemplates(feat);
       Template ft = TemplateJoin.prod(fts, rightRandomPrune);
       features.add(new TemplateAlphabet(ft, n, features.size()));
     }
+    if (rightRandomPrune == null)
+      compile(bft, fs);
 
     ctx = new TemplateContext();
     hf = new DependencyHeadFinder();
@@ -950,12 +1109,26 @@ public class OldFeaturesWrapper {
         features.add(new TemplateAlphabet(prod, name, features.size()));
       }
     }
+    List<String[]> fs = new ArrayList<>();
+    for (int i = 0; i < temps.length; i++)
+      fs.add(new String[] {tempNames[i]});
+    for (int i = 0; i < temps.length-1; i++)
+      for (int j = i+1; j < temps.length; j++)
+        fs.add(new String[] {tempNames[i], tempNames[j]});
+    compile(bft, fs);
 
     ctx = new TemplateContext();
     hf = new DependencyHeadFinder();
     skipped = new Counts<>();
   }
 
+  /** products must be the same as (and in the same order as) features */
+  private void compile(BasicFeatureTemplates bft, List<String[]> products) {
+    assert products.size() == features.size();
+    plan = TemplateProductPlan.compile(bft, products);
+    planEnds = new int[plan.numProducts()];
+  }
+
   public edu.jhu.hlt.fnparse.features.precompute.Alphabet getFeatures() {
     return features;
   }
@@ -1170,10 +1343,70 @@ public class OldFeaturesWrapper {
     sentCache.computeShapes();
     sentCache.getWnWord(0);
 
+    // int view used by the tokenHashers (intFeatures)
+    TokenVocab vocab = TokenVocab.getGlobal();
+    sentCache.internTokens(vocab);
+    if (sentCache.getBasicDeps(false) != null)
+      sentCache.getBasicDeps(false).getLabelIds(vocab);
+    if (sentCache.getParseyDeps(false) != null)
+      sentCache.getParseyDeps(false).getLabelIds(vocab);
+
     return sentCache;
   }
 
   public List<Pair<TemplateAlphabet, String>> features(HypEdge yhat, Uberts x) {
+    setupContext(yhat, x);
+    List<Pair<TemplateAlphabet, String>> feats = new ArrayList<>();
+    for (TemplateAlphabet ftemp : features) {
+      Iterable<String> fts = ftemp.template.extract(ctx);
+      if (fts != null) {
+        for (String ft : fts) {
+          Pair<TemplateAlphabet, String> p = new Pair<>(ftemp, ft);
+          if (DEBUG > 1)
+            System.out.println("\t" + ftemp.name + "\t" + ft);
+          feats.add(p);
+        }
+      }
+    }
+    if (DEBUG > 1)
+      System.out.println(feats.size() + " features for " + yhat);
+
+    return feats;
+  }
+
+  /**
+   * Same features as {@link #features(HypEdge, Uberts)}, but written into out as
+   * (hash * numTemplates + templateIndex), without building Strings for
+   * templates which support {@link Template#extractHashes(TemplateContext, IntFeatureSink)}.
+   * The hashes are NOT the same as Hash.hash of the feature strings, so don't
+   * mix the two in one model.
+   */
+  public void features(HypEdge yhat, Uberts x, IntFeatureSink out) {
+    setupContext(yhat, x);
+    int T = features.size();
+    if (plan != null) {
+      // Each basic template is extracted once, see TemplateProductPlan
+      int start = out.size();
+      plan.extractHashes(ctx, out, planEnds);
+      for (int t = 0; t < T; t++) {
+        int end = planEnds[t];
+        for (int i = start; i < end; i++)
+          out.set(i, out.get(i) * T + t);
+        start = end;
+      }
+    } else {
+      for (TemplateAlphabet ftemp : features) {
+        int start = out.size();
+        ftemp.template.extractHashes(ctx, out);
+        for (int i = start; i < out.size(); i++)
+          out.set(i, out.get(i) * T + ftemp.index);
+      }
+    }
+    if (DEBUG > 1)
+      System.out.println(out.size() + " int features for " + yhat);
+  }
+
+  private void setupContext(HypEdge yhat, Uberts x) {
     Span t = null, s = null;
     String f = null, k = null;
     ctx.clear();
@@ -1272,27 +1505,10 @@ public class OldFeaturesWrapper {
         ctx.setRoleS(k);
     }
 
-    // Actually compute the features
     if (DEBUG > 1) {
       Log.info("computing features for " + yhat);
       TemplateContext.showContext(ctx);
     }
-    List<Pair<TemplateAlphabet, String>> feats = new ArrayList<>();
-    for (TemplateAlphabet ftemp : features) {
-      Iterable<String> fts = ftemp.template.extract(ctx);
-      if (fts != null) {
-        for (String ft : fts) {
-          Pair<TemplateAlphabet, String> p = new Pair<>(ftemp, ft);
-          if (DEBUG > 1)
-            System.out.println("\t" + ftemp.name + "\t" + ft);
-          feats.add(p);
-        }
-      }
-    }
-    if (DEBUG > 1)
-      System.out.println(feats.size() + " features for " + yhat);
-
-    return feats;
   }
 
   public static Span extractSpan(HypEdge e, int startTailIdx, int endTailIdx) {
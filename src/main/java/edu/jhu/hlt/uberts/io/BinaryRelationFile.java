@@ -0,0 +1,399 @@
+package edu.jhu.hlt.uberts.io;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.FileUtil;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.tutils.TimeMarker;
+import edu.jhu.hlt.uberts.io.ManyDocRelationFileIterator.RelDoc;
+import edu.jhu.hlt.uberts.io.RelationFileIterator.RelLine;
+
+/**
+ * A binary version of the "startdoc" files read by
+ * {@link ManyDocRelationFileIterator}, which can be read without tokenizing
+ * lines or parsing/interning strings. Every token (commands like "x", relation
+ * names, and node values) is stored as an index into a string table, which is
+ * decoded once when the file is opened, so every occurrence of a value is the
+ * same String.
+ *
+ * Layout (big endian):
+ *   header: magic, version, numDocs, numStrings, stringTableOffset (long), docIndexOffset (long)
+ *   docs: numLines, then for each line: numTokens (short), token ids (int), comment id (int, -1 for none)
+ *         The first line of every doc is its "startdoc" line.
+ *   string table: for each string, numBytes (int) followed by UTF-8 bytes
+ *   doc index: file offset of each doc (long)
+ *
+ * The docs are memory mapped in segments of {@link #SEGMENT_BYTES} (a single
+ * MappedByteBuffer can't be larger than 2GB) and the writer pads so that no doc
+ * crosses a segment boundary. Docs can be read in order or by index/id.
+ *
+ * Use {@link #main(String[])} to convert text to binary and back.
+ *
+ * @author travis
+ */
+public class BinaryRelationFile implements AutoCloseable, Iterable<RelDoc> {
+  public static final int MAGIC = 0x52454c42;   // "RELB"
+  public static final int VERSION = 1;
+  public static final String SUFFIX = ".rbin";
+  public static final long SEGMENT_BYTES = 1L << 30;
+  static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8 + 8;
+
+  private File file;
+  private int numDocs;
+  private String[] strings;
+  private long[] docOffsets;
+  private MappedByteBuffer[] segments;
+  private Map<String, Integer> docId2Index;   // lazily built
+
+  public BinaryRelationFile(File f) throws IOException {
+    TimeMarker tm = new TimeMarker();
+    this.file = f;
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+        FileChannel fc = raf.getChannel()) {
+      ByteBuffer h = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      int magic = h.getInt();
+      if (magic != MAGIC)
+        throw new IOException("not a binary relation file: " + f.getPath());
+      int version = h.getInt();
+      if (version != VERSION)
+        throw new IOException("version=" + version + " but can only read " + VERSION + ": " + f.getPath());
+      numDocs = h.getInt();
+      int numStrings = h.getInt();
+      long stringTableOffset = h.getLong();
+      long docIndexOffset = h.getLong();
+
+      // Docs
+      int nSeg = (int) ((stringTableOffset + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+      segments = new MappedByteBuffer[nSeg];
+      for (int i = 0; i < nSeg; i++) {
+        long start = i * SEGMENT_BYTES;
+        long size = Math.min(SEGMENT_BYTES, stringTableOffset - start);
+        segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+      }
+
+      // Strings
+      strings = new String[numStrings];
+      ByteBuffer st = map(fc, stringTableOffset, docIndexOffset - stringTableOffset);
+      byte[] buf = new byte[64];
+      for (int i = 0; i < numStrings; i++) {
+        int n = st.getInt();
+        if (n > buf.length)
+          buf = new byte[Math.max(n, 2 * buf.length)];
+        st.get(buf, 0, n);
+        strings[i] = new String(buf, 0, n, StandardCharsets.UTF_8);
+      }
+
+      // Doc index
+      docOffsets = new long[numDocs];
+      map(fc, docIndexOffset, 8L * numDocs).asLongBuffer().get(docOffsets);
+    }
+    Log.info("numDocs=" + numDocs + " numStrings=" + strings.length
+        + " segments=" + segments.length + " f=" + f.getPath()
+        + " in " + tm.secondsSinceFirstMark() + " seconds");
+  }
+
+  private static ByteBuffer map(FileChannel fc, long start, long size) throws IOException {
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("region is too big to map: " + size);
+    return fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+  }
+
+  /** Checks the magic number, so this works for any file (e.g. gzipped text) */
+  public static boolean isBinary(File f) {
+    if (!f.isFile() || f.length() < HEADER_BYTES)
+      return false;
+    try (DataInputStream dis = new DataInputStream(new FileInputStream(f))) {
+      return dis.readInt() == MAGIC;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int numDocs() {
+    return numDocs;
+  }
+
+  public int numStrings() {
+    return strings.length;
+  }
+
+  public String getString(int i) {
+    return strings[i];
+  }
+
+  /** Returns a buffer (owned by the caller) positioned at the start of doc i */
+  private ByteBuffer docBuffer(int i) {
+    long o = docOffsets[i];
+    int seg = (int) (o / SEGMENT_BYTES);
+    ByteBuffer b = segments[seg].duplicate();
+    b.position((int) (o - seg * SEGMENT_BYTES));
+    return b;
+  }
+
+  private RelLine readLine(ByteBuffer b) {
+    int nt = b.getShort();
+    String[] tokens = new String[nt];
+    for (int j = 0; j < nt; j++)
+      tokens[j] = strings[b.getInt()];
+    int c = b.getInt();
+    return new RelLine(tokens, c < 0 ? null : strings[c]);
+  }
+
+  /** Safe to call from many threads */
+  public RelDoc getDoc(int i) {
+    ByteBuffer b = docBuffer(i);
+    int nl = b.getInt();
+    RelDoc d = new RelDoc(readLine(b));
+    for (int j = 1; j < nl; j++)
+      d.items.add(readLine(b));
+    return d;
+  }
+
+  /** Reads the id of doc i without reading its lines */
+  public String getDocId(int i) {
+    ByteBuffer b = docBuffer(i);
+    b.getInt();     // numLines
+    int nt = b.getShort();
+    assert nt >= 2;
+    assert "startdoc".equals(strings[b.getInt()]);
+    return strings[b.getInt()];
+  }
+
+  /** Returns -1 if there is no doc with this id */
+  public int indexOf(String docId) {
+    if (docId2Index == null) {
+      Map<String, Integer> m = new HashMap<>();
+      for (int i = 0; i < numDocs; i++)
+        m.put(getDocId(i), i);
+      docId2Index = m;
+    }
+    Integer i = docId2Index.get(docId);
+    return i == null ? -1 : i;
+  }
+
+  /** Docs in order */
+  @Override
+  public Iterator<RelDoc> iterator() {
+    return new Iterator<RelDoc>() {
+      private int next = 0;
+      @Override
+      public boolean hasNext() {
+        return next < numDocs;
+      }
+      @Override
+      public RelDoc next() {
+        if (next >= numDocs)
+          throw new NoSuchElementException();
+        return getDoc(next++);
+      }
+    };
+  }
+
+  /**
+   * Every line of every doc (starting with its startdoc line) in order, e.g.
+   * for wrapping with a {@link ManyDocRelationFileIterator}. Closing the
+   * returned iterator closes this file.
+   */
+  public LineIterator lines() {
+    return new LineIterator();
+  }
+
+  public class LineIterator implements Iterator<RelLine>, AutoCloseable {
+    private int doc = -1;
+    private int linesLeft = 0;
+    private ByteBuffer b;
+
+    @Override
+    public boolean hasNext() {
+      return linesLeft > 0 || doc + 1 < numDocs;
+    }
+
+    @Override
+    public RelLine next() {
+      if (linesLeft == 0) {
+        if (doc + 1 >= numDocs)
+          throw new NoSuchElementException();
+        b = docBuffer(++doc);
+        linesLeft = b.getInt();
+      }
+      linesLeft--;
+      return readLine(b);
+    }
+
+    @Override
+    public void close() {
+      BinaryRelationFile.this.close();
+    }
+
+    @Override
+    public String toString() {
+      return "(BinaryRelationFile.LineIterator " + file.getPath() + " doc=" + doc + ")";
+    }
+  }
+
+  /**
+   * Drops references to the mapped buffers, the mapping is released when they
+   * are garbage collected.
+   */
+  @Override
+  public void close() {
+    segments = null;
+  }
+
+  /**
+   * Writes docs in the order they are given, the file is not readable until
+   * {@link #close()} is called.
+   */
+  public static class Writer implements AutoCloseable {
+    private File file;
+    private DataOutputStream out;
+    private long pos;
+    private Map<String, Integer> string2id = new HashMap<>();
+    private List<String> id2string = new ArrayList<>();
+    private long[] docOffsets = new long[1024];
+    private int numDocs = 0;
+    private ByteArrayOutputStream docBytes = new ByteArrayOutputStream();
+    private DataOutputStream docOut = new DataOutputStream(docBytes);
+
+    public Writer(File f) throws IOException {
+      Log.info("writing to " + f.getPath());
+      this.file = f;
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+      out.write(new byte[HEADER_BYTES]);  // written in close
+      pos = HEADER_BYTES;
+    }
+
+    private int id(String s) {
+      Integer i = string2id.get(s);
+      if (i == null) {
+        i = id2string.size();
+        string2id.put(s, i);
+        id2string.add(s);
+      }
+      return i;
+    }
+
+    private void writeLine(RelLine l) throws IOException {
+      if (l.tokens.length > Short.MAX_VALUE)
+        throw new IllegalArgumentException("too many tokens: " + l);
+      docOut.writeShort(l.tokens.length);
+      for (String t : l.tokens)
+        docOut.writeInt(id(t));
+      docOut.writeInt(l.comment == null ? -1 : id(l.comment));
+    }
+
+    /** Only writes doc.def and doc.items (not facts) */
+    public void write(RelDoc doc) throws IOException {
+      docBytes.reset();
+      docOut.writeInt(doc.items.size() + 1);
+      writeLine(doc.def);
+      for (RelLine l : doc.items)
+        writeLine(l);
+      docOut.flush();
+      int n = docBytes.size();
+      if (n > SEGMENT_BYTES)
+        throw new IllegalArgumentException("doc is too big: " + doc.getId() + " bytes=" + n);
+
+      // Don't let a doc cross a segment boundary
+      if (pos / SEGMENT_BYTES != (pos + n - 1) / SEGMENT_BYTES) {
+        long pad = SEGMENT_BYTES - (pos % SEGMENT_BYTES);
+        for (long i = 0; i < pad; i++)
+          out.write(0);
+        pos += pad;
+      }
+
+      if (numDocs == docOffsets.length)
+        docOffsets = Arrays.copyOf(docOffsets, 2 * numDocs);
+      docOffsets[numDocs++] = pos;
+      docBytes.writeTo(out);
+      pos += n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      long stringTableOffset = pos;
+      for (String s : id2string) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+        pos += 4 + b.length;
+      }
+      long docIndexOffset = pos;
+      for (int i = 0; i < numDocs; i++)
+        out.writeLong(docOffsets[i]);
+      out.close();
+
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(numDocs);
+        raf.writeInt(id2string.size());
+        raf.writeLong(stringTableOffset);
+        raf.writeLong(docIndexOffset);
+      }
+      Log.info("wrote numDocs=" + numDocs + " numStrings=" + id2string.size()
+          + " bytes=" + (docIndexOffset + 8L * numDocs) + " to " + file.getPath());
+    }
+  }
+
+  public static void toBinary(File text, File binary) throws IOException {
+    Log.info(text.getPath() + " => " + binary.getPath());
+    boolean dedup = false;
+    try (RelationFileIterator rels = new RelationFileIterator(text, false);
+        ManyDocRelationFileIterator docs = new ManyDocRelationFileIterator(rels, dedup);
+        Writer w = new Writer(binary)) {
+      while (docs.hasNext())
+        w.write(docs.next());
+    }
+  }
+
+  public static void toText(File binary, File text) throws IOException {
+    Log.info(binary.getPath() + " => " + text.getPath());
+    try (BinaryRelationFile b = new BinaryRelationFile(binary);
+        BufferedWriter w = FileUtil.getWriter(text)) {
+      for (Iterator<RelLine> itr = b.lines(); itr.hasNext();) {
+        w.write(itr.next().toLine());
+        w.newLine();
+      }
+    }
+  }
+
+  /**
+   * Converts input to output. If input is a binary file, output is text, and
+   * the other way around.
+   */
+  public static void main(String[] args) throws IOException {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    File input = config.getExistingFile("input");
+    File output = config.getFile("output");
+    if (isBinary(input))
+      toText(input, output);
+    else
+      toBinary(input, output);
+  }
+}
@@ -134,6 +134,7 @@ public class RelationFileIterator implements Iterator<RelLine>, AutoCloseable {
   private int lineNo;
   public boolean includeProvidence;
   private final Predicate<RelLine> skip;
+  private boolean closeReader = false;   // for InputStreams, see closing
 
   public RelationFileIterator(File f, boolean includeProvidence, Predicate<RelLine> skip) throws IOException {
     Log.info("includeProvidence=" + includeProvidence + " f=" + f.getPath());
@@ -162,6 +163,13 @@ public class RelationFileIterator implements Iterator<RelLine>, AutoCloseable {
     this(is, null);
   }
 
+  /** Like {@link #RelationFileIterator(InputStream)}, but {@link #close()} closes is */
+  public static RelationFileIterator closing(InputStream is) throws IOException {
+    RelationFileIterator r = new RelationFileIterator(is);
+    r.closeReader = true;
+    return r;
+  }
+
   @Override
   public String toString() {
     if (file == null)
@@ -231,8 +239,11 @@ public class RelationFileIterator implements Iterator<RelLine>, AutoCloseable {
     if (file != null) {
       Log.info("closing " + file.getPath());
       reader.close();
+    } else if (closeReader) {
+      reader.close();
     }
     // If an InputStream was provided, then the onus is on the caller to close
+    // (unless this was built with closing)
   }
 
 }
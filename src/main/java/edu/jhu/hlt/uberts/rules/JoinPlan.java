@@ -0,0 +1,389 @@
+package edu.jhu.hlt.uberts.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.jhu.hlt.tutils.LL;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.uberts.HypEdge;
+import edu.jhu.hlt.uberts.HypNode;
+import edu.jhu.hlt.uberts.Relation;
+import edu.jhu.hlt.uberts.State;
+import edu.jhu.hlt.uberts.auto.Term;
+import edu.jhu.hlt.uberts.auto.Trigger;
+import edu.jhu.hlt.uberts.rules.Env.Trie3;
+
+/**
+ * A {@link Trigger} compiled into a fixed join plan, assuming that one of its
+ * terms (the seed) was just matched by a new fact. The rest of the terms are
+ * bound in a fixed order, each with one State.match(argPos, rel, node) probe
+ * (or match2(rel) if no variables are bound yet) and a list of equality checks
+ * against earlier bindings. Every (R,i,a) lookup which {@link Trie3} does via
+ * {@link Env.Bindings} is resolved to a (termIdx, argPos) slot at compile
+ * time, and bindings live in a reused HypEdge[] indexed by term.
+ *
+ * Terms are bound in the same order as {@link Trie3} (seed first, then left to
+ * right) and the probe is the last equality constraint (the others are
+ * filters), so facts are visited in the same order as {@link Env.Edge3.Intersect}.
+ * Unlike {@link Trie3}, plans are never shared between triggers, so a trigger
+ * will only fire with bindings which satisfy its own constraints.
+ *
+ * Use {@link Index} in place of a {@link Trie3}.
+ */
+public class JoinPlan {
+  public static int DEBUG = 0;
+
+  public enum Mode {
+    /** Run over pre-assigned binding slots */
+    COMPILED,
+    /** Walk the plan with a name -> value environment, slow but easy to debug */
+    INTERPRETED,
+    /** Run both and throw if their output differs */
+    CHECKED,
+  }
+
+  @FunctionalInterface
+  public interface MatchConsumer {
+    /**
+     * @param values is a fresh array of the facts bound to each term in the
+     * trigger, indexed the same way as {@link Trie3.Match#getValues()}.
+     */
+    void accept(Trigger t, HypEdge[] values);
+  }
+
+  private static final int FREE = Integer.MIN_VALUE;
+
+  private final Trigger trigger;
+  private final int n;            // number of terms
+
+  // Indexed by step, step 0 is the seed
+  private final int[] order;      // step -> term index
+  private final Relation[] rel;
+  private final int[] probeArgPos;   // FREE means use State.match2(rel)
+  private final int[] probeSrcTerm;
+  private final int[] probeSrcArg;
+  private final int[][] filterArgPos;
+  private final int[][] filterSrcTerm;
+  private final int[][] filterSrcArg;
+
+  // Reused across calls to match
+  private final HypEdge[] bound;
+  private boolean boundInUse;
+
+  public JoinPlan(Trigger trigger, int seedTermIdx) {
+    this.trigger = trigger;
+    this.n = trigger.length();
+    this.order = new int[n];
+    this.rel = new Relation[n];
+    this.probeArgPos = new int[n];
+    this.probeSrcTerm = new int[n];
+    this.probeSrcArg = new int[n];
+    this.filterArgPos = new int[n][];
+    this.filterSrcTerm = new int[n][];
+    this.filterSrcArg = new int[n][];
+    this.bound = new HypEdge[n];
+
+    order[0] = seedTermIdx;
+    for (int i = 0, k = 1; i < n; i++)
+      if (i != seedTermIdx)
+        order[k++] = i;
+
+    probeArgPos[0] = FREE;
+    filterArgPos[0] = filterSrcTerm[0] = filterSrcArg[0] = new int[0];
+    for (int k = 0; k < n; k++) {
+      Term t = trigger.get(order[k]);
+      rel[k] = t.rel;
+      if (rel[k] == null)
+        throw new IllegalArgumentException("un-resolved relation in " + trigger);
+      if (k > 0)
+        compileStep(k, t);
+    }
+    if (DEBUG > 0)
+      Log.info(this.toString());
+  }
+
+  /**
+   * Finds every argument of the k^th term which is bound by an earlier term,
+   * looking at the closest earlier term first (same as
+   * Trie3.findParentWhoDefines).
+   */
+  private void compileStep(int k, Term t) {
+    List<int[]> cons = new ArrayList<>();   // (argPos, srcTerm, srcArg)
+    for (int a : t.getArgIndices()) {
+      String name = t.getArgName(a);
+      if (name == null)
+        continue;
+      int[] src = null;
+      for (int j = k - 1; j >= 0 && src == null; j--) {
+        Term tj = trigger.get(order[j]);
+        for (int aj : tj.getArgIndices()) {
+          if (name.equals(tj.getArgName(aj))) {
+            src = new int[] {a, order[j], aj};
+            break;
+          }
+        }
+      }
+      if (src != null)
+        cons.add(src);
+    }
+    if (cons.isEmpty()) {
+      probeArgPos[k] = FREE;
+      filterArgPos[k] = filterSrcTerm[k] = filterSrcArg[k] = new int[0];
+      return;
+    }
+    int[] p = cons.remove(cons.size() - 1);
+    probeArgPos[k] = p[0];
+    probeSrcTerm[k] = p[1];
+    probeSrcArg[k] = p[2];
+    int m = cons.size();
+    filterArgPos[k] = new int[m];
+    filterSrcTerm[k] = new int[m];
+    filterSrcArg[k] = new int[m];
+    for (int i = 0; i < m; i++) {
+      filterArgPos[k][i] = cons.get(i)[0];
+      filterSrcTerm[k][i] = cons.get(i)[1];
+      filterSrcArg[k][i] = cons.get(i)[2];
+    }
+  }
+
+  public Trigger getTrigger() {
+    return trigger;
+  }
+
+  public Relation getSeedRelation() {
+    return rel[0];
+  }
+
+  private static HypNode arg(HypEdge e, int argPos) {
+    if (argPos == State.HEAD_ARG_POS)
+      return e.getHead();
+    return e.getTail(argPos);
+  }
+
+  /**
+   * Emit every binding of the trigger's terms to facts in the state where the
+   * seed term is bound to lastFact.
+   */
+  public void match(State s, HypEdge lastFact, Mode mode, MatchConsumer emit) {
+    assert lastFact.getRelation() == rel[0];
+    switch (mode) {
+    case COMPILED:
+      matchCompiled(s, lastFact, emit);
+      break;
+    case INTERPRETED:
+      matchInterpreted(s, lastFact, emit);
+      break;
+    case CHECKED:
+      List<HypEdge[]> c = new ArrayList<>();
+      List<HypEdge[]> i = new ArrayList<>();
+      matchCompiled(s, lastFact, (t, v) -> c.add(v));
+      matchInterpreted(s, lastFact, (t, v) -> i.add(v));
+      boolean same = c.size() == i.size();
+      for (int j = 0; same && j < c.size(); j++)
+        same = Arrays.equals(c.get(j), i.get(j));
+      if (!same) {
+        throw new RuntimeException("compiled and interpreted plans differ for "
+            + this + " lastFact=" + lastFact
+            + "\ncompiled:    " + show(c)
+            + "\ninterpreted: " + show(i));
+      }
+      for (HypEdge[] v : c)
+        emit.accept(trigger, v);
+      break;
+    default:
+      throw new RuntimeException("unknown mode: " + mode);
+    }
+  }
+
+  private static String show(List<HypEdge[]> matches) {
+    StringBuilder sb = new StringBuilder();
+    for (HypEdge[] m : matches)
+      sb.append(Arrays.toString(m));
+    return sb.toString();
+  }
+
+  private void matchCompiled(State s, HypEdge lastFact, MatchConsumer emit) {
+    // emit may (indirectly) call match again, don't clobber the outer bindings
+    HypEdge[] b = boundInUse ? new HypEdge[n] : bound;
+    boolean owner = b == bound;
+    if (owner)
+      boundInUse = true;
+    try {
+      b[order[0]] = lastFact;
+      step(s, 1, b, emit);
+    } finally {
+      Arrays.fill(b, null);
+      if (owner)
+        boundInUse = false;
+    }
+  }
+
+  private void step(State s, int k, HypEdge[] b, MatchConsumer emit) {
+    if (k == n) {
+      emit.accept(trigger, Arrays.copyOf(b, n));
+      return;
+    }
+    LL<HypEdge> cands;
+    if (probeArgPos[k] == FREE)
+      cands = s.match2(rel[k]);
+    else
+      cands = s.match(probeArgPos[k], rel[k], arg(b[probeSrcTerm[k]], probeSrcArg[k]));
+    int[] fa = filterArgPos[k];
+    int[] ft = filterSrcTerm[k];
+    int[] fs = filterSrcArg[k];
+    int t = order[k];
+    outer:
+    for (LL<HypEdge> cur = cands; cur != null; cur = cur.next) {
+      HypEdge e = cur.item;
+      for (int i = 0; i < fa.length; i++)
+        if (arg(e, fa[i]) != arg(b[ft[i]], fs[i]))
+          continue outer;
+      b[t] = e;
+      step(s, k + 1, b, emit);
+    }
+    b[t] = null;
+  }
+
+  /*
+   * Interpreted mode: ignores the pre-assigned slots and instead carries an
+   * explicit (variable name -> value) environment, checking every named
+   * argument against it.
+   */
+  private void matchInterpreted(State s, HypEdge lastFact, MatchConsumer emit) {
+    Map<String, HypNode> env = new HashMap<>();
+    bindNames(trigger.get(order[0]), lastFact, env);
+    HypEdge[] b = new HypEdge[n];
+    b[order[0]] = lastFact;
+    interpret(s, 1, env, b, emit);
+  }
+
+  private static void bindNames(Term t, HypEdge e, Map<String, HypNode> env) {
+    for (int a : t.getArgIndices()) {
+      String name = t.getArgName(a);
+      if (name != null)
+        env.putIfAbsent(name, arg(e, a));
+    }
+  }
+
+  private void interpret(State s, int k, Map<String, HypNode> env, HypEdge[] b, MatchConsumer emit) {
+    if (k == n) {
+      if (DEBUG > 1)
+        Log.info("emit " + trigger + " " + Arrays.toString(b));
+      emit.accept(trigger, Arrays.copyOf(b, n));
+      return;
+    }
+    Term t = trigger.get(order[k]);
+    LL<HypEdge> l;
+    if (probeArgPos[k] == FREE) {
+      l = s.match2(t.rel);
+    } else {
+      HypNode v = env.get(t.getArgName(probeArgPos[k]));
+      assert v != null;
+      l = s.match(probeArgPos[k], t.rel, v);
+    }
+    List<HypEdge> cands = new ArrayList<>();
+    for (LL<HypEdge> cur = l; cur != null; cur = cur.next)
+      cands.add(cur.item);
+    if (DEBUG > 1)
+      Log.info("step=" + k + " term=" + t + " env=" + env + " numCandidates=" + cands.size());
+    for (HypEdge e : cands) {
+      boolean consistent = true;
+      for (int a : t.getArgIndices()) {
+        String name = t.getArgName(a);
+        HypNode v = name == null ? null : env.get(name);
+        if (v != null && v != arg(e, a)) {
+          consistent = false;
+          break;
+        }
+      }
+      if (!consistent)
+        continue;
+      Map<String, HypNode> env2 = new HashMap<>(env);
+      bindNames(t, e, env2);
+      b[order[k]] = e;
+      interpret(s, k + 1, env2, b, emit);
+      b[order[k]] = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("(JoinPlan " + trigger);
+    for (int k = 0; k < n; k++) {
+      sb.append("\n  " + k + ": bind term " + order[k] + " " + rel[k].getName());
+      if (k == 0) {
+        sb.append(" <- new fact");
+        continue;
+      }
+      if (probeArgPos[k] == FREE) {
+        sb.append(" <- all");
+      } else {
+        sb.append(String.format(" <- match(%d, %s, term%d[%d])",
+            probeArgPos[k], rel[k].getName(), probeSrcTerm[k], probeSrcArg[k]));
+      }
+      for (int i = 0; i < filterArgPos[k].length; i++) {
+        sb.append(String.format(" & [%d]==term%d[%d]",
+            filterArgPos[k][i], filterSrcTerm[k][i], filterSrcArg[k][i]));
+      }
+    }
+    sb.append(')');
+    return sb.toString();
+  }
+
+  /**
+   * Plays the role of {@link Trie3}: holds one {@link JoinPlan} per (trigger,
+   * seed term) pair, indexed by the seed's {@link Relation}.
+   */
+  public static class Index {
+    private Map<Relation, List<JoinPlan>> bySeedRel = new HashMap<>();
+    private Mode mode;
+
+    public Index(Mode mode) {
+      this.mode = mode;
+    }
+
+    public Mode getMode() {
+      return mode;
+    }
+
+    public void setMode(Mode mode) {
+      this.mode = mode;
+    }
+
+    public void add(Trigger trigger) {
+      int n = trigger.length();
+      for (int i = 0; i < n; i++) {
+        JoinPlan p = new JoinPlan(trigger, i);
+        List<JoinPlan> l = bySeedRel.get(p.getSeedRelation());
+        if (l == null) {
+          l = new ArrayList<>();
+          bySeedRel.put(p.getSeedRelation(), l);
+        }
+        l.add(p);
+      }
+    }
+
+    /**
+     * Emit all proofs of the triggers in this index which use lastFact (and
+     * other facts in the state).
+     */
+    public void match(State s, HypEdge lastFact, MatchConsumer emit) {
+      List<JoinPlan> l = bySeedRel.get(lastFact.getRelation());
+      if (l == null)
+        return;
+      for (int i = 0; i < l.size(); i++)
+        l.get(i).match(s, lastFact, mode, emit);
+    }
+
+    public int getNumPlans() {
+      int n = 0;
+      for (List<JoinPlan> l : bySeedRel.values())
+        n += l.size();
+      return n;
+    }
+  }
+}
@@ -9,6 +9,7 @@ import edu.jhu.hlt.tutils.ExperimentProperties;
 import edu.jhu.hlt.tutils.IntPair;
 import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.tutils.scoring.Adjoints;
+import edu.jhu.hlt.uberts.AgendaBatch;
 import edu.jhu.hlt.uberts.HypEdge;
 import edu.jhu.hlt.uberts.HypEdge.HashableHypEdge;
 import edu.jhu.hlt.uberts.HypNode;
@@ -22,6 +23,15 @@ public interface TransGen {
 
   public List<Pair<HypEdge, Adjoints>> match(HypEdge[] trigger, Uberts u);
 
+  /**
+   * Same as {@link #match(HypEdge[], Uberts)}, but may leave the scoring of
+   * the edges to batch (see {@link AgendaBatch#add(HypEdge, LocalFactor)}).
+   */
+  default void match(HypEdge[] trigger, Uberts u, AgendaBatch batch) {
+    for (Pair<HypEdge, Adjoints> p : match(trigger, u))
+      batch.add(p.get1(), p.get2());
+  }
+
   /**
    * Creates actions from a {@link Rule}, uses a {@link LocalFactor}.
    *
@@ -74,6 +84,17 @@ public interface TransGen {
 
       return Arrays.asList(new Pair<>(e, s));
     }
+
+    @Override
+    public void match(HypEdge[] trigger, Uberts u, AgendaBatch batch) {
+      if (addLhsToRhsScore) {
+        // Needs the score right away
+        TransGen.super.match(trigger, u, batch);
+      } else {
+        // If pruneFactsWithNullScore, a null score will remove this edge
+        batch.add(instantiateRule(trigger, rule, u), score);
+      }
+    }
   }
 
   public static HypEdge instantiateRule(HypEdge[] boundLhsValues, Rule rule, Uberts u) {
@@ -111,5 +132,10 @@ public interface TransGen {
       lr.addAll(r);
       return lr;
     }
+    @Override
+    public void match(HypEdge[] trigger, Uberts u, AgendaBatch batch) {
+      left.match(trigger, u, batch);
+      right.match(trigger, u, batch);
+    }
   }
 }
@@ -0,0 +1,369 @@
+package edu.jhu.hlt.uberts.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.uberts.Relation;
+
+/**
+ * Counters, histograms, timers, and gauges which are registered once (by name,
+ * or by name and {@link Relation}) and then updated through a handle, so that
+ * hot loops don't build strings or hash into a Counts<String>.
+ *
+ * Counters are {@link LongAdder}s (striped, so threads don't contend). How much
+ * work is done on each update is controlled by {@link Level}.
+ *
+ * Snapshots can be written as TSV or JSON, either on demand or periodically
+ * with {@link #startReporting(File, int, boolean)}.
+ */
+public class Metrics {
+
+  public enum Level {
+    /** Every update is a no-op */
+    OFF,
+    /** Counters, and count/sum/max for histograms. No timers. */
+    COUNTERS,
+    /** Everything, including log2-bucketed histograms and timers (System.nanoTime) */
+    FULL,
+  }
+
+  /** Returned by {@link Timer#start()} when timers are off */
+  public static final long NOT_STARTED = Long.MIN_VALUE;
+
+  private static final Metrics DEFAULT = new Metrics(Level.COUNTERS);
+
+  /** Process-wide registry, shared by every {@link edu.jhu.hlt.uberts.Uberts} */
+  public static Metrics getDefault() {
+    return DEFAULT;
+  }
+
+  // Read on every update (from any thread), only written when (re-)configuring.
+  private volatile boolean countersOn;
+  private volatile boolean fullOn;
+  private volatile Level level;
+
+  // Insertion order is the order things are exported in
+  private Map<String, Object> byName = new LinkedHashMap<>();
+  private Map<String, PerRelation> perRelation = new ConcurrentHashMap<>();
+
+  private ScheduledExecutorService reporter;
+
+  public Metrics(Level level) {
+    setLevel(level);
+  }
+
+  public void setLevel(Level level) {
+    if (this.level != null)
+      Log.info("[main] " + this.level + " => " + level);
+    this.level = level;
+    this.countersOn = level != Level.OFF;
+    this.fullOn = level == Level.FULL;
+  }
+
+  public Level getLevel() {
+    return level;
+  }
+
+  @SuppressWarnings("unchecked")
+  private synchronized <T> T register(String name, Class<T> type, java.util.function.Supplier<T> make) {
+    Object m = byName.get(name);
+    if (m == null) {
+      m = make.get();
+      byName.put(name, m);
+    }
+    if (!type.isInstance(m))
+      throw new IllegalArgumentException(name + " is already registered as a " + m.getClass().getSimpleName());
+    return (T) m;
+  }
+
+  public Counter counter(String name) {
+    return register(name, Counter.class, () -> new Counter(name));
+  }
+
+  public Histogram histogram(String name) {
+    return register(name, Histogram.class, () -> new Histogram(name));
+  }
+
+  public Timer timer(String name) {
+    return register(name, Timer.class, () -> new Timer(name));
+  }
+
+  public Gauge gauge(String name) {
+    return register(name, Gauge.class, () -> new Gauge(name));
+  }
+
+  /**
+   * One {@link Counter} per {@link Relation}, named "prefix/relationName",
+   * looked up by {@link Relation#getId()}.
+   */
+  public PerRelation perRelation(String prefix) {
+    return perRelation.computeIfAbsent(prefix, PerRelation::new);
+  }
+
+  public class Counter {
+    public final String name;
+    private final LongAdder count = new LongAdder();
+    private Counter(String name) {
+      this.name = name;
+    }
+    public void increment() {
+      if (countersOn)
+        count.increment();
+    }
+    public void add(long x) {
+      if (countersOn)
+        count.add(x);
+    }
+    public long get() {
+      return count.sum();
+    }
+  }
+
+  public class PerRelation {
+    public final String prefix;
+    private volatile Counter[] byId = new Counter[0];
+    private PerRelation(String prefix) {
+      this.prefix = prefix;
+    }
+    public Counter get(Relation r) {
+      Counter[] c = byId;
+      int i = r.getId();
+      if (i < c.length && c[i] != null)
+        return c[i];
+      return register(r, i);
+    }
+    private synchronized Counter register(Relation r, int i) {
+      Counter[] c = byId;
+      if (i >= c.length)
+        c = Arrays.copyOf(c, Math.max(i + 1, 2 * c.length));
+      if (c[i] == null)
+        c[i] = counter(prefix + "/" + r.getName());
+      byId = c;
+      return c[i];
+    }
+    public void increment(Relation r) {
+      if (countersOn)
+        get(r).count.increment();
+    }
+  }
+
+  /**
+   * Tracks count, sum, and max of a non-negative quantity (e.g. agenda size),
+   * and in {@link Level#FULL} a histogram over floor(log2(x)) buckets.
+   */
+  public class Histogram {
+    public final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLongArray log2Buckets = new AtomicLongArray(65);
+    private Histogram(String name) {
+      this.name = name;
+    }
+    public void record(long x) {
+      if (!countersOn)
+        return;
+      count.increment();
+      sum.add(x);
+      if (x > max.get())
+        max.accumulateAndGet(x, Math::max);
+      if (fullOn)
+        log2Buckets.incrementAndGet(x <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(x));
+    }
+    public long getCount() {
+      return count.sum();
+    }
+    public double getMean() {
+      long n = count.sum();
+      return n == 0 ? Double.NaN : ((double) sum.sum()) / n;
+    }
+    public long getMax() {
+      return max.get();
+    }
+    /** Returns the smallest x s.t. at least p of the observations are <= x (rounded up to a power of 2) */
+    public long getQuantileUpperBound(double p) {
+      long n = 0;
+      for (int i = 0; i < log2Buckets.length(); i++)
+        n += log2Buckets.get(i);
+      long c = 0;
+      for (int i = 0; i < log2Buckets.length(); i++) {
+        c += log2Buckets.get(i);
+        if (n > 0 && c >= p * n)
+          return i == 0 ? 0 : (1L << i) - 1;
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Usage: long t = timer.start(); ... timer.stop(t);
+   * Only measures anything in {@link Level#FULL}. If the level changes between
+   * start and stop, the sample is dropped (start returns a negative sentinel
+   * when timing is off, and stop ignores it).
+   */
+  public class Timer {
+    public final String name;
+    private final Histogram nanos;
+    private Timer(String name) {
+      this.name = name;
+      this.nanos = new Histogram(name);
+    }
+    public long start() {
+      return fullOn ? System.nanoTime() : NOT_STARTED;
+    }
+    public void stop(long start) {
+      if (fullOn && start != NOT_STARTED)
+        nanos.record(System.nanoTime() - start);
+    }
+    public long getCount() {
+      return nanos.getCount();
+    }
+    public double getTotalSeconds() {
+      return nanos.sum.sum() / 1e9;
+    }
+  }
+
+  /** A value which is set rather than accumulated, e.g. dev F1 */
+  public class Gauge {
+    public final String name;
+    private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(Double.NaN));
+    private Gauge(String name) {
+      this.name = name;
+    }
+    public void set(double value) {
+      if (countersOn)
+        bits.set(Double.doubleToLongBits(value));
+    }
+    public double get() {
+      return Double.longBitsToDouble(bits.get());
+    }
+  }
+
+  /**
+   * Returns (name, value) pairs for everything registered. Histograms and
+   * timers expand to several entries like "name/count" and "name/mean".
+   */
+  public synchronized List<Map.Entry<String, Number>> snapshot() {
+    List<Map.Entry<String, Number>> s = new ArrayList<>();
+    for (Object m : byName.values()) {
+      if (m instanceof Counter) {
+        Counter c = (Counter) m;
+        s.add(entry(c.name, c.get()));
+      } else if (m instanceof Histogram) {
+        addHistogram(s, (Histogram) m);
+      } else if (m instanceof Timer) {
+        Timer t = (Timer) m;
+        addHistogram(s, t.nanos);
+        s.add(entry(t.name + "/totalSeconds", t.getTotalSeconds()));
+      } else if (m instanceof Gauge) {
+        Gauge g = (Gauge) m;
+        s.add(entry(g.name, g.get()));
+      }
+    }
+    return s;
+  }
+
+  private void addHistogram(List<Map.Entry<String, Number>> s, Histogram h) {
+    long n = h.getCount();
+    s.add(entry(h.name + "/count", n));
+    if (n == 0)
+      return;
+    s.add(entry(h.name + "/mean", h.getMean()));
+    s.add(entry(h.name + "/max", h.getMax()));
+    if (fullOn) {
+      s.add(entry(h.name + "/p50", h.getQuantileUpperBound(0.5)));
+      s.add(entry(h.name + "/p90", h.getQuantileUpperBound(0.9)));
+      s.add(entry(h.name + "/p99", h.getQuantileUpperBound(0.99)));
+    }
+  }
+
+  private static Map.Entry<String, Number> entry(String k, Number v) {
+    return new java.util.AbstractMap.SimpleImmutableEntry<>(k, v);
+  }
+
+  /** One line per metric: timestamp, name, value */
+  public void writeTsv(Appendable w) throws IOException {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Number> x : snapshot())
+      w.append(now + "\t" + x.getKey() + "\t" + x.getValue() + "\n");
+  }
+
+  public String toJson() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"timestamp\": " + System.currentTimeMillis());
+    for (Map.Entry<String, Number> x : snapshot()) {
+      sb.append(", \"");
+      sb.append(x.getKey().replace("\\", "\\\\").replace("\"", "\\\""));
+      sb.append("\": ");
+      double d = x.getValue().doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d))
+        sb.append("null");
+      else
+        sb.append(x.getValue());
+    }
+    sb.append('}');
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("(Metrics level=" + level);
+    for (Map.Entry<String, Number> x : snapshot())
+      sb.append(" " + x.getKey() + "=" + x.getValue());
+    sb.append(')');
+    return sb.toString();
+  }
+
+  /**
+   * Writes a snapshot every periodSeconds on a daemon thread. In TSV mode lines
+   * are appended to f, in JSON mode f is overwritten with the latest snapshot.
+   */
+  public synchronized void startReporting(File f, int periodSeconds, boolean json) {
+    if (reporter != null)
+      throw new IllegalStateException("already reporting");
+    Log.info("[main] writing metrics every " + periodSeconds + " seconds to " + f.getPath() + " json=" + json);
+    reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "MetricsReporter");
+      t.setDaemon(true);
+      return t;
+    });
+    reporter.scheduleAtFixedRate(() -> {
+      try (BufferedWriter w = new BufferedWriter(new FileWriter(f, !json))) {
+        if (json) {
+          w.write(toJson());
+          w.newLine();
+        } else {
+          writeTsv(w);
+        }
+      } catch (Exception e) {
+        Log.warn("failed to write metrics to " + f.getPath() + ": " + e.getMessage());
+      }
+    }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized boolean isReporting() {
+    return reporter != null;
+  }
+
+  public synchronized void stopReporting() {
+    if (reporter != null) {
+      reporter.shutdown();
+      reporter = null;
+    }
+  }
+}
@@ -1,14 +1,23 @@
 package edu.jhu.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -24,6 +33,7 @@ import edu.jhu.hlt.concrete.access.FetchResult;
 import edu.jhu.hlt.concrete.services.NotImplementedException;
 import edu.jhu.hlt.concrete.services.ServiceInfo;
 import edu.jhu.hlt.concrete.services.ServicesException;
+import edu.jhu.hlt.concrete.simpleaccumulo.TimeMarker;
 import edu.jhu.hlt.ikbp.tac.AccumuloIndex;
 import edu.jhu.hlt.tutils.FileUtil;
 import edu.jhu.hlt.tutils.Log;
@@ -36,21 +46,77 @@ import edu.jhu.hlt.tutils.MultiTimer.TB;
  * 2) a "fail-over" fetch implementation to get comms not in the cache
  * will try to use the former and fall back on the latter.
  *
+ * The cache has tiers, checked in this order:
+ * 1) (opt-in) an in-memory LRU of deserialized {@link Communication}s,
+ *    bounded by their (serialized) size in bytes
+ * 2) (opt-in) {@link PackedSegments} in the cache dir, where fetched comms
+ *    are saved instead of one file per comm
+ * 3) one file per comm (commId.comm.gz), which is always read (and written
+ *    if packed segments are turned off)
+ * The 5-arg constructor only uses the last tier.
+ * Comms read from disk are deserialized in parallel. Concurrent fetches
+ * for the same id are coalesced: only one of them reads/fetches it, the
+ * others get a (deep) copy of what it got.
+ *
+ * NOTE: Comms in the in-memory cache are shared between callers, don't
+ * modify them (or set maxMemBytes=0, then every caller gets its own).
+ *
+ * Timings are recorded in {@link AccumuloIndex#TIMER}, the number of ids
+ * served by each tier is in {@link #getStats()} and {@link #getCounts()}.
+ * Every statsIntervalSeconds (if positive) fetch logs the hit rates along
+ * with TIMER.
+ *
  * @author travis
  */
 public class DiskBackedFetchWrapper implements FetchCommunicationService.Iface, AutoCloseable {
   
+  /** Not thread safe, see deser() and ser() */
   public static final TDeserializer DESER = new TDeserializer(new TCompactProtocol.Factory());
   public static final TSerializer SER = new TSerializer(new TCompactProtocol.Factory());
-  
+
+  private static final ThreadLocal<TDeserializer> DESER_TL =
+      ThreadLocal.withInitial(() -> new TDeserializer(new TCompactProtocol.Factory()));
+  private static final ThreadLocal<TSerializer> SER_TL =
+      ThreadLocal.withInitial(() -> new TSerializer(new TCompactProtocol.Factory()));
+
   private FetchCommunicationService.Iface failOver;
   private AutoCloseable failOverResources;
   private File cacheDir;
   private boolean saveFetchedComms;
   private boolean compression;
-  
+
+  private PackedSegments segments;    // null means use one file per comm
+
+  // In-memory LRU, guarded by itself
+  private final LinkedHashMap<String, MemEntry> mem = new LinkedHashMap<>(16, 0.75f, true);
+  private final long maxMemBytes;
+  private long memBytes;
+
+  // Single-flight: ids some thread is currently reading/fetching
+  private final ConcurrentHashMap<String, CompletableFuture<Communication>> inFlight = new ConcurrentHashMap<>();
+
+  private final AtomicLong nRequested = new AtomicLong();
+  private final AtomicLong nMem = new AtomicLong();
+  private final AtomicLong nSegment = new AtomicLong();
+  private final AtomicLong nFile = new AtomicLong();
+  private final AtomicLong nFailOver = new AtomicLong();
+  private final AtomicLong nCoalesced = new AtomicLong();
+  private final AtomicLong nMissing = new AtomicLong();
+
   public boolean disableCache = false;
   public boolean debug = false;
+  public boolean parallelDeser = true;
+  public int statsIntervalSeconds = 60;
+  private final TimeMarker statsTm = new TimeMarker();
+
+  static final class MemEntry {
+    final Communication comm;
+    final int bytes;
+    MemEntry(Communication comm, int bytes) {
+      this.comm = comm;
+      this.bytes = bytes;
+    }
+  }
 
   public DiskBackedFetchWrapper(
       FetchCommunicationService.Iface failOver,
@@ -58,12 +124,38 @@ public class DiskBackedFetchWrapper implements FetchCommunicationService.Iface,
       File cacheDir,
       boolean saveFetchedComms,
       boolean compressionForSavedComms) {
+    this(failOver, failOverResources, cacheDir, saveFetchedComms, compressionForSavedComms, 0, false);
+  }
+
+  /**
+   * @param maxMemBytes bound on the (serialized) size of comms kept in memory, 0 to turn off
+   * @param packedSegments if true, save fetched comms into {@link PackedSegments}
+   * in cacheDir (and read from them), otherwise use one file per comm
+   */
+  public DiskBackedFetchWrapper(
+      FetchCommunicationService.Iface failOver,
+      AutoCloseable failOverResources,
+      File cacheDir,
+      boolean saveFetchedComms,
+      boolean compressionForSavedComms,
+      long maxMemBytes,
+      boolean packedSegments) {
     if (!cacheDir.isDirectory())
       throw new IllegalArgumentException();
     this.failOver = failOver;
+    this.failOverResources = failOverResources;
     this.cacheDir = cacheDir;
     this.saveFetchedComms = saveFetchedComms;
     this.compression = compressionForSavedComms;
+    this.maxMemBytes = maxMemBytes;
+    if (packedSegments) {
+      try {
+        this.segments = new PackedSegments(cacheDir);
+      } catch (IOException e) {
+        throw new RuntimeException("couldn't open segments in " + cacheDir.getPath(), e);
+      }
+    }
+    Log.info("[main] cacheDir=" + cacheDir.getPath() + " maxMemBytes=" + maxMemBytes + " packedSegments=" + packedSegments);
   }
   
   public FetchCommunicationService.Iface getFailover() {
@@ -113,90 +205,262 @@ public class DiskBackedFetchWrapper implements FetchCommunicationService.Iface,
     return AccumuloIndex.TIMER;
   }
 
+  private Communication memGet(String id) {
+    if (maxMemBytes <= 0)
+      return null;
+    synchronized (mem) {
+      MemEntry e = mem.get(id);
+      return e == null ? null : e.comm;
+    }
+  }
+
+  private void memPut(String id, Communication c, int bytes) {
+    if (maxMemBytes <= 0 || bytes > maxMemBytes)
+      return;
+    synchronized (mem) {
+      MemEntry old = mem.put(id, new MemEntry(c, bytes));
+      if (old != null)
+        memBytes -= old.bytes;
+      memBytes += bytes;
+      Iterator<MemEntry> itr = mem.values().iterator();
+      while (memBytes > maxMemBytes && itr.hasNext()) {
+        MemEntry e = itr.next();
+        memBytes -= e.bytes;
+        itr.remove();
+      }
+    }
+  }
+
+  /** Where a comm was read from */
+  enum Tier { SEGMENT, FILE }
+
+  /** A comm read from disk (comm is null if it couldn't be read) */
+  static final class Loaded {
+    Tier tier;
+    Communication comm;
+    int bytes;
+  }
+
+  private static boolean isGzip(byte[] bytes) {
+    return bytes.length >= 2 && (bytes[0] & 0xff) == 0x1f && (bytes[1] & 0xff) == 0x8b;
+  }
+
+  /** Returns null if id isn't on disk, called from many threads */
+  private Loaded load(String id) {
+    Loaded l = new Loaded();
+    byte[] bytes = null;
+    String source = null;
+    try {
+      if (segments != null && segments.contains(id)) {
+        l.tier = Tier.SEGMENT;
+        source = segments.toString();
+        bytes = segments.get(id);
+      } else {
+        File f = getCacheFor(id);
+        if (!f.isFile())
+          return null;
+        l.tier = Tier.FILE;
+        source = f.getPath();
+        try (InputStream is = new FileInputStream(f)) {
+          bytes = FileUtil.readBytes(is);
+        }
+      }
+      if (debug)
+        Log.info("deserializing " + id + " from " + source);
+      if (isGzip(bytes)) {
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+          bytes = FileUtil.readBytes(is);
+        }
+      }
+      Communication c = new Communication();
+      DESER_TL.get().deserialize(c, bytes);
+      l.comm = c;
+      l.bytes = bytes.length;
+    } catch (Exception e) {
+      Log.info("WARNING: error while reading " + id + " from " + source);
+      e.printStackTrace();
+    }
+    return l;
+  }
+
+  private void save(Communication c, byte[] bytes) {
+    try {
+      if (segments != null) {
+        segments.put(c.getId(), compression ? gzip(bytes) : bytes);
+      } else {
+        File f = getCacheFor(c.getId());
+        if (debug)
+          Log.info("saving to " + f.getPath());
+        assert !f.isFile();
+        try (OutputStream os = compression ? new GZIPOutputStream(new FileOutputStream(f)) : new FileOutputStream(f)) {
+          os.write(bytes);
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+    try (OutputStream os = new GZIPOutputStream(baos)) {
+      os.write(bytes);
+    }
+    return baos.toByteArray();
+  }
+
   @Override
   public FetchResult fetch(FetchRequest arg0) throws ServicesException, TException {
     try (TB tb1 = timer().new TB("fetch/diskbacked")) {
 
       // Holds the communications in this request
       Map<String, Communication> values = new HashMap<>();
+      List<String> ids = arg0.getCommunicationIds();
+      nRequested.addAndGet(ids.size());
 
-      // Collect the documents available on disk
-      List<String> missing = new ArrayList<>();
-      for (String id : arg0.getCommunicationIds()) {
-        File f = getCacheFor(id);
-        if (f.isFile() && !disableCache) {
-          if (debug)
-            Log.info("deserializing from in " + f.getPath());
-          try (TB tb = timer().new TB("fetch/diskbacked/deser")) {
-            try (InputStream is = compression ? new GZIPInputStream(new FileInputStream(f)) : new FileInputStream(f)) {
-              Communication c = new Communication();
-              byte[] bytes = FileUtil.readBytes(is);
-              DESER.deserialize(c, bytes);
-              Object old = values.put(id, c);
-              assert old == null;
-            } catch (Exception e) {
-              Log.info("WARNING: error while reading " + f.getPath());
-              e.printStackTrace();
-//              throw new RuntimeException("error while reading " + f.getPath(), e);
-            }
+      // Claim the ids which aren't in memory, or wait on whoever already has
+      List<String> owned = new ArrayList<>();
+      Map<String, CompletableFuture<Communication>> waiting = new HashMap<>();
+      try (TB tb = timer().new TB("fetch/diskbacked/mem")) {
+        int hits = 0;
+        for (String id : ids) {
+          if (values.containsKey(id) || owned.contains(id) || waiting.containsKey(id))
+            continue;
+          Communication c = disableCache ? null : memGet(id);
+          if (c != null) {
+            values.put(id, c);
+            hits++;
+            continue;
+          }
+          CompletableFuture<Communication> f = new CompletableFuture<>();
+          CompletableFuture<Communication> other = inFlight.putIfAbsent(id, f);
+          if (other != null) {
+            waiting.put(id, other);
+            continue;
+          }
+          // Someone may have finished loading id between memGet and putIfAbsent
+          c = disableCache ? null : memGet(id);
+          if (c != null) {
+            inFlight.remove(id);
+            f.complete(c);
+            values.put(id, c);
+            hits++;
+          } else {
+            owned.add(id);
           }
-          continue;
-        }
-        if (debug) {
-          if (disableCache && f.isFile())
-            Log.info("fail over for " + id + " b/c disableCache=true");
-          else
-            Log.info("fail over for " + id);
         }
-        missing.add(id);
+        nMem.addAndGet(hits);
+        nCoalesced.addAndGet(waiting.size());
       }
 
-      // Fetch those that aren't
-      if (!missing.isEmpty()) {
-        FetchRequest fr = new FetchRequest();
-        fr.setCommunicationIds(missing);
-        try {
-          FetchResult r = null;
-          try (TB tb = timer().new TB("fetch/diskbacked/failOverFetch")) {
-            r = failOver.fetch(fr);
+      try {
+        // Collect the documents available on disk
+        List<String> missing = new ArrayList<>();
+        if (disableCache) {
+          if (debug)
+            Log.info("fail over for " + owned + " b/c disableCache=true");
+          missing.addAll(owned);
+        } else if (!owned.isEmpty()) {
+          Loaded[] loaded = new Loaded[owned.size()];
+          try (TB tb = timer().new TB("fetch/diskbacked/deser")) {
+            if (parallelDeser && loaded.length > 1)
+              IntStream.range(0, loaded.length).parallel().forEach(i -> loaded[i] = load(owned.get(i)));
+            else
+              for (int i = 0; i < loaded.length; i++)
+                loaded[i] = load(owned.get(i));
           }
-          for (Communication c : r.getCommunications()) {
-            Object old = values.put(c.getId(), c);
+          int fromSegments = 0, fromFiles = 0;
+          for (int i = 0; i < loaded.length; i++) {
+            String id = owned.get(i);
+            Loaded l = loaded[i];
+            if (l == null || l.comm == null) {
+              if (debug)
+                Log.info("fail over for " + id);
+              missing.add(id);
+              continue;
+            }
+            if (l.tier == Tier.SEGMENT)
+              fromSegments++;
+            else
+              fromFiles++;
+            Object old = values.put(id, l.comm);
             assert old == null;
+            memPut(id, l.comm, l.bytes);
+          }
+          nSegment.addAndGet(fromSegments);
+          nFile.addAndGet(fromFiles);
+        }
 
-            if (debug)
-              Log.info("retrieved " + c.getId());
-
-            // Optionally save the communications back to cache
-            if (saveFetchedComms && !disableCache) {
-              try (TB tbc = timer().new TB("fetch/diskbacked/ser")) {
-                File f = getCacheFor(c.getId());
-                if (debug)
-                  Log.info("saving to " + f.getPath());
-                assert !f.isFile();
-                byte[] bytes = SER.serialize(c);
-                try (OutputStream os = compression ? new GZIPOutputStream(new FileOutputStream(f)) : new FileOutputStream(f)) {
-                  os.write(bytes);
-                } catch (Exception e) {
-                  e.printStackTrace();
+        // Fetch those that aren't
+        if (!missing.isEmpty()) {
+          FetchRequest fr = new FetchRequest();
+          fr.setCommunicationIds(missing);
+          try {
+            FetchResult r = null;
+            try (TB tb = timer().new TB("fetch/diskbacked/failOverFetch")) {
+              r = failOver.fetch(fr);
+            }
+            int n = 0;
+            for (Communication c : r.getCommunications()) {
+              Object old = values.put(c.getId(), c);
+              assert old == null;
+              n++;
+
+              if (debug)
+                Log.info("retrieved " + c.getId());
+
+              boolean save = saveFetchedComms && !disableCache;
+              if (save || maxMemBytes > 0) {
+                try (TB tbc = timer().new TB("fetch/diskbacked/ser")) {
+                  byte[] bytes = SER_TL.get().serialize(c);
+                  if (!disableCache)
+                    memPut(c.getId(), c, bytes.length);
+                  // Optionally save the communications back to cache
+                  if (save)
+                    save(c, bytes);
                 }
               }
             }
+            nFailOver.addAndGet(n);
+          } catch (Exception e) {
+            System.out.println("failOver failed! " + e.getMessage());
+          }
+        }
+      } finally {
+        // Wake up anyone waiting on ids this thread claimed (null if not found)
+        for (String id : owned) {
+          CompletableFuture<Communication> f = inFlight.remove(id);
+          if (f != null)
+            f.complete(values.get(id));
+        }
+      }
+
+      // Ids another thread was reading/fetching
+      if (!waiting.isEmpty()) {
+        try (TB tb = timer().new TB("fetch/diskbacked/wait")) {
+          for (Map.Entry<String, CompletableFuture<Communication>> e : waiting.entrySet()) {
+            Communication c = e.getValue().join();
+            if (c != null)
+              values.put(e.getKey(), new Communication(c));
           }
-        } catch (Exception e) {
-          System.out.println("failOver failed! " + e.getMessage());
         }
       }
 
-      if (values.size() < arg0.getCommunicationIdsSize())
+      if (values.size() < arg0.getCommunicationIdsSize()) {
+        nMissing.addAndGet(arg0.getCommunicationIdsSize() - values.size());
         System.err.println("only found " + values.size() + " of " + arg0.getCommunicationIdsSize() + " comms");
+      }
 
-//      if (debug) {
-//        for (String e : values.keySet()) {
-//          Communication c = values.get(e);
-//          Log.info("value[" + e + "]=" + (c == null ? "null" : c.getId()));
-//        }
-//      }
+      if (debug) {
+        Log.info(getStats());
+      } else if (statsIntervalSeconds > 0) {
+        boolean show;
+        synchronized (statsTm) {
+          show = statsTm.enoughTimePassed(statsIntervalSeconds);
+        }
+        if (show)
+          Log.info(getStats() + "\n" + timer());
+      }
 
       // Wrap up results
       FetchResult r = new FetchResult();
@@ -210,6 +474,43 @@ public class DiskBackedFetchWrapper implements FetchCommunicationService.Iface,
     }
   }
 
+  /** How many requested ids were served by each tier */
+  public String getStats() {
+    long n = Math.max(1, nRequested.get());
+    long memBytes;
+    int memSize;
+    synchronized (mem) {
+      memBytes = this.memBytes;
+      memSize = mem.size();
+    }
+    return String.format("(DiskBackedFetchWrapper requested=%d mem=%.3f segment=%.3f file=%.3f failOver=%.3f coalesced=%.3f missing=%.3f memComms=%d memBytes=%d)",
+        nRequested.get(),
+        nMem.get() / (double) n,
+        nSegment.get() / (double) n,
+        nFile.get() / (double) n,
+        nFailOver.get() / (double) n,
+        nCoalesced.get() / (double) n,
+        nMissing.get() / (double) n,
+        memSize, memBytes);
+  }
+
+  /**
+   * Number of requested ids served by each tier: requested, mem, segment,
+   * file, failOver, coalesced (waited on another thread's read/fetch), and
+   * missing.
+   */
+  public Map<String, Long> getCounts() {
+    Map<String, Long> m = new LinkedHashMap<>();
+    m.put("requested", nRequested.get());
+    m.put("mem", nMem.get());
+    m.put("segment", nSegment.get());
+    m.put("file", nFile.get());
+    m.put("failOver", nFailOver.get());
+    m.put("coalesced", nCoalesced.get());
+    m.put("missing", nMissing.get());
+    return m;
+  }
+
   @Override
   public long getCommunicationCount() throws NotImplementedException, TException {
     throw new NotImplementedException();
@@ -222,6 +523,9 @@ public class DiskBackedFetchWrapper implements FetchCommunicationService.Iface,
 
   @Override
   public void close() throws Exception {
+    Log.info(getStats());
+    if (segments != null)
+      segments.close();
     if (failOverResources != null)
       failOverResources.close();
   }
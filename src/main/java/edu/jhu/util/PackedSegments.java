@@ -0,0 +1,223 @@
+package edu.jhu.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.jhu.hlt.tutils.Log;
+
+/**
+ * An append-only key-value store of byte[]s, packed into a few large segment
+ * files rather than one file per key. Each segment has a data file
+ * (segment-NNNNN.dat) which values are appended to and an index file
+ * (segment-NNNNN.idx) with a line of "key offset length" for every value.
+ * Indices are read into memory when this is opened. When the current segment
+ * gets bigger than maxSegmentBytes a new one is started.
+ *
+ * If a key is put more than once, the last value wins. Index entries which
+ * point past the end of the data file (e.g. a crash between writing the value
+ * and the index line) are ignored.
+ *
+ * Reads are thread safe and may happen concurrently with puts.
+ *
+ * Several processes (or instances in one JVM) may append to the same
+ * directory: a put holds an exclusive lock on the segment's data file while
+ * it writes the value and its index line, and the value's offset is the data
+ * file's size at that point. Values put by someone else are only visible
+ * after re-opening.
+ *
+ * @author travis
+ */
+public class PackedSegments implements AutoCloseable {
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 1L << 30;
+
+  /** Where a value lives */
+  static final class Loc {
+    final int segment;
+    final long offset;
+    final int length;
+    Loc(int segment, long offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final File dir;
+  private final long maxSegmentBytes;
+  private final ConcurrentHashMap<String, Loc> index;
+  private final List<FileChannel> readers;    // indexed by segment, guarded by this
+
+  // The segment being written to
+  private int curSegment;
+  private FileChannel curData;
+  private OutputStream curIndex;
+
+  /**
+   * A FileLock is held by the whole JVM, locking a file which another channel
+   * in this JVM has locked throws, so puts in this JVM are serialized on
+   * these first (keyed by canonical data file path).
+   */
+  private static final ConcurrentHashMap<String, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+  public PackedSegments(File dir) throws IOException {
+    this(dir, DEFAULT_MAX_SEGMENT_BYTES);
+  }
+
+  public PackedSegments(File dir, long maxSegmentBytes) throws IOException {
+    if (!dir.isDirectory())
+      throw new IllegalArgumentException("not a directory: " + dir.getPath());
+    this.dir = dir;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.index = new ConcurrentHashMap<>();
+    this.readers = new ArrayList<>();
+    int bad = 0;
+    for (int s = 0; dataFile(s).isFile(); s++) {
+      long dataLen = dataFile(s).length();
+      File idx = indexFile(s);
+      if (idx.isFile()) {
+        try (BufferedReader r = new BufferedReader(new FileReader(idx))) {
+          for (String line = r.readLine(); line != null; line = r.readLine()) {
+            String[] ar = line.split("\t");
+            if (ar.length != 3) {
+              bad++;
+              continue;
+            }
+            long offset = Long.parseLong(ar[1]);
+            int length = Integer.parseInt(ar[2]);
+            if (offset + length > dataLen) {
+              bad++;
+              continue;
+            }
+            index.put(ar[0], new Loc(s, offset, length));
+          }
+        }
+      }
+      readers.add(null);
+      curSegment = s;
+    }
+    if (readers.isEmpty())
+      curSegment = 0;
+    Log.info("[main] dir=" + dir.getPath() + " segments=" + readers.size()
+        + " values=" + index.size() + " badIndexEntries=" + bad
+        + " maxSegmentBytes=" + maxSegmentBytes);
+  }
+
+  private File dataFile(int segment) {
+    return new File(dir, String.format("segment-%05d.dat", segment));
+  }
+
+  private File indexFile(int segment) {
+    return new File(dir, String.format("segment-%05d.idx", segment));
+  }
+
+  public boolean contains(String key) {
+    return index.containsKey(key);
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /** Returns null if there is no value for key */
+  public byte[] get(String key) throws IOException {
+    Loc l = index.get(key);
+    if (l == null)
+      return null;
+    FileChannel ch = reader(l.segment);
+    ByteBuffer bb = ByteBuffer.allocate(l.length);
+    long pos = l.offset;
+    while (bb.hasRemaining()) {
+      int r = ch.read(bb, pos);
+      if (r < 0)
+        throw new IOException("unexpected end of " + dataFile(l.segment).getPath() + " reading " + key);
+      pos += r;
+    }
+    return bb.array();
+  }
+
+  private synchronized FileChannel reader(int segment) throws IOException {
+    while (readers.size() <= segment)
+      readers.add(null);
+    FileChannel ch = readers.get(segment);
+    if (ch == null) {
+      ch = FileChannel.open(dataFile(segment).toPath(), StandardOpenOption.READ);
+      readers.set(segment, ch);
+    }
+    return ch;
+  }
+
+  /** Appends value, which later calls to {@link #get(String)} will return */
+  public synchronized void put(String key, byte[] value) throws IOException {
+    if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0)
+      throw new IllegalArgumentException("keys may not contain tabs or newlines: " + key);
+    Loc loc = null;
+    while (loc == null) {
+      if (curData == null) {
+        curData = FileChannel.open(dataFile(curSegment).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        curIndex = new FileOutputStream(indexFile(curSegment), true);
+      }
+      Object jvmLock = JVM_LOCKS.computeIfAbsent(
+          dataFile(curSegment).getCanonicalPath(), k -> new Object());
+      synchronized (jvmLock) {
+        try (FileLock lock = curData.lock()) {
+          // Someone else may have appended since we last wrote
+          long offset = curData.size();
+          if (offset == 0 || offset + value.length <= maxSegmentBytes) {
+            ByteBuffer bb = ByteBuffer.wrap(value);
+            long pos = offset;
+            while (bb.hasRemaining())
+              pos += curData.write(bb, pos);
+            // Write the index entry after the value so that the index never points to missing data
+            curIndex.write((key + "\t" + offset + "\t" + value.length + "\n").getBytes(StandardCharsets.UTF_8));
+            curIndex.flush();
+            loc = new Loc(curSegment, offset, value.length);
+          }
+        }
+      }
+      if (loc == null) {
+        // This segment is full, move on to the next one
+        closeWriters();
+        curSegment++;
+      }
+    }
+    index.put(key, loc);
+  }
+
+  private void closeWriters() throws IOException {
+    if (curData != null) {
+      curData.close();
+      curData = null;
+    }
+    if (curIndex != null) {
+      curIndex.close();
+      curIndex = null;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closeWriters();
+    for (FileChannel ch : readers)
+      if (ch != null)
+        ch.close();
+    readers.clear();
+  }
+
+  @Override
+  public String toString() {
+    return "(PackedSegments " + dir.getPath() + " values=" + index.size() + " curSegment=" + curSegment + ")";
+  }
+}
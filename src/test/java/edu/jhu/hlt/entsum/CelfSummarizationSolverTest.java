@@ -0,0 +1,148 @@
+package edu.jhu.hlt.entsum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.entsum.GillickFavre09Summarization.ConceptMention;
+import edu.jhu.prim.list.DoubleArrayList;
+import edu.jhu.prim.list.IntArrayList;
+
+public class CelfSummarizationSolverTest {
+
+  private static GillickFavre09Summarization randomProblem(Random r, int nSent, int nConcept, boolean costs) {
+    IntArrayList lengths = new IntArrayList();
+    DoubleArrayList sentCosts = costs ? new DoubleArrayList() : null;
+    List<ConceptMention> occ = new ArrayList<>();
+    for (int j = 0; j < nSent; j++) {
+      lengths.add(1 + r.nextInt(8));
+      if (costs)
+        sentCosts.add(r.nextInt(3) == 0 ? 0 : 2 * r.nextDouble());
+      int k = 1 + r.nextInt(4);
+      for (int m = 0; m < k; m++)
+        occ.add(new ConceptMention(r.nextInt(nConcept), j));
+    }
+    double[] u = new double[nConcept];
+    for (int i = 0; i < nConcept; i++)
+      u[i] = r.nextInt(4) == 0 ? 0 : 5 * r.nextDouble();
+    return new GillickFavre09Summarization(occ, lengths, sentCosts, u);
+  }
+
+  /** Objective (utility of covered concepts minus sentence costs), checks the length */
+  private static double value(GillickFavre09Summarization p, int[] sentences, int budget) {
+    boolean[] sel = new boolean[p.getSentenceLengths().size()];
+    int length = 0;
+    double v = 0;
+    for (int j : sentences) {
+      assertTrue("sentence " + j + " picked twice", !sel[j]);
+      sel[j] = true;
+      length += p.getSentenceLengths().get(j);
+      if (p.getSentenceCosts() != null)
+        v -= p.getSentenceCosts().get(j);
+    }
+    assertTrue("length=" + length + " budget=" + budget, length <= budget);
+    double[] u = p.getConceptUtilities();
+    boolean[] covered = new boolean[u.length];
+    for (ConceptMention m : p.getOcc()) {
+      if (sel[m.j] && !covered[m.i]) {
+        covered[m.i] = true;
+        v += u[m.i];
+      }
+    }
+    return v;
+  }
+
+  /** Best objective over every set of sentences which fits in budget */
+  private static double bruteForce(GillickFavre09Summarization p, int budget) {
+    int n = p.getSentenceLengths().size();
+    double best = 0;
+    for (int mask = 0; mask < (1 << n); mask++) {
+      int[] sentences = new int[Integer.bitCount(mask)];
+      int length = 0;
+      for (int j = 0, k = 0; j < n; j++) {
+        if ((mask & (1 << j)) != 0) {
+          sentences[k++] = j;
+          length += p.getSentenceLengths().get(j);
+        }
+      }
+      if (length <= budget)
+        best = Math.max(best, value(p, sentences, budget));
+    }
+    return best;
+  }
+
+  @Test
+  public void vsBruteForce() throws Exception {
+    double factor = 0.5 * (1 - 1 / Math.E);
+    CelfSummarizationSolver greedy = new CelfSummarizationSolver();
+    CelfSummarizationSolver lagrangian = new CelfSummarizationSolver(50, false);
+    Random r = new Random(9001);
+    int trials = 200;
+    int greedyOpt = 0, lagrangianOpt = 0;
+    for (int t = 0; t < trials; t++) {
+      boolean costs = t % 2 == 1;
+      GillickFavre09Summarization p = randomProblem(r, 2 + r.nextInt(11), 1 + r.nextInt(12), costs);
+      int budget = 1 + r.nextInt(30);
+      double opt = bruteForce(p, budget);
+      for (CelfSummarizationSolver s : new CelfSummarizationSolver[] {greedy, lagrangian}) {
+        String msg = "trial=" + t + " " + s + " opt=" + opt;
+        double v = value(p, s.solve(p, budget).toNativeArray(), budget);
+        assertEquals(msg, v, s.getLastValue(), 1e-9);
+        assertTrue(msg + " value=" + v, v <= opt + 1e-9);
+        assertTrue(msg + " ub=" + s.getLastUpperBound(), s.getLastUpperBound() >= opt - 1e-9);
+        if (!costs)
+          assertTrue(msg + " value=" + v, v >= factor * opt - 1e-9);
+        if (v >= opt - 1e-9) {
+          if (s == greedy)
+            greedyOpt++;
+          else
+            lagrangianOpt++;
+        }
+      }
+    }
+    // Seeding greedy with the relaxed solutions should only help
+    assertTrue("greedyOpt=" + greedyOpt + " lagrangianOpt=" + lagrangianOpt, lagrangianOpt >= greedyOpt);
+  }
+
+  /**
+   * Sentences 0 and 1 cover the same concept but 1 is cheaper, sentence 2's
+   * concept is worth less than its cost.
+   */
+  @Test
+  public void sentenceCosts() throws Exception {
+    IntArrayList lengths = new IntArrayList();
+    DoubleArrayList costs = new DoubleArrayList();
+    List<ConceptMention> occ = new ArrayList<>();
+    for (int j = 0; j < 3; j++)
+      lengths.add(5);
+    costs.add(3);
+    costs.add(0.5);
+    costs.add(2);
+    occ.add(new ConceptMention(0, 0));
+    occ.add(new ConceptMention(0, 1));
+    occ.add(new ConceptMention(1, 2));
+    GillickFavre09Summarization p = new GillickFavre09Summarization(occ, lengths, costs, new double[] {5, 1});
+    CelfSummarizationSolver s = new CelfSummarizationSolver(10, false);
+    IntArrayList keep = s.solve(p, 100);
+    assertEquals(1, keep.size());
+    assertEquals(1, keep.get(0));
+    assertEquals(4.5, s.getLastValue(), 1e-9);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeCost() throws Exception {
+    IntArrayList lengths = new IntArrayList();
+    lengths.add(1);
+    DoubleArrayList costs = new DoubleArrayList();
+    costs.add(-1);
+    List<ConceptMention> occ = new ArrayList<>();
+    occ.add(new ConceptMention(0, 0));
+    GillickFavre09Summarization p = new GillickFavre09Summarization(occ, lengths, costs, new double[] {1});
+    new CelfSummarizationSolver().solve(p, 1);
+  }
+}
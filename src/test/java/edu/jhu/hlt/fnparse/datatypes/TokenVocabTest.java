@@ -0,0 +1,47 @@
+package edu.jhu.hlt.fnparse.datatypes;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.features.IntFeatureSink;
+
+public class TokenVocabTest {
+
+  @Test
+  public void sentence() {
+    TokenVocab v = new TokenVocab();
+    String[] words = new String[] {"John", "saw", "John"};
+    String[] pos = new String[] {"nnp", "vbd", "nnp"};
+    Sentence s = new Sentence("test", "s1", words, pos, null);
+    s.internTokens(v);
+    int[] w = s.getTokenIds(TokenVocab.Type.WORD);
+    assertEquals(w[0], w[2]);
+    assertEquals("saw", v.getString(TokenVocab.Type.WORD, w[1]));
+    assertEquals("NNP".hashCode(), s.getTokenHash(TokenVocab.Type.POS, 0));
+    assertEquals("V".hashCode(), s.getTokenHash(TokenVocab.Type.COARSE_POS, 1));
+    // no lemmas or NER
+    assertEquals(TokenVocab.NULL, s.getTokenId(TokenVocab.Type.LEMMA, 1));
+    assertEquals(IntFeatureSink.NULL_HASH, s.getTokenHash(TokenVocab.Type.NER, 1));
+
+    DependencyParse d = new DependencyParse(new int[] {1, -1, 1}, new String[] {"nsubj", "root", "dobj"});
+    assertEquals("dobj".hashCode(), d.getLabelHash(v, 2));
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    TokenVocab v = new TokenVocab();
+    int a = v.lookup(TokenVocab.Type.WORD, "a\tb\\c");
+    int b = v.lookup(TokenVocab.Type.DEPREL, "nsubj");
+    File f = File.createTempFile("vocab", ".txt");
+    f.deleteOnExit();
+    v.toFile(f);
+    TokenVocab v2 = TokenVocab.fromFile(f);
+    assertEquals(a, v2.lookup(TokenVocab.Type.WORD, "a\tb\\c"));
+    assertEquals(b, v2.lookup(TokenVocab.Type.DEPREL, "nsubj"));
+    assertEquals(v.size(TokenVocab.Type.WORD), v2.size(TokenVocab.Type.WORD));
+  }
+}
@@ -0,0 +1,86 @@
+package edu.jhu.hlt.fnparse.evaluation;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.data.DataUtil;
+import edu.jhu.hlt.fnparse.data.FileFrameInstanceProvider;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.evaluation.BasicEvaluation.StdEvalFunc;
+import edu.jhu.hlt.fnparse.util.FrameInstanceCorrupter;
+
+public class StreamingEvaluationTests {
+
+	private List<FNParse> gold;
+	private Map<FNParse, FNParse> hyp;
+
+	@Before
+	public void getInstances() {
+		gold = DataUtil.iter2list(FileFrameInstanceProvider.dipanjantrainFIP.getParsedSentences());
+		if (gold.size() > 200)
+			gold = gold.subList(0, 200);
+		hyp = new IdentityHashMap<>();
+		FrameInstanceCorrupter corr = new FrameInstanceCorrupter();
+		for (FNParse y : gold)
+			hyp.put(y, corr.corrupt(y));
+	}
+
+	@Test
+	public void sameAsBatch() {
+		List<SentenceEval> instances = new ArrayList<>();
+		for (FNParse y : gold)
+			instances.add(new SentenceEval(y, hyp.get(y)));
+		StdEvalFunc[] fs = new StdEvalFunc[] {
+				BasicEvaluation.argOnlyMicroF1,
+				BasicEvaluation.argOnlyMicroPrecision,
+				BasicEvaluation.argOnlyMicroRecall,
+				BasicEvaluation.fullMacroF1,
+		};
+		for (int threads : new int[] {1, 4}) {
+			StreamingEvaluation se = new StreamingEvaluation(threads, 3, 0, 0);
+			StreamingEvaluation.Result r = se.evaluate(gold.size(), gold::get, hyp::get, "[test]");
+			assertFalse(r.stoppedEarly());
+			assertEquals(gold.size(), r.numEvaluated());
+			for (StdEvalFunc f : fs)
+				assertEquals(f.getName(), f.evaluate(instances), r.getScore(f), 1e-8);
+		}
+	}
+
+	/**
+	 * When the time limit is hit, evaluate should not return until predictions
+	 * which were started have finished, and no more should start after that.
+	 */
+	@Test
+	public void timeLimitWaitsForPredictions() throws InterruptedException {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger calls = new AtomicInteger();
+		StreamingEvaluation se = new StreamingEvaluation(4, 8, 0, 0.5);
+		StreamingEvaluation.Result r = se.evaluate(gold.size(), gold::get, y -> {
+			running.incrementAndGet();
+			calls.incrementAndGet();
+			try {
+				long start = System.currentTimeMillis();
+				while (System.currentTimeMillis() - start < 100)
+					;   // busy, not interruptible
+				return hyp.get(y);
+			} finally {
+				running.decrementAndGet();
+			}
+		}, "[test]");
+		assertTrue(r.stoppedEarly());
+		assertTrue(r.numEvaluated() < gold.size());
+		assertEquals(0, running.get());
+		int c = calls.get();
+		Thread.sleep(300);
+		assertEquals(c, calls.get());
+		assertEquals(r.numEvaluated(), r.getSentenceEvals().size());
+	}
+}
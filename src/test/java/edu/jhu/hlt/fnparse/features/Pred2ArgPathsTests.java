@@ -0,0 +1,140 @@
+package edu.jhu.hlt.fnparse.features;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.data.DataUtil;
+import edu.jhu.hlt.fnparse.data.FileFrameInstanceProvider;
+import edu.jhu.hlt.fnparse.datatypes.DependencyParse;
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
+import edu.jhu.hlt.fnparse.datatypes.Sentence;
+import edu.jhu.hlt.fnparse.features.Pred2ArgPaths.DepDecompArgCandidiates;
+import edu.jhu.hlt.fnparse.features.Pred2ArgPaths.Trie;
+import edu.jhu.hlt.fnparse.inference.heads.DependencyHeadFinder;
+import edu.jhu.hlt.tutils.Span;
+import edu.jhu.prim.tuple.Pair;
+
+public class Pred2ArgPathsTests {
+
+  private List<FNParse> parses;
+  private DepDecompArgCandidiates args;
+
+  @Before
+  public void setup() throws IOException {
+    parses = DataUtil.iter2list(FileFrameInstanceProvider.dipanjantrainFIP.getParsedSentences());
+    if (parses.size() > 100)
+      parses = parses.subList(0, 100);
+    for (FNParse y : parses) {
+      Sentence s = y.getSentence();
+      if (s.getParseyDeps() == null)
+        s.setParseyDeps(s.getBasicDeps());
+    }
+
+    // Paths (followed by the role) from pred to arg head, arg head to start, and arg head to end
+    Trie<String> p2h = new Trie<>(null);
+    Trie<String> h2s = new Trie<>(null);
+    Trie<String> h2e = new Trie<>(null);
+    DependencyHeadFinder hf = new DependencyHeadFinder(DependencyHeadFinder.Mode.PARSEY);
+    for (FNParse y : parses) {
+      Sentence sent = y.getSentence();
+      DependencyParse deps = sent.getParseyDeps();
+      for (FrameInstance fi : y.getFrameInstances()) {
+        int p = hf.head(fi.getTarget(), sent);
+        for (Pair<String, Span> rs : fi.getRealizedRoleArgs()) {
+          String k = rs.get1();
+          Span s = rs.get2();
+          int a = hf.head(s, sent);
+          List<String> ph = Pred2ArgPaths.getPath(p, a, deps, sent);
+          ph.add(k);
+          p2h.add(ph);
+          List<String> as = Pred2ArgPaths.getPath(a, s.start, deps, sent);
+          as.add(k);
+          h2s.add(as);
+          List<String> ae = Pred2ArgPaths.getPath(a, s.end - 1, deps, sent);
+          ae.add(k);
+          h2e.add(ae);
+        }
+      }
+    }
+    File p2hf = File.createTempFile("p2h", ".txt");
+    File h2sf = File.createTempFile("h2s", ".txt");
+    File h2ef = File.createTempFile("h2e", ".txt");
+    for (File f : new File[] {p2hf, h2sf, h2ef})
+      f.deleteOnExit();
+    p2h.writeToDisk(p2hf);
+    h2s.writeToDisk(h2sf);
+    h2e.writeToDisk(h2ef);
+    args = new DepDecompArgCandidiates(p2hf, h2sf, h2ef);
+  }
+
+  /** Roles for a span may come out in a different order */
+  private static List<String> show(List<Pair<Span, String>> args) {
+    List<String> s = new ArrayList<>();
+    for (Pair<Span, String> a : args)
+      s.add(a.get1().shortString() + "/" + a.get2());
+    Collections.sort(s);
+    return s;
+  }
+
+  @Test
+  public void sameAsPath2() {
+    int[][] thresholds = new int[][] {{1, 1, 1, 1}, {2, 1, 3, 2}, {1, 2, 2, 1}};
+    for (int[] th : thresholds) {
+      args.k1 = th[0];
+      args.k2 = th[1];
+      args.k3 = th[2];
+      args.c = th[3];
+      for (FNParse y : parses) {
+        Sentence sent = y.getSentence();
+        for (FrameInstance fi : y.getFrameInstances()) {
+          int p = fi.getTarget().end - 1;
+          assertEquals(sent.getId() + " pred=" + p,
+              show(args.getArgCandidates2ByPath(p, sent)),
+              show(args.getArgCandidates2(p, sent)));
+        }
+      }
+    }
+  }
+
+  /** Scratch space is per thread, so threads sharing one instance get the same answers */
+  @Test
+  public void threadSafe() throws Exception {
+    ConcurrentHashMap<String, List<String>> expected = new ConcurrentHashMap<>();
+    for (FNParse y : parses) {
+      Sentence sent = y.getSentence();
+      for (int p = 0; p < sent.size(); p++)
+        expected.put(sent.getId() + "/" + p, show(args.getArgCandidates2(p, sent)));
+    }
+    ExecutorService es = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> fs = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        final int offset = t;
+        fs.add(es.submit(() -> {
+          for (int i = 0; i < parses.size(); i++) {
+            Sentence sent = parses.get((i + offset * 7) % parses.size()).getSentence();
+            for (int p = 0; p < sent.size(); p++)
+              assertEquals(expected.get(sent.getId() + "/" + p), show(args.getArgCandidates2(p, sent)));
+          }
+        }));
+      }
+      for (Future<?> f : fs)
+        f.get();
+    } finally {
+      es.shutdown();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package edu.jhu.hlt.fnparse.features;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.Template;
+import edu.jhu.hlt.fnparse.features.TemplatedFeatures.TemplateJoin;
+
+public class TemplateProductPlanTests {
+
+  /** Returns fixed strings and counts how many times it was called */
+  static class Fixed implements Template {
+    private final Iterable<String> values;
+    int calls = 0;
+    Fixed(String... values) {
+      this.values = values == null ? null : Arrays.asList(values);
+    }
+    @Override
+    public Iterable<String> extract(TemplateContext context) {
+      calls++;
+      return values;
+    }
+  }
+
+  @Test
+  public void sameAsTemplateJoin() {
+    Fixed a = new Fixed("a1", "a2");
+    Fixed b = new Fixed("b1");
+    Fixed c = new Fixed("c1", "c2", "c3");
+    Fixed d = new Fixed((String[]) null);
+    Template[] basic = new Template[] {a, b, c, d};
+    int[][] prods = new int[][] {{0}, {0, 1}, {0, 1, 2}, {2, 0}, {1, 3}, {3, 0}, {0, 1, 3}};
+
+    TemplateProductPlan plan = new TemplateProductPlan(basic, new String[] {"a", "b", "c", "d"}, prods);
+    TemplateContext ctx = new TemplateContext();
+    IntFeatureSink out = new IntFeatureSink();
+    int[] ends = new int[prods.length];
+    for (int iter = 0; iter < 2; iter++) {
+      a.calls = b.calls = c.calls = d.calls = 0;
+      out.clear();
+      plan.extractHashes(ctx, out, ends);
+      assertEquals(1, a.calls);
+      assertEquals(1, b.calls);
+      assertEquals(1, c.calls);
+      assertEquals(1, d.calls);
+
+      IntFeatureSink expected = new IntFeatureSink();
+      int start = 0;
+      for (int i = 0; i < prods.length; i++) {
+        Template[] ts = new Template[prods[i].length];
+        for (int j = 0; j < ts.length; j++)
+          ts[j] = basic[prods[i][j]];
+        expected.clear();
+        TemplateJoin.prod(ts).extractHashes(ctx, expected);
+        assertArrayEquals("product " + i, expected.toArray(), Arrays.copyOfRange(out.toArray(), start, ends[i]));
+        start = ends[i];
+      }
+      assertEquals(out.size(), ends[prods.length - 1]);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package edu.jhu.hlt.fnparse.features.precompute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.features.precompute.ColumnarFeatureStore.Block;
+import edu.jhu.hlt.fnparse.features.precompute.ColumnarFeatureStore.FeatureView;
+import edu.jhu.hlt.tutils.Span;
+import edu.jhu.hlt.tutils.SpanPair;
+
+public class ColumnarFeatureStoreTests {
+
+  @Test
+  public void roundTrip() throws IOException {
+    Span t1 = Span.getSpan(2, 3);
+    Span t2 = Span.getSpan(5, 6);
+    Map<SpanPair, Object> s1 = new HashMap<>();
+    s1.put(new SpanPair(t2, Span.getSpan(0, 2)), new int[] {7, 8});
+    s1.put(new SpanPair(t1, Span.getSpan(3, 5)), new int[] {1, 2, 3});
+    s1.put(new SpanPair(t1, Span.getSpan(0, 1)), new int[] {});
+    Map<SpanPair, Object> s2 = new HashMap<>();
+    s2.put(new SpanPair(t1, Span.getSpan(0, 1)), new long[] {1L << 40, 4});
+
+    File f = File.createTempFile("feats", ".cfst");
+    f.deleteOnExit();
+    long hash = ColumnarFeatureStore.featureSetHash(new int[][] {{0, 1}}, new int[] {10, 20});
+    try (ColumnarFeatureStore.Writer w = new ColumnarFeatureStore.Writer(f, hash)) {
+      w.write("sent1", s1);
+      w.write("sent2", s2);
+    }
+    assertTrue(ColumnarFeatureStore.isColumnar(f));
+
+    try (ColumnarFeatureStore store = new ColumnarFeatureStore(f)) {
+      assertEquals(hash, store.getFeatureSetHash());
+      assertEquals(2, store.numSentences());
+      assertEquals("sent2", store.getSentenceId(1));
+
+      FeatureView v = new FeatureView();
+      Block b = store.getBlock(0);
+      assertEquals(3, b.numKeys());
+      assertTrue(b.view(t1, Span.getSpan(3, 5), v));
+      assertEquals(3, v.size());
+      assertEquals(2, v.get(1));
+      assertTrue(b.view(t1, Span.getSpan(0, 1), v));
+      assertEquals(0, v.size());
+      assertFalse(b.view(t2, Span.getSpan(3, 5), v));
+      List<Span> args = b.getArgSpansForTarget(t1);
+      assertEquals(2, args.size());
+      assertNull(b.getArgSpansForTarget(Span.getSpan(0, 1)));
+
+      b = store.getBlock(1);
+      assertTrue(b.view(t1, Span.getSpan(0, 1), v));
+      assertEquals(1L << 40, v.get(0));
+      assertEquals(4, v.get(1));
+    }
+  }
+}
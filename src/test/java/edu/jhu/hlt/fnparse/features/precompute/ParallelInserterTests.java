@@ -0,0 +1,124 @@
+package edu.jhu.hlt.fnparse.features.precompute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.datatypes.FNParse;
+import edu.jhu.hlt.fnparse.datatypes.FrameInstance;
+import edu.jhu.hlt.fnparse.datatypes.Sentence;
+import edu.jhu.hlt.fnparse.features.precompute.BiAlph.LineMode;
+import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures.Item;
+import edu.jhu.hlt.fnparse.features.precompute.CachedFeatures.PropbankFNParses;
+import edu.jhu.hlt.tutils.SpanPair;
+
+public class ParallelInserterTests {
+
+  private static final int NUM_SENTS = 12;
+
+  private static File tmp(String suffix) throws IOException {
+    File f = File.createTempFile("ingest", suffix);
+    f.deleteOnExit();
+    return f;
+  }
+
+  /** Two templates with 6 features each */
+  private static BiAlph bialph() throws IOException {
+    File f = tmp(".alph");
+    try (PrintWriter w = new PrintWriter(f)) {
+      for (int t = 0; t < 2; t++)
+        for (int i = 0; i < 6; i++)
+          w.println(t + "\t" + i + "\ttemplate" + t + "\tfeat" + i);
+    }
+    return new BiAlph(f, LineMode.ALPH);
+  }
+
+  /** Sentences are spread across numFiles files, each with a few (t, s) lines */
+  private static List<File> featureFiles(int numFiles) throws IOException {
+    List<File> files = new ArrayList<>();
+    List<PrintWriter> ws = new ArrayList<>();
+    for (int i = 0; i < numFiles; i++) {
+      files.add(tmp(".txt"));
+      ws.add(new PrintWriter(files.get(i)));
+    }
+    for (int i = 0; i < NUM_SENTS; i++) {
+      PrintWriter w = ws.get(i % numFiles);
+      for (int s = 0; s < 1 + i % 3; s++) {
+        w.println("test\tsent" + i + "\t2-3\t" + s + "-" + (s + 1) + "\t-1"
+            + "\t0:" + (i % 6) + "\t0:" + (s % 6) + "\t1:" + ((i + s) % 6));
+      }
+    }
+    for (PrintWriter w : ws)
+      w.close();
+    return files;
+  }
+
+  private static CachedFeatures cachedFeatures(BiAlph bialph) {
+    List<int[]> featureSet = Arrays.asList(new int[] {0}, new int[] {0, 1});
+    CachedFeatures cf = new CachedFeatures(bialph, featureSet);
+    Map<String, FNParse> sentId2parse = new HashMap<>();
+    for (int i = 0; i < NUM_SENTS; i++) {
+      String id = "sent" + i;
+      Sentence sent = new Sentence("test", id,
+          new String[] {"a", "b", "c", "d"}, new String[] {"x", "x", "x", "x"}, null);
+      sentId2parse.put(id, new FNParse(sent, Collections.<FrameInstance>emptyList()));
+    }
+    Set<String> dev = new HashSet<>(Arrays.asList("sent1", "sent5"));
+    Set<String> test = new HashSet<>(Arrays.asList("sent2"));
+    cf.sentIdsAndFNParses = new PropbankFNParses(sentId2parse, dev, test);
+    return cf;
+  }
+
+  private static long[] asLongs(Object feats) {
+    if (feats instanceof long[])
+      return (long[]) feats;
+    int[] a = (int[]) feats;
+    long[] l = new long[a.length];
+    for (int i = 0; i < a.length; i++)
+      l[i] = a[i];
+    return l;
+  }
+
+  /** Reading with many threads should build the same items as reading serially */
+  @Test
+  public void sameAsSerial() throws Exception {
+    BiAlph bialph = bialph();
+    List<File> files = featureFiles(3);
+
+    CachedFeatures serial = cachedFeatures(bialph);
+    serial.new Inserter(files, false, false).run();
+
+    CachedFeatures parallel = cachedFeatures(bialph);
+    // A small queue, so the readers have to wait on the parsers
+    parallel.new ParallelInserter(files, 2, 3, 2, false).run();
+
+    for (int i = 0; i < NUM_SENTS; i++) {
+      String id = "sent" + i;
+      Item a = serial.getItemFuture(id).get();
+      Item b = parallel.getItemFuture(id).get();
+      assertNotNull(a);
+      assertNotNull(b);
+      Map<SpanPair, Object> fa = a.getFlattenedFeatures();
+      Map<SpanPair, Object> fb = b.getFlattenedFeatures();
+      assertEquals(fa.keySet(), fb.keySet());
+      for (SpanPair k : fa.keySet())
+        assertArrayEquals(asLongs(fa.get(k)), asLongs(fb.get(k)));
+    }
+    assertNull(parallel.getItemFuture("notASentence").get());
+  }
+}
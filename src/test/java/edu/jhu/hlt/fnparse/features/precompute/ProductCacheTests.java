@@ -0,0 +1,90 @@
+package edu.jhu.hlt.fnparse.features.precompute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ProductCacheTests {
+
+  @Test
+  public void sharedPrefixes() {
+    int[] template2cardinality = new int[] {4, 5, 6};
+    // template 0 has values 1 and 2 (2 is repeated), template 1 has 3, template 2 doesn't fire
+    FeatureFile.Line line = new FeatureFile.Line("test\tsent1\t2-3\t0-1\t-1\t0:1\t0:2\t0:2\t1:3", true);
+
+    ProductCache pc = new ProductCache(template2cardinality, 1 << 10);
+    ProductCache.Plan a = pc.compile(new int[][] {{0}, {0, 1}});
+    ProductCache.Plan b = pc.compile(new int[][] {{0, 1}, {0, 2}});
+    assertEquals(4, pc.getNumPrefixes());
+
+    // intercept is 1 + fsLen, then feature i's products p are 1 + i + (1 + fsLen) * p
+    ProductCache.Buffer buf = new ProductCache.Buffer();
+    pc.features(line, a, buf);
+    assertArrayEquals(new long[] {3, 1 + 3 * 1, 1 + 3 * 2, 2 + 3 * (1 * 5 + 3), 2 + 3 * (2 * 5 + 3)}, buf.toArray());
+
+    pc.features(line, b, buf);
+    assertArrayEquals(new long[] {3, 1 + 3 * (1 * 5 + 3), 1 + 3 * (2 * 5 + 3)}, buf.toArray());
+
+    // null span only has the (off) intercept
+    pc.features(null, b, buf);
+    assertArrayEquals(new long[] {0}, buf.toArray());
+  }
+
+  /** Evicting lines shouldn't change the features, only how often they're recomputed */
+  @Test
+  public void eviction() {
+    int[] template2cardinality = new int[] {10, 10, 10, 10};
+    int[][] fs = new int[][] {{0}, {1}, {0, 1}, {0, 1, 2}, {1, 3}, {0, 2, 3}};
+    Random rand = new Random(9001);
+    List<FeatureFile.Line> lines = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      StringBuilder sb = new StringBuilder("test\tsent" + i + "\t2-3\t0-1\t-1");
+      for (int t = 0; t < template2cardinality.length; t++)
+        for (int k = rand.nextInt(3); k > 0; k--)
+          sb.append("\t" + t + ":" + rand.nextInt(template2cardinality[t]));
+      lines.add(new FeatureFile.Line(sb.toString(), true));
+    }
+
+    int maxValues = 64;
+    ProductCache small = new ProductCache(template2cardinality, maxValues);
+    ProductCache big = new ProductCache(template2cardinality, 1 << 20);
+    ProductCache.Plan ps = small.compile(fs);
+    ProductCache.Plan pb = big.compile(fs);
+    ProductCache.Buffer bs = new ProductCache.Buffer();
+    ProductCache.Buffer bb = new ProductCache.Buffer();
+    for (int pass = 0; pass < 3; pass++) {
+      for (int i = 0; i < lines.size(); i++) {
+        FeatureFile.Line l = lines.get((i * 7 + pass) % lines.size());
+        small.features(l, ps, bs);
+        big.features(l, pb, bb);
+        assertArrayEquals(bb.toArray(), bs.toArray());
+        // Only the line just computed may push the cache over its limit
+        assertTrue(small.getNumLines() == 1 || small.getNumValues() <= maxValues);
+      }
+    }
+    assertTrue(small.getNumEvictions() > 0);
+    assertTrue(small.getNumLines() < lines.size());
+    assertEquals(0, big.getNumEvictions());
+    assertEquals(lines.size(), big.getNumLines());
+  }
+
+  @Test
+  public void toIntArrayNonNegative() {
+    ProductCache.Buffer buf = new ProductCache.Buffer();
+    long[] vals = new long[] {0, 5, -5, Long.MIN_VALUE, Long.MAX_VALUE, -1};
+    for (long v : vals)
+      buf.add(v);
+    int dimension = 1000;
+    int[] a = buf.toIntArray(dimension);
+    for (int i = 0; i < vals.length; i++) {
+      assertTrue(a[i] >= 0 && a[i] < dimension);
+      assertEquals(Math.floorMod(vals[i], (long) dimension), a[i]);
+    }
+  }
+}
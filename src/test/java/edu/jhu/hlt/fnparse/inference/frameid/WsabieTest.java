@@ -0,0 +1,95 @@
+package edu.jhu.hlt.fnparse.inference.frameid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.Beam;
+
+public class WsabieTest {
+
+  private static final int NUM_FN = 20, NUM_PB = 10;
+  private static final int DIM_FEAT = 1 << 10;
+
+  private Wsabie model;
+  private List<FrameIdExample> examples;
+
+  @Before
+  public void setup() throws IOException {
+    // 0 is the null frame, then framenet frames, then propbank frames
+    File roleNames = File.createTempFile("role-names", ".txt");
+    roleNames.deleteOnExit();
+    try (PrintWriter w = new PrintWriter(roleNames)) {
+      w.println("0\tf=UKN");
+      for (int i = 1; i <= NUM_FN; i++)
+        w.println(i + "\tf=framenet/Frame" + i);
+      for (int i = 1; i <= NUM_PB; i++)
+        w.println((NUM_FN + i) + "\tf=propbank/frame-v-0" + i);
+    }
+    FrameSchemaHelper schemas = new FrameSchemaHelper(roleNames);
+    model = new Wsabie(schemas, 10, DIM_FEAT, 16);
+
+    Random rand = new Random(9001);
+    int numFrames = 1 + NUM_FN + NUM_PB;
+    examples = new ArrayList<>();
+    for (int i = 0; i < 150; i++) {
+      int[] feats = new int[1 + rand.nextInt(30)];
+      for (int j = 0; j < feats.length; j++)
+        feats[j] = rand.nextInt(DIM_FEAT);
+      FrameIdExample e = new FrameIdExample(rand.nextInt(numFrames), feats);
+      if (rand.nextBoolean()) {
+        List<Integer> confusion = new ArrayList<>();
+        for (int f = 0; f < numFrames; f++)
+          if (rand.nextInt(3) == 0)
+            confusion.add(f);
+        e.setFrameConfusionSet(confusion, true);
+      }
+      examples.add(e);
+    }
+  }
+
+  /** Batched predictions should rank frames the same way as one at a time */
+  @Test
+  public void batchSameAsSingle() {
+    int k = 5;
+    Wsabie.TopK batch = model.predict(examples, k, true);
+    assertEquals(examples.size(), batch.numTargets());
+    for (int i = 0; i < examples.size(); i++) {
+      Beam<Integer> single = model.predict(examples.get(i), k);
+      int[] expected = new int[single.size()];
+      for (int r = 0; r < expected.length; r++)
+        expected[r] = single.pop();
+      int[] actual = new int[batch.size(i)];
+      for (int r = 0; r < actual.length; r++)
+        actual[r] = batch.frame(i, r);
+      assertEquals("target " + i, Arrays.toString(expected), Arrays.toString(actual));
+    }
+  }
+
+  /** Models serialized before predictBlockSize was added read it as 0 */
+  @Test
+  public void zeroBlockSize() throws Exception {
+    Field f = Wsabie.class.getDeclaredField("predictBlockSize");
+    f.setAccessible(true);
+    f.setInt(model, 0);
+    assertEquals(Wsabie.DEFAULT_PREDICT_BLOCK_SIZE, model.getPredictBlockSize());
+    Wsabie.TopK a = model.predict(examples, 3, true);
+    model.setPredictBlockSize(7);
+    Wsabie.TopK b = model.predict(examples, 3, true);
+    for (int i = 0; i < examples.size(); i++) {
+      assertEquals(b.size(i), a.size(i));
+      for (int r = 0; r < a.size(i); r++)
+        assertEquals(b.frame(i, r), a.frame(i, r));
+    }
+  }
+}
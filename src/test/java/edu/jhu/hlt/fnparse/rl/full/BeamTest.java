@@ -0,0 +1,45 @@
+package edu.jhu.hlt.fnparse.rl.full;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.rl.full.Beam.ArrayBeam;
+import edu.jhu.hlt.fnparse.rl.full.Beam.DoubleBeam;
+
+public class BeamTest {
+
+  /** ArrayBeam should make the same decisions as DoubleBeam (given no score ties) */
+  @Test
+  public void sameAsDoubleBeam() {
+    Random r = new Random(9001);
+    for (int trial = 0; trial < 500; trial++) {
+      boolean withSig = r.nextBoolean();
+      int cap = 1 + r.nextInt(trial % 2 == 0 ? 8 : 200);
+      DoubleBeam<FixedScoreState> d = new DoubleBeam<>(cap, FixedScoreState.BY_SCORE);
+      ArrayBeam<FixedScoreState> a = new ArrayBeam<>(cap, FixedScoreState.BY_SCORE);
+      int ids = 1 + r.nextInt(300);
+      for (int step = 0; step < 500; step++) {
+        int op = r.nextInt(10);
+        if (op < 7) {
+          FixedScoreState s = new FixedScoreState(r.nextInt(ids), r.nextGaussian(), withSig);
+          assertEquals(d.offer(s), a.offer(s));
+        } else if (op < 9 && d.size() > 0) {
+          assertSame(d.pop(), a.pop());
+        } else if (r.nextInt(5) == 0) {
+          d.clear();
+          a.clear();
+        }
+        assertEquals(d.size(), a.size());
+        assertEquals(d.lowerBound(), a.lowerBound());
+        if (d.size() > 0)
+          assertSame(d.peek(), a.peek());
+      }
+      while (d.size() > 0)
+        assertSame(d.pop(), a.pop());
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package edu.jhu.hlt.fnparse.rl.full;
+
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+
+/**
+ * A {@link StateLike} with a fixed score and (optionally) a signature, for
+ * exercising {@link Beam}s without running inference (see BeamTest and
+ * ParallelExpandTest, BeamBenchmark has its own copy). The score is stored as the rand score, which is what
+ * {@link #BY_SCORE} ranks by.
+ *
+ * @author travis
+ */
+public class FixedScoreState implements StateLike {
+
+  /** Ranks by {@link StepScores#getRand()}, has no beam size */
+  public static final HowToSearch BY_SCORE = new HowToSearch() {
+    @Override public GeneralizedCoef coefLoss() { return null; }
+    @Override public GeneralizedCoef coefModel() { return null; }
+    @Override public GeneralizedCoef coefRand() { return null; }
+    @Override public int beamSize() { throw new UnsupportedOperationException(); }
+    @Override public double forwards(StepScores<?> scores) { return scores.getRand(); }
+  };
+
+  private final StepScores<?> scores;
+  private final Sig sig;
+
+  /**
+   * @param id states with the same id are equal (and collapse in a beam) if
+   * withSig is true, otherwise states are only equal to themselves.
+   */
+  public FixedScoreState(int id, double score, boolean withSig) {
+    this.scores = new StepScores<>(null, new Adjoints.Constant(0), MaxLoss.ZERO, score);
+    this.sig = withSig ? Sig.item(Sig.Mode.ZOBRIST, 0, 1, id, 0, 0, 0, 0) : null;
+  }
+
+  @Override
+  public StepScores<?> getStepScores() {
+    return scores;
+  }
+
+  @Override
+  public Sig getSignature() {
+    return sig;
+  }
+
+  @Override
+  public int hashCode() {
+    return sig == null ? System.identityHashCode(this) : sig.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (sig == null)
+      return this == other;
+    return other instanceof FixedScoreState && sig.equals(((FixedScoreState) other).sig);
+  }
+}
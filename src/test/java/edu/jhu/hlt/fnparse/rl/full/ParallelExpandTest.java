@@ -0,0 +1,116 @@
+package edu.jhu.hlt.fnparse.rl.full;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.rl.full.Beam.ArrayBeam;
+import edu.jhu.hlt.fnparse.rl.full.ParallelExpand.Successors;
+import edu.jhu.hlt.tutils.ProductIndex;
+
+public class ParallelExpandTest {
+
+  /**
+   * Children are drawn from the Random given to each expansion. Ids come from
+   * a small range so that children of different parents collapse.
+   */
+  static final Successors<FixedScoreState> SUCC = (s, r, beam, overall) -> {
+    int k = 1 + r.nextInt(12);
+    for (int i = 0; i < k; i++) {
+      FixedScoreState c = new FixedScoreState(r.nextInt(40), r.nextGaussian(), true);
+      beam.offer(c);
+      overall.offer(c);
+    }
+  };
+
+  /** Expands one beam (in pop order) into next and all, one state at a time */
+  private static void expandSerial(List<FixedScoreState> items,
+      ArrayBeam<FixedScoreState> next, ArrayBeam<FixedScoreState> all, Random rand) {
+    long[] seeds = new long[items.size()];
+    for (int i = 0; i < seeds.length; i++)
+      seeds[i] = rand.nextLong();
+    for (int i = 0; i < seeds.length; i++)
+      SUCC.next(items.get(i), new Random(seeds[i]), next, all);
+  }
+
+  @Test
+  public void sameAsSerial() {
+    ForkJoinPool one = new ForkJoinPool(1);
+    ForkJoinPool four = new ForkJoinPool(4);
+    try {
+      Random r = new Random(9001);
+      for (int trial = 0; trial < 200; trial++) {
+        int beamSize = 1 + r.nextInt(16);
+        int allSize = 1 + r.nextInt(64);
+        List<FixedScoreState> items = new ArrayList<>();
+        int n = 1 + r.nextInt(beamSize);
+        for (int i = 0; i < n; i++)
+          items.add(new FixedScoreState(i, r.nextGaussian(), true));
+        long seed = r.nextLong();
+
+        ArrayBeam<FixedScoreState> nextS = new ArrayBeam<>(beamSize, FixedScoreState.BY_SCORE);
+        ArrayBeam<FixedScoreState> allS = new ArrayBeam<>(allSize, FixedScoreState.BY_SCORE);
+        expandSerial(items, nextS, allS, new Random(seed));
+
+        ArrayBeam<FixedScoreState> next1 = new ArrayBeam<>(beamSize, FixedScoreState.BY_SCORE);
+        ArrayBeam<FixedScoreState> all1 = new ArrayBeam<>(allSize, FixedScoreState.BY_SCORE);
+        ParallelExpand.expand(items, next1, all1, new Random(seed), one, SUCC);
+
+        ArrayBeam<FixedScoreState> next4 = new ArrayBeam<>(beamSize, FixedScoreState.BY_SCORE);
+        ArrayBeam<FixedScoreState> all4 = new ArrayBeam<>(allSize, FixedScoreState.BY_SCORE);
+        ParallelExpand.expand(items, next4, all4, new Random(seed), four, SUCC);
+
+        // Children are new objects in each run, so compare them by signature
+        // and score.
+        assertSameScores(nextS, next1);
+        assertSameScores(allS, all1);
+        ArrayBeam<FixedScoreState> next1b = new ArrayBeam<>(beamSize, FixedScoreState.BY_SCORE);
+        ArrayBeam<FixedScoreState> all1b = new ArrayBeam<>(allSize, FixedScoreState.BY_SCORE);
+        ParallelExpand.expand(items, next1b, all1b, new Random(seed), one, SUCC);
+        assertSameScores(next1b, next4);
+        assertSameScores(all1b, all4);
+      }
+    } finally {
+      one.shutdown();
+      four.shutdown();
+    }
+  }
+
+  private static void assertSameScores(ArrayBeam<FixedScoreState> a, ArrayBeam<FixedScoreState> b) {
+    assertEquals(a.size(), b.size());
+    while (a.size() > 0) {
+      FixedScoreState x = a.pop(), y = b.pop();
+      assertEquals(x.getSignature(), y.getSignature());
+      assertEquals(x.getStepScores().getRand(), y.getStepScores().getRand(), 0);
+    }
+  }
+
+  /** Every thread should see the same index for a feature */
+  @Test
+  public void ffThreadSafe() throws InterruptedException {
+    int nThreads = 8, nFeats = 5000;
+    @SuppressWarnings("unchecked")
+    List<ProductIndex>[] feats = new List[nThreads];
+    Thread[] threads = new Thread[nThreads];
+    for (int t = 0; t < nThreads; t++) {
+      List<ProductIndex> addTo = feats[t] = new ArrayList<>();
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < nFeats; i++)
+          State.ff(addTo, "ParallelExpandTest/" + i);
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    for (int i = 0; i < nFeats; i++) {
+      int idx = State.ALPH.lookupIndex("ParallelExpandTest/" + i, false);
+      for (int t = 0; t < nThreads; t++)
+        assertEquals(idx, feats[t].get(i).getProdFeature());
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package edu.jhu.hlt.fnparse.rl.full;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class SigTest {
+
+  private static Sig item(Sig.Mode mode, int prime, long a, long b) {
+    return Sig.item(mode, prime, 7, a, b, 0, 0, 0);
+  }
+
+  @Test
+  public void orderIndependent() {
+    for (Sig.Mode mode : Sig.Mode.values()) {
+      Sig x = item(mode, 2, 1, 2);
+      Sig y = item(mode, 3, 2, 1);
+      Sig z = item(mode, 5, 3, 3);
+      Sig xyz = mode.one().add(x).add(y).add(z);
+      Sig zyx = mode.one().add(z).add(y).add(x);
+      assertEquals(xyz, zyx);
+      assertEquals(xyz.hashCode(), zyx.hashCode());
+      assertNotEquals(xyz, mode.one().add(x).add(y));
+      // Multi-set: adding an item twice doesn't cancel
+      assertNotEquals(x, x.add(y).add(y));
+      assertNotEquals(mode.one(), x.add(x));
+    }
+  }
+
+  @Test
+  public void auditAgrees() {
+    long before = Sig.COLLISIONS.get();
+    Sig.Mode m = Sig.Mode.AUDIT;
+    Sig a = m.one().add(item(m, 2, 1, 2)).add(item(m, 3, 2, 1));
+    Sig b = m.one().add(item(m, 3, 2, 1)).add(item(m, 2, 1, 2));
+    Sig c = m.one().add(item(m, 5, 3, 3));
+    assertEquals(0, a.compareTo(b));
+    assertNotEquals(0, a.compareTo(c));
+    assertEquals(before, Sig.COLLISIONS.get());
+  }
+}
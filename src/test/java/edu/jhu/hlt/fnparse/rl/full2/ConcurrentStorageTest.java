@@ -0,0 +1,119 @@
+package edu.jhu.hlt.fnparse.rl.full2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ConcurrentStorageTest {
+
+  /** Single threaded, the average should match the regular implementation */
+  @Test
+  public void sameAsSerial() {
+    int D = 64;
+    AveragedPerceptronWeights a = new AveragedPerceptronWeights(D, 0);
+    AveragedPerceptronWeights b = new AveragedPerceptronWeights.ConcurrentStorage(D);
+    Random r = new Random(9001);
+    for (int n = 0; n < 500; n++) {
+      int i = r.nextInt(D);
+      double d = r.nextGaussian();
+      a.bwh(i, d);
+      b.bwh(i, d);
+      a.completedObservation();
+      b.completedObservation();
+    }
+    assertEquals(a.numObervations(), b.numObervations(), 0);
+    for (int i = 0; i < D; i++) {
+      assertEquals(a.getWeight(i), b.getWeight(i), 1e-9);
+      assertEquals(a.getAveragedWeight(i), b.getAveragedWeight(i), 1e-9);
+    }
+  }
+
+  /** No updates or observations are lost when many threads share the weights */
+  @Test
+  public void hogwild() throws InterruptedException {
+    int D = 8, threads = 8, perThread = 20000;
+    AveragedPerceptronWeights w = new AveragedPerceptronWeights.ConcurrentStorage(D);
+    List<Thread> ts = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int tt = t;
+      ts.add(new Thread(() -> {
+        for (int n = 0; n < perThread; n++) {
+          w.bwh((tt + n) % D, -1);
+          w.completedObservation();
+        }
+      }));
+    }
+    for (Thread t : ts) t.start();
+    for (Thread t : ts) t.join();
+    assertEquals(threads * perThread, w.numObervations(), 0);
+    double total = 0, avgTotal = 0;
+    for (int i = 0; i < D; i++) {
+      total += w.getWeight(i);
+      avgTotal += w.getAveragedWeight(i);
+    }
+    assertEquals(threads * perThread, total, 0);
+    // The sum of the weights after the k-th observation is k (or k-1 for
+    // updates which raced with the observation counter)
+    double N = threads * perThread;
+    assertEquals((N + 1) / 2, avgTotal, threads + 1);
+  }
+
+  /** The shared weights can be copied (with their average) into regular weights */
+  @Test
+  public void addIntoSerial() {
+    int D = 32;
+    AveragedPerceptronWeights w = new AveragedPerceptronWeights.ConcurrentStorage(D);
+    Random r = new Random(9001);
+    for (int n = 0; n < 200; n++) {
+      w.bwh(r.nextInt(D), r.nextGaussian());
+      w.completedObservation();
+    }
+    AveragedPerceptronWeights a = new AveragedPerceptronWeights(D, 0);
+    a.addWeightsAndAverage(1, w);
+    assertEquals(w.numObervations(), a.numObervations(), 0);
+    for (int i = 0; i < D; i++) {
+      assertEquals(w.getWeight(i), a.getWeight(i), 1e-9);
+      assertEquals(w.getAveragedWeight(i), a.getAveragedWeight(i), 1e-9);
+      assertEquals(w.getWeight(i), w.getInternalWeights().get(i), 0);
+    }
+  }
+
+  /** With the update buffer each thread's updates are applied by its own observations */
+  @Test
+  public void updateBufferPerThread() throws InterruptedException {
+    boolean prev = AveragedPerceptronWeights.UPDATE_BUFFER_FIX;
+    AveragedPerceptronWeights.UPDATE_BUFFER_FIX = true;
+    try {
+      int threads = 4, perThread = 50;
+      // Each thread only touches its own index, so its weight should match a
+      // serial run over the same updates.
+      AveragedPerceptronWeights serial = new AveragedPerceptronWeights(1, 0);
+      for (int n = 0; n < perThread; n++) {
+        serial.bwh(0, -1);
+        serial.completedObservation();
+      }
+      AveragedPerceptronWeights w = new AveragedPerceptronWeights.ConcurrentStorage(threads);
+      List<Thread> ts = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int tt = t;
+        ts.add(new Thread(() -> {
+          for (int n = 0; n < perThread; n++) {
+            w.bwh(tt, -1);
+            w.completedObservation();
+          }
+        }));
+      }
+      for (Thread t : ts) t.start();
+      for (Thread t : ts) t.join();
+      assertEquals(threads * perThread, w.numObervations(), 0);
+      for (int i = 0; i < threads; i++)
+        assertEquals(serial.getWeight(0), w.getWeight(i), 1e-9);
+    } finally {
+      AveragedPerceptronWeights.UPDATE_BUFFER_FIX = prev;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package edu.jhu.hlt.fnparse.rl.full2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+
+public class ScoreBatchTest {
+
+  /** scoreBatch should give the same scores and updates as scoring one at a time */
+  @Test
+  public void sameAsSingle() {
+    int D = 64, n = 20;
+    Random r = new Random(9001);
+    AveragedPerceptronWeights batch = new AveragedPerceptronWeights(D, 0);
+    AveragedPerceptronWeights single = new AveragedPerceptronWeights(D, 0);
+    batch.gaussianFill(new Random(1));
+    single.gaussianFill(new Random(1));
+
+    int[][] fs = new int[n][];
+    int[] offsets = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      fs[i] = new int[r.nextInt(6)];   // some have no features
+      for (int j = 0; j < fs[i].length; j++)
+        fs[i][j] = r.nextInt();        // negative and >= D, needs reindexing
+      offsets[i + 1] = offsets[i] + fs[i].length;
+    }
+    int[] flat = new int[offsets[n]];
+    for (int i = 0; i < n; i++)
+      System.arraycopy(fs[i], 0, flat, offsets[i], fs[i].length);
+
+    Adjoints[] b = batch.scoreBatch(flat, offsets, n, true);
+    assertEquals(n, b.length);
+    Adjoints[] s = new Adjoints[n];
+    for (int i = 0; i < n; i++) {
+      s[i] = single.score(Arrays.copyOf(fs[i], fs[i].length), true);
+      assertEquals(s[i].forwards(), b[i].forwards(), 1e-9);
+    }
+    // Scores are read before any update, as they are on the agenda
+    for (int i = 0; i < n; i++) {
+      double dErr = r.nextBoolean() ? 1 : -1;
+      s[i].backwards(dErr);
+      b[i].backwards(dErr);
+    }
+    batch.completedObservation();
+    single.completedObservation();
+    for (int i = 0; i < D; i++)
+      assertEquals(single.getWeight(i), batch.getWeight(i), 1e-9);
+  }
+}
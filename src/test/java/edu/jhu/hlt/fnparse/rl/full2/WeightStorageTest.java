@@ -0,0 +1,109 @@
+package edu.jhu.hlt.fnparse.rl.full2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.prim.vector.IntDoubleDenseVector;
+
+/**
+ * Checks {@link AveragedPerceptronWeights.FloatStorage} and
+ * {@link AveragedPerceptronWeights.QuantizedView} against the regular (double)
+ * weights.
+ */
+public class WeightStorageTest {
+
+  private static final int D = 256;
+
+  /** Applies the same random updates to every one of ws */
+  private static void train(Random r, int n, AveragedPerceptronWeights... ws) {
+    for (int t = 0; t < n; t++) {
+      int[] f = features(r, 1 + r.nextInt(10));
+      double d = r.nextBoolean() ? 1 : -1;
+      for (AveragedPerceptronWeights w : ws) {
+        w.score(f.clone(), false).backwards(d);
+        w.completedObservation();
+      }
+    }
+  }
+
+  private static int[] features(Random r, int n) {
+    int[] f = new int[n];
+    for (int i = 0; i < n; i++)
+      f[i] = r.nextInt(D);
+    return f;
+  }
+
+  @Test
+  public void floatMatchesDouble() {
+    Random r = new Random(9001);
+    AveragedPerceptronWeights d = new AveragedPerceptronWeights(D, 0);
+    AveragedPerceptronWeights f = new AveragedPerceptronWeights.FloatStorage(D);
+    train(r, 2000, d, f);
+    assertEquals(d.numObervations(), f.numObervations(), 0);
+    for (int i = 0; i < D; i++) {
+      assertEquals(d.getWeight(i), f.getWeight(i), 1e-4);
+      assertEquals(d.getAveragedWeight(i), f.getAveragedWeight(i), 1e-3);
+    }
+    for (int t = 0; t < 50; t++) {
+      int[] feats = features(r, 20);
+      assertEquals(d.score(feats.clone(), false).forwards(), f.score(feats.clone(), false).forwards(), 1e-3);
+      assertEquals(d.averageView().score(feats.clone(), false).forwards(),
+          f.averageView().score(feats.clone(), false).forwards(), 1e-2);
+    }
+
+    IntDoubleDenseVector copy = f.getInternalWeights();
+    for (int i = 0; i < D; i++)
+      assertEquals(f.getWeight(i), copy.get(i), 0);
+  }
+
+  @Test
+  public void quantizedMatchesAverage() {
+    for (int bits : new int[] {8, 16}) {
+      Random r = new Random(9001);
+      AveragedPerceptronWeights d = new AveragedPerceptronWeights(D, 0);
+      train(r, 2000, d);
+      double max = 0;
+      for (int i = 0; i < D; i++)
+        max = Math.max(max, Math.abs(d.getAveragedWeight(i)));
+      double step = max / (bits == 8 ? Byte.MAX_VALUE : Short.MAX_VALUE);
+
+      d.quantizeAverage(bits);
+      AveragedPerceptronWeights q = d.averageView();
+      assertTrue(q instanceof AveragedPerceptronWeights.QuantizedView);
+      for (int i = 0; i < D; i++)
+        assertEquals(d.getAveragedWeight(i), q.getWeight(i), step / 2 + 1e-12);
+      for (int t = 0; t < 50; t++) {
+        int[] feats = features(r, 20);
+        double expected = 0;
+        for (int i : feats)
+          expected += d.getAveragedWeight(i);
+        assertEquals(expected, q.score(feats, false).forwards(), feats.length * step / 2 + 1e-9);
+      }
+    }
+  }
+
+  /** Combining shards goes through the storage, so any storage can be added to any other */
+  @Test
+  public void addAcrossStorage() {
+    Random r = new Random(9001);
+    AveragedPerceptronWeights d = new AveragedPerceptronWeights(D, 0);
+    AveragedPerceptronWeights f = new AveragedPerceptronWeights.FloatStorage(D);
+    train(r, 500, d, f);
+
+    AveragedPerceptronWeights fromFloat = new AveragedPerceptronWeights(D, 0);
+    fromFloat.addWeightsAndAverage(1, f);
+    AveragedPerceptronWeights fromDouble = new AveragedPerceptronWeights.FloatStorage(D);
+    fromDouble.addWeightsAndAverage(1, d);
+    AveragedPerceptronWeights justWeights = new AveragedPerceptronWeights.FloatStorage(D);
+    justWeights.addWeights(2, d);
+    for (int i = 0; i < D; i++) {
+      assertEquals(d.getAveragedWeight(i), fromFloat.getAveragedWeight(i), 1e-3);
+      assertEquals(d.getAveragedWeight(i), fromDouble.getAveragedWeight(i), 1e-3);
+      assertEquals(2 * d.getWeight(i), justWeights.getWeight(i), 1e-4);
+    }
+  }
+}
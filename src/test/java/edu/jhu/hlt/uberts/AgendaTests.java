@@ -251,6 +251,46 @@ public class AgendaTests {
     }
   }
 
+  /**
+   * Adding a batch with addAll (on top of some edges added one at a time)
+   * should give the same pop order as adding every edge one at a time.
+   */
+  @Test
+  public void addAllSameAsAdd() {
+    NodeType col = new NodeType("col");
+    Relation r = new Relation("test", col);
+    NodeType rNT = new NodeType("witness-" + r.getName());
+    for (int K = 1; K < 40; K++) {
+      for (int iter = 0; iter < 50; iter++) {
+        Scores scores = new Scores(K, true, rand);
+        // Both the sift-up and the heapify paths get used
+        int first = rand.nextInt(K);
+        DumbAgenda comp = new DumbAgenda();
+        Agenda agenda = new Agenda((edge, score) -> score.forwards(), null);
+        List<HashableHypEdge> batch = new ArrayList<>();
+        List<Adjoints> batchScores = new ArrayList<>();
+        for (int i = 0; i < K; i++) {
+          HypNode[] tail = new HypNode[] { new HypNode(col, i) };
+          HypNode head = new HypNode(rNT, r.encodeTail(tail));
+          HypEdge e = new HypEdge(r, head, tail);
+          Adjoints a = scores.getScore(i);
+          comp.add(e, a);
+          if (i < first) {
+            agenda.add(e, a);
+          } else {
+            batch.add(new HashableHypEdge(e));
+            batchScores.add(a);
+          }
+        }
+        agenda.addAll(batch, batchScores);
+        assertTrue(agenda.parentInvariantSatisfied());
+        assertEquals(comp.size(), agenda.size());
+        for (int i = 0; i < K; i++)
+          assertEquals(comp.popBoth(), agenda.popBoth());
+      }
+    }
+  }
+
   /**
    * Test remove and adjacency functionality
    */
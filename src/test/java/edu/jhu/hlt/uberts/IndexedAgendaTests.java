@@ -0,0 +1,248 @@
+package edu.jhu.hlt.uberts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.scoring.Adjoints;
+import edu.jhu.hlt.uberts.HypEdge.HashableHypEdge;
+
+/**
+ * Checks {@link IndexedAgenda} against {@link Agenda} on random sequences of
+ * add/pop/remove.
+ */
+public class IndexedAgendaTests {
+
+  private Random rand = new Random(9001);
+
+  @Test
+  public void usingPriority() {
+    for (int iter = 0; iter < 50; iter++)
+      helper(new Agenda((e, s) -> s.forwards(), null),
+          new IndexedAgenda((e, s) -> s.forwards(), null), 1 + rand.nextInt(200));
+  }
+
+  @Test
+  public void usingComparator() {
+    for (int iter = 0; iter < 50; iter++)
+      helper(new Agenda(null, AgendaComparators.BY_SCORE),
+          new IndexedAgenda(null, AgendaComparators.BY_SCORE), 1 + rand.nextInt(200));
+  }
+
+  /**
+   * Pending rescores must be applied before an edge is popped, so popping
+   * order is by the settled score.
+   */
+  @Test
+  public void lazyRescore() {
+    for (Agenda a : new Agenda[] {
+        new Agenda((e, s) -> s.forwards(), null),
+        new IndexedAgenda((e, s) -> s.forwards(), null)}) {
+      Uberts u = new Uberts(rand);
+      NodeType col1 = u.lookupNodeType("col1", true);
+      Relation rel1 = u.addEdgeType(new Relation("rel1", col1));
+      HypEdge e0 = u.makeEdge(false, rel1, u.lookupNode(col1, 0, true, false));
+      HypEdge e1 = u.makeEdge(false, rel1, u.lookupNode(col1, 1, true, false));
+      HypEdge e2 = u.makeEdge(false, rel1, u.lookupNode(col1, 2, true, false));
+      a.add(e0, new Adjoints.Constant(3));
+      a.add(e1, new Adjoints.Constant(2));
+      a.add(e2, new Adjoints.Constant(1));
+
+      // e0: 3 => -1, e2: 1 => 4
+      Set<HypEdge> pending = new HashSet<>();
+      pending.add(e0);
+      pending.add(e2);
+      a.getLazyRescorer(this, () -> new Agenda.LazyRescorer() {
+        @Override
+        public Adjoints settle(HypEdge e, Adjoints score) {
+          if (!pending.remove(e))
+            return null;
+          return Adjoints.sum(score, new Adjoints.Constant(e == e0 ? -4 : 3));
+        }
+        @Override
+        public void forget(HypEdge e) {
+          pending.remove(e);
+        }
+        @Override
+        public void clear() {
+          pending.clear();
+        }
+      });
+
+      // e0 comes to the top first, is settled and sinks, then e1 is on top (no
+      // pending work). e2 is only settled via getContentsInNoParticularOrder.
+      assertSame(e1, a.peek());
+      assertEquals(1, pending.size());
+      assertEquals(3, a.getContentsInNoParticularOrder().size());
+      assertTrue(pending.isEmpty());
+      assertSame(e2, a.pop());
+      assertSame(e1, a.pop());
+      assertSame(e0, a.pop());
+    }
+  }
+
+  /**
+   * Removing an edge with pending work drops that work, so it isn't applied if
+   * the edge is added again.
+   */
+  @Test
+  public void lazyRescoreForgetOnRemove() {
+    for (Agenda a : new Agenda[] {
+        new Agenda((e, s) -> s.forwards(), null),
+        new IndexedAgenda((e, s) -> s.forwards(), null)}) {
+      Uberts u = new Uberts(rand);
+      NodeType col1 = u.lookupNodeType("col1", true);
+      Relation rel1 = u.addEdgeType(new Relation("rel1", col1));
+      HypEdge e0 = u.makeEdge(false, rel1, u.lookupNode(col1, 0, true, false));
+      HypEdge e1 = u.makeEdge(false, rel1, u.lookupNode(col1, 1, true, false));
+      a.add(e0, new Adjoints.Constant(2));
+      a.add(e1, new Adjoints.Constant(1));
+
+      Set<HypEdge> pending = new HashSet<>();
+      pending.add(e0);
+      List<HypEdge> forgotten = new ArrayList<>();
+      a.getLazyRescorer(this, () -> new Agenda.LazyRescorer() {
+        @Override
+        public Adjoints settle(HypEdge e, Adjoints score) {
+          if (!pending.remove(e))
+            return null;
+          return Adjoints.sum(score, new Adjoints.Constant(-10));
+        }
+        @Override
+        public void forget(HypEdge e) {
+          if (pending.remove(e))
+            forgotten.add(e);
+        }
+        @Override
+        public void clear() {
+          pending.clear();
+        }
+      });
+
+      a.remove(e0);
+      assertEquals(1, forgotten.size());
+      assertTrue(pending.isEmpty());
+      a.add(e0, new Adjoints.Constant(2));
+      assertSame(e0, a.pop());
+      assertSame(e1, a.pop());
+    }
+  }
+
+  /**
+   * Bulk adds (which may heapify the whole agenda) pop in the same order as
+   * adding one at a time.
+   */
+  @Test
+  public void addAll() {
+    for (int iter = 0; iter < 20; iter++) {
+      Agenda expected = new Agenda((e, s) -> s.forwards(), null);
+      for (Agenda actual : new Agenda[] {
+          new Agenda((e, s) -> s.forwards(), null),
+          new IndexedAgenda((e, s) -> s.forwards(), null)}) {
+        Uberts u = new Uberts(rand);
+        NodeType col1 = u.lookupNodeType("col1", true);
+        Relation rel1 = u.addEdgeType(new Relation("rel1", col1));
+        expected.clear();
+        int next = 0;
+        for (int chunk = 0; chunk < 10; chunk++) {
+          List<HashableHypEdge> edges = new ArrayList<>();
+          List<Adjoints> scores = new ArrayList<>();
+          int k = rand.nextInt(3) == 0 ? 1 : rand.nextInt(50);
+          for (int i = 0; i < k; i++) {
+            HypEdge e = u.makeEdge(false, rel1, u.lookupNode(col1, next++, true, false));
+            Adjoints s = new Adjoints.Constant(rand.nextGaussian());
+            edges.add(new HashableHypEdge(e));
+            scores.add(s);
+            expected.add(e, s);
+          }
+          actual.addAll(edges, scores);
+          assertEquals(expected.size(), actual.size());
+          assertTrue(actual.parentInvariantSatisfied());
+          // Pop a few in between
+          for (int i = rand.nextInt(5); i > 0 && expected.size() > 0; i--)
+            assertSame(expected.pop(), actual.pop());
+        }
+        while (expected.size() > 0)
+          assertSame(expected.pop(), actual.pop());
+        assertEquals(0, actual.size());
+      }
+    }
+  }
+
+  private static Set<HypEdge> set(Iterable<HypEdge> edges) {
+    Set<HypEdge> s = new HashSet<>();
+    for (HypEdge e : edges)
+      assertTrue("duplicate: " + e, s.add(e));
+    return s;
+  }
+
+  private static Set<HashableHypEdge> set(List<HashableHypEdge> edges) {
+    return new HashSet<>(edges);
+  }
+
+  private void helper(Agenda expected, IndexedAgenda actual, int K) {
+    Uberts u = new Uberts(rand);
+    NodeType col1 = u.lookupNodeType("col1", true);
+    NodeType col2 = u.lookupNodeType("col2", true);
+    Relation rel1 = u.addEdgeType(new Relation("rel1", col1));
+    Relation rel2 = u.addEdgeType(new Relation("rel2", col1, col2));
+    HypNode[] n1 = new HypNode[K];
+    HypNode[] n2 = new HypNode[4];
+    for (int i = 0; i < n1.length; i++)
+      n1[i] = u.lookupNode(col1, i, true, false);
+    for (int i = 0; i < n2.length; i++)
+      n2[i] = u.lookupNode(col2, i, true, false);
+
+    List<HypEdge> added = new ArrayList<>();
+    for (int i = 0; i < 4 * K; i++) {
+      int op = rand.nextInt(10);
+      if (op < 6) {
+        HypEdge e = rand.nextBoolean()
+            ? u.makeEdge(false, rel1, n1[rand.nextInt(K)])
+            : u.makeEdge(false, rel2, n1[rand.nextInt(K)], n2[rand.nextInt(n2.length)]);
+        HashableHypEdge he = new HashableHypEdge(e);
+        assertEquals(expected.contains(he), actual.contains(he));
+        if (!expected.contains(he)) {
+          Adjoints s = new Adjoints.Constant(rand.nextGaussian());
+          expected.add(he, s);
+          actual.add(he, s);
+          added.add(e);
+        }
+      } else if (op < 8 && expected.size() > 0) {
+        assertSame(expected.peek(), actual.peek());
+        assertSame(expected.pop(), actual.pop());
+      } else if (!added.isEmpty()) {
+        HypEdge e = added.get(rand.nextInt(added.size()));
+        HashableHypEdge he = new HashableHypEdge(e);
+        assertEquals(expected.contains(he), actual.contains(he));
+        if (expected.contains(he))
+          assertSame(expected.remove(e).edge, actual.remove(e).edge);
+      }
+      assertEquals(expected.size(), actual.size());
+      assertTrue(actual.parentInvariantSatisfied());
+
+      HypNode a = n1[rand.nextInt(K)];
+      HypNode b = n2[rand.nextInt(n2.length)];
+      assertEquals(set(expected.adjacent(a)), set(actual.adjacent(a)));
+      assertEquals(set(expected.adjacent(a, b)), set(actual.adjacent(a, b)));
+      assertEquals(set(expected.match(0, rel2, a)), set(actual.match(0, rel2, a)));
+      assertEquals(set(expected.match(1, rel2, b)), set(actual.match(1, rel2, b)));
+    }
+
+    Agenda dup = actual.duplicate();
+    actual.clear();
+    assertEquals(0, actual.size());
+    while (expected.size() > 0) {
+      assertSame(expected.pop(), dup.pop());
+      assertEquals(expected.size(), dup.size());
+    }
+  }
+}
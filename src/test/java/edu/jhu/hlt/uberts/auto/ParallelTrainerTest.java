@@ -0,0 +1,72 @@
+package edu.jhu.hlt.uberts.auto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link ParallelTrainer}'s scheduling of documents onto workers,
+ * without building any pipelines.
+ */
+public class ParallelTrainerTest {
+
+  @Test
+  public void hogwildProcessesEveryDocOnce() {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      for (int numDocs : new int[] {0, 1, 3, 17, 100}) {
+        AtomicIntegerArray times = new AtomicIntegerArray(numDocs);
+        AtomicIntegerArray busy = new AtomicIntegerArray(4);
+        AtomicInteger overlap = new AtomicInteger();
+        ParallelTrainer.hogwild(4, numDocs, pool, (w, i) -> {
+          if (busy.incrementAndGet(w) > 1)
+            overlap.incrementAndGet();
+          times.incrementAndGet(i);
+          busy.decrementAndGet(w);
+        });
+        for (int i = 0; i < numDocs; i++)
+          assertEquals(1, times.get(i));
+        assertEquals(0, overlap.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void minibatchUpdatesInDocOrder() {
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      int numWorkers = 3;
+      int numDocs = 11;
+      List<Integer> inferred = Collections.synchronizedList(new ArrayList<>());
+      List<Integer> updated = new ArrayList<>();
+      ParallelTrainer.minibatch(numWorkers, numDocs, pool, (w, i) -> {
+        assertEquals(i % numWorkers, w);
+        // Every document in earlier rounds has already been applied
+        assertEquals(i - i % numWorkers, updated.size());
+        inferred.add(i);
+      }, (w, i) -> {
+        assertEquals(i % numWorkers, w);
+        assertTrue(inferred.contains(i));
+        updated.add(i);
+      });
+      assertEquals(numDocs, inferred.size());
+      List<Integer> expected = new ArrayList<>();
+      for (int i = 0; i < numDocs; i++)
+        expected.add(i);
+      assertEquals(expected, updated);
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
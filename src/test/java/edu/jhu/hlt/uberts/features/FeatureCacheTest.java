@@ -0,0 +1,67 @@
+package edu.jhu.hlt.uberts.features;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.fnparse.datatypes.Sentence;
+import edu.jhu.hlt.uberts.HypEdge;
+import edu.jhu.hlt.uberts.HypNode;
+import edu.jhu.hlt.uberts.NodeType;
+import edu.jhu.hlt.uberts.Relation;
+
+public class FeatureCacheTest {
+
+  private static final NodeType TOK = new NodeType("tokenIndex");
+  private static final Relation REL = new Relation("featureCacheTest", TOK);
+
+  private static HypEdge edge(String value) {
+    return new HypEdge(REL, null, new HypNode[] {new HypNode(TOK, value)});
+  }
+
+  private static Sentence sentence(String id) {
+    String[] words = new String[] {"John", "saw", "Mary"};
+    String[] pos = new String[] {"nnp", "vbd", "nnp"};
+    return new Sentence("test", id, words, pos, null);
+  }
+
+  /** Features which are a function of the document and the tail value */
+  private static int[] features(Sentence s, String value) {
+    return new int[] {s.getId().hashCode(), value.hashCode()};
+  }
+
+  /** Returns the features for value in s, computing and caching them on a miss */
+  private static int[] lookup(FeatureCache c, Sentence s, String value) {
+    FeatureCache.Key k = c.key(edge(value), s);
+    int[] f = c.get(k);
+    if (f == null) {
+      f = features(s, value);
+      c.put(k, f);
+    }
+    return f;
+  }
+
+  /**
+   * The first edges of two documents have different values, and values in
+   * the second document must not be confused with each other.
+   */
+  @Test
+  public void twoDocuments() {
+    for (boolean warmStart : new boolean[] {false, true}) {
+      FeatureCache c = new FeatureCache(REL, null, 1000, warmStart);
+      Sentence s1 = sentence("s1");
+      Sentence s2 = sentence("s2");
+      String[][] values = new String[][] {{"a"}, {"b", "c", "d"}};
+      Sentence[] docs = new Sentence[] {s1, s2};
+      for (int pass = 0; pass < 2; pass++) {
+        for (int d = 0; d < docs.length; d++)
+          for (int i = 0; i < values[d].length; i++)
+            for (int rep = 0; rep < 2; rep++)
+              assertArrayEquals("warmStart=" + warmStart + " doc=" + d + " value=" + values[d][i],
+                  features(docs[d], values[d][i]), lookup(c, docs[d], values[d][i]));
+      }
+      assertEquals(warmStart ? 4 : 3, c.size());
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package edu.jhu.hlt.uberts.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.uberts.io.ManyDocRelationFileIterator.RelDoc;
+import edu.jhu.hlt.uberts.io.RelationFileIterator.RelLine;
+
+public class BinaryRelationFileTests {
+
+  private static RelDoc doc(String id, String... lines) {
+    RelDoc d = new RelDoc(new RelLine(new String[] {"startdoc", id}, "a comment"));
+    for (String l : lines)
+      d.items.add(new RelLine(l.split(" "), null));
+    return d;
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    List<RelDoc> docs = new ArrayList<>();
+    docs.add(doc("doc1", "x word2 0 John", "x word2 1 loves", "x word2 2 Mary"));
+    docs.add(doc("doc2"));
+    docs.add(doc("doc3", "y predicate2 1-2 love.v", "x word2 0 loves"));
+
+    File f = File.createTempFile("rels", BinaryRelationFile.SUFFIX);
+    f.deleteOnExit();
+    try (BinaryRelationFile.Writer w = new BinaryRelationFile.Writer(f)) {
+      for (RelDoc d : docs)
+        w.write(d);
+    }
+    assertTrue(BinaryRelationFile.isBinary(f));
+
+    try (BinaryRelationFile b = new BinaryRelationFile(f)) {
+      assertEquals(docs.size(), b.numDocs());
+
+      // Random access
+      for (int i = docs.size() - 1; i >= 0; i--) {
+        RelDoc expected = docs.get(i);
+        RelDoc actual = b.getDoc(i);
+        assertEquals(expected.getId(), b.getDocId(i));
+        assertEquals(i, b.indexOf(expected.getId()));
+        assertEquals(expected.def.toLine(), actual.def.toLine());
+        assertEquals(expected.items.size(), actual.items.size());
+        for (int j = 0; j < expected.items.size(); j++)
+          assertArrayEquals(expected.items.get(j).tokens, actual.items.get(j).tokens);
+      }
+      assertEquals(-1, b.indexOf("noSuchDoc"));
+
+      // Values are shared through the string table
+      assertSame(b.getDoc(0).items.get(1).tokens[3], b.getDoc(2).items.get(1).tokens[3]);
+
+      // Same grouping as the text format
+      ManyDocRelationFileIterator many = new ManyDocRelationFileIterator(b.lines(), false);
+      Iterator<RelDoc> expected = docs.iterator();
+      while (many.hasNext()) {
+        RelDoc a = many.next();
+        RelDoc e = expected.next();
+        assertEquals(e.getId(), a.getId());
+        assertEquals(e.items.size(), a.items.size());
+      }
+      assertFalse(expected.hasNext());
+    }
+  }
+}
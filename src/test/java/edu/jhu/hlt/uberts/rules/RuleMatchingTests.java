@@ -1,6 +1,9 @@
 package edu.jhu.hlt.uberts.rules;
 
+import static org.junit.Assert.assertEquals;
+
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
@@ -20,6 +23,7 @@ import edu.jhu.hlt.uberts.auto.Trigger;
 import edu.jhu.hlt.uberts.auto.TypeInference;
 import edu.jhu.hlt.uberts.auto.UbertsPipeline;
 import edu.jhu.hlt.uberts.rules.Env.Trie3;
+import edu.jhu.hlt.uberts.rules.JoinPlan.Mode;
 
 /**
  * Test that we can parse rules like "foo(x,y) & bar(y,z) => baz(x,z)", compile
@@ -130,4 +134,43 @@ public class RuleMatchingTests {
     });
     System.out.println(Trie3.EVENT_COUNTS);
   }
+
+  /**
+   * For a single trigger (no prefix sharing in the trie) {@link JoinPlan}
+   * should produce exactly the same matches as {@link Trie3}, in the same order.
+   */
+  @Test
+  public void joinPlanSameAsTrie3() {
+    u.readRelData("def foo <a> <b>");
+    u.readRelData("def bar <b> <c>");
+    u.readRelData("def baz <a> <c>");
+    u.readRelData("def quux <a> <c>");
+    Rule r = Rule.parseRule("foo(x,y) & bar(y,z) & baz(x,z) => quux(x,z)", null, u);
+    Trigger t = new Trigger(r.lhs, 0);
+    Trie3 trie = Trie3.makeRoot();
+    trie.add(t);
+    JoinPlan.Index plans = new JoinPlan.Index(Mode.CHECKED);
+    plans.add(t);
+
+    Random rand = new Random(9001);
+    State s = u.getState();
+    String[] rels = new String[] {"foo", "bar", "baz"};
+    for (int i = 0; i < 300; i++) {
+      String rel = rels[rand.nextInt(rels.length)];
+      String fact = rel + "(" + rand.nextInt(4) + "," + rand.nextInt(4) + ")";
+      HypEdge e = u.dbgMakeEdge(fact, false);
+      if (s.getScore(new HypEdge.HashableHypEdge(e)) != null)
+        continue;
+      s.add(e, Adjoints.Constant.ZERO);
+
+      List<String> expected = new ArrayList<>();
+      trie.match(s, e, m -> expected.add(Arrays.toString(m.getValues())));
+      for (Mode m : Mode.values()) {
+        plans.setMode(m);
+        List<String> actual = new ArrayList<>();
+        plans.match(s, e, (trig, values) -> actual.add(Arrays.toString(values)));
+        assertEquals(expected, actual);
+      }
+    }
+  }
 }
@@ -0,0 +1,68 @@
+package edu.jhu.hlt.uberts.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.uberts.util.Metrics.Level;
+
+public class MetricsTest {
+
+  @Test
+  public void countersRespectLevel() {
+    Metrics m = new Metrics(Level.OFF);
+    Metrics.Counter c = m.counter("c");
+    c.increment();
+    assertEquals(0, c.get());
+    m.setLevel(Level.COUNTERS);
+    c.increment();
+    c.add(2);
+    assertEquals(3, c.get());
+    assertEquals(c, m.counter("c"));
+  }
+
+  @Test
+  public void histogram() {
+    Metrics m = new Metrics(Level.FULL);
+    Metrics.Histogram h = m.histogram("h");
+    for (int i = 1; i <= 100; i++)
+      h.record(i);
+    assertEquals(100, h.getCount());
+    assertEquals(50.5, h.getMean(), 1e-9);
+    assertEquals(100, h.getMax());
+    assertTrue(h.getQuantileUpperBound(0.5) >= 50);
+  }
+
+  @Test
+  public void timerStartedWhileOff() {
+    Metrics m = new Metrics(Level.COUNTERS);
+    Metrics.Timer t = m.timer("t");
+    long s = t.start();
+    m.setLevel(Level.FULL);
+    t.stop(s);
+    // Not started in FULL, so there is no (bogus) sample
+    assertEquals(0, t.getCount());
+    s = t.start();
+    t.stop(s);
+    assertEquals(1, t.getCount());
+    assertTrue(t.getTotalSeconds() < 60);
+  }
+
+  @Test
+  public void concurrentCounts() throws InterruptedException {
+    Metrics m = new Metrics(Level.COUNTERS);
+    Metrics.Counter c = m.counter("c");
+    Thread[] ts = new Thread[4];
+    for (int i = 0; i < ts.length; i++) {
+      ts[i] = new Thread(() -> {
+        for (int j = 0; j < 10000; j++)
+          c.increment();
+      });
+      ts[i].start();
+    }
+    for (Thread t : ts)
+      t.join();
+    assertEquals(40000, c.get());
+  }
+}
@@ -0,0 +1,89 @@
+package edu.jhu.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PackedSegmentsTest {
+
+  private static byte[] value(int i, int len) {
+    byte[] b = new byte[len];
+    for (int j = 0; j < len; j++)
+      b[j] = (byte) (i * 31 + j);
+    return b;
+  }
+
+  @Test
+  public void putGetReopen() throws IOException {
+    File dir = Files.createTempDirectory("packedSegments").toFile();
+    // Small segments so that this rolls over a few times
+    long maxSegmentBytes = 100;
+    try (PackedSegments ps = new PackedSegments(dir, maxSegmentBytes)) {
+      for (int i = 0; i < 10; i++)
+        ps.put("comm" + i, value(i, 10 + 5 * i));
+      ps.put("comm3", value(42, 7));    // last put wins
+      assertArrayEquals(value(0, 10), ps.get("comm0"));
+      assertArrayEquals(value(42, 7), ps.get("comm3"));
+      assertNull(ps.get("notThere"));
+    }
+    assertEquals(true, new File(dir, "segment-00001.dat").isFile());
+
+    try (PackedSegments ps = new PackedSegments(dir, maxSegmentBytes)) {
+      assertEquals(10, ps.size());
+      for (int i = 0; i < 10; i++)
+        assertArrayEquals(i == 3 ? value(42, 7) : value(i, 10 + 5 * i), ps.get("comm" + i));
+      ps.put("comm10", value(10, 3));
+      assertArrayEquals(value(10, 3), ps.get("comm10"));
+    }
+  }
+
+  /**
+   * Two writers on one directory (standing in for two processes) must not
+   * write values over each other.
+   */
+  @Test
+  public void twoWriters() throws Exception {
+    File dir = Files.createTempDirectory("packedSegments").toFile();
+    long maxSegmentBytes = 500;
+    int n = 200;
+    try (PackedSegments a = new PackedSegments(dir, maxSegmentBytes);
+        PackedSegments b = new PackedSegments(dir, maxSegmentBytes)) {
+      List<Thread> threads = new ArrayList<>();
+      List<Throwable> errs = new ArrayList<>();
+      for (PackedSegments ps : new PackedSegments[] {a, b}) {
+        int start = ps == a ? 0 : n;
+        threads.add(new Thread(() -> {
+          try {
+            for (int i = start; i < start + n; i++)
+              ps.put("comm" + i, value(i, 1 + i % 37));
+          } catch (Throwable t) {
+            synchronized (errs) {
+              errs.add(t);
+            }
+          }
+        }));
+      }
+      for (Thread t : threads)
+        t.start();
+      for (Thread t : threads)
+        t.join();
+      assertEquals(0, errs.size());
+      // Each writer can read what it wrote
+      for (int i = 0; i < 2 * n; i++)
+        assertArrayEquals(value(i, 1 + i % 37), (i < n ? a : b).get("comm" + i));
+    }
+    try (PackedSegments ps = new PackedSegments(dir, maxSegmentBytes)) {
+      assertEquals(2 * n, ps.size());
+      for (int i = 0; i < 2 * n; i++)
+        assertArrayEquals(value(i, 1 + i % 37), ps.get("comm" + i));
+    }
+  }
+}